@@ -0,0 +1,59 @@
+package com.wesabe.bouncer.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.wesabe.bouncer.auth.AuthHeader;
+
+/**
+ * Benchmarks parsing Authorization headers, with credentials which are
+ * plain ASCII, UTF-8, or ISO-8859-1 (which older browsers send).
+ *
+ * @author coda
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AuthHeaderBenchmark {
+	@Param({ "US-ASCII", "UTF-8", "ISO-8859-1" })
+	public String charset;
+	
+	private String header;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		final String credentials = "US-ASCII".equals(charset)
+				? "dingo@example.com:correct horse battery staple"
+				: "dîngo@example.com:cörrect hörse battery staple";
+		this.header = "Basic " + new String(Base64.encodeBase64(credentials.getBytes(charset)), "US-ASCII");
+	}
+	
+	@Benchmark
+	public AuthHeader parse() {
+		return AuthHeader.parse(header);
+	}
+	
+	@Benchmark
+	public void parseAndDecode(Blackhole blackhole) {
+		final AuthHeader authHeader = AuthHeader.parse(header);
+		blackhole.consume(authHeader.getUsername());
+		blackhole.consume(authHeader.getPassword());
+	}
+}
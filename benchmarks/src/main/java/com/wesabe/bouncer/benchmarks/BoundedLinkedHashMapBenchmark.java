@@ -0,0 +1,120 @@
+package com.wesabe.bouncer.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wesabe.bouncer.util.BoundedLinkedHashMap;
+import com.wesabe.bouncer.util.TinyLfuCache;
+
+/**
+ * Benchmarks {@link BoundedLinkedHashMap} under contention, with
+ * {@link TinyLfuCache} for comparison: six threads read and two write, with
+ * keys drawn from a skewed distribution so that some are much hotter than
+ * others, the way logins are.
+ *
+ * @author coda
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class BoundedLinkedHashMapBenchmark {
+	private static final int CAPACITY = 10000;
+	private static final int KEYS = 1 << 16;
+	
+	private interface Cache {
+		Integer get(Integer key);
+		
+		void put(Integer key, Integer value);
+	}
+	
+	@Param({ "BoundedLinkedHashMap", "TinyLfuCache" })
+	public String implementation;
+	
+	private Cache cache;
+	private Integer[] keys;
+	
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int index = new Random().nextInt(KEYS);
+		
+		public int next() {
+			this.index = (index + 1) & (KEYS - 1);
+			return index;
+		}
+	}
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		if ("TinyLfuCache".equals(implementation)) {
+			final TinyLfuCache<Integer, Integer> map = new TinyLfuCache<Integer, Integer>(CAPACITY);
+			this.cache = new Cache() {
+				@Override
+				public Integer get(Integer key) {
+					return map.get(key);
+				}
+				
+				@Override
+				public void put(Integer key, Integer value) {
+					map.put(key, value);
+				}
+			};
+		} else {
+			final BoundedLinkedHashMap<Integer, Integer> map = BoundedLinkedHashMap.create(CAPACITY);
+			this.cache = new Cache() {
+				@Override
+				public Integer get(Integer key) {
+					return map.get(key);
+				}
+				
+				@Override
+				public void put(Integer key, Integer value) {
+					map.put(key, value);
+				}
+			};
+		}
+		
+		// a Pareto distribution over four times as many keys as fit
+		final Random random = new Random(42);
+		this.keys = new Integer[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			final double x = 1.0 / Math.pow(1.0 - random.nextDouble(), 1.0 / 1.16);
+			keys[i] = Integer.valueOf((int) Math.min(x - 1.0, CAPACITY * 4));
+		}
+		for (int i = 0; i < CAPACITY; i++) {
+			cache.put(keys[i], keys[i]);
+		}
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(6)
+	public Integer get(Cursor cursor) {
+		return cache.get(keys[cursor.next()]);
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(2)
+	public void put(Cursor cursor) {
+		final Integer key = keys[cursor.next()];
+		cache.put(key, key);
+	}
+}
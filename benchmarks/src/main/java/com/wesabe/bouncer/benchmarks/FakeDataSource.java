@@ -0,0 +1,142 @@
+package com.wesabe.bouncer.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+/**
+ * An in-process stand-in for the PFC database, which answers the user
+ * queries {@link com.wesabe.bouncer.auth.JdbcUserStore} makes from a map,
+ * after a simulated query latency.
+ * <p>
+ * Only the handful of JDBC methods the user stores call are implemented;
+ * anything else throws an {@link UnsupportedOperationException}, so a
+ * benchmark can't silently measure a code path the stand-in doesn't model.
+ *
+ * @author coda
+ */
+public class FakeDataSource {
+	private static class User {
+		private final int id;
+		private final String uid, salt, passwordHash;
+		
+		public User(int id, String uid, String salt, String passwordHash) {
+			this.id = id;
+			this.uid = uid;
+			this.salt = salt;
+			this.passwordHash = passwordHash;
+		}
+	}
+	
+	private final Map<String, User> users = new ConcurrentHashMap<String, User>();
+	private final long queryLatency;
+	
+	/**
+	 * Creates a new {@link FakeDataSource}.
+	 *
+	 * @param queryLatency the number of microseconds each query takes
+	 */
+	public FakeDataSource(long queryLatency) {
+		this.queryLatency = queryLatency;
+	}
+	
+	/**
+	 * Adds an active user.
+	 */
+	public void addUser(String login, int id, String uid, String salt, String passwordHash) {
+		users.put(login, new User(id, uid, salt, passwordHash));
+	}
+	
+	/**
+	 * Returns a {@link DataSource} backed by the stand-in.
+	 */
+	public DataSource getDataSource() {
+		return proxy(DataSource.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("getConnection")) {
+					return newConnection();
+				}
+				return unsupported(method);
+			}
+		});
+	}
+	
+	private Connection newConnection() {
+		return proxy(Connection.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				final String name = method.getName();
+				if (name.equals("prepareStatement")) {
+					return newStatement();
+				} else if (name.equals("close")) {
+					return null;
+				}
+				return unsupported(method);
+			}
+		});
+	}
+	
+	private PreparedStatement newStatement() {
+		return proxy(PreparedStatement.class, new InvocationHandler() {
+			private String login;
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				final String name = method.getName();
+				if (name.equals("setString")) {
+					this.login = (String) args[1];
+					return null;
+				} else if (name.equals("setQueryTimeout") || name.equals("close")) {
+					return null;
+				} else if (name.equals("executeQuery")) {
+					Latency.simulate(queryLatency);
+					return newResultSet(users.get(login));
+				}
+				return unsupported(method);
+			}
+		});
+	}
+	
+	private ResultSet newResultSet(final User user) {
+		return proxy(ResultSet.class, new InvocationHandler() {
+			private boolean read;
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				final String name = method.getName();
+				if (name.equals("first") || name.equals("next")) {
+					final boolean found = (user != null) && !read;
+					this.read = true;
+					return Boolean.valueOf(found);
+				} else if (name.equals("getInt") && "id".equals(args[0])) {
+					return Integer.valueOf(user.id);
+				} else if (name.equals("getString") && "uid".equals(args[0])) {
+					return user.uid;
+				} else if (name.equals("getString") && "salt".equals(args[0])) {
+					return user.salt;
+				} else if (name.equals("getString") && "password_hash".equals(args[0])) {
+					return user.passwordHash;
+				} else if (name.equals("close")) {
+					return null;
+				}
+				return unsupported(method);
+			}
+		});
+	}
+	
+	private static <T> T proxy(Class<T> klass, InvocationHandler handler) {
+		return klass.cast(Proxy.newProxyInstance(FakeDataSource.class.getClassLoader(), new Class<?>[] { klass }, handler));
+	}
+	
+	private static Object unsupported(Method method) {
+		throw new UnsupportedOperationException(method.toString());
+	}
+}
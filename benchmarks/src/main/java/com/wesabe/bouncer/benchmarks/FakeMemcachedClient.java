@@ -0,0 +1,141 @@
+package com.wesabe.bouncer.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.MemcachedClientIF;
+
+/**
+ * An in-process stand-in for memcached, which keeps its entries in a map and
+ * answers after a simulated round-trip latency.
+ * <p>
+ * Only the operations {@link com.wesabe.bouncer.auth.MemcachedThrottleStore}
+ * uses are implemented, and expiry times are ignored. Asynchronous
+ * operations return immediately, and their futures wait out whatever is left
+ * of the latency, so a lookup overlapped with other work costs what it
+ * would against a real server.
+ *
+ * @author coda
+ */
+public class FakeMemcachedClient {
+	private static class DelayedFuture<T> implements Future<T> {
+		private final T value;
+		private final long readyAt;
+		
+		public DelayedFuture(T value, long latency) {
+			this.value = value;
+			this.readyAt = System.nanoTime() + (latency * 1000);
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+		
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			Latency.waitUntil(readyAt);
+			return value;
+		}
+		
+		@Override
+		public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+				TimeoutException {
+			return get();
+		}
+		
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+		
+		@Override
+		public boolean isDone() {
+			return System.nanoTime() >= readyAt;
+		}
+	}
+	
+	private final ConcurrentMap<String, Object> entries = new ConcurrentHashMap<String, Object>();
+	private final long latency;
+	
+	/**
+	 * Creates a new {@link FakeMemcachedClient}.
+	 *
+	 * @param latency the number of microseconds each round-trip takes
+	 */
+	public FakeMemcachedClient(long latency) {
+		this.latency = latency;
+	}
+	
+	/**
+	 * Returns a {@link MemcachedClientIF} backed by the stand-in.
+	 */
+	public MemcachedClientIF getClient() {
+		return (MemcachedClientIF) Proxy.newProxyInstance(
+				FakeMemcachedClient.class.getClassLoader(),
+				new Class<?>[] { MemcachedClientIF.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						return FakeMemcachedClient.this.invoke(method, args);
+					}
+				}
+		);
+	}
+	
+	private Object invoke(Method method, Object[] args) {
+		final String name = method.getName();
+		if (name.equals("asyncGet")) {
+			return new DelayedFuture<Object>(entries.get(args[0]), latency);
+		} else if (name.equals("getStats")) {
+			final SocketAddress server = new InetSocketAddress("localhost", 11211);
+			return Collections.singletonMap(server, Collections.<String, String>emptyMap());
+		}
+		
+		Latency.simulate(latency);
+		final String key = (String) args[0];
+		if (name.equals("get")) {
+			return entries.get(key);
+		} else if (name.equals("add")) {
+			return new DelayedFuture<Boolean>(entries.putIfAbsent(key, args[2]) == null, 0);
+		} else if (name.equals("set")) {
+			entries.put(key, args[2]);
+			return new DelayedFuture<Boolean>(Boolean.TRUE, 0);
+		} else if (name.equals("delete")) {
+			return new DelayedFuture<Boolean>(entries.remove(key) != null, 0);
+		} else if (name.equals("incr") && (args.length == 2)) {
+			return Long.valueOf(increment(key, ((Number) args[1]).longValue()));
+		}
+		throw new UnsupportedOperationException(method.toString());
+	}
+	
+	/*
+	 * Like memcached, values are only incremented if they exist, and -1 means
+	 * they don't.
+	 */
+	private long increment(String key, long delta) {
+		while (true) {
+			final Object value = entries.get(key);
+			if (value == null) {
+				return -1;
+			}
+			
+			final long current = Long.parseLong(value.toString());
+			final Long next = Long.valueOf(current + delta);
+			if (entries.replace(key, value, next)) {
+				return next.longValue();
+			}
+		}
+	}
+}
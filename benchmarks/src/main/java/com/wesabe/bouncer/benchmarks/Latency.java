@@ -0,0 +1,40 @@
+package com.wesabe.bouncer.benchmarks;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulated network latency for the benchmarks' stand-in backends.
+ *
+ * @author coda
+ */
+public final class Latency {
+	private Latency() {
+		// use #simulate(long)
+	}
+	
+	/**
+	 * Parks the current thread for a number of microseconds, as if it were
+	 * waiting on a response.
+	 *
+	 * @param micros the number of microseconds to wait, or {@code 0} to
+	 *               return immediately
+	 */
+	public static void simulate(long micros) {
+		if (micros > 0) {
+			waitUntil(System.nanoTime() + (micros * 1000));
+		}
+	}
+	
+	/**
+	 * Parks the current thread until {@link System#nanoTime()} reaches a
+	 * deadline.
+	 *
+	 * @param deadline a value of {@link System#nanoTime()}
+	 */
+	public static void waitUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+}
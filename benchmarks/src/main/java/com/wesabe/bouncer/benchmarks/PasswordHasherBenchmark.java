@@ -0,0 +1,96 @@
+package com.wesabe.bouncer.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wesabe.bouncer.auth.DigestEngine;
+import com.wesabe.bouncer.auth.PasswordHasher;
+
+/**
+ * Benchmarks {@link PasswordHasher}, both for passwords it has memoized and
+ * for ones it hasn't. Run with {@code -prof gc} to see the allocation rate of
+ * each.
+ *
+ * @author coda
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PasswordHasherBenchmark {
+	private static final int PASSWORDS = 1024;
+	
+	/**
+	 * The number of bytes of heap the memo may use; {@code 0} disables it, so
+	 * every call hashes.
+	 */
+	@Param({ "0", "1048576" })
+	public long cacheBudget;
+	
+	/**
+	 * The number of memoized digests each cache keeps off the heap.
+	 */
+	@Param({ "0", "4096" })
+	public int offHeapDigests;
+	
+	private PasswordHasher hasher;
+	private String[] passwords, salts;
+	private byte[][] passwordDigests;
+	
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int index;
+		
+		public int next() {
+			this.index = (index + 1) & (PASSWORDS - 1);
+			return index;
+		}
+	}
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		this.hasher = new PasswordHasher(cacheBudget, offHeapDigests);
+		this.passwords = new String[PASSWORDS];
+		this.salts = new String[PASSWORDS];
+		this.passwordDigests = new byte[PASSWORDS][];
+		for (int i = 0; i < PASSWORDS; i++) {
+			passwords[i] = "correct horse battery staple " + i;
+			salts[i] = Integer.toHexString(i * 0x9E3779B9);
+			passwordDigests[i] = DigestEngine.decode(new PasswordHasher(0, 0).getPasswordHash(passwords[i], salts[i]));
+		}
+	}
+	
+	@Benchmark
+	public String getPasswordHash(Cursor cursor) {
+		final int i = cursor.next();
+		return hasher.getPasswordHash(passwords[i], salts[i]);
+	}
+	
+	@Benchmark
+	public boolean checkPassword(Cursor cursor) {
+		final int i = cursor.next();
+		return hasher.checkPassword(passwords[i], salts[i], passwordDigests[i]);
+	}
+	
+	@Benchmark
+	public String getAccountKey(Cursor cursor) {
+		final int i = cursor.next();
+		return hasher.getAccountKey(salts[i], passwords[i]);
+	}
+}
@@ -0,0 +1,207 @@
+package com.wesabe.bouncer.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.security.Principal;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.FilterMapping;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wesabe.bouncer.auth.WesabeCredentials;
+import com.wesabe.bouncer.proxy.ProxyHttpExchangeFactory;
+import com.wesabe.bouncer.servlets.ProxyServlet;
+
+/**
+ * A load test of {@link ProxyServlet}: {@value #CLIENTS} clients at once,
+ * proxied through a server with a small thread pool to a slow backend, both
+ * synchronously and asynchronously.
+ * <p>
+ * Synchronously, each proxied request holds a server thread until the backend
+ * responds, so throughput can't go above {@code serverThreads} requests per
+ * {@code backendLatency}, however many clients are waiting. Asynchronously,
+ * server threads are only held while requests are being sent and answered,
+ * so throughput should approach {@value #CLIENTS} requests per
+ * {@code backendLatency}.
+ *
+ * @author coda
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(ProxyServletBenchmark.CLIENTS)
+@State(Scope.Benchmark)
+public class ProxyServletBenchmark {
+	static final int CLIENTS = 128;
+	
+	/**
+	 * If {@code true}, requests are suspended while they're proxied.
+	 */
+	@Param({ "false", "true" })
+	public boolean async;
+	
+	/**
+	 * The number of microseconds the backend takes to respond.
+	 */
+	@Param({ "50000" })
+	public long backendLatency;
+	
+	/**
+	 * The size of the proxying server's thread pool, which also runs its
+	 * acceptor and selector.
+	 */
+	@Param({ "16" })
+	public int serverThreads;
+	
+	private Server backend, proxy;
+	private URL url;
+	
+	/**
+	 * A backend which answers every request with a short body after
+	 * {@code backendLatency}, on as many threads as it takes.
+	 */
+	private static class SlowHandler extends AbstractHandler {
+		private static final byte[] BODY = "{\"ok\":true}".getBytes();
+		private final long latency;
+		
+		public SlowHandler(long latency) {
+			this.latency = latency;
+		}
+		
+		@Override
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			Latency.simulate(latency);
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType("application/json");
+			response.setContentLength(BODY.length);
+			response.getOutputStream().write(BODY);
+			baseRequest.setHandled(true);
+		}
+	}
+	
+	/**
+	 * Stands in for the security handler, which would have set the user
+	 * principal the exchange proxies as the Wesabe credentials.
+	 */
+	private static class AuthenticatedFilter implements Filter {
+		private static final Principal CREDENTIALS = new WesabeCredentials(1, "0123456789abcdef");
+		
+		@Override
+		public void init(FilterConfig config) throws ServletException {
+			// nothing to set up
+		}
+		
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+				throws IOException, ServletException {
+			chain.doFilter(new HttpServletRequestWrapper((HttpServletRequest) request) {
+				@Override
+				public Principal getUserPrincipal() {
+					return CREDENTIALS;
+				}
+			}, response);
+		}
+		
+		@Override
+		public void destroy() {
+			// nothing to tear down
+		}
+	}
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		// keep every client's connection alive between requests
+		System.setProperty("http.maxConnections", String.valueOf(CLIENTS));
+		
+		this.backend = new Server();
+		final SelectChannelConnector backendConnector = new SelectChannelConnector();
+		backendConnector.setPort(0);
+		backend.addConnector(backendConnector);
+		backend.setThreadPool(new QueuedThreadPool(CLIENTS * 2));
+		backend.setHandler(new SlowHandler(backendLatency));
+		backend.start();
+		
+		final HttpClient client = new HttpClient();
+		client.setThreadPool(new QueuedThreadPool(16));
+		client.setMaxConnectionsPerAddress(CLIENTS);
+		
+		this.proxy = new Server();
+		final SelectChannelConnector proxyConnector = new SelectChannelConnector();
+		proxyConnector.setPort(0);
+		proxy.addConnector(proxyConnector);
+		proxy.setThreadPool(new QueuedThreadPool(serverThreads));
+		final ServletContextHandler context = new ServletContextHandler(proxy, "/");
+		context.addFilter(new FilterHolder(new AuthenticatedFilter()), "/*", FilterMapping.DEFAULT);
+		final ProxyHttpExchangeFactory factory = new ProxyHttpExchangeFactory(
+				URI.create("http://127.0.0.1:" + backendConnector.getLocalPort()));
+		context.addServlet(new ServletHolder(new ProxyServlet(client, factory, async)), "/*");
+		proxy.start();
+		
+		this.url = new URL("http://127.0.0.1:" + proxyConnector.getLocalPort() + "/accounts.json");
+	}
+	
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		proxy.stop();
+		backend.stop();
+	}
+	
+	@Benchmark
+	public int proxy() throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		final int status = connection.getResponseCode();
+		if (status != HttpServletResponse.SC_OK) {
+			throw new IllegalStateException("Proxied request returned " + status);
+		}
+		
+		final InputStream body = connection.getInputStream();
+		try {
+			final byte[] buffer = new byte[1024];
+			int count = 0;
+			while (body.read(buffer) >= 0) {
+				count++;
+			}
+			return count;
+		} finally {
+			body.close();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.wesabe.bouncer.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wesabe.bouncer.limits.TokenBuckets;
+import com.wesabe.bouncer.util.Clock;
+
+/**
+ * Benchmarks {@link TokenBuckets#tryAcquire(int)} from 64 threads at once,
+ * either all hammering the same user's bucket (the worst case for
+ * compare-and-swap contention) or spread over four times as many users as
+ * there are buckets (the worst case for recycling slots).
+ *
+ * @author coda
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(64)
+@State(Scope.Benchmark)
+public class TokenBucketsBenchmark {
+	private static final int CAPACITY = 1 << 16;
+	private static final int KEYS = 1 << 16;
+	
+	/**
+	 * {@code hot} to take every token from one bucket, or {@code spread} to
+	 * take them from {@value #CAPACITY} &times; 4 buckets.
+	 */
+	@Param({ "hot", "spread" })
+	public String keys;
+	
+	private TokenBuckets buckets;
+	private int[] userIds;
+	
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int index = new Random().nextInt(KEYS);
+		
+		public int next() {
+			this.index = (index + 1) & (KEYS - 1);
+			return index;
+		}
+	}
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		this.buckets = new TokenBuckets(1000, 1000, CAPACITY, Clock.system());
+		this.userIds = new int[KEYS];
+		final Random random = new Random(42);
+		for (int i = 0; i < KEYS; i++) {
+			userIds[i] = "hot".equals(keys) ? 1 : (1 + random.nextInt(CAPACITY * 4));
+		}
+	}
+	
+	@Benchmark
+	public long tryAcquire(Cursor cursor) {
+		return buckets.tryAcquire(userIds[cursor.next()]);
+	}
+}
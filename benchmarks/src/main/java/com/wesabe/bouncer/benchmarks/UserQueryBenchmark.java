@@ -0,0 +1,205 @@
+package com.wesabe.bouncer.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wesabe.bouncer.auth.JdbcUserStore;
+import com.wesabe.bouncer.auth.UserRecord;
+import com.wesabe.bouncer.stats.StatsRegistry;
+
+/**
+ * Compares the UNION query users used to be looked up with against
+ * {@link JdbcUserStore}'s single-index queries, against an embedded H2
+ * database with indexes on {@code username} and {@code email}.
+ * <p>
+ * H2's planner isn't MySQL's, so the absolute numbers mean little, but both
+ * have to materialize and sort the union of two index lookups where a
+ * single-index query can stop at the first row.
+ *
+ * @author coda
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserQueryBenchmark {
+	private static final String UNION_SELECT_SQL =
+		"SELECT * FROM (" +
+				"SELECT id, uid, salt, password_hash, last_web_login " +
+				"FROM users " +
+				"WHERE (username = ?) AND status IN (0, 6) " + // 0 is ACTIVE, 6 is PENDING
+			"UNION " +
+				"SELECT id, uid, salt, password_hash, last_web_login " +
+				"FROM users " +
+				"WHERE (email = ?) AND status IN (0, 6)" + // 0 is ACTIVE, 6 is PENDING
+		") AS t " +
+		"ORDER BY last_web_login DESC " +
+		"LIMIT 1";
+	private static final String URL = "jdbc:h2:mem:users;DB_CLOSE_DELAY=-1";
+	
+	/**
+	 * The number of users in the table.
+	 */
+	@Param({ "100000" })
+	public int users;
+	
+	/**
+	 * If {@code true}, users log in with their email addresses, which the
+	 * single-index queries look up by email first.
+	 */
+	@Param({ "false", "true" })
+	public boolean byEmail;
+	
+	private Connection connection;
+	private JdbcUserStore store;
+	private String[] logins;
+	private int index;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Class.forName("org.h2.Driver");
+		this.connection = DriverManager.getConnection(URL);
+		final Statement statement = connection.createStatement();
+		try {
+			statement.execute("CREATE TABLE users (id INT PRIMARY KEY, uid VARCHAR(32), " +
+					"salt VARCHAR(32), password_hash VARCHAR(64), username VARCHAR(255), " +
+					"email VARCHAR(255), status INT, last_web_login TIMESTAMP)");
+			statement.execute("CREATE INDEX index_users_on_username ON users (username)");
+			statement.execute("CREATE INDEX index_users_on_email ON users (email)");
+		} finally {
+			statement.close();
+		}
+		
+		final PreparedStatement insert = connection.prepareStatement(
+				"INSERT INTO users VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+		try {
+			for (int i = 0; i < users; i++) {
+				insert.setInt(1, i + 1);
+				insert.setString(2, "uid" + i);
+				insert.setString(3, Integer.toHexString(i * 0x9E3779B9));
+				insert.setString(4, "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef");
+				insert.setString(5, "user" + i);
+				insert.setString(6, "user" + i + "@example.com");
+				insert.setInt(7, (i % 10 == 0) ? 6 : 0);
+				insert.setTimestamp(8, new Timestamp(1230000000000L + (i * 1000L)));
+				insert.addBatch();
+				if (i % 1000 == 999) {
+					insert.executeBatch();
+				}
+			}
+			insert.executeBatch();
+		} finally {
+			insert.close();
+		}
+		
+		this.logins = new String[4096];
+		for (int i = 0; i < logins.length; i++) {
+			final int user = (int) ((i * 2654435761L) % users);
+			logins[i] = byEmail ? ("user" + user + "@example.com") : ("user" + user);
+		}
+		this.store = new JdbcUserStore(pooled(connection), new StatsRegistry());
+	}
+	
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		final Statement statement = connection.createStatement();
+		try {
+			statement.execute("DROP ALL OBJECTS");
+		} finally {
+			statement.close();
+		}
+		connection.close();
+	}
+	
+	@Benchmark
+	public int union() throws SQLException {
+		final String login = nextLogin();
+		final PreparedStatement statement = connection.prepareStatement(UNION_SELECT_SQL);
+		try {
+			statement.setString(1, login);
+			statement.setString(2, login);
+			final ResultSet resultSet = statement.executeQuery();
+			try {
+				return resultSet.next() ? resultSet.getInt("id") : 0;
+			} finally {
+				resultSet.close();
+			}
+		} finally {
+			statement.close();
+		}
+	}
+	
+	@Benchmark
+	public UserRecord singleIndex() throws SQLException {
+		return store.findUser(nextLogin());
+	}
+	
+	private String nextLogin() {
+		this.index = (index + 1) % logins.length;
+		return logins[index];
+	}
+	
+	/*
+	 * Hands out the one connection and ignores attempts to close it, the way
+	 * a pool's checkout would, so the benchmark measures queries rather than
+	 * connecting.
+	 */
+	private static DataSource pooled(final Connection connection) {
+		final Connection checkedOut = (Connection) Proxy.newProxyInstance(
+				UserQueryBenchmark.class.getClassLoader(),
+				new Class<?>[] { Connection.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("close")) {
+							return null;
+						}
+						try {
+							return method.invoke(connection, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+		return (DataSource) Proxy.newProxyInstance(
+				UserQueryBenchmark.class.getClassLoader(),
+				new Class<?>[] { DataSource.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("getConnection")) {
+							return checkedOut;
+						}
+						throw new UnsupportedOperationException(method.toString());
+					}
+				});
+	}
+}
@@ -0,0 +1,184 @@
+package com.wesabe.bouncer.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wesabe.bouncer.auth.BadCredentialsException;
+import com.wesabe.bouncer.auth.CredentialCache;
+import com.wesabe.bouncer.auth.FailedLogins;
+import com.wesabe.bouncer.auth.JdbcUserStore;
+import com.wesabe.bouncer.auth.LockStateCache;
+import com.wesabe.bouncer.auth.LockedAccountException;
+import com.wesabe.bouncer.auth.MemcachedThrottleStore;
+import com.wesabe.bouncer.auth.NegativeLookupCache;
+import com.wesabe.bouncer.auth.PasswordHasher;
+import com.wesabe.bouncer.auth.SessionTokens;
+import com.wesabe.bouncer.auth.ThrottleStore;
+import com.wesabe.bouncer.auth.WesabeAuthenticator;
+import com.wesabe.bouncer.auth.WesabeCredentials;
+import com.wesabe.bouncer.limits.Tarpit;
+import com.wesabe.bouncer.stats.StatsRegistry;
+import com.wesabe.bouncer.util.CircuitBreaker;
+import com.wesabe.bouncer.util.Clock;
+
+/**
+ * Benchmarks {@link WesabeAuthenticator#authenticate(String)} end to end,
+ * against a {@link FakeDataSource} and a {@link FakeMemcachedClient} with
+ * configurable latencies, with and without the credential cache, and with
+ * failed logins written through to memcached or batched.
+ * <p>
+ * Each thread cycles through its own slice of the users, so lookups for the
+ * same user don't coalesce unless the credential cache is on.
+ *
+ * @author coda
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class WesabeAuthenticatorBenchmark {
+	private static final int USERS = 4096;
+	private static final int THREAD_SLICE = 256;
+	
+	/**
+	 * The number of microseconds each user query takes.
+	 */
+	@Param({ "0", "500" })
+	public long databaseLatency;
+	
+	/**
+	 * The number of microseconds each memcached round-trip takes.
+	 */
+	@Param({ "0", "200" })
+	public long memcachedLatency;
+	
+	/**
+	 * The number of verified credentials to cache, or {@code 0} to verify
+	 * every request.
+	 */
+	@Param({ "0", "10000" })
+	public int credentialCacheSize;
+	
+	/**
+	 * The number of milliseconds between flushes of failed-login counts to
+	 * memcached, or {@code 0} to write every failed login through.
+	 */
+	@Param({ "0", "100" })
+	public long failedLoginFlushInterval;
+	
+	private WesabeAuthenticator authenticator;
+	private FailedLogins failedLogins;
+	private String[] goodHeaders, badHeaders;
+	
+	@State(Scope.Thread)
+	public static class Cursor {
+		private static int threads;
+		private final int offset;
+		private int index;
+		
+		public Cursor() {
+			synchronized (Cursor.class) {
+				this.offset = ((threads++) * THREAD_SLICE) % USERS;
+			}
+		}
+		
+		public int next() {
+			this.index = (index + 1) % THREAD_SLICE;
+			return offset + index;
+		}
+	}
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		final PasswordHasher hasher = new PasswordHasher(0, 0);
+		final FakeDataSource database = new FakeDataSource(databaseLatency);
+		this.goodHeaders = new String[USERS];
+		this.badHeaders = new String[USERS];
+		for (int i = 0; i < USERS; i++) {
+			final String login = "user" + i;
+			final String password = "correct horse battery staple " + i;
+			final String salt = Integer.toHexString(i * 0x9E3779B9);
+			database.addUser(login, i + 1, "uid" + i, salt, hasher.getPasswordHash(password, salt));
+			goodHeaders[i] = header(login, password);
+			badHeaders[i] = header(login, "hunter2");
+		}
+		
+		final StatsRegistry stats = new StatsRegistry();
+		final ThrottleStore throttleStore = new MemcachedThrottleStore(new FakeMemcachedClient(memcachedLatency).getClient());
+		this.failedLogins = new FailedLogins(throttleStore, failedLoginFlushInterval, Clock.system());
+		failedLogins.start();
+		this.authenticator = new WesabeAuthenticator(
+				"Wesabe",
+				new JdbcUserStore(database.getDataSource(), stats),
+				throttleStore,
+				new CredentialCache(credentialCacheSize, 60),
+				new NegativeLookupCache(0, 0),
+				CircuitBreaker.disabled(),
+				SessionTokens.disabled(),
+				Tarpit.disabled(),
+				failedLogins,
+				new LockStateCache(0, 0),
+				new PasswordHasher(),
+				stats
+		);
+	}
+	
+	/*
+	 * Reports how many memcached writes the failed logins cost, which is the
+	 * point of batching them.
+	 */
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		failedLogins.stop();
+		final long registered = failedLogins.getRegisteredCount();
+		if (registered > 0) {
+			System.out.printf("%n%,d failed logins, %,d failed-login counter writes (%.3f per failed login)%n",
+					registered, failedLogins.getWriteCount(),
+					(double) failedLogins.getWriteCount() / registered);
+		}
+	}
+	
+	@Benchmark
+	public WesabeCredentials goodPassword(Cursor cursor) throws Exception {
+		return authenticator.authenticate(goodHeaders[cursor.next()]);
+	}
+	
+	/*
+	 * Every failed login is counted, and users are soon locked out, so this
+	 * measures the mix of failed and locked-out logins a guessing attack
+	 * causes.
+	 */
+	@Benchmark
+	public Exception badPassword(Cursor cursor) throws Exception {
+		try {
+			authenticator.authenticate(badHeaders[cursor.next()]);
+		} catch (BadCredentialsException e) {
+			return e;
+		} catch (LockedAccountException e) {
+			return e;
+		}
+		throw new IllegalStateException("a bad password was accepted");
+	}
+	
+	private static String header(String login, String password) throws Exception {
+		return "Basic " + new String(Base64.encodeBase64((login + ":" + password).getBytes("UTF-8")), "US-ASCII");
+	}
+}
@@ -5,12 +5,16 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 import java.util.Map.Entry;
 
 import net.spy.memcached.AddrUtil;
 
+import com.wesabe.bouncer.auth.SessionKey;
+import com.wesabe.bouncer.proxy.ExchangeDeadlines;
+
 /**
  * A Bouncer configuration file. See the README for a discussion of the
  * configuration file format.
@@ -19,6 +23,10 @@ import net.spy.memcached.AddrUtil;
  */
 public class Configuration {
 	private static final String C3P0_KEY_PREFIX = "c3p0.";
+	private static final String C3P0_STATEMENT_CACHE_KEY = "maxStatementsPerConnection";
+	private static final String DEFAULT_C3P0_STATEMENT_CACHE_SIZE = "4";
+	private static final String C3P0_CHECKOUT_TIMEOUT_KEY = "checkoutTimeout";
+	private static final String DEFAULT_C3P0_CHECKOUT_TIMEOUT = "2000";
 	private static final String HTTP_COMPRESSION_MINIMUM_SIZE_KEY = "bouncer.http.compression.minimum-size";
 	private static final String HTTP_COMPRESSION_MIME_TYPES_KEY = "bouncer.http.compression.mime-types";
 	private static final String HTTP_COMPRESSION_ENABLE_KEY = "bouncer.http.compression.enable";
@@ -32,7 +40,105 @@ public class Configuration {
 	private static final String DEBUG_KEY = "bouncer.debug-errors";
 	private static final String HTTP_CLIENT_THREAD_POOL_SIZE_KEY = "bouncer.http.client.threads";
 	private static final String HTTP_CLIENT_MAX_CONNECTIONS_KEY = "bouncer.http.client.max-connections";
+	private static final String HTTP_CLIENT_ASYNC_KEY = "bouncer.http.client.async";
+	private static final String HTTP_CLIENT_CONNECT_TIMEOUT_KEY = "bouncer.http.client.timeout.connect";
+	private static final String HTTP_CLIENT_IDLE_TIMEOUT_KEY = "bouncer.http.client.timeout.idle";
+	private static final String HTTP_CLIENT_TOTAL_TIMEOUT_KEY = "bouncer.http.client.timeout.total";
+	private static final String HTTP_CLIENT_ROUTE_TIMEOUTS_KEY = "bouncer.http.client.timeout.routes";
 	private static final String HTTP_GRACEFUL_SHUTDOWN_KEY = "bouncer.http.graceful-wait";
+	private static final String AUTHENTICATION_CACHE_SIZE_KEY = "bouncer.auth.cache.size";
+	private static final String AUTHENTICATION_CACHE_TTL_KEY = "bouncer.auth.cache.ttl";
+	private static final String AUTHENTICATION_THREAD_POOL_SIZE_KEY = "bouncer.auth.async.threads";
+	private static final String AUTHENTICATION_QUEUE_SIZE_KEY = "bouncer.auth.async.queue-size";
+	private static final String AUTHENTICATION_TIMEOUT_KEY = "bouncer.auth.async.timeout";
+	private static final String AUTHENTICATION_CACHE_GRACE_KEY = "bouncer.auth.cache.grace";
+	private static final String BREAKER_MINIMUM_CALLS_KEY = "bouncer.auth.breaker.minimum-calls";
+	private static final String BREAKER_FAILURE_RATE_KEY = "bouncer.auth.breaker.failure-rate";
+	private static final String BREAKER_SLOW_CALL_KEY = "bouncer.auth.breaker.slow-call";
+	private static final String BREAKER_OPEN_DURATION_KEY = "bouncer.auth.breaker.open-duration";
+	private static final String BREAKER_WINDOW_KEY = "bouncer.auth.breaker.window";
+	private static final String USER_QUERY_TIMEOUT_KEY = "bouncer.auth.query-timeout";
+	private static final String SESSION_KEYS_KEY = "bouncer.auth.session.keys";
+	private static final String SESSION_TTL_KEY = "bouncer.auth.session.ttl";
+	private static final String SESSION_EPOCH_KEY = "bouncer.auth.session.epoch";
+	private static final String NEGATIVE_LOOKUP_CACHE_SIZE_KEY = "bouncer.auth.negative-cache.size";
+	private static final String NEGATIVE_LOOKUP_CACHE_TTL_KEY = "bouncer.auth.negative-cache.ttl";
+	private static final String FAILED_LOGIN_FLUSH_INTERVAL_KEY = "bouncer.auth.failed-logins.flush-interval";
+	private static final String LOCK_CACHE_SIZE_KEY = "bouncer.auth.lock-cache.size";
+	private static final String LOCAL_THROTTLE_STORE_KEY = "bouncer.auth.throttle.local";
+	private static final String USER_SNAPSHOT_REFRESH_INTERVAL_KEY = "bouncer.auth.snapshot.refresh-interval";
+	private static final String PASSWORD_HASH_CACHE_BUDGET_KEY = "bouncer.auth.hash-cache.password.budget";
+	private static final String PASSWORD_HASH_CACHE_TTL_KEY = "bouncer.auth.hash-cache.password.ttl";
+	private static final String ACCOUNT_KEY_CACHE_BUDGET_KEY = "bouncer.auth.hash-cache.account-key.budget";
+	private static final String ACCOUNT_KEY_CACHE_TTL_KEY = "bouncer.auth.hash-cache.account-key.ttl";
+	private static final String PASSWORD_HASH_CACHE_OFF_HEAP_KEY = "bouncer.auth.hash-cache.password.off-heap";
+	private static final String ACCOUNT_KEY_CACHE_OFF_HEAP_KEY = "bouncer.auth.hash-cache.account-key.off-heap";
+	private static final String WARMUP_USERS_KEY = "bouncer.auth.warmup.users";
+	private static final String WARMUP_BATCH_SIZE_KEY = "bouncer.auth.warmup.batch-size";
+	private static final String WARMUP_TIME_LIMIT_KEY = "bouncer.auth.warmup.time-limit";
+	private static final String WARMUP_TTL_KEY = "bouncer.auth.warmup.ttl";
+	private static final String LOCAL_THROTTLE_STORE_CAPACITY_KEY = "bouncer.auth.throttle.capacity";
+	private static final String LOCK_CACHE_STALENESS_KEY = "bouncer.auth.lock-cache.staleness";
+	private static final String USER_RATE_LIMIT_RATE_KEY = "bouncer.ratelimit.user.rate";
+	private static final String USER_RATE_LIMIT_BURST_KEY = "bouncer.ratelimit.user.burst";
+	private static final String USER_RATE_LIMIT_CAPACITY_KEY = "bouncer.ratelimit.user.capacity";
+	private static final String CLIENT_RATE_LIMIT_RATE_KEY = "bouncer.ratelimit.client.rate";
+	private static final String CLIENT_RATE_LIMIT_BURST_KEY = "bouncer.ratelimit.client.burst";
+	private static final String CLIENT_RATE_LIMIT_CAPACITY_KEY = "bouncer.ratelimit.client.capacity";
+	private static final String CLIENT_MAX_CONNECTIONS_KEY = "bouncer.ratelimit.client.max-connections";
+	private static final String CLIENT_IPV4_PREFIX_KEY = "bouncer.ratelimit.client.ipv4-prefix";
+	private static final String CLIENT_IPV6_PREFIX_KEY = "bouncer.ratelimit.client.ipv6-prefix";
+	private static final String TARPIT_DELAY_KEY = "bouncer.tarpit.delay";
+	private static final String TARPIT_MAX_CONNECTIONS_KEY = "bouncer.tarpit.max-connections";
+	private static final String TARPIT_FAILURE_RATE_KEY = "bouncer.tarpit.failure-rate";
+	private static final String TARPIT_FAILURE_BURST_KEY = "bouncer.tarpit.failure-burst";
+	private static final String TARPIT_CAPACITY_KEY = "bouncer.tarpit.capacity";
+	private static final int DEFAULT_HTTP_CLIENT_CONNECT_TIMEOUT = 10000;
+	private static final int DEFAULT_HTTP_CLIENT_IDLE_TIMEOUT = 60000;
+	private static final int DEFAULT_HTTP_CLIENT_TOTAL_TIMEOUT = 120000;
+	private static final int DEFAULT_AUTHENTICATION_CACHE_SIZE = 10000;
+	private static final int DEFAULT_AUTHENTICATION_CACHE_TTL = 60;
+	private static final int DEFAULT_AUTHENTICATION_CACHE_GRACE = 300;
+	private static final int DEFAULT_BREAKER_MINIMUM_CALLS = 20;
+	private static final int DEFAULT_BREAKER_FAILURE_RATE = 50;
+	private static final int DEFAULT_BREAKER_SLOW_CALL = 2000;
+	private static final int DEFAULT_BREAKER_OPEN_DURATION = 10000;
+	private static final int DEFAULT_BREAKER_WINDOW = 10000;
+	private static final int DEFAULT_USER_QUERY_TIMEOUT = 2;
+	private static final int DEFAULT_AUTHENTICATION_THREAD_POOL_SIZE = 0;
+	private static final int DEFAULT_AUTHENTICATION_QUEUE_SIZE = 1000;
+	private static final int DEFAULT_AUTHENTICATION_TIMEOUT = 5000;
+	private static final int DEFAULT_SESSION_TTL = 900;
+	private static final int DEFAULT_SESSION_EPOCH = 0;
+	private static final int DEFAULT_NEGATIVE_LOOKUP_CACHE_SIZE = 100000;
+	private static final int DEFAULT_NEGATIVE_LOOKUP_CACHE_TTL = 30;
+	private static final int DEFAULT_FAILED_LOGIN_FLUSH_INTERVAL = 100;
+	private static final int DEFAULT_LOCK_CACHE_SIZE = 100000;
+	private static final int DEFAULT_LOCK_CACHE_STALENESS = 1000;
+	private static final int DEFAULT_LOCAL_THROTTLE_STORE_CAPACITY = 65536;
+	private static final int DEFAULT_USER_SNAPSHOT_REFRESH_INTERVAL = 0;
+	private static final int DEFAULT_PASSWORD_HASH_CACHE_BUDGET = 256 * 1024;
+	private static final int DEFAULT_PASSWORD_HASH_CACHE_TTL = 0;
+	private static final int DEFAULT_ACCOUNT_KEY_CACHE_BUDGET = 256 * 1024;
+	private static final int DEFAULT_ACCOUNT_KEY_CACHE_TTL = 0;
+	private static final int DEFAULT_PASSWORD_HASH_CACHE_OFF_HEAP = 0;
+	private static final int DEFAULT_ACCOUNT_KEY_CACHE_OFF_HEAP = 0;
+	private static final int DEFAULT_WARMUP_USERS = 0;
+	private static final int DEFAULT_WARMUP_BATCH_SIZE = 1000;
+	private static final int DEFAULT_WARMUP_TIME_LIMIT = 10000;
+	private static final int DEFAULT_WARMUP_TTL = 300000;
+	private static final int DEFAULT_USER_RATE_LIMIT_BURST = 20;
+	private static final int DEFAULT_USER_RATE_LIMIT_CAPACITY = 65536;
+	private static final int DEFAULT_CLIENT_RATE_LIMIT_BURST = 50;
+	private static final int DEFAULT_CLIENT_RATE_LIMIT_CAPACITY = 65536;
+	private static final int DEFAULT_CLIENT_MAX_CONNECTIONS = 0;
+	private static final int DEFAULT_CLIENT_IPV4_PREFIX = 32;
+	private static final int DEFAULT_CLIENT_IPV6_PREFIX = 64;
+	private static final int DEFAULT_TARPIT_DELAY = 0;
+	private static final int DEFAULT_TARPIT_MAX_CONNECTIONS = 10000;
+	private static final double DEFAULT_TARPIT_FAILURE_RATE = 0.1;
+	private static final int DEFAULT_TARPIT_FAILURE_BURST = 10;
+	private static final int DEFAULT_TARPIT_CAPACITY = 65536;
 	
 	private final Properties properties;
 	
@@ -90,6 +196,12 @@ public class Configuration {
 	public Properties getC3P0Properties() {
 		final Properties c3p0Properties = new Properties();
 		
+		// keep the user queries prepared on each pooled connection
+		c3p0Properties.setProperty(C3P0_STATEMENT_CACHE_KEY, DEFAULT_C3P0_STATEMENT_CACHE_SIZE);
+		
+		// fail checkouts from an exhausted pool instead of blocking forever
+		c3p0Properties.setProperty(C3P0_CHECKOUT_TIMEOUT_KEY, DEFAULT_C3P0_CHECKOUT_TIMEOUT);
+		
 		for (final Entry<Object, Object> entry : properties.entrySet()) {
 			String key = (String) entry.getKey();
 			if (key.startsWith(C3P0_KEY_PREFIX)) {
@@ -114,7 +226,362 @@ public class Configuration {
 		return Integer.valueOf(properties.getProperty(HTTP_CLIENT_MAX_CONNECTIONS_KEY));
 	}
 
+	public boolean isAsyncProxyEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(HTTP_CLIENT_ASYNC_KEY));
+	}
+	
+	public int getHttpClientConnectTimeout() {
+		return getInteger(HTTP_CLIENT_CONNECT_TIMEOUT_KEY, DEFAULT_HTTP_CLIENT_CONNECT_TIMEOUT);
+	}
+	
+	public int getHttpClientIdleTimeout() {
+		return getInteger(HTTP_CLIENT_IDLE_TIMEOUT_KEY, DEFAULT_HTTP_CLIENT_IDLE_TIMEOUT);
+	}
+	
+	public int getHttpClientTotalTimeout() {
+		return getInteger(HTTP_CLIENT_TOTAL_TIMEOUT_KEY, DEFAULT_HTTP_CLIENT_TOTAL_TIMEOUT);
+	}
+	
+	public List<ExchangeDeadlines.Route> getHttpClientRouteTimeouts() {
+		final List<ExchangeDeadlines.Route> routes = new ArrayList<ExchangeDeadlines.Route>();
+		final String value = properties.getProperty(HTTP_CLIENT_ROUTE_TIMEOUTS_KEY);
+		if (value != null) {
+			for (String spec : value.split(",")) {
+				if (spec.trim().length() > 0) {
+					routes.add(ExchangeDeadlines.Route.parse(spec));
+				}
+			}
+		}
+		return routes;
+	}
+
 	public int getHttpGracefulShutdownPeriod() {
 		return Integer.valueOf(properties.getProperty(HTTP_GRACEFUL_SHUTDOWN_KEY));
 	}
+
+	public int getAuthenticationCacheSize() {
+		return getInteger(AUTHENTICATION_CACHE_SIZE_KEY, DEFAULT_AUTHENTICATION_CACHE_SIZE);
+	}
+
+	public int getAuthenticationCacheTTL() {
+		return getInteger(AUTHENTICATION_CACHE_TTL_KEY, DEFAULT_AUTHENTICATION_CACHE_TTL);
+	}
+	
+	public int getAuthenticationCacheGracePeriod() {
+		return getInteger(AUTHENTICATION_CACHE_GRACE_KEY, DEFAULT_AUTHENTICATION_CACHE_GRACE);
+	}
+	
+	public int getBreakerMinimumCalls() {
+		return getInteger(BREAKER_MINIMUM_CALLS_KEY, DEFAULT_BREAKER_MINIMUM_CALLS);
+	}
+	
+	/**
+	 * Returns the failure rate which trips the user database breaker, as a
+	 * fraction between 0 and 1. Configured as a percentage.
+	 */
+	public double getBreakerFailureRate() {
+		return getInteger(BREAKER_FAILURE_RATE_KEY, DEFAULT_BREAKER_FAILURE_RATE) / 100.0;
+	}
+	
+	public int getBreakerSlowCallThreshold() {
+		return getInteger(BREAKER_SLOW_CALL_KEY, DEFAULT_BREAKER_SLOW_CALL);
+	}
+	
+	public int getBreakerOpenDuration() {
+		return getInteger(BREAKER_OPEN_DURATION_KEY, DEFAULT_BREAKER_OPEN_DURATION);
+	}
+	
+	public int getBreakerWindow() {
+		return getInteger(BREAKER_WINDOW_KEY, DEFAULT_BREAKER_WINDOW);
+	}
+	
+	/**
+	 * Returns the number of seconds a user query may run before it's
+	 * cancelled, or {@code 0} to let it run forever.
+	 */
+	public int getUserQueryTimeout() {
+		return getInteger(USER_QUERY_TIMEOUT_KEY, DEFAULT_USER_QUERY_TIMEOUT);
+	}
+	
+	/**
+	 * Returns the keys session tokens are signed and encrypted with, newest
+	 * first, or an empty list if session tokens are disabled.
+	 */
+	public List<SessionKey> getSessionKeys() {
+		final List<SessionKey> keys = new ArrayList<SessionKey>();
+		final String value = properties.getProperty(SESSION_KEYS_KEY);
+		if (value != null) {
+			for (String spec : value.split(",")) {
+				if (spec.trim().length() > 0) {
+					keys.add(SessionKey.parse(spec));
+				}
+			}
+		}
+		return keys;
+	}
+	
+	public int getSessionTTL() {
+		return getInteger(SESSION_TTL_KEY, DEFAULT_SESSION_TTL);
+	}
+	
+	public int getSessionEpoch() {
+		return getInteger(SESSION_EPOCH_KEY, DEFAULT_SESSION_EPOCH);
+	}
+	
+	public int getNegativeLookupCacheSize() {
+		return getInteger(NEGATIVE_LOOKUP_CACHE_SIZE_KEY, DEFAULT_NEGATIVE_LOOKUP_CACHE_SIZE);
+	}
+
+	public int getNegativeLookupCacheTTL() {
+		return getInteger(NEGATIVE_LOOKUP_CACHE_TTL_KEY, DEFAULT_NEGATIVE_LOOKUP_CACHE_TTL);
+	}
+	
+	/**
+	 * Returns the number of milliseconds between writes of failed login
+	 * counts to memcached, or {@code 0} if every failed login is written as
+	 * it happens.
+	 */
+	public int getFailedLoginFlushInterval() {
+		return getInteger(FAILED_LOGIN_FLUSH_INTERVAL_KEY, DEFAULT_FAILED_LOGIN_FLUSH_INTERVAL);
+	}
+	
+	public int getLockCacheSize() {
+		return getInteger(LOCK_CACHE_SIZE_KEY, DEFAULT_LOCK_CACHE_SIZE);
+	}
+	
+	/**
+	 * Returns the number of milliseconds an account lock state read from
+	 * memcached may be used for.
+	 */
+	public int getLockCacheStaleness() {
+		return getInteger(LOCK_CACHE_STALENESS_KEY, DEFAULT_LOCK_CACHE_STALENESS);
+	}
+	
+	/**
+	 * Returns {@code true} if failed login counts and account locks should be
+	 * kept in memory instead of in memcached.
+	 */
+	public boolean isLocalThrottleStoreEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(LOCAL_THROTTLE_STORE_KEY));
+	}
+	
+	public int getLocalThrottleStoreCapacity() {
+		return getInteger(LOCAL_THROTTLE_STORE_CAPACITY_KEY, DEFAULT_LOCAL_THROTTLE_STORE_CAPACITY);
+	}
+	
+	public boolean isUserSnapshotEnabled() {
+		return getUserSnapshotRefreshInterval() > 0;
+	}
+	
+	/**
+	 * Returns the number of milliseconds between refreshes of the in-memory
+	 * snapshot of users, or {@code 0} if every lookup should query the
+	 * database.
+	 */
+	public int getUserSnapshotRefreshInterval() {
+		return getInteger(USER_SNAPSHOT_REFRESH_INTERVAL_KEY, DEFAULT_USER_SNAPSHOT_REFRESH_INTERVAL);
+	}
+	
+	/**
+	 * Returns the approximate number of bytes of heap the cache of computed
+	 * password hashes may take up.
+	 */
+	public int getPasswordHashCacheBudget() {
+		return getInteger(PASSWORD_HASH_CACHE_BUDGET_KEY, DEFAULT_PASSWORD_HASH_CACHE_BUDGET);
+	}
+	
+	/**
+	 * Returns the number of seconds a computed password hash may be cached
+	 * for, or {@code 0} if it may be cached until it's evicted.
+	 */
+	public int getPasswordHashCacheTTL() {
+		return getInteger(PASSWORD_HASH_CACHE_TTL_KEY, DEFAULT_PASSWORD_HASH_CACHE_TTL);
+	}
+	
+	/**
+	 * Returns the approximate number of bytes of heap the cache of computed
+	 * account keys may take up.
+	 */
+	public int getAccountKeyCacheBudget() {
+		return getInteger(ACCOUNT_KEY_CACHE_BUDGET_KEY, DEFAULT_ACCOUNT_KEY_CACHE_BUDGET);
+	}
+	
+	/**
+	 * Returns the number of seconds a computed account key may be cached
+	 * for, or {@code 0} if it may be cached until it's evicted.
+	 */
+	public int getAccountKeyCacheTTL() {
+		return getInteger(ACCOUNT_KEY_CACHE_TTL_KEY, DEFAULT_ACCOUNT_KEY_CACHE_TTL);
+	}
+	
+	/**
+	 * Returns the number of cached password hashes to keep off the heap, or
+	 * {@code 0} if they should be kept on the heap.
+	 */
+	public int getPasswordHashCacheOffHeapDigests() {
+		return getInteger(PASSWORD_HASH_CACHE_OFF_HEAP_KEY, DEFAULT_PASSWORD_HASH_CACHE_OFF_HEAP);
+	}
+	
+	/**
+	 * Returns the number of cached account keys to keep off the heap, or
+	 * {@code 0} if they should be kept on the heap.
+	 */
+	public int getAccountKeyCacheOffHeapDigests() {
+		return getInteger(ACCOUNT_KEY_CACHE_OFF_HEAP_KEY, DEFAULT_ACCOUNT_KEY_CACHE_OFF_HEAP);
+	}
+	
+	public boolean isWarmupEnabled() {
+		return getWarmupUsers() > 0;
+	}
+	
+	/**
+	 * Returns the maximum number of recently-active users to preload at
+	 * startup, or {@code 0} if none should be.
+	 */
+	public int getWarmupUsers() {
+		return getInteger(WARMUP_USERS_KEY, DEFAULT_WARMUP_USERS);
+	}
+	
+	public int getWarmupBatchSize() {
+		return getInteger(WARMUP_BATCH_SIZE_KEY, DEFAULT_WARMUP_BATCH_SIZE);
+	}
+	
+	/**
+	 * Returns the maximum number of milliseconds to spend preloading users.
+	 */
+	public int getWarmupTimeLimit() {
+		return getInteger(WARMUP_TIME_LIMIT_KEY, DEFAULT_WARMUP_TIME_LIMIT);
+	}
+	
+	/**
+	 * Returns the number of milliseconds preloaded users are used for.
+	 */
+	public int getWarmupTTL() {
+		return getInteger(WARMUP_TTL_KEY, DEFAULT_WARMUP_TTL);
+	}
+
+	public boolean isUserRateLimitEnabled() {
+		return getUserRateLimitRate() > 0;
+	}
+	
+	/**
+	 * Returns the number of requests per second each user is allowed, or
+	 * {@code 0} if users aren't rate limited.
+	 */
+	public double getUserRateLimitRate() {
+		return getDouble(USER_RATE_LIMIT_RATE_KEY, 0);
+	}
+	
+	public int getUserRateLimitBurst() {
+		return getInteger(USER_RATE_LIMIT_BURST_KEY, DEFAULT_USER_RATE_LIMIT_BURST);
+	}
+	
+	public int getUserRateLimitCapacity() {
+		return getInteger(USER_RATE_LIMIT_CAPACITY_KEY, DEFAULT_USER_RATE_LIMIT_CAPACITY);
+	}
+
+	public boolean isClientRateLimitEnabled() {
+		return getClientRateLimitRate() > 0;
+	}
+	
+	/**
+	 * Returns the number of requests per second each client network is
+	 * allowed before authentication, or {@code 0} if clients aren't rate
+	 * limited.
+	 */
+	public double getClientRateLimitRate() {
+		return getDouble(CLIENT_RATE_LIMIT_RATE_KEY, 0);
+	}
+	
+	public int getClientRateLimitBurst() {
+		return getInteger(CLIENT_RATE_LIMIT_BURST_KEY, DEFAULT_CLIENT_RATE_LIMIT_BURST);
+	}
+	
+	public int getClientRateLimitCapacity() {
+		return getInteger(CLIENT_RATE_LIMIT_CAPACITY_KEY, DEFAULT_CLIENT_RATE_LIMIT_CAPACITY);
+	}
+	
+	public boolean isClientConnectionLimitEnabled() {
+		return getClientMaxConnections() > 0;
+	}
+	
+	/**
+	 * Returns the maximum number of open connections per client network, or
+	 * {@code 0} if there's no limit.
+	 */
+	public int getClientMaxConnections() {
+		return getInteger(CLIENT_MAX_CONNECTIONS_KEY, DEFAULT_CLIENT_MAX_CONNECTIONS);
+	}
+	
+	public int getClientIPv4PrefixLength() {
+		return getInteger(CLIENT_IPV4_PREFIX_KEY, DEFAULT_CLIENT_IPV4_PREFIX);
+	}
+	
+	public int getClientIPv6PrefixLength() {
+		return getInteger(CLIENT_IPV6_PREFIX_KEY, DEFAULT_CLIENT_IPV6_PREFIX);
+	}
+
+	public boolean isTarpitEnabled() {
+		return getTarpitDelay() > 0;
+	}
+	
+	/**
+	 * Returns the number of milliseconds to hold failed logins from clients
+	 * in the tarpit, or {@code 0} if the tarpit is disabled.
+	 */
+	public int getTarpitDelay() {
+		return getInteger(TARPIT_DELAY_KEY, DEFAULT_TARPIT_DELAY);
+	}
+	
+	public int getTarpitMaxConnections() {
+		return getInteger(TARPIT_MAX_CONNECTIONS_KEY, DEFAULT_TARPIT_MAX_CONNECTIONS);
+	}
+	
+	/**
+	 * Returns the number of failed logins per second each client network is
+	 * allowed before it's tarpitted.
+	 */
+	public double getTarpitFailureRate() {
+		return getDouble(TARPIT_FAILURE_RATE_KEY, DEFAULT_TARPIT_FAILURE_RATE);
+	}
+	
+	public int getTarpitFailureBurst() {
+		return getInteger(TARPIT_FAILURE_BURST_KEY, DEFAULT_TARPIT_FAILURE_BURST);
+	}
+	
+	public int getTarpitCapacity() {
+		return getInteger(TARPIT_CAPACITY_KEY, DEFAULT_TARPIT_CAPACITY);
+	}
+
+	public boolean isAsyncAuthenticationEnabled() {
+		return getAuthenticationThreadPoolSize() > 0;
+	}
+
+	public int getAuthenticationThreadPoolSize() {
+		return getInteger(AUTHENTICATION_THREAD_POOL_SIZE_KEY, DEFAULT_AUTHENTICATION_THREAD_POOL_SIZE);
+	}
+
+	public int getAuthenticationQueueSize() {
+		return getInteger(AUTHENTICATION_QUEUE_SIZE_KEY, DEFAULT_AUTHENTICATION_QUEUE_SIZE);
+	}
+
+	public int getAuthenticationTimeout() {
+		return getInteger(AUTHENTICATION_TIMEOUT_KEY, DEFAULT_AUTHENTICATION_TIMEOUT);
+	}
+	
+	private int getInteger(String key, int defaultValue) {
+		final String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Integer.valueOf(value);
+	}
+	
+	private double getDouble(String key, double defaultValue) {
+		final String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Double.valueOf(value);
+	}
 }
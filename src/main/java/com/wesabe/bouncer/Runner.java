@@ -1,5 +1,10 @@
 package com.wesabe.bouncer;
 
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import javax.sql.DataSource;
 
 import net.spy.memcached.MemcachedClient;
@@ -10,6 +15,7 @@ import org.eclipse.jetty.security.ConstraintMapping;
 import org.eclipse.jetty.security.ConstraintSecurityHandler;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.FilterMapping;
@@ -19,11 +25,42 @@ import org.eclipse.jetty.servlets.GzipFilter;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.mchange.v2.c3p0.DataSources;
+import com.wesabe.bouncer.auth.AsyncWesabeAuthenticator;
+import com.wesabe.bouncer.auth.CredentialCache;
+import com.wesabe.bouncer.auth.DigestEngine;
+import com.wesabe.bouncer.auth.FailedLogins;
+import com.wesabe.bouncer.auth.HashCache;
+import com.wesabe.bouncer.auth.JdbcUserStore;
+import com.wesabe.bouncer.auth.LocalThrottleStore;
+import com.wesabe.bouncer.auth.LockStateCache;
+import com.wesabe.bouncer.auth.MemcachedThrottleStore;
+import com.wesabe.bouncer.auth.NegativeLookupCache;
+import com.wesabe.bouncer.auth.PasswordHasher;
+import com.wesabe.bouncer.auth.SessionTokens;
+import com.wesabe.bouncer.auth.SnapshotUserStore;
+import com.wesabe.bouncer.auth.ThrottleStore;
+import com.wesabe.bouncer.auth.UserStore;
+import com.wesabe.bouncer.auth.WarmUserStore;
 import com.wesabe.bouncer.auth.WesabeAuthenticator;
 import com.wesabe.bouncer.jetty.QuietErrorHandler;
+import com.wesabe.bouncer.limits.AddressPrefixes;
+import com.wesabe.bouncer.limits.ClientRateLimitHandler;
+import com.wesabe.bouncer.limits.ConnectionLimiter;
+import com.wesabe.bouncer.limits.LimitingSelectChannelConnector;
+import com.wesabe.bouncer.limits.Tarpit;
+import com.wesabe.bouncer.limits.TokenBuckets;
+import com.wesabe.bouncer.limits.UserRateLimitFilter;
+import com.wesabe.bouncer.proxy.ExchangeDeadlines;
 import com.wesabe.bouncer.proxy.ProxyHttpExchangeFactory;
 import com.wesabe.bouncer.servlets.HealthServlet;
 import com.wesabe.bouncer.servlets.ProxyServlet;
+import com.wesabe.bouncer.servlets.StatsServlet;
+import com.wesabe.bouncer.stats.StatsRegistry;
+import com.wesabe.bouncer.util.CircuitBreaker;
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.HashedWheelTimer;
+import com.wesabe.bouncer.util.NamedThreadFactory;
+import com.wesabe.bouncer.util.OffHeapDigestStore;
 import com.wesabe.servlet.ErrorReporterFilter;
 import com.wesabe.servlet.SafeFilter;
 import com.wesabe.servlet.errors.DebugErrorReporter;
@@ -36,6 +73,11 @@ import com.wesabe.servlet.errors.SendmailErrorReporter;
  * @author coda
  */
 public class Runner {
+	private static final long TARPIT_TICK_DURATION = 100; // milliseconds
+	private static final int TARPIT_WHEEL_SIZE = 512;
+	private static final long PROXY_TICK_DURATION = 50; // milliseconds
+	private static final int PROXY_WHEEL_SIZE = 1024;
+	
 	public static void main(String[] args) throws Exception {
 		checkArguments(args);
 		
@@ -52,37 +94,128 @@ public class Runner {
 				config.getC3P0Properties()
 		);
 		
-		final MemcachedClient memcached = new MemcachedClient(config.getMemcachedServers());
-		setupAuthentication(config, context, dataSource, memcached);
-		setupHealth(context, dataSource, memcached);
+		final ThrottleStore throttleStore = setupThrottleStore(config);
+		setupAuthentication(config, context, dataSource, throttleStore);
+		setupRateLimiting(config, context);
+		setupHealth(context, dataSource, throttleStore);
+		setupStats(context);
 		setupProxy(config, context);
 		
 		server.start();
 		server.join();
 	}
 
+	private static ThrottleStore setupThrottleStore(Configuration config) throws IOException {
+		if (config.isLocalThrottleStoreEnabled()) {
+			return new LocalThrottleStore(config.getLocalThrottleStoreCapacity(), Clock.system());
+		}
+		return new MemcachedThrottleStore(new MemcachedClient(config.getMemcachedServers()));
+	}
+
 	private static void setupHealth(ServletContextHandler context, DataSource dataSource,
-			MemcachedClient memcached) {
+			ThrottleStore throttleStore) {
 		context.addServlet(
-			new ServletHolder(new HealthServlet(dataSource, memcached)),
+			new ServletHolder(new HealthServlet(dataSource, throttleStore)),
 			"/health/"
 		);
 	}
 
+	private static void setupStats(ServletContextHandler context) {
+		// the backend's /stats/ pages are public, but these require
+		// authentication
+		context.addServlet(
+			new ServletHolder(new StatsServlet(StatsRegistry.getDefault())),
+			"/bouncer-stats/"
+		);
+	}
+
+	private static void setupRateLimiting(Configuration config, ServletContextHandler context) {
+		if (config.isUserRateLimitEnabled()) {
+			final TokenBuckets buckets = new TokenBuckets(
+					config.getUserRateLimitRate(),
+					config.getUserRateLimitBurst(),
+					config.getUserRateLimitCapacity(),
+					Clock.system()
+			);
+			final FilterHolder rateLimitHolder = new FilterHolder(new UserRateLimitFilter(buckets, StatsRegistry.getDefault()));
+			context.addFilter(rateLimitHolder, "/*", FilterMapping.DEFAULT);
+		}
+	}
+
 	private static void setupProxy(Configuration config, ServletContextHandler context)
 			throws Exception {
+		final ExchangeDeadlines deadlines = new ExchangeDeadlines(
+				config.getHttpClientConnectTimeout(),
+				config.getHttpClientIdleTimeout(),
+				config.getHttpClientTotalTimeout(),
+				config.getHttpClientRouteTimeouts()
+		);
 		final HttpClient client = new HttpClient();
 		client.setThreadPool(new QueuedThreadPool(config.getHttpClientThreadPoolSize()));
 		client.setMaxConnectionsPerAddress(config.getHttpClientMaxConnections());
-		final ProxyHttpExchangeFactory factory = new ProxyHttpExchangeFactory(config.getBackendUri());
-		final ServletHolder proxyHolder = new ServletHolder(new ProxyServlet(client, factory));
+		// timing an exchange out can't close its connection, so the client
+		// closes connections which go quiet for longer than the idle timeout,
+		// and those of exchanges which outlive every deadline
+		if (deadlines.getIdleTimeout() > 0) {
+			client.setIdleTimeout(deadlines.getIdleTimeout());
+		}
+		if (deadlines.getMaximumTotalTimeout() > 0) {
+			client.setTimeout(deadlines.getMaximumTotalTimeout());
+		}
+		final HashedWheelTimer timer = new HashedWheelTimer(PROXY_TICK_DURATION, PROXY_WHEEL_SIZE, new NamedThreadFactory("bouncer-proxy-deadlines"));
+		timer.start();
+		final ProxyHttpExchangeFactory factory = new ProxyHttpExchangeFactory(config.getBackendUri(), deadlines, timer, Clock.system());
+		final ServletHolder proxyHolder = new ServletHolder(new ProxyServlet(client, factory, config.isAsyncProxyEnabled()));
 		context.addServlet(proxyHolder, "/*");
 	}
 
-	private static void setupAuthentication(final Configuration config, ServletContextHandler context, DataSource dataSource, MemcachedClient memcached)
+	private static void setupAuthentication(final Configuration config, ServletContextHandler context, DataSource dataSource, ThrottleStore throttleStore)
 			throws Exception {
 		final ConstraintSecurityHandler securityHandler = new ConstraintSecurityHandler();
-		final org.eclipse.jetty.security.Authenticator authenticator = new WesabeAuthenticator(config.getAuthenticationRealm(), dataSource, memcached);
+		final CredentialCache credentialCache = new CredentialCache(
+				config.getAuthenticationCacheSize(),
+				config.getAuthenticationCacheTTL(),
+				config.getAuthenticationCacheGracePeriod()
+		);
+		final NegativeLookupCache negativeLookupCache = new NegativeLookupCache(
+				config.getNegativeLookupCacheSize(),
+				config.getNegativeLookupCacheTTL()
+		);
+		final CircuitBreaker userDatabaseBreaker = new CircuitBreaker(
+				config.getBreakerMinimumCalls(),
+				config.getBreakerFailureRate(),
+				config.getBreakerSlowCallThreshold(),
+				config.getBreakerOpenDuration(),
+				config.getBreakerWindow(),
+				Clock.system()
+		);
+		final SessionTokens sessionTokens = new SessionTokens(
+				config.getSessionKeys(),
+				config.getSessionEpoch(),
+				config.getSessionTTL(),
+				Clock.system()
+		);
+		final Tarpit tarpit = setupTarpit(config);
+		// there's nothing to be gained by batching writes to memory
+		final long flushInterval = config.isLocalThrottleStoreEnabled() ? 0 : config.getFailedLoginFlushInterval();
+		final FailedLogins failedLogins = new FailedLogins(throttleStore, flushInterval, Clock.system());
+		failedLogins.start();
+		final LockStateCache lockStates = new LockStateCache(config.getLockCacheSize(), config.getLockCacheStaleness());
+		final UserStore userStore = setupUserStore(config, dataSource);
+		final PasswordHasher hasher = setupPasswordHasher(config);
+		final org.eclipse.jetty.security.Authenticator authenticator;
+		if (config.isAsyncAuthenticationEnabled()) {
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+					config.getAuthenticationThreadPoolSize(),
+					config.getAuthenticationThreadPoolSize(),
+					0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(config.getAuthenticationQueueSize()),
+					new NamedThreadFactory("bouncer-auth")
+			);
+			authenticator = new AsyncWesabeAuthenticator(config.getAuthenticationRealm(), userStore, throttleStore, credentialCache, negativeLookupCache, userDatabaseBreaker, sessionTokens, tarpit, failedLogins, lockStates, hasher, StatsRegistry.getDefault(), executor, config.getAuthenticationTimeout());
+		} else {
+			authenticator = new WesabeAuthenticator(config.getAuthenticationRealm(), userStore, throttleStore, credentialCache, negativeLookupCache, userDatabaseBreaker, sessionTokens, tarpit, failedLogins, lockStates, hasher, StatsRegistry.getDefault());
+		}
 		securityHandler.setAuthenticator(authenticator);
 		
 		final Constraint requireAuthentication = new Constraint();
@@ -108,8 +241,56 @@ public class Runner {
 		context.setSecurityHandler(securityHandler);
 	}
 
+	private static UserStore setupUserStore(Configuration config, DataSource dataSource) {
+		final JdbcUserStore jdbcUserStore = new JdbcUserStore(dataSource, config.getUserQueryTimeout(), StatsRegistry.getDefault());
+		if (config.isUserSnapshotEnabled()) {
+			final SnapshotUserStore snapshot = new SnapshotUserStore(dataSource, jdbcUserStore, config.getUserSnapshotRefreshInterval(), Clock.system(), StatsRegistry.getDefault());
+			snapshot.start();
+			return snapshot;
+		}
+		if (config.isWarmupEnabled()) {
+			final WarmUserStore warmUserStore = new WarmUserStore(dataSource, jdbcUserStore, config.getWarmupUsers(), config.getWarmupTTL(), Clock.system(), StatsRegistry.getDefault());
+			warmUserStore.warm(config.getWarmupBatchSize(), config.getWarmupTimeLimit());
+			return warmUserStore;
+		}
+		return jdbcUserStore;
+	}
+
+	private static PasswordHasher setupPasswordHasher(Configuration config) {
+		// each cache gets its own off-heap store, so neither can fill the
+		// other's
+		return new PasswordHasher(
+				new HashCache(config.getPasswordHashCacheBudget(), config.getPasswordHashCacheTTL(),
+						setupOffHeapDigestStore(config.getPasswordHashCacheOffHeapDigests()), Clock.system()),
+				new HashCache(config.getAccountKeyCacheBudget(), config.getAccountKeyCacheTTL(),
+						setupOffHeapDigestStore(config.getAccountKeyCacheOffHeapDigests()), Clock.system())
+		);
+	}
+	
+	private static OffHeapDigestStore setupOffHeapDigestStore(int digests) {
+		if (digests > 0) {
+			return new OffHeapDigestStore(digests, DigestEngine.DIGEST_LENGTH);
+		}
+		return null;
+	}
+
+	private static Tarpit setupTarpit(Configuration config) {
+		if (config.isTarpitEnabled()) {
+			final TokenBuckets failures = new TokenBuckets(
+					config.getTarpitFailureRate(),
+					config.getTarpitFailureBurst(),
+					config.getTarpitCapacity(),
+					Clock.system()
+			);
+			final HashedWheelTimer timer = new HashedWheelTimer(TARPIT_TICK_DURATION, TARPIT_WHEEL_SIZE, new NamedThreadFactory("bouncer-tarpit"));
+			timer.start();
+			return new Tarpit(getAddressPrefixes(config), failures, timer, config.getTarpitDelay(), config.getTarpitMaxConnections(), StatsRegistry.getDefault());
+		}
+		return Tarpit.disabled();
+	}
+
 	private static ServletContextHandler setupContext(Configuration config, Server server) throws Exception {
-		final ServletContextHandler context = new ServletContextHandler(server, "/");
+		final ServletContextHandler context = new ServletContextHandler(setupClientRateLimiting(config, server), "/");
 		context.addFilter(SafeFilter.class, "/*", FilterMapping.DEFAULT);
 		
 		final ErrorReporter reporter;
@@ -134,9 +315,34 @@ public class Runner {
 		return context;
 	}
 
+	private static HandlerWrapper setupClientRateLimiting(Configuration config, Server server) {
+		if (config.isClientRateLimitEnabled()) {
+			final TokenBuckets buckets = new TokenBuckets(
+					config.getClientRateLimitRate(),
+					config.getClientRateLimitBurst(),
+					config.getClientRateLimitCapacity(),
+					Clock.system()
+			);
+			final ClientRateLimitHandler handler = new ClientRateLimitHandler(getAddressPrefixes(config), buckets, new QuietErrorHandler(), StatsRegistry.getDefault());
+			server.setHandler(handler);
+			return handler;
+		}
+		return server;
+	}
+
+	private static AddressPrefixes getAddressPrefixes(Configuration config) {
+		return new AddressPrefixes(config.getClientIPv4PrefixLength(), config.getClientIPv6PrefixLength());
+	}
+
 	private static Server setupServer(Configuration config, int port) {
 		final Server server = new Server();
-		final Connector connector = new SelectChannelConnector();
+		final Connector connector;
+		if (config.isClientConnectionLimitEnabled()) {
+			final ConnectionLimiter limiter = new ConnectionLimiter(config.getClientMaxConnections());
+			connector = new LimitingSelectChannelConnector(getAddressPrefixes(config), limiter, StatsRegistry.getDefault());
+		} else {
+			connector = new SelectChannelConnector();
+		}
 		connector.setPort(port);
 		server.addConnector(connector);
 		server.setGracefulShutdown(config.getHttpGracefulShutdownPeriod());
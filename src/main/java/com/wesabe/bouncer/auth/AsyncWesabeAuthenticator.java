@@ -0,0 +1,193 @@
+package com.wesabe.bouncer.auth;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.security.ServerAuthException;
+import org.eclipse.jetty.server.Authentication;
+
+import com.wesabe.bouncer.limits.Tarpit;
+import com.wesabe.bouncer.stats.StatsRegistry;
+import com.wesabe.bouncer.util.CircuitBreaker;
+
+/**
+ * A {@link WesabeAuthenticator} which doesn't tie up Jetty's server threads
+ * while authenticating.
+ * <p>
+ * Requests with a valid session token or recently verified credentials are
+ * authenticated on the server thread. Every other request is suspended via a
+ * Jetty {@link Continuation} while its user lookup and throttle checks run on
+ * a dedicated, bounded {@link Executor}. When they finish, the request is
+ * resumed and redispatched, and the result is handed to Jetty. If the executor rejects the work, or the result takes
+ * longer than the timeout, the request gets a 503 Service Unavailable.
+ * 
+ * @author coda
+ */
+public class AsyncWesabeAuthenticator extends WesabeAuthenticator {
+	private static final Logger LOGGER = Logger.getLogger(AsyncWesabeAuthenticator.class.getCanonicalName());
+	private static final String PENDING_AUTHENTICATION_ATTRIBUTE = AsyncWesabeAuthenticator.class.getCanonicalName() + ".pending";
+	
+	/**
+	 * An authentication running on the executor on behalf of a suspended
+	 * request.
+	 */
+	private static class PendingAuthentication implements Runnable {
+		private final FutureTask<WesabeCredentials> authentication;
+		private final Continuation continuation;
+		private boolean redispatched = false;
+		
+		public PendingAuthentication(FutureTask<WesabeCredentials> authentication, Continuation continuation) {
+			this.authentication = authentication;
+			this.continuation = continuation;
+		}
+		
+		@Override
+		public void run() {
+			authentication.run();
+			resume();
+		}
+		
+		/**
+		 * Resumes the request, unless it has already been redispatched (e.g.,
+		 * because it timed out). Jetty reuses continuations for subsequent
+		 * requests on the same connection, so once the request has been
+		 * redispatched this must never touch the continuation again.
+		 * <p>
+		 * Jetty expires continuations on its own timer, so the continuation
+		 * may expire after the check but before it's resumed; the expiry
+		 * redispatches the request anyway, so that's safe to ignore.
+		 */
+		public synchronized void resume() {
+			if (!redispatched && !continuation.isExpired()) {
+				try {
+					continuation.resume();
+				} catch (IllegalStateException e) {
+					LOGGER.fine("Continuation expired before it could be resumed");
+				}
+			}
+		}
+		
+		public synchronized void redispatched() {
+			this.redispatched = true;
+		}
+	}
+	
+	private final Executor executor;
+	private final long timeout;
+	
+	/**
+	 * Creates a new {@link AsyncWesabeAuthenticator}.
+	 * 
+	 * @param realm the Basic Auth realm
+	 * @param userStore the store of users' records
+	 * @param throttleStore the store of failed login counts and locks
+	 * @param credentialCache the cache of verified credentials
+	 * @param negativeLookupCache the cache of logins which match no user
+	 * @param userDatabaseBreaker the circuit breaker for the user database
+	 * @param sessionTokens the issuer of session tokens
+	 * @param tarpit the tarpit for clients which keep failing to log in
+	 * @param failedLogins the counts of users' failed logins
+	 * @param lockStates the near-cache of users' lock states
+	 * @param stats the registry to record statistics in
+	 * @param executor the bounded {@link Executor} to authenticate on
+	 * @param timeout the number of milliseconds to wait for an authentication
+	 *                before giving up
+	 */
+	public AsyncWesabeAuthenticator(String realm, UserStore userStore, ThrottleStore throttleStore,
+			CredentialCache credentialCache, NegativeLookupCache negativeLookupCache,
+			CircuitBreaker userDatabaseBreaker, SessionTokens sessionTokens, Tarpit tarpit,
+			FailedLogins failedLogins, LockStateCache lockStates, StatsRegistry stats,
+			Executor executor, long timeout) {
+		this(realm, userStore, throttleStore, credentialCache, negativeLookupCache,
+				userDatabaseBreaker, sessionTokens, tarpit, failedLogins, lockStates,
+				new PasswordHasher(), stats, executor, timeout);
+	}
+	
+	/**
+	 * Creates a new {@link AsyncWesabeAuthenticator} with a given
+	 * {@link PasswordHasher}.
+	 * 
+	 * @see #AsyncWesabeAuthenticator(String, UserStore, ThrottleStore, CredentialCache, NegativeLookupCache, CircuitBreaker, SessionTokens, Tarpit, FailedLogins, LockStateCache, StatsRegistry, Executor, long)
+	 */
+	public AsyncWesabeAuthenticator(String realm, UserStore userStore, ThrottleStore throttleStore,
+			CredentialCache credentialCache, NegativeLookupCache negativeLookupCache,
+			CircuitBreaker userDatabaseBreaker, SessionTokens sessionTokens, Tarpit tarpit,
+			FailedLogins failedLogins, LockStateCache lockStates, PasswordHasher hasher,
+			StatsRegistry stats, Executor executor, long timeout) {
+		super(realm, userStore, throttleStore, credentialCache, negativeLookupCache,
+				userDatabaseBreaker, sessionTokens, tarpit, failedLogins, lockStates, hasher, stats);
+		this.executor = executor;
+		this.timeout = timeout;
+	}
+	
+	@Override
+	public Authentication validateRequest(ServletRequest request, ServletResponse response, boolean mandatory)
+			throws ServerAuthException {
+		final Authentication released = sendReleased(request, response);
+		if (released != null) {
+			return released;
+		}
+		
+		final Continuation continuation = ContinuationSupport.getContinuation(request);
+		final PendingAuthentication pending = (PendingAuthentication) continuation.getAttribute(PENDING_AUTHENTICATION_ATTRIBUTE);
+		if (pending != null) {
+			continuation.removeAttribute(PENDING_AUTHENTICATION_ATTRIBUTE);
+			pending.redispatched();
+			
+			if (pending.authentication.isCancelled()) {
+				return sendUnavailable(response);
+			}
+			
+			// cancel() fails only if the authentication has already finished
+			if (pending.authentication.cancel(false)) {
+				LOGGER.warning("Authentication did not finish within " + timeout + "ms");
+				return sendUnavailable(response);
+			}
+			return sendAuthentication(request, pending.authentication, response);
+		}
+		
+		// a valid session token or recently verified credentials are cheap
+		// enough to check on the server thread
+		final Authentication session = authenticateSession(request);
+		if (session != null) {
+			return session;
+		}
+		
+		final Authentication cached = authenticateCached(request, response);
+		if (cached != null) {
+			return cached;
+		}
+		
+		final PendingAuthentication authentication = new PendingAuthentication(newAuthentication(request, false), continuation);
+		continuation.setAttribute(PENDING_AUTHENTICATION_ATTRIBUTE, authentication);
+		continuation.setTimeout(timeout);
+		continuation.suspend();
+		try {
+			executor.execute(authentication);
+		} catch (RejectedExecutionException e) {
+			// the redispatch will find the authentication cancelled and send a 503
+			LOGGER.warning("Authentication executor is saturated; rejecting request");
+			authentication.authentication.cancel(false);
+			authentication.resume();
+		}
+		return Authentication.SEND_CONTINUE;
+	}
+	
+	private Authentication sendUnavailable(ServletResponse response) throws ServerAuthException {
+		try {
+			((HttpServletResponse) response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return Authentication.SEND_FAILURE;
+		} catch (IOException e) {
+			throw new ServerAuthException(e);
+		}
+	}
+}
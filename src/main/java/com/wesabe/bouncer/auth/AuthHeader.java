@@ -0,0 +1,217 @@
+package com.wesabe.bouncer.auth;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A parsed Basic HTTP Authorization header.
+ * <p>
+ * Parsing decodes the base64 credentials straight from the header into a
+ * per-thread buffer and finds the separator without building any
+ * intermediate strings. The username and password are only decoded when
+ * they're asked for, as UTF-8 if they're valid UTF-8 and as ISO-8859-1 (which
+ * is what older browsers send) if they're not.
+ * <p>
+ * <b>N.B.:</b> Each thread reuses a single instance, so a parsed header is
+ * only valid on the thread which parsed it, and only until that thread
+ * parses another header.
+ *
+ * @author coda
+ */
+public final class AuthHeader {
+	private static final String BASIC_AUTHENTICATION_PREFIX = "Basic ";
+	private static final int MAX_ENCODED_LENGTH = 8192;
+	private static final int INITIAL_BUFFER_SIZE = 128;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final byte[] DECODE_TABLE = new byte[128];
+	static {
+		final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < DECODE_TABLE.length; i++) {
+			DECODE_TABLE[i] = -1;
+		}
+		for (int i = 0; i < alphabet.length(); i++) {
+			DECODE_TABLE[alphabet.charAt(i)] = (byte) i;
+		}
+	}
+
+	private static final ThreadLocal<AuthHeader> HEADERS = new ThreadLocal<AuthHeader>() {
+		@Override
+		protected AuthHeader initialValue() {
+			return new AuthHeader();
+		}
+	};
+
+	/**
+	 * Parses the value of an Authorization header.
+	 *
+	 * @param authorization the value of a request's Authorization header
+	 * @return the parsed header, or {@code null} if {@code authorization} is
+	 *         missing, not Basic authentication, or malformed
+	 */
+	public static AuthHeader parse(String authorization) {
+		if ((authorization == null) || !authorization.startsWith(BASIC_AUTHENTICATION_PREFIX)) {
+			return null;
+		}
+
+		final AuthHeader header = HEADERS.get();
+		if (header.decode(authorization, BASIC_AUTHENTICATION_PREFIX.length())) {
+			return header;
+		}
+		return null;
+	}
+
+	private final CharsetDecoder decoder = UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPORT)
+			.onUnmappableCharacter(CodingErrorAction.REPORT);
+	private byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+	private ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+	private CharBuffer charBuffer = CharBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private int length, separator;
+	private String username, password;
+
+	private AuthHeader() {
+		// use #parse(String)
+	}
+
+	/**
+	 * Returns the username (or email address) in the header.
+	 */
+	public String getUsername() {
+		if (username == null) {
+			this.username = decodeString(0, separator);
+		}
+		return username;
+	}
+
+	/**
+	 * Returns the password in the header.
+	 */
+	public String getPassword() {
+		if (password == null) {
+			this.password = decodeString(separator + 1, length - separator - 1);
+		}
+		return password;
+	}
+
+	private boolean decode(String header, int offset) {
+		this.username = null;
+		this.password = null;
+		this.length = 0;
+
+		int start = offset, end = header.length();
+		while ((start < end) && isWhitespace(header.charAt(start))) {
+			start++;
+		}
+		while ((end > start) && isWhitespace(header.charAt(end - 1))) {
+			end--;
+		}
+
+		int padding = 0;
+		while ((padding < 2) && (end > start) && (header.charAt(end - 1) == '=')) {
+			end--;
+			padding++;
+		}
+
+		final int encodedLength = end - start;
+		if ((encodedLength == 0) || (encodedLength > MAX_ENCODED_LENGTH)
+				|| ((encodedLength % 4) == 1)
+				|| ((padding > 0) && (((encodedLength + padding) % 4) != 0))) {
+			return false;
+		}
+
+		ensureCapacity((encodedLength * 3) / 4);
+
+		int bits = 0, count = 0, position = 0;
+		for (int i = start; i < end; i++) {
+			final char c = header.charAt(i);
+			final int value = (c < DECODE_TABLE.length) ? DECODE_TABLE[c] : -1;
+			if (value < 0) {
+				return false;
+			}
+
+			bits = (bits << 6) | value;
+			if (++count == 4) {
+				bytes[position++] = (byte) (bits >> 16);
+				bytes[position++] = (byte) (bits >> 8);
+				bytes[position++] = (byte) bits;
+				bits = 0;
+				count = 0;
+			}
+		}
+
+		if (count == 2) {
+			bytes[position++] = (byte) (bits >> 4);
+		} else if (count == 3) {
+			bytes[position++] = (byte) (bits >> 10);
+			bytes[position++] = (byte) (bits >> 2);
+		}
+
+		// ':' never appears inside a multi-byte UTF-8 sequence, so the first
+		// one is always the separator
+		int colon = -1;
+		for (int i = 0; i < position; i++) {
+			if (bytes[i] == ':') {
+				colon = i;
+				break;
+			}
+		}
+
+		if (colon <= 0) {
+			return false;
+		}
+
+		this.length = position;
+		this.separator = colon;
+		return true;
+	}
+
+	private String decodeString(int offset, int count) {
+		if (charBuffer.capacity() < count) {
+			this.charBuffer = CharBuffer.allocate(count);
+		}
+
+		final char[] chars = charBuffer.array();
+		boolean ascii = true;
+		for (int i = 0; i < count; i++) {
+			final byte b = bytes[offset + i];
+			if (b < 0) {
+				ascii = false;
+				break;
+			}
+			chars[i] = (char) b;
+		}
+
+		if (ascii) {
+			return new String(chars, 0, count);
+		}
+
+		byteBuffer.limit(offset + count).position(offset);
+		charBuffer.clear();
+		decoder.reset();
+		// UTF-8 never decodes to more chars than it has bytes, so the only
+		// possible errors are malformed input
+		if (!decoder.decode(byteBuffer, charBuffer, true).isError()
+				&& !decoder.flush(charBuffer).isError()) {
+			return new String(chars, 0, charBuffer.position());
+		}
+
+		for (int i = 0; i < count; i++) {
+			chars[i] = (char) (bytes[offset + i] & 0xff);
+		}
+		return new String(chars, 0, count);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (bytes.length < capacity) {
+			this.bytes = new byte[capacity];
+			this.byteBuffer = ByteBuffer.wrap(bytes);
+		}
+	}
+
+	private static boolean isWhitespace(char c) {
+		return (c == ' ') || (c == '\t');
+	}
+}
@@ -0,0 +1,44 @@
+package com.wesabe.bouncer.auth;
+
+/**
+ * An exception thrown by {@link WesabeAuthenticator} when a request can't be
+ * authenticated because the user database is unavailable.
+ * 
+ * @author coda
+ */
+public class AuthenticationUnavailableException extends Exception {
+	private static final long serialVersionUID = -6409836524771405066L;
+	private final int retryAfter;
+	
+	/**
+	 * Creates a new {@link AuthenticationUnavailableException}.
+	 * 
+	 * @param retryAfter the number of seconds after which the client should
+	 *                   try again
+	 */
+	public AuthenticationUnavailableException(int retryAfter) {
+		super();
+		this.retryAfter = retryAfter;
+	}
+	
+	/**
+	 * Creates a new {@link AuthenticationUnavailableException}.
+	 * 
+	 * @param retryAfter the number of seconds after which the client should
+	 *                   try again
+	 * @param cause the error which made the user database unavailable
+	 */
+	public AuthenticationUnavailableException(int retryAfter, Throwable cause) {
+		super(cause);
+		this.retryAfter = retryAfter;
+	}
+	
+	/**
+	 * Returns the number of seconds after which the client should try again.
+	 * 
+	 * @return the number of seconds after which the client should try again
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+}
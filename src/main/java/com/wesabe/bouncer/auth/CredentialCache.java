@@ -0,0 +1,260 @@
+package com.wesabe.bouncer.auth;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.google.common.base.Predicate;
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.TinyLfuCache;
+
+/**
+ * A bounded, expiring cache of verified {@link WesabeCredentials}, keyed by
+ * Authorization header.
+ * <p>
+ * Headers are never stored. Each one is reduced to an HMAC-SHA256 digest
+ * under a random, per-process key, so neither the cache keys nor the cached
+ * values contain a plaintext password.
+ * <p>
+ * Expired credentials can be kept for a grace period, during which they're
+ * not returned by {@link #get(String)} but are by {@link #getStale(String)},
+ * so that users who authenticated recently can still be let in while the user
+ * database is unavailable.
+ * 
+ * @author coda
+ */
+public class CredentialCache {
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final int MAC_KEY_LENGTH = 32;
+	private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+	
+	private static class Entry {
+		private final WesabeCredentials credentials;
+		private final long expiresAt;
+		
+		public Entry(WesabeCredentials credentials, long expiresAt) {
+			this.credentials = credentials;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	private final TinyLfuCache<String, Entry> entries;
+	private final long ttl, grace;
+	private final Clock clock;
+	private final ThreadLocal<Mac> macs;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong expirationCount = new AtomicLong();
+	private final AtomicLong staleHitCount = new AtomicLong();
+	
+	/**
+	 * Creates a new {@link CredentialCache}.
+	 * 
+	 * @param maxSize the maximum number of credentials to cache, or {@code 0}
+	 *                to disable caching
+	 * @param ttl the number of seconds a set of credentials may be cached for
+	 */
+	public CredentialCache(int maxSize, int ttl) {
+		this(maxSize, ttl, 0);
+	}
+	
+	/**
+	 * Creates a new {@link CredentialCache}.
+	 * 
+	 * @param maxSize the maximum number of credentials to cache, or {@code 0}
+	 *                to disable caching
+	 * @param ttl the number of seconds a set of credentials may be cached for
+	 * @param grace the number of seconds expired credentials are kept for use
+	 *              by {@link #getStale(String)}
+	 */
+	public CredentialCache(int maxSize, int ttl, int grace) {
+		this(maxSize, ttl, grace, Clock.system());
+	}
+	
+	/**
+	 * Creates a new {@link CredentialCache}.
+	 * 
+	 * @param maxSize the maximum number of credentials to cache, or {@code 0}
+	 *                to disable caching
+	 * @param ttl the number of seconds a set of credentials may be cached for
+	 * @param clock the {@link Clock} used to expire entries
+	 */
+	public CredentialCache(int maxSize, int ttl, Clock clock) {
+		this(maxSize, ttl, 0, clock);
+	}
+	
+	/**
+	 * Creates a new {@link CredentialCache}.
+	 * 
+	 * @param maxSize the maximum number of credentials to cache, or {@code 0}
+	 *                to disable caching
+	 * @param ttl the number of seconds a set of credentials may be cached for
+	 * @param grace the number of seconds expired credentials are kept for use
+	 *              by {@link #getStale(String)}
+	 * @param clock the {@link Clock} used to expire entries
+	 */
+	public CredentialCache(int maxSize, int ttl, int grace, Clock clock) {
+		this.entries = new TinyLfuCache<String, Entry>(maxSize);
+		this.ttl = ttl * 1000L;
+		this.grace = grace * 1000L;
+		this.clock = clock;
+		
+		final byte[] keyBytes = new byte[MAC_KEY_LENGTH];
+		new SecureRandom().nextBytes(keyBytes);
+		final SecretKeySpec key = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
+		this.macs = new ThreadLocal<Mac>() {
+			@Override
+			protected Mac initialValue() {
+				try {
+					final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+					mac.init(key);
+					return mac;
+				} catch (GeneralSecurityException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Returns the cached credentials for {@code authorization}, or
+	 * {@code null} if none are cached or they have expired.
+	 * 
+	 * @param authorization the value of a request's Authorization header
+	 * @return the cached credentials, or {@code null}
+	 */
+	public WesabeCredentials get(String authorization) {
+		if (!isEnabled() || (authorization == null)) {
+			return null;
+		}
+		
+		final String key = digest(authorization);
+		final Entry entry = entries.get(key);
+		if (entry != null) {
+			final long now = clock.getTime();
+			if (entry.expiresAt > now) {
+				hitCount.incrementAndGet();
+				return entry.credentials;
+			}
+			
+			if (((entry.expiresAt + grace) <= now) && (entries.remove(key) != null)) {
+				expirationCount.incrementAndGet();
+			}
+		}
+		
+		missCount.incrementAndGet();
+		return null;
+	}
+	
+	/**
+	 * Returns the cached credentials for {@code authorization}, even if they
+	 * have expired, as long as they're still within the grace period. Should
+	 * only be used when the credentials can't be verified.
+	 * 
+	 * @param authorization the value of a request's Authorization header
+	 * @return the cached credentials, or {@code null}
+	 */
+	public WesabeCredentials getStale(String authorization) {
+		if (!isEnabled() || (authorization == null)) {
+			return null;
+		}
+		
+		final Entry entry = entries.get(digest(authorization));
+		if ((entry != null) && ((entry.expiresAt + grace) > clock.getTime())) {
+			staleHitCount.incrementAndGet();
+			return entry.credentials;
+		}
+		return null;
+	}
+	
+	/**
+	 * Caches {@code credentials} as the result of verifying
+	 * {@code authorization}.
+	 * 
+	 * @param authorization the value of a request's Authorization header
+	 * @param credentials the credentials {@code authorization} was verified as
+	 */
+	public void put(String authorization, WesabeCredentials credentials) {
+		if (isEnabled()) {
+			entries.put(digest(authorization), new Entry(credentials, clock.getTime() + ttl));
+		}
+	}
+	
+	/**
+	 * Removes all cached credentials for a user. Should be called when a
+	 * user's password changes or their account is locked.
+	 * 
+	 * @param userId the user's ID
+	 * @return the number of cached credentials removed
+	 */
+	public int invalidate(final int userId) {
+		return entries.removeValues(new Predicate<Entry>() {
+			@Override
+			public boolean apply(Entry entry) {
+				return entry.credentials.getUserId() == userId;
+			}
+		});
+	}
+	
+	/**
+	 * Removes all cached credentials.
+	 */
+	public void invalidateAll() {
+		entries.clear();
+	}
+	
+	/**
+	 * Returns {@code true} if the cache will hold any credentials.
+	 */
+	public boolean isEnabled() {
+		return (entries.getMaxWeight() > 0) && (ttl > 0);
+	}
+	
+	/**
+	 * Returns the number of currently cached credentials.
+	 */
+	public int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the number of lookups which found cached credentials.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+	
+	/**
+	 * Returns the number of lookups which found no cached credentials.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+	
+	/**
+	 * Returns the number of lookups which found credentials with
+	 * {@link #getStale(String)}.
+	 */
+	public long getStaleHitCount() {
+		return staleHitCount.get();
+	}
+	
+	/**
+	 * Returns the number of cached credentials which have been dropped,
+	 * either because they expired or to make room for others.
+	 */
+	public long getEvictionCount() {
+		return entries.getEvictionCount() + expirationCount.get();
+	}
+	
+	private String digest(String authorization) {
+		final Mac mac = macs.get();
+		return String.valueOf(Hex.encodeHex(mac.doFinal(authorization.getBytes(HEADER_CHARSET))));
+	}
+}
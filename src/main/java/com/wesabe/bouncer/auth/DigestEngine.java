@@ -0,0 +1,237 @@
+package com.wesabe.bouncer.auth;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.wesabe.bouncer.util.SipHash;
+
+/**
+ * A per-thread SHA-256 engine for hashing strings.
+ * <p>
+ * Each thread keeps its own {@link MessageDigest} rather than looking one up
+ * from the security providers for every hash, and encodes its input as UTF-8
+ * into a buffer it reuses, so hashing a password only allocates the digest
+ * it returns (if that).
+ * <p>
+ * <b>N.B.:</b> Each thread reuses a single instance, so an engine must only
+ * be used by the thread which got it, and anything it returns is only valid
+ * until that thread uses it again.
+ *
+ * @author coda
+ */
+public final class DigestEngine {
+	private static final String HASH_ALGORITHM = "SHA-256";
+	public static final int DIGEST_LENGTH = 32;
+	private static final int INITIAL_BUFFER_SIZE = 128;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocal<DigestEngine> ENGINES = new ThreadLocal<DigestEngine>() {
+		@Override
+		protected DigestEngine initialValue() {
+			return new DigestEngine();
+		}
+	};
+
+	/**
+	 * Returns the current thread's engine.
+	 */
+	public static DigestEngine get() {
+		return ENGINES.get();
+	}
+
+	/**
+	 * Decodes a lower-case hexadecimal digest, as stored in a user's
+	 * {@code password_hash}.
+	 *
+	 * @param hex a hex-encoded digest
+	 * @return the digest, or {@code null} if {@code hex} isn't a lower-case
+	 *         hex-encoded digest
+	 */
+	public static byte[] decode(String hex) {
+		if ((hex == null) || (hex.length() != (DIGEST_LENGTH * 2))) {
+			return null;
+		}
+
+		final byte[] digest = new byte[DIGEST_LENGTH];
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			final int high = valueOf(hex.charAt(i * 2));
+			final int low = valueOf(hex.charAt((i * 2) + 1));
+			if ((high < 0) || (low < 0)) {
+				return null;
+			}
+			digest[i] = (byte) ((high << 4) | low);
+		}
+		return digest;
+	}
+
+	/**
+	 * Compares two digests in constant time, so that how long a comparison
+	 * takes says nothing about how much of a hash an attacker has guessed.
+	 *
+	 * @param a a digest
+	 * @param b another digest
+	 * @return {@code true} if the digests are the same
+	 */
+	public static boolean isEqual(byte[] a, byte[] b) {
+		if ((a == null) || (b == null) || (a.length != b.length)) {
+			return false;
+		}
+
+		int difference = 0;
+		for (int i = 0; i < a.length; i++) {
+			difference |= a[i] ^ b[i];
+		}
+		return difference == 0;
+	}
+
+	private static int valueOf(char c) {
+		if ((c >= '0') && (c <= '9')) {
+			return c - '0';
+		}
+		if ((c >= 'a') && (c <= 'f')) {
+			return (c - 'a') + 10;
+		}
+		return -1;
+	}
+
+	private final MessageDigest sha;
+	private final char[] hex = new char[DIGEST_LENGTH * 2];
+	private byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+	private int length;
+
+	private DigestEngine() {
+		try {
+			this.sha = MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Hashes the UTF-8 encoding of two strings, one after the other.
+	 *
+	 * @param first the first string
+	 * @param second the second string
+	 * @param digest an array of at least {@link #DIGEST_LENGTH} bytes to write
+	 *               the digest into
+	 */
+	public void digest(String first, String second, byte[] digest) {
+		load(first, second);
+		digest(digest);
+	}
+
+	/**
+	 * Encodes two strings as UTF-8, one after the other, for
+	 * {@link #fingerprint(long, long)} and {@link #digest(byte[])}.
+	 *
+	 * @param first the first string
+	 * @param second the second string
+	 */
+	public void load(String first, String second) {
+		this.length = 0;
+		encode(first);
+		encode(second);
+	}
+
+	/**
+	 * Returns the SipHash-2-4 digest of the loaded strings.
+	 *
+	 * @param k0 the first half of the key
+	 * @param k1 the second half of the key
+	 * @return the 64-bit digest
+	 * @see #load(String, String)
+	 */
+	public long fingerprint(long k0, long k1) {
+		return SipHash.hash(k0, k1, bytes, 0, length);
+	}
+
+	/**
+	 * Hashes the loaded strings.
+	 *
+	 * @param digest an array of at least {@link #DIGEST_LENGTH} bytes to write
+	 *               the digest into
+	 * @see #load(String, String)
+	 */
+	public void digest(byte[] digest) {
+		sha.update(bytes, 0, length);
+		try {
+			sha.digest(digest, 0, DIGEST_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Hashes the hex encoding of a digest followed by the UTF-8 encoding of a
+	 * string.
+	 *
+	 * @param first a digest
+	 * @param second a string
+	 * @param digest an array of at least {@link #DIGEST_LENGTH} bytes to write
+	 *               the digest into; may be {@code first}
+	 */
+	public void digest(byte[] first, String second, byte[] digest) {
+		this.length = 0;
+		ensureCapacity(DIGEST_LENGTH * 2);
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			bytes[length++] = (byte) HEX[(first[i] >> 4) & 0xF];
+			bytes[length++] = (byte) HEX[first[i] & 0xF];
+		}
+		encode(second);
+		digest(digest);
+	}
+
+	/**
+	 * Returns the lower-case hex encoding of a digest.
+	 *
+	 * @param digest a digest
+	 * @return {@code digest}, hex-encoded
+	 */
+	public String encode(byte[] digest) {
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+			hex[(i * 2) + 1] = HEX[digest[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	/*
+	 * The same bytes String#getBytes("UTF-8") produces, including a '?' in
+	 * place of an unpaired surrogate, without the intermediate arrays.
+	 */
+	private void encode(String s) {
+		final int count = s.length();
+		ensureCapacity(length + (count * 3));
+		for (int i = 0; i < count; i++) {
+			final char c = s.charAt(i);
+			if (c < 0x80) {
+				bytes[length++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[length++] = (byte) (0xC0 | (c >> 6));
+				bytes[length++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && ((i + 1) < count)
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+				bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				bytes[length++] = '?';
+			} else {
+				bytes[length++] = (byte) (0xE0 | (c >> 12));
+				bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[length++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (bytes.length < capacity) {
+			final byte[] newBytes = new byte[Math.max(capacity, bytes.length * 2)];
+			System.arraycopy(bytes, 0, newBytes, 0, length);
+			this.bytes = newBytes;
+		}
+	}
+}
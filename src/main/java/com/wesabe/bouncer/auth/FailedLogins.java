@@ -0,0 +1,285 @@
+package com.wesabe.bouncer.auth;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.NamedThreadFactory;
+
+/**
+ * Counts failed logins per user in a {@link ThrottleStore}, so that accounts
+ * can be locked across every Bouncer instance which shares it.
+ * <p>
+ * With a flush interval of {@code 0}, every failed login and lock is written
+ * to the store as it happens. Otherwise, failed logins are counted locally
+ * and flushed in batches: a user's first failure reads their count from the
+ * store, every failure after that is counted in memory, and a background
+ * thread adds each user's new failures to the store with a single increment
+ * per interval, picking up failures counted by other instances as it goes.
+ * Lockout decisions are made on the remote count plus any local failures
+ * which haven't been flushed, and locks are written with the next flush but
+ * honored locally at once.
+ * <p>
+ * As in {@link com.wesabe.bouncer.limits.ConnectionLimiter}, a count is
+ * retired by swapping its pending failures from {@code 0} to a negative
+ * number before it's removed, so a failure can never be added to a count
+ * which has already been forgotten.
+ * 
+ * @author coda
+ */
+public class FailedLogins {
+	private static final Logger LOGGER = Logger.getLogger(FailedLogins.class.getCanonicalName());
+	private static final int ONE_DAY = 60 * 60 * 24;
+	private static final long IDLE_TIMEOUT = 60000; // milliseconds
+	private static final int MAX_TRACKED_USERS = 100000;
+	private static final int RETIRED = -1;
+	
+	/**
+	 * A user's failed logins, as known to this instance.
+	 */
+	private static class Count {
+		private final AtomicInteger pending = new AtomicInteger();
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicInteger pendingLock = new AtomicInteger();
+		private volatile long remote, lockedUntil, lastFailure;
+		
+		public Count(long remote) {
+			this.remote = remote;
+		}
+		
+		public long getTotal() {
+			return remote + inFlight.get() + pending.get();
+		}
+	}
+	
+	private final ThrottleStore store;
+	private final long flushInterval;
+	private final Clock clock;
+	private final ConcurrentMap<Integer, Count> counts = new ConcurrentHashMap<Integer, Count>();
+	private final AtomicLong registeredCount = new AtomicLong();
+	private final AtomicLong writeCount = new AtomicLong();
+	private ScheduledExecutorService flusher;
+	
+	/**
+	 * Creates a new {@link FailedLogins} which writes through to its store.
+	 * 
+	 * @param store the {@link ThrottleStore} to keep counts and locks in
+	 */
+	public FailedLogins(ThrottleStore store) {
+		this(store, 0, Clock.system());
+	}
+	
+	/**
+	 * Creates a new {@link FailedLogins}.
+	 * 
+	 * @param store the {@link ThrottleStore} to keep counts and locks in
+	 * @param flushInterval the number of milliseconds between flushes, or
+	 *                      {@code 0} to write through to the store
+	 * @param clock the {@link Clock} used to time locks
+	 */
+	public FailedLogins(ThrottleStore store, long flushInterval, Clock clock) {
+		this.store = store;
+		this.flushInterval = flushInterval;
+		this.clock = clock;
+	}
+	
+	/**
+	 * Starts flushing counts in the background, if batching is enabled.
+	 */
+	public synchronized void start() {
+		if (isBatched() && (flusher == null)) {
+			this.flusher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("bouncer-failed-logins"));
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Stops flushing counts in the background, after a final flush.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (flusher != null) {
+			flusher.shutdown();
+			flusher.awaitTermination(flushInterval * 10, TimeUnit.MILLISECONDS);
+			this.flusher = null;
+			flush();
+		}
+	}
+	
+	public boolean isBatched() {
+		return flushInterval > 0;
+	}
+	
+	/**
+	 * Records a failed login.
+	 * 
+	 * @param userId the user's ID
+	 * @return the user's total number of failed logins
+	 */
+	public long register(int userId) {
+		registeredCount.incrementAndGet();
+		if (!isBatched()) {
+			writeCount.incrementAndGet();
+			return store.increment(userId, 1, ONE_DAY);
+		}
+		
+		while (true) {
+			final Count count = getCount(userId);
+			final int pending = count.pending.get();
+			// a retired count has been removed from the map; start over
+			if ((pending != RETIRED) && count.pending.compareAndSet(pending, pending + 1)) {
+				count.lastFailure = clock.getTime();
+				return count.getTotal();
+			}
+		}
+	}
+	
+	/**
+	 * Locks a user's account.
+	 * 
+	 * @param userId the user's ID
+	 * @param penalty the number of seconds to lock the account for
+	 */
+	public void lock(int userId, int penalty) {
+		if (!isBatched()) {
+			store.lock(userId, penalty);
+			return;
+		}
+		
+		while (true) {
+			final Count count = getCount(userId);
+			count.lockedUntil = clock.getTime() + (penalty * 1000L);
+			count.pendingLock.set(penalty);
+			// if the count was retired before it saw the lock, start over
+			if (count.pending.get() != RETIRED) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Returns {@code true} if this instance has locked the user's account and
+	 * the lock hasn't expired. Locks set by other instances are only visible
+	 * in the store.
+	 */
+	public boolean isLocked(int userId) {
+		final Count count = counts.get(Integer.valueOf(userId));
+		return (count != null) && (count.lockedUntil > clock.getTime());
+	}
+	
+	/**
+	 * Forgets a user's failed logins, after they've logged in successfully.
+	 */
+	public void reset(int userId) {
+		final Integer key = Integer.valueOf(userId);
+		Count count;
+		while ((count = counts.get(key)) != null) {
+			final int pending = count.pending.get();
+			// retire the count first, so a failure or lock which is racing us
+			// starts over with a new count instead of being forgotten
+			if ((pending != RETIRED) && count.pending.compareAndSet(pending, RETIRED)) {
+				counts.remove(key, count);
+			} else {
+				Thread.yield();
+			}
+		}
+		store.clear(userId);
+	}
+	
+	/**
+	 * Writes every user's unflushed failed logins and locks to the store, and
+	 * forgets users who haven't failed to log in for a while.
+	 */
+	public void flush() {
+		final long now = clock.getTime();
+		final boolean crowded = counts.size() > MAX_TRACKED_USERS;
+		for (Map.Entry<Integer, Count> entry : counts.entrySet()) {
+			final int userId = entry.getKey().intValue();
+			final Count count = entry.getValue();
+			try {
+				flush(userId, count);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Unable to flush failed logins for user " + userId, e);
+				continue;
+			}
+			
+			if ((crowded || ((now - count.lastFailure) > IDLE_TIMEOUT))
+					&& count.pending.compareAndSet(0, RETIRED)) {
+				// a lock which arrived before the count was retired keeps it
+				if ((count.lockedUntil > now) || (count.pendingLock.get() > 0)) {
+					count.pending.set(0);
+				} else {
+					counts.remove(entry.getKey(), count);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of failed logins recorded.
+	 */
+	public long getRegisteredCount() {
+		return registeredCount.get();
+	}
+	
+	/**
+	 * Returns the number of failed login counts written to the store.
+	 */
+	public long getWriteCount() {
+		return writeCount.get();
+	}
+	
+	/**
+	 * Returns the number of users whose failed logins are counted locally.
+	 */
+	public int size() {
+		return counts.size();
+	}
+	
+	private void flush(int userId, Count count) {
+		final int delta = count.pending.getAndSet(0);
+		if (delta > 0) {
+			count.inFlight.addAndGet(delta);
+			try {
+				final long total = store.increment(userId, delta, ONE_DAY);
+				writeCount.incrementAndGet();
+				count.remote = Math.max(total, 0);
+			} catch (RuntimeException e) {
+				count.pending.addAndGet(delta);
+				throw e;
+			} finally {
+				count.inFlight.addAndGet(-delta);
+			}
+		}
+		
+		final int penalty = count.pendingLock.getAndSet(0);
+		if (penalty > 0) {
+			store.lock(userId, penalty);
+		}
+	}
+	
+	private Count getCount(int userId) {
+		final Integer key = Integer.valueOf(userId);
+		Count count = counts.get(key);
+		if (count == null) {
+			final Count newCount = new Count(store.getCount(userId));
+			count = counts.putIfAbsent(key, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		return count;
+	}
+}
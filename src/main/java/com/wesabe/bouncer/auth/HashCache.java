@@ -0,0 +1,233 @@
+package com.wesabe.bouncer.auth;
+
+import java.security.SecureRandom;
+
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.OffHeapDigestStore;
+import com.wesabe.bouncer.util.TinyLfuCache;
+
+/**
+ * A bounded, optionally expiring memo of computed hashes, keyed by a
+ * fingerprint of what was hashed.
+ * <p>
+ * What was hashed (a salt or uid plus a password) is never stored. Each
+ * input is reduced to a 128-bit SipHash fingerprint under a random,
+ * per-process key, which keeps every entry the same size no matter how long
+ * the password is and keeps passwords off the heap. Without the key, nobody
+ * can find two passwords whose fingerprints collide, and by chance it's
+ * vanishingly unlikely.
+ * <p>
+ * The memo is bounded by an estimate of how many bytes of heap its entries
+ * take up. If it's given an {@link OffHeapDigestStore}, the hashes
+ * themselves are kept there and only their handles are kept on the heap;
+ * once the store is full, new hashes aren't memoized until some are
+ * evicted.
+ *
+ * @author coda
+ */
+public class HashCache {
+	private static final int DIGEST_LENGTH = DigestEngine.DIGEST_LENGTH;
+	
+	// rough heap sizes, in bytes, of what each entry holds on to
+	private static final int ENTRY_WEIGHT = 96 + 32; // the cache's node, map entry, and Key
+	private static final int DIGEST_WEIGHT = 16 + DIGEST_LENGTH; // a byte[]
+	private static final int HANDLE_WEIGHT = 16; // a Long
+	
+	/**
+	 * The fingerprint of a hash's input.
+	 */
+	public static final class Key {
+		private final long high, low;
+		
+		private Key(long high, long low) {
+			this.high = high;
+			this.low = low;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof Key) {
+				final Key other = (Key) obj;
+				return (high == other.high) && (low == other.low);
+			}
+			return false;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (int) (low ^ (low >>> 32));
+		}
+	}
+	
+	private final TinyLfuCache<Key, byte[]> hashes;
+	private final TinyLfuCache<Key, Long> handles;
+	private final TinyLfuCache<Key, ?> entries;
+	private final OffHeapDigestStore digests;
+	private final long k0, k1, k2, k3;
+	
+	/**
+	 * Creates a new {@link HashCache} which keeps its hashes on the heap and
+	 * never expires them.
+	 *
+	 * @param budget the approximate number of bytes of heap the cache may
+	 *               take up, or {@code 0} to disable caching
+	 */
+	public HashCache(long budget) {
+		this(budget, 0, null, Clock.system());
+	}
+	
+	/**
+	 * Creates a new {@link HashCache}.
+	 *
+	 * @param budget the approximate number of bytes of heap the cache may
+	 *               take up, or {@code 0} to disable caching
+	 * @param ttl the number of seconds a hash may be cached for, or {@code 0}
+	 *            to cache hashes until they're evicted
+	 * @param store the store to keep hashes in, or {@code null} to keep them
+	 *              on the heap
+	 * @param clock the {@link Clock} used to expire entries
+	 */
+	public HashCache(long budget, int ttl, final OffHeapDigestStore store, Clock clock) {
+		this.digests = store;
+		if (store == null) {
+			this.handles = null;
+			this.hashes = new TinyLfuCache<Key, byte[]>(budget, new TinyLfuCache.Weigher<Key, byte[]>() {
+				@Override
+				public int weigh(Key key, byte[] digest) {
+					return ENTRY_WEIGHT + DIGEST_WEIGHT;
+				}
+			}, null, ttl * 1000L, clock);
+			this.entries = hashes;
+		} else {
+			this.hashes = null;
+			this.handles = new TinyLfuCache<Key, Long>(budget, new TinyLfuCache.Weigher<Key, Long>() {
+				@Override
+				public int weigh(Key key, Long handle) {
+					return ENTRY_WEIGHT + HANDLE_WEIGHT;
+				}
+			}, new TinyLfuCache.RemovalListener<Key, Long>() {
+				@Override
+				public void onRemoval(Key key, Long handle) {
+					store.free(handle.longValue());
+				}
+			}, ttl * 1000L, clock);
+			this.entries = handles;
+		}
+		
+		final SecureRandom random = new SecureRandom();
+		this.k0 = random.nextLong();
+		this.k1 = random.nextLong();
+		this.k2 = random.nextLong();
+		this.k3 = random.nextLong();
+	}
+	
+	/**
+	 * Returns the key for the input loaded into {@code engine}, or
+	 * {@code null} if caching is disabled.
+	 *
+	 * @param engine a {@link DigestEngine} with an input loaded
+	 * @return the input's key, or {@code null}
+	 * @see DigestEngine#load(String, String)
+	 */
+	public Key keyFor(DigestEngine engine) {
+		if (!isEnabled()) {
+			return null;
+		}
+		return new Key(engine.fingerprint(k0, k1), engine.fingerprint(k2, k3));
+	}
+	
+	/**
+	 * Copies a cached hash.
+	 *
+	 * @param key the key of the hash's input, or {@code null}
+	 * @param digest an array of at least {@link DigestEngine#DIGEST_LENGTH}
+	 *               bytes to copy the hash into
+	 * @return {@code true} if the hash was cached
+	 */
+	public boolean get(Key key, byte[] digest) {
+		if (key == null) {
+			return false;
+		}
+		
+		if (digests == null) {
+			final byte[] cached = hashes.get(key);
+			if (cached != null) {
+				System.arraycopy(cached, 0, digest, 0, DIGEST_LENGTH);
+				return true;
+			}
+			return false;
+		}
+		
+		final Long handle = handles.get(key);
+		return (handle != null) && digests.read(handle.longValue(), digest);
+	}
+	
+	/**
+	 * Caches a hash.
+	 *
+	 * @param key the key of the hash's input, or {@code null}
+	 * @param digest the hash
+	 */
+	public void put(Key key, byte[] digest) {
+		if (key == null) {
+			return;
+		}
+		
+		if (digests == null) {
+			hashes.put(key, digest.clone());
+		} else {
+			final long handle = digests.store(digest);
+			if (handle >= 0) {
+				handles.put(key, Long.valueOf(handle));
+			}
+		}
+	}
+	
+	public boolean isEnabled() {
+		return entries.getMaxWeight() > 0;
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the approximate number of bytes of heap the cache takes up.
+	 */
+	public long getWeight() {
+		return entries.getWeight();
+	}
+	
+	/**
+	 * Returns the number of cached hashes kept off the heap.
+	 */
+	public int getOffHeapCount() {
+		return (digests == null) ? 0 : entries.size();
+	}
+	
+	public long getHitCount() {
+		return entries.getHitCount();
+	}
+	
+	public long getMissCount() {
+		return entries.getMissCount();
+	}
+	
+	/**
+	 * Returns the percentage of lookups which found a cached hash, or
+	 * {@code 0} if there haven't been any.
+	 */
+	public int getHitRate() {
+		final long hits = getHitCount();
+		final long lookups = hits + getMissCount();
+		return (lookups == 0) ? 0 : (int) ((hits * 100) / lookups);
+	}
+	
+	public long getEvictionCount() {
+		return entries.getEvictionCount();
+	}
+	
+	public long getExpirationCount() {
+		return entries.getExpirationCount();
+	}
+}
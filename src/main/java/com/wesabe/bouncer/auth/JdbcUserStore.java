@@ -0,0 +1,119 @@
+package com.wesabe.bouncer.auth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import com.wesabe.bouncer.stats.LatencyHistogram;
+import com.wesabe.bouncer.stats.StatsRegistry;
+
+/**
+ * A {@link UserStore} which queries the PFC database for every lookup.
+ * <p>
+ * Queries which run longer than the query timeout are cancelled and throw an
+ * {@link SQLException}, so a hung database counts as a failure rather than
+ * tying up the thread.
+ * 
+ * @author coda
+ */
+public class JdbcUserStore implements UserStore {
+	private static final String USER_ID_FIELD = "id";
+	private static final String UID_FIELD = "uid";
+	private static final String SALT_FIELD = "salt";
+	private static final String PASSWORD_HASH_FIELD = "password_hash";
+	private static final String USERNAME_SELECT_SQL =
+		"SELECT id, uid, salt, password_hash " +
+		"FROM users " +
+		"WHERE (username = ?) AND status IN (0, 6) " + // 0 is ACTIVE, 6 is PENDING
+		"ORDER BY last_web_login DESC " +
+		"LIMIT 1";
+	private static final String EMAIL_SELECT_SQL =
+		"SELECT id, uid, salt, password_hash " +
+		"FROM users " +
+		"WHERE (email = ?) AND status IN (0, 6) " + // 0 is ACTIVE, 6 is PENDING
+		"ORDER BY last_web_login DESC " +
+		"LIMIT 1";
+	
+	private final DataSource dataSource;
+	private final int queryTimeout;
+	private final LatencyHistogram checkoutLatency, queryLatency;
+	
+	public JdbcUserStore(DataSource dataSource, StatsRegistry stats) {
+		this(dataSource, 0, stats);
+	}
+	
+	/**
+	 * @param queryTimeout the number of seconds a query may run, or {@code 0}
+	 *                     for no limit
+	 */
+	public JdbcUserStore(DataSource dataSource, int queryTimeout, StatsRegistry stats) {
+		this.dataSource = dataSource;
+		this.queryTimeout = queryTimeout;
+		this.checkoutLatency = stats.histogram("auth.latency.checkout");
+		this.queryLatency = stats.histogram("auth.latency.query");
+	}
+	
+	@Override
+	public UserRecord findUser(String login) throws SQLException {
+		long startTime = System.nanoTime();
+		final Connection connection = dataSource.getConnection();
+		checkoutLatency.time(startTime);
+		try {
+			startTime = System.nanoTime();
+			final UserRecord user = findUser(connection, login);
+			queryLatency.time(startTime);
+			return user;
+		} finally {
+			connection.close();
+		}
+	}
+	
+	/*
+	 * Users can log in with either their username or their email address.
+	 * Rather than asking MySQL for the union of both, we guess which one we've
+	 * been given: identifiers without an @ can only be usernames, and
+	 * identifiers with one are usually email addresses, but may be usernames.
+	 * Each query hits a single index.
+	 */
+	private UserRecord findUser(Connection connection, String login) throws SQLException {
+		if (login.indexOf('@') < 0) {
+			return findUser(connection, USERNAME_SELECT_SQL, login);
+		}
+		
+		final UserRecord user = findUser(connection, EMAIL_SELECT_SQL, login);
+		if (user != null) {
+			return user;
+		}
+		return findUser(connection, USERNAME_SELECT_SQL, login);
+	}
+	
+	private UserRecord findUser(Connection connection, String sql, String login)
+			throws SQLException {
+		final PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			if (queryTimeout > 0) {
+				statement.setQueryTimeout(queryTimeout);
+			}
+			statement.setString(1, login);
+			final ResultSet resultSet = statement.executeQuery();
+			try {
+				if (resultSet.first()) {
+					return new UserRecord(
+							resultSet.getInt(USER_ID_FIELD),
+							resultSet.getString(UID_FIELD),
+							resultSet.getString(SALT_FIELD),
+							resultSet.getString(PASSWORD_HASH_FIELD)
+					);
+				}
+			} finally {
+				resultSet.close();
+			}
+			return null;
+		} finally {
+			statement.close();
+		}
+	}
+}
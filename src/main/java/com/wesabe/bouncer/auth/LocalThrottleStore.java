@@ -0,0 +1,231 @@
+package com.wesabe.bouncer.auth;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wesabe.bouncer.util.Clock;
+
+/**
+ * A {@link ThrottleStore} kept in memory, for running a single Bouncer
+ * instance without memcached and for load testing.
+ * <p>
+ * Entries live in a fixed-size table of parallel arrays keyed by user ID, so
+ * nothing is allocated per user. Entries are striped into sets of eight
+ * adjacent slots, each guarded by its own lock, and a user can only live in
+ * the set their ID's hash picks. An entry whose count and lock have both
+ * expired is free; when a user's set is full, the entry which will expire
+ * soonest is recycled, which at worst forgets that user's failed logins
+ * early.
+ * 
+ * @author coda
+ */
+public class LocalThrottleStore implements ThrottleStore {
+	private static final int SET_SHIFT = 3;
+	private static final int SET_SIZE = 1 << SET_SHIFT;
+	
+	/**
+	 * A lock check which has already been answered.
+	 */
+	private static class Answer implements Future<Boolean> {
+		private final Boolean locked;
+		
+		public Answer(boolean locked) {
+			this.locked = Boolean.valueOf(locked);
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+		
+		@Override
+		public Boolean get() {
+			return locked;
+		}
+		
+		@Override
+		public Boolean get(long timeout, TimeUnit unit) {
+			return locked;
+		}
+		
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+		
+		@Override
+		public boolean isDone() {
+			return true;
+		}
+	}
+	
+	private static final Answer LOCKED = new Answer(true);
+	private static final Answer UNLOCKED = new Answer(false);
+	
+	private final int[] userIds;
+	private final long[] counts, countExpirations, lockExpirations;
+	private final Object[] locks;
+	private final int setShift;
+	private final Clock clock;
+	private final AtomicLong evictionCount = new AtomicLong();
+	
+	/**
+	 * Creates a new {@link LocalThrottleStore}.
+	 * 
+	 * @param capacity the number of users to keep track of, rounded up to the
+	 *                 next power of two
+	 * @param clock the {@link Clock} used to expire counts and locks
+	 */
+	public LocalThrottleStore(int capacity, Clock clock) {
+		int sets = 1, bits = 0;
+		while ((sets * SET_SIZE) < capacity) {
+			sets <<= 1;
+			bits++;
+		}
+		this.setShift = 32 - bits;
+		this.userIds = new int[sets * SET_SIZE];
+		this.counts = new long[sets * SET_SIZE];
+		this.countExpirations = new long[sets * SET_SIZE];
+		this.lockExpirations = new long[sets * SET_SIZE];
+		this.locks = new Object[sets];
+		for (int i = 0; i < sets; i++) {
+			locks[i] = new Object();
+		}
+		this.clock = clock;
+	}
+	
+	@Override
+	public long increment(int userId, int delta, int ttl) {
+		final long now = clock.getTime();
+		final int set = getSet(userId);
+		synchronized (locks[set]) {
+			final int slot = claim(set, userId, now);
+			if (countExpirations[slot] <= now) {
+				counts[slot] = 0;
+				countExpirations[slot] = now + (ttl * 1000L);
+			}
+			counts[slot] += delta;
+			return counts[slot];
+		}
+	}
+	
+	@Override
+	public long getCount(int userId) {
+		final long now = clock.getTime();
+		final int set = getSet(userId);
+		synchronized (locks[set]) {
+			final int slot = find(set, userId, now);
+			if ((slot < 0) || (countExpirations[slot] <= now)) {
+				return 0;
+			}
+			return counts[slot];
+		}
+	}
+	
+	@Override
+	public void clear(int userId) {
+		final long now = clock.getTime();
+		final int set = getSet(userId);
+		synchronized (locks[set]) {
+			final int slot = find(set, userId, now);
+			if (slot >= 0) {
+				counts[slot] = 0;
+				countExpirations[slot] = 0;
+			}
+		}
+	}
+	
+	@Override
+	public void lock(int userId, int duration) {
+		final long now = clock.getTime();
+		final int set = getSet(userId);
+		synchronized (locks[set]) {
+			lockExpirations[claim(set, userId, now)] = now + (duration * 1000L);
+		}
+	}
+	
+	@Override
+	public boolean isLocked(int userId) {
+		final long now = clock.getTime();
+		final int set = getSet(userId);
+		synchronized (locks[set]) {
+			final int slot = find(set, userId, now);
+			return (slot >= 0) && (lockExpirations[slot] > now);
+		}
+	}
+	
+	@Override
+	public Future<Boolean> isLockedAsync(int userId) {
+		return isLocked(userId) ? LOCKED : UNLOCKED;
+	}
+	
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+	
+	/**
+	 * Returns the number of users whose entries were recycled before they
+	 * expired.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+	
+	/**
+	 * Returns the number of users kept track of.
+	 */
+	public int getCapacity() {
+		return userIds.length;
+	}
+	
+	private int getSet(int userId) {
+		return (setShift == 32) ? 0 : ((userId * 0x9E3779B9) >>> setShift);
+	}
+	
+	private long getExpiration(int slot) {
+		return Math.max(countExpirations[slot], lockExpirations[slot]);
+	}
+	
+	/**
+	 * Returns the slot holding a user's live entry, or {@code -1}.
+	 */
+	private int find(int set, int userId, long now) {
+		final int start = set << SET_SHIFT;
+		for (int i = start; i < (start + SET_SIZE); i++) {
+			if ((userIds[i] == userId) && (getExpiration(i) > now)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the slot holding a user's entry, recycling the slot which will
+	 * expire soonest if they don't have one.
+	 */
+	private int claim(int set, int userId, long now) {
+		final int slot = find(set, userId, now);
+		if (slot >= 0) {
+			return slot;
+		}
+		
+		final int start = set << SET_SHIFT;
+		int victim = start;
+		for (int i = start + 1; i < (start + SET_SIZE); i++) {
+			if (getExpiration(i) < getExpiration(victim)) {
+				victim = i;
+			}
+		}
+		
+		if (getExpiration(victim) > now) {
+			evictionCount.incrementAndGet();
+		}
+		userIds[victim] = userId;
+		counts[victim] = 0;
+		countExpirations[victim] = 0;
+		lockExpirations[victim] = 0;
+		return victim;
+	}
+}
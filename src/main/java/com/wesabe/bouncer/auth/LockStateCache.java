@@ -0,0 +1,141 @@
+package com.wesabe.bouncer.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.TinyLfuCache;
+
+/**
+ * A bounded, expiring near-cache of whether or not users' accounts are
+ * locked, so that most logins don't have to ask memcached.
+ * <p>
+ * Locks issued by this instance are held until their penalty is up. Lock
+ * states read from memcached, locked or not, are only held for the staleness
+ * bound, which is how long a lock issued by another instance can go unnoticed
+ * here.
+ * 
+ * @author coda
+ */
+public class LockStateCache {
+	private static class Entry {
+		private final boolean locked;
+		private final long expiresAt;
+		
+		public Entry(boolean locked, long expiresAt) {
+			this.locked = locked;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	private final TinyLfuCache<Integer, Entry> entries;
+	private final long staleness;
+	private final Clock clock;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	
+	/**
+	 * Creates a new {@link LockStateCache}.
+	 * 
+	 * @param maxSize the maximum number of users to remember, or {@code 0} to
+	 *                disable the cache
+	 * @param staleness the number of milliseconds a lock state read from
+	 *                  memcached may be used for
+	 */
+	public LockStateCache(int maxSize, long staleness) {
+		this(maxSize, staleness, Clock.system());
+	}
+	
+	/**
+	 * Creates a new {@link LockStateCache}.
+	 * 
+	 * @param maxSize the maximum number of users to remember, or {@code 0} to
+	 *                disable the cache
+	 * @param staleness the number of milliseconds a lock state read from
+	 *                  memcached may be used for
+	 * @param clock the {@link Clock} used to expire entries
+	 */
+	public LockStateCache(int maxSize, long staleness, Clock clock) {
+		this.entries = new TinyLfuCache<Integer, Entry>(maxSize);
+		this.staleness = staleness;
+		this.clock = clock;
+	}
+	
+	/**
+	 * Returns whether or not a user's account is locked, if it's known.
+	 * 
+	 * @param userId the user's ID
+	 * @return {@link Boolean#TRUE} if the account is locked,
+	 *         {@link Boolean#FALSE} if it isn't, or {@code null} if memcached
+	 *         needs to be asked
+	 */
+	public Boolean get(int userId) {
+		if (!isEnabled()) {
+			return null;
+		}
+		
+		final Integer key = Integer.valueOf(userId);
+		final Entry entry = entries.get(key);
+		if (entry != null) {
+			if (entry.expiresAt > clock.getTime()) {
+				hitCount.incrementAndGet();
+				return Boolean.valueOf(entry.locked);
+			}
+			entries.remove(key);
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+	
+	/**
+	 * Records a lock state read from memcached.
+	 * 
+	 * @param userId the user's ID
+	 * @param locked whether or not the user's account is locked
+	 */
+	public void put(int userId, boolean locked) {
+		if (isEnabled()) {
+			entries.put(Integer.valueOf(userId), new Entry(locked, clock.getTime() + staleness));
+		}
+	}
+	
+	/**
+	 * Records a lock issued by this instance, replacing whatever was known
+	 * about the account.
+	 * 
+	 * @param userId the user's ID
+	 * @param penalty the number of seconds the account is locked for
+	 */
+	public void lock(int userId, int penalty) {
+		if (isEnabled()) {
+			entries.put(Integer.valueOf(userId), new Entry(true, clock.getTime() + (penalty * 1000L)));
+		}
+	}
+	
+	/**
+	 * Returns {@code true} if the cache will remember any lock states.
+	 */
+	public boolean isEnabled() {
+		return (entries.getMaxWeight() > 0) && (staleness > 0);
+	}
+	
+	/**
+	 * Returns the number of users whose lock state is remembered.
+	 */
+	public int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the number of lock checks answered without memcached.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+	
+	/**
+	 * Returns the number of lock checks which had to ask memcached.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+}
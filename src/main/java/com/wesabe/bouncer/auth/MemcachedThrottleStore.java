@@ -0,0 +1,119 @@
+package com.wesabe.bouncer.auth;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.MemcachedClientIF;
+
+/**
+ * A {@link ThrottleStore} backed by memcached, which is shared by every
+ * Bouncer instance.
+ * 
+ * @author coda
+ */
+public class MemcachedThrottleStore implements ThrottleStore {
+	/**
+	 * A lock check in flight.
+	 */
+	private static class LockFuture implements Future<Boolean> {
+		private final Future<Object> lock;
+		
+		public LockFuture(Future<Object> lock) {
+			this.lock = lock;
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return lock.cancel(mayInterruptIfRunning);
+		}
+		
+		@Override
+		public Boolean get() throws InterruptedException, ExecutionException {
+			return Boolean.valueOf(lock.get() != null);
+		}
+		
+		@Override
+		public Boolean get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			return Boolean.valueOf(lock.get(timeout, unit) != null);
+		}
+		
+		@Override
+		public boolean isCancelled() {
+			return lock.isCancelled();
+		}
+		
+		@Override
+		public boolean isDone() {
+			return lock.isDone();
+		}
+	}
+	
+	/**
+	 * Returns the memcached key which holds a user's failed login count.
+	 */
+	static String getCounterKey(int userId) {
+		final StringBuilder builder = new StringBuilder();
+		builder.append("failed-logins:");
+		builder.append(userId);
+		return builder.toString();
+	}
+	
+	/**
+	 * Returns the memcached key which, if present, means a user's account is
+	 * locked.
+	 */
+	static String getLockKey(int userId) {
+		final StringBuilder builder = new StringBuilder();
+		builder.append("lock-account:");
+		builder.append(userId);
+		return builder.toString();
+	}
+	
+	private final MemcachedClientIF memcached;
+	
+	public MemcachedThrottleStore(MemcachedClientIF memcached) {
+		this.memcached = memcached;
+	}
+	
+	@Override
+	public long increment(int userId, int delta, int ttl) {
+		final String key = getCounterKey(userId);
+		memcached.add(key, ttl, Integer.valueOf(0));
+		return memcached.incr(key, delta);
+	}
+	
+	@Override
+	public long getCount(int userId) {
+		// incr by 0 reads the count without a transcoder, and returns -1 if
+		// there isn't one
+		return Math.max(memcached.incr(getCounterKey(userId), 0), 0);
+	}
+	
+	@Override
+	public void clear(int userId) {
+		memcached.delete(getCounterKey(userId));
+	}
+	
+	@Override
+	public void lock(int userId, int duration) {
+		memcached.set(getLockKey(userId), duration, Integer.valueOf(duration));
+	}
+	
+	@Override
+	public boolean isLocked(int userId) {
+		return memcached.get(getLockKey(userId)) != null;
+	}
+	
+	@Override
+	public Future<Boolean> isLockedAsync(int userId) {
+		return new LockFuture(memcached.asyncGet(getLockKey(userId)));
+	}
+	
+	@Override
+	public boolean isAvailable() {
+		return !memcached.getStats().isEmpty();
+	}
+}
@@ -0,0 +1,126 @@
+package com.wesabe.bouncer.auth;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.SipHash;
+import com.wesabe.bouncer.util.TinyLfuCache;
+
+/**
+ * A bounded, expiring set of login names which recently matched no user, so
+ * that repeated attempts to log in as someone who doesn't exist (e.g.,
+ * credential stuffing) don't each cost a database query.
+ * <p>
+ * Logins are stored as 64-bit SipHash fingerprints under a random,
+ * per-process key, which keeps each entry small no matter how long the login
+ * is. A collision would wrongly reject a real user until the entry expires,
+ * so the fingerprints must be keyed: otherwise an attacker could fail to log
+ * in as a login which collides with a real user's and lock them out.
+ * 
+ * @author coda
+ */
+public class NegativeLookupCache {
+	private final TinyLfuCache<Long, Boolean> entries;
+	private final long ttl;
+	private final long k0, k1;
+	private final AtomicLong savedQueryCount = new AtomicLong();
+	
+	/**
+	 * Creates a new {@link NegativeLookupCache}.
+	 * 
+	 * @param maxSize the maximum number of logins to remember, or {@code 0}
+	 *                to disable the cache
+	 * @param ttl the number of seconds to remember a login for
+	 */
+	public NegativeLookupCache(int maxSize, int ttl) {
+		this(maxSize, ttl, Clock.system());
+	}
+	
+	/**
+	 * Creates a new {@link NegativeLookupCache}.
+	 * 
+	 * @param maxSize the maximum number of logins to remember, or {@code 0}
+	 *                to disable the cache
+	 * @param ttl the number of seconds to remember a login for
+	 * @param clock the {@link Clock} used to expire entries
+	 */
+	public NegativeLookupCache(int maxSize, int ttl, Clock clock) {
+		this.ttl = ttl * 1000L;
+		this.entries = new TinyLfuCache<Long, Boolean>(maxSize, this.ttl, clock);
+		
+		final SecureRandom random = new SecureRandom();
+		this.k0 = random.nextLong();
+		this.k1 = random.nextLong();
+	}
+	
+	/**
+	 * Returns {@code true} if {@code login} recently matched no user.
+	 * 
+	 * @param login a username or email address
+	 * @return whether or not {@code login} is known not to exist
+	 */
+	public boolean contains(String login) {
+		if (!isEnabled()) {
+			return false;
+		}
+		
+		if (entries.get(hash(login)) != null) {
+			savedQueryCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Records that {@code login} matched no user.
+	 * 
+	 * @param login a username or email address
+	 */
+	public void add(String login) {
+		if (isEnabled()) {
+			entries.put(hash(login), Boolean.TRUE);
+		}
+	}
+	
+	/**
+	 * Forgets that {@code login} matched no user (e.g., because someone has
+	 * just signed up with it).
+	 * 
+	 * @param login a username or email address
+	 */
+	public void invalidate(String login) {
+		entries.remove(hash(login));
+	}
+	
+	/**
+	 * Returns {@code true} if the cache will remember any logins.
+	 */
+	public boolean isEnabled() {
+		return (entries.getMaxWeight() > 0) && (ttl > 0);
+	}
+	
+	/**
+	 * Returns the number of logins currently remembered.
+	 */
+	public int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the number of database queries the cache has saved.
+	 */
+	public long getSavedQueryCount() {
+		return savedQueryCount.get();
+	}
+	
+	private Long hash(String login) {
+		final byte[] bytes = new byte[login.length() * 2];
+		for (int i = 0; i < login.length(); i++) {
+			final char c = login.charAt(i);
+			bytes[i * 2] = (byte) c;
+			bytes[i * 2 + 1] = (byte) (c >>> 8);
+		}
+		return Long.valueOf(SipHash.hash(k0, k1, bytes, 0, bytes.length));
+	}
+}
@@ -1,68 +1,124 @@
 package com.wesabe.bouncer.auth;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Map;
-
-import org.apache.commons.codec.binary.Hex;
-
-import com.wesabe.bouncer.util.BoundedLinkedHashMap;
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.OffHeapDigestStore;
 
 /**
  * A utility class to produce password hashes and account keys. Memoized for
  * speed.
- * 
+ * <p>
+ * Hashes are produced by the current thread's {@link DigestEngine}, and
+ * passwords are checked by comparing digests rather than their hex
+ * encodings, in constant time.
+ * <p>
+ * Password hashes and account keys are memoized in separate
+ * {@link HashCache}s, so that neither workload can evict the other's
+ * entries, and a salt and password can never be mistaken for a uid and
+ * password.
+ *
  * @author coda
  */
 public class PasswordHasher {
-	private static final String HASH_ALGORITHM = "SHA-256";
-	private final Map<String, String> cache = BoundedLinkedHashMap.create(1000);
+	private static final int DIGEST_LENGTH = DigestEngine.DIGEST_LENGTH;
+	private static final long DEFAULT_CACHE_BUDGET = 512 * 1024;
+	
+	private final HashCache passwordHashes, accountKeys;
+	
+	public PasswordHasher() {
+		this(DEFAULT_CACHE_BUDGET, 0);
+	}
+	
+	/**
+	 * Creates a new {@link PasswordHasher} whose caches split a budget
+	 * evenly and never expire hashes.
+	 *
+	 * @param cacheBudget the approximate number of bytes of heap memoized
+	 *                    hashes may take up, or {@code 0} to disable
+	 *                    memoization
+	 * @param offHeapDigests the number of memoized hashes each cache keeps
+	 *                       off the heap, or {@code 0} to keep them on the
+	 *                       heap
+	 */
+	public PasswordHasher(long cacheBudget, int offHeapDigests) {
+		this(new HashCache(cacheBudget / 2, 0, newOffHeapDigestStore(offHeapDigests), Clock.system()),
+			new HashCache(cacheBudget / 2, 0, newOffHeapDigestStore(offHeapDigests), Clock.system()));
+	}
+	
+	/**
+	 * Creates a new {@link PasswordHasher}.
+	 *
+	 * @param passwordHashes the cache of password hashes
+	 * @param accountKeys the cache of account keys
+	 */
+	public PasswordHasher(HashCache passwordHashes, HashCache accountKeys) {
+		this.passwordHashes = passwordHashes;
+		this.accountKeys = accountKeys;
+	}
 	
 	public String getPasswordHash(String password, String salt) {
-		StringBuilder builder = new StringBuilder();
-		builder.append(salt);
-		builder.append(password);
-		final String s = builder.toString();
-		final String cachedValue = cache.get(s);
-		if (cachedValue != null) {
-			return cachedValue;
-		}
-		
-		final String newHash = hash(s);
-		cache.put(s, newHash);
-		return newHash;
+		final DigestEngine engine = DigestEngine.get();
+		final byte[] digest = new byte[DIGEST_LENGTH];
+		passwordDigest(engine, password, salt, digest);
+		return engine.encode(digest);
+	}
+	
+	/**
+	 * Checks a password against a user's password hash.
+	 *
+	 * @param password the password
+	 * @param salt the user's salt
+	 * @param passwordDigest the user's decoded password hash
+	 * @return {@code true} if the password matches
+	 * @see DigestEngine#decode(String)
+	 */
+	public boolean checkPassword(String password, String salt, byte[] passwordDigest) {
+		final byte[] digest = new byte[DIGEST_LENGTH];
+		passwordDigest(DigestEngine.get(), password, salt, digest);
+		return DigestEngine.isEqual(digest, passwordDigest);
 	}
 	
 	public String getAccountKey(String uid, String password) {
-		StringBuilder builder = new StringBuilder();
-		builder.append(uid);
-		builder.append(password);
-		final String s = builder.toString();
-		
-		final String cachedValue = cache.get(s);
-		if (cachedValue != null) {
-			return cachedValue;
+		final DigestEngine engine = DigestEngine.get();
+		final byte[] digest = new byte[DIGEST_LENGTH];
+		engine.load(uid, password);
+		final HashCache.Key key = accountKeys.keyFor(engine);
+		if (!accountKeys.get(key, digest)) {
+			engine.digest(digest);
+			engine.digest(digest, password, digest);
+			accountKeys.put(key, digest);
 		}
-		
-		builder = new StringBuilder();
-		builder.append(hash(s));
-		builder.append(password);
-		
-		final String newHash = hash(builder.toString());
-		cache.put(s, newHash);
-		return newHash;
+		return engine.encode(digest);
 	}
-
-	private String hash(final String s) {
-		try {
-			MessageDigest sha = MessageDigest.getInstance(HASH_ALGORITHM);
-			return String.valueOf(Hex.encodeHex(sha.digest(s.getBytes())));
-		} catch (NoSuchAlgorithmException e) {
-			throw new IllegalStateException(e);
+	
+	private void passwordDigest(DigestEngine engine, String password, String salt, byte[] digest) {
+		engine.load(salt, password);
+		final HashCache.Key key = passwordHashes.keyFor(engine);
+		if (!passwordHashes.get(key, digest)) {
+			engine.digest(digest);
+			passwordHashes.put(key, digest);
 		}
 	}
 	
+	public HashCache getPasswordHashCache() {
+		return passwordHashes;
+	}
+	
+	public HashCache getAccountKeyCache() {
+		return accountKeys;
+	}
+	
 	public int getCachedValuesCount() {
-		return cache.size();
+		return passwordHashes.size() + accountKeys.size();
+	}
+	
+	/**
+	 * Returns the number of memoized hashes kept off the heap.
+	 */
+	public int getOffHeapDigestCount() {
+		return passwordHashes.getOffHeapCount() + accountKeys.getOffHeapCount();
+	}
+	
+	private static OffHeapDigestStore newOffHeapDigestStore(int digests) {
+		return (digests > 0) ? new OffHeapDigestStore(digests, DIGEST_LENGTH) : null;
 	}
 }
@@ -0,0 +1,90 @@
+package com.wesabe.bouncer.auth;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * A numbered secret used to sign and encrypt session tokens. Separate MAC and
+ * encryption keys are derived from the secret, so the same secret is never
+ * used for both.
+ * 
+ * @author coda
+ */
+public class SessionKey {
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final String CIPHER_ALGORITHM = "AES";
+	private static final int CIPHER_KEY_LENGTH = 16;
+	private static final int MIN_SECRET_LENGTH = 16;
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	
+	/**
+	 * Parses a key in the form {@code id:base64-secret}.
+	 * 
+	 * @param spec the key's ID and secret
+	 * @return a {@link SessionKey}
+	 * @throws IllegalArgumentException if {@code spec} is malformed
+	 */
+	public static SessionKey parse(String spec) {
+		final int separator = spec.indexOf(':');
+		if (separator <= 0) {
+			throw new IllegalArgumentException("Session keys must be in the form id:base64-secret");
+		}
+		
+		final int id = Integer.parseInt(spec.substring(0, separator).trim());
+		final byte[] secret = Base64.decodeBase64(spec.substring(separator + 1).trim().getBytes(US_ASCII));
+		return new SessionKey(id, secret);
+	}
+	
+	private final int id;
+	private final SecretKeySpec macKey, cipherKey;
+	
+	/**
+	 * Creates a new {@link SessionKey}.
+	 * 
+	 * @param id the key's ID, between 0 and 255
+	 * @param secret the key's secret, at least 16 bytes long
+	 */
+	public SessionKey(int id, byte[] secret) {
+		if ((id < 0) || (id > 255)) {
+			throw new IllegalArgumentException("Session key IDs must be between 0 and 255");
+		}
+		
+		if (secret.length < MIN_SECRET_LENGTH) {
+			throw new IllegalArgumentException("Session key secrets must be at least " + MIN_SECRET_LENGTH + " bytes long");
+		}
+		
+		this.id = id;
+		this.macKey = new SecretKeySpec(derive(secret, "bouncer-session-mac", 32), MAC_ALGORITHM);
+		this.cipherKey = new SecretKeySpec(derive(secret, "bouncer-session-cipher", CIPHER_KEY_LENGTH), CIPHER_ALGORITHM);
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	SecretKeySpec getMacKey() {
+		return macKey;
+	}
+	
+	SecretKeySpec getCipherKey() {
+		return cipherKey;
+	}
+	
+	private static byte[] derive(byte[] secret, String purpose, int length) {
+		try {
+			final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+			final byte[] derived = mac.doFinal(purpose.getBytes(US_ASCII));
+			final byte[] key = new byte[length];
+			System.arraycopy(derived, 0, key, 0, length);
+			return key;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
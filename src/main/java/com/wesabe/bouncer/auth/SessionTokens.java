@@ -0,0 +1,436 @@
+package com.wesabe.bouncer.auth;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.wesabe.bouncer.util.Clock;
+
+/**
+ * Issues and verifies short-lived session tokens, so that a user who has
+ * logged in once can be authenticated with a single MAC check instead of a
+ * database query, a memcached lookup, and password hashing.
+ * <p>
+ * A token carries the user's ID, the time it was issued, the revocation epoch
+ * it was issued in, and the user's account key, encrypted with AES-CBC. The
+ * whole thing is signed with HMAC-SHA256. Tokens name the {@link SessionKey}
+ * they were issued with: new tokens are always issued with the first key,
+ * but tokens issued with any of the keys are accepted, so keys can be rotated
+ * by adding a new key to the front of the list and dropping the old one once
+ * its tokens have expired.
+ * <p>
+ * Tokens are rejected once they expire, if the epoch has been bumped since
+ * they were issued (which revokes every token), or if their user has been
+ * revoked since they were issued. A user's revocation is remembered for as
+ * long as a token issued before it could still be valid, however many other
+ * users are revoked in the meantime.
+ * <p>
+ * Clients which don't keep cookies log in with their password on every
+ * request, so rather than minting a new token each time, the last token
+ * issued to each user is remembered and handed out again until it's half
+ * expired, as long as it would still be accepted. Recent tokens are kept in a
+ * fixed-size table indexed by user ID, and users whose slots collide just
+ * get new tokens.
+ * 
+ * @author coda
+ */
+public class SessionTokens {
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 1 + 1 + 4 + 4 + 8;
+	private static final int IV_LENGTH = 16;
+	private static final int MAC_LENGTH = 32;
+	private static final int MIN_CIPHERTEXT_LENGTH = 16;
+	private static final long MAX_CLOCK_SKEW = 60 * 1000;
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int RECENT_TOKEN_BITS = 12;
+	
+	/**
+	 * Returns a {@link SessionTokens} which never issues or accepts tokens.
+	 */
+	public static SessionTokens disabled() {
+		return new SessionTokens(Collections.<SessionKey>emptyList(), 0, 0, Clock.system());
+	}
+	
+	private final Map<Integer, SessionKey> keys = new HashMap<Integer, SessionKey>();
+	private final SessionKey currentKey;
+	private final AtomicInteger epoch;
+	private final long ttl;
+	private final Clock clock;
+	private final ConcurrentMap<Integer, Long> revocations = new ConcurrentHashMap<Integer, Long>();
+	private final Queue<Revocation> revocationOrder = new ConcurrentLinkedQueue<Revocation>();
+	private final SecureRandom random = new SecureRandom();
+	private final AtomicReferenceArray<IssuedToken> recentTokens = new AtomicReferenceArray<IssuedToken>(1 << RECENT_TOKEN_BITS);
+	private final AtomicLong issuedCount = new AtomicLong();
+	private final AtomicLong reissuedCount = new AtomicLong();
+	private final AtomicLong acceptedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				return Mac.getInstance(MAC_ALGORITHM);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+	private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance(CIPHER_ALGORITHM);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+	
+	/**
+	 * Creates a new {@link SessionTokens}.
+	 * 
+	 * @param keys the keys tokens may be issued with, newest first; if empty,
+	 *             no tokens are issued or accepted
+	 * @param epoch the current revocation epoch
+	 * @param ttl the number of seconds a token is valid for
+	 * @param clock the {@link Clock} used to expire tokens
+	 */
+	public SessionTokens(List<SessionKey> keys, int epoch, int ttl, Clock clock) {
+		for (SessionKey key : keys) {
+			if (this.keys.put(key.getId(), key) != null) {
+				throw new IllegalArgumentException("Duplicate session key ID: " + key.getId());
+			}
+		}
+		this.currentKey = keys.isEmpty() ? null : keys.get(0);
+		this.epoch = new AtomicInteger(epoch);
+		this.ttl = ttl * 1000L;
+		this.clock = clock;
+	}
+	
+	/**
+	 * Returns {@code true} if tokens will be issued and accepted.
+	 */
+	public boolean isEnabled() {
+		return (currentKey != null) && (ttl > 0);
+	}
+	
+	/**
+	 * Returns the number of seconds a token is valid for.
+	 */
+	public int getTTL() {
+		return (int) (ttl / 1000);
+	}
+	
+	/**
+	 * Issues a token for a set of verified credentials, or hands out the
+	 * token most recently issued for them if it's less than half expired.
+	 * 
+	 * @param credentials a set of verified credentials
+	 * @return a URL- and cookie-safe token
+	 */
+	public String issue(WesabeCredentials credentials) {
+		final long now = clock.getTime();
+		final int index = (credentials.getUserId() * 0x9E3779B9) >>> (32 - RECENT_TOKEN_BITS);
+		final IssuedToken recent = recentTokens.get(index);
+		if ((recent != null) && isReusable(recent, credentials, now)) {
+			reissuedCount.incrementAndGet();
+			return recent.token;
+		}
+		
+		final int currentEpoch = epoch.get();
+		final String token = issue(credentials, currentEpoch, now);
+		recentTokens.set(index, new IssuedToken(credentials, currentEpoch, now, token));
+		return token;
+	}
+	
+	private String issue(WesabeCredentials credentials, int currentEpoch, long now) {
+		try {
+			final byte[] iv = new byte[IV_LENGTH];
+			random.nextBytes(iv);
+			
+			final Cipher cipher = ciphers.get();
+			cipher.init(Cipher.ENCRYPT_MODE, currentKey.getCipherKey(), new IvParameterSpec(iv));
+			final byte[] ciphertext = cipher.doFinal(credentials.getAccountKey().getBytes(UTF_8));
+			
+			final ByteBuffer token = ByteBuffer.allocate(HEADER_LENGTH + IV_LENGTH + ciphertext.length + MAC_LENGTH);
+			token.put((byte) VERSION);
+			token.put((byte) currentKey.getId());
+			token.putInt(currentEpoch);
+			token.putInt(credentials.getUserId());
+			token.putLong(now);
+			token.put(iv);
+			token.put(ciphertext);
+			
+			final Mac mac = macs.get();
+			mac.init(currentKey.getMacKey());
+			mac.update(token.array(), 0, token.position());
+			token.put(mac.doFinal());
+			
+			issuedCount.incrementAndGet();
+			return encode(token.array());
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Verifies a token.
+	 * 
+	 * @param token a token returned by {@link #issue(WesabeCredentials)}
+	 * @return the credentials the token was issued for, or {@code null} if
+	 *         the token is invalid, expired, or revoked
+	 */
+	public WesabeCredentials verify(String token) {
+		if (!isEnabled() || (token == null)) {
+			return null;
+		}
+		
+		final WesabeCredentials credentials = decode(token);
+		if (credentials == null) {
+			rejectedCount.incrementAndGet();
+		} else {
+			acceptedCount.incrementAndGet();
+		}
+		return credentials;
+	}
+	
+	/**
+	 * Revokes all tokens issued to a user so far. Revocations are only kept
+	 * in memory, on this server, and are forgotten once every token they
+	 * revoked has expired.
+	 * 
+	 * @param userId the user's ID
+	 */
+	public void revoke(int userId) {
+		if (isEnabled()) {
+			final long now = clock.getTime();
+			expireRevocations(now);
+			revocations.put(userId, now);
+			revocationOrder.add(new Revocation(userId, now));
+		}
+	}
+	
+	/**
+	 * Returns the number of users whose revocations are remembered.
+	 */
+	public int getRevocationCount() {
+		return revocations.size();
+	}
+	
+	/**
+	 * Revokes all tokens issued so far by bumping the revocation epoch.
+	 * 
+	 * @return the new epoch
+	 */
+	public int revokeAll() {
+		return epoch.incrementAndGet();
+	}
+	
+	/**
+	 * Returns the current revocation epoch.
+	 */
+	public int getEpoch() {
+		return epoch.get();
+	}
+	
+	/**
+	 * Returns the number of tokens issued.
+	 */
+	public long getIssuedCount() {
+		return issuedCount.get();
+	}
+	
+	/**
+	 * Returns the number of times a recently issued token was handed out
+	 * again instead of a new one.
+	 */
+	public long getReissuedCount() {
+		return reissuedCount.get();
+	}
+	
+	/**
+	 * Returns the number of tokens accepted.
+	 */
+	public long getAcceptedCount() {
+		return acceptedCount.get();
+	}
+	
+	/**
+	 * Returns the number of tokens rejected.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+	
+	private WesabeCredentials decode(String encodedToken) {
+		final byte[] bytes = decodeBase64(encodedToken);
+		if ((bytes == null) || (bytes.length < (HEADER_LENGTH + IV_LENGTH + MIN_CIPHERTEXT_LENGTH + MAC_LENGTH))) {
+			return null;
+		}
+		
+		final ByteBuffer token = ByteBuffer.wrap(bytes);
+		if (token.get() != VERSION) {
+			return null;
+		}
+		
+		final SessionKey key = keys.get(token.get() & 0xff);
+		if (key == null) {
+			return null;
+		}
+		
+		try {
+			final int signedLength = bytes.length - MAC_LENGTH;
+			final Mac mac = macs.get();
+			mac.init(key.getMacKey());
+			mac.update(bytes, 0, signedLength);
+			if (!isEqual(mac.doFinal(), bytes, signedLength)) {
+				return null;
+			}
+			
+			final int tokenEpoch = token.getInt();
+			final int userId = token.getInt();
+			final long issuedAt = token.getLong();
+			final long now = clock.getTime();
+			if ((tokenEpoch != epoch.get()) || ((issuedAt + ttl) <= now) || (issuedAt > (now + MAX_CLOCK_SKEW))) {
+				return null;
+			}
+			
+			final Long revokedAt = revocations.get(userId);
+			if ((revokedAt != null) && (issuedAt <= revokedAt.longValue())) {
+				return null;
+			}
+			
+			final Cipher cipher = ciphers.get();
+			cipher.init(Cipher.DECRYPT_MODE, key.getCipherKey(), new IvParameterSpec(bytes, HEADER_LENGTH, IV_LENGTH));
+			final int ciphertextOffset = HEADER_LENGTH + IV_LENGTH;
+			final byte[] accountKey = cipher.doFinal(bytes, ciphertextOffset, signedLength - ciphertextOffset);
+			return new WesabeCredentials(userId, new String(accountKey, UTF_8));
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+	}
+	
+	/*
+	 * A recent token can be handed out again if it was issued to the same
+	 * credentials, in this epoch, and since the user was last revoked, and
+	 * it has at least half its life left.
+	 */
+	private boolean isReusable(IssuedToken recent, WesabeCredentials credentials, long now) {
+		if ((recent.userId != credentials.getUserId()) || (recent.epoch != epoch.get())
+				|| (recent.issuedAt > now) || ((now - recent.issuedAt) >= (ttl / 2))
+				|| !recent.accountKey.equals(credentials.getAccountKey())) {
+			return false;
+		}
+		
+		final Long revokedAt = revocations.get(recent.userId);
+		return (revokedAt == null) || (recent.issuedAt > revokedAt.longValue());
+	}
+	
+	/*
+	 * Revocations are queued in the order they were made, so the expired ones
+	 * are always at the head. A user revoked again since keeps their newer
+	 * revocation.
+	 */
+	private void expireRevocations(long now) {
+		Revocation oldest;
+		while (((oldest = revocationOrder.peek()) != null) && ((oldest.revokedAt + ttl) <= now)) {
+			if (revocationOrder.remove(oldest)) {
+				revocations.remove(oldest.userId, oldest.revokedAt);
+			}
+		}
+	}
+	
+	private static boolean isEqual(byte[] expected, byte[] actual, int offset) {
+		int difference = 0;
+		for (int i = 0; i < expected.length; i++) {
+			difference |= expected[i] ^ actual[offset + i];
+		}
+		return difference == 0;
+	}
+	
+	private static String encode(byte[] bytes) {
+		final char[] encoded = new String(Base64.encodeBase64(bytes), UTF_8).toCharArray();
+		int length = encoded.length;
+		while ((length > 0) && (encoded[length - 1] == '=')) {
+			length--;
+		}
+		
+		for (int i = 0; i < length; i++) {
+			if (encoded[i] == '+') {
+				encoded[i] = '-';
+			} else if (encoded[i] == '/') {
+				encoded[i] = '_';
+			}
+		}
+		return new String(encoded, 0, length);
+	}
+	
+	private static byte[] decodeBase64(String token) {
+		if ((token.length() % 4) == 1) {
+			return null;
+		}
+		
+		final byte[] encoded = new byte[(token.length() + 3) & ~3];
+		for (int i = 0; i < token.length(); i++) {
+			final char c = token.charAt(i);
+			if (((c >= 'A') && (c <= 'Z')) || ((c >= 'a') && (c <= 'z')) || ((c >= '0') && (c <= '9'))) {
+				encoded[i] = (byte) c;
+			} else if (c == '-') {
+				encoded[i] = '+';
+			} else if (c == '_') {
+				encoded[i] = '/';
+			} else {
+				return null;
+			}
+		}
+		
+		for (int i = token.length(); i < encoded.length; i++) {
+			encoded[i] = '=';
+		}
+		return Base64.decodeBase64(encoded);
+	}
+	
+	private static final class IssuedToken {
+		private final int userId, epoch;
+		private final String accountKey;
+		private final long issuedAt;
+		private final String token;
+		
+		public IssuedToken(WesabeCredentials credentials, int epoch, long issuedAt, String token) {
+			this.userId = credentials.getUserId();
+			this.accountKey = credentials.getAccountKey();
+			this.epoch = epoch;
+			this.issuedAt = issuedAt;
+			this.token = token;
+		}
+	}
+	
+	private static final class Revocation {
+		private final int userId;
+		private final long revokedAt;
+		
+		public Revocation(int userId, long revokedAt) {
+			this.userId = userId;
+			this.revokedAt = revokedAt;
+		}
+	}
+}
@@ -0,0 +1,599 @@
+package com.wesabe.bouncer.auth;
+
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import com.wesabe.bouncer.stats.Gauge;
+import com.wesabe.bouncer.stats.StatsRegistry;
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.NamedThreadFactory;
+import com.wesabe.bouncer.util.SipHash;
+
+/**
+ * A {@link UserStore} which keeps every active and pending user in memory.
+ * <p>
+ * The snapshot is loaded in bulk, then refreshed in the background with just
+ * the users whose records have changed since the last refresh. Lookups of
+ * users who aren't in the snapshot (e.g., because they signed up since the
+ * last refresh) are passed on to another store, so the snapshot can only be
+ * out of date for users who have been deactivated or have changed their
+ * password, and only for up to the refresh interval.
+ * <p>
+ * Records are appended to a single {@code char} pool with an array of
+ * offsets. Usernames and email addresses are indexed by keyed SipHash
+ * fingerprints of their lower-cased characters, in open-addressed tables of
+ * record indexes, and a login is only resolved to a record if it matches
+ * the username or email address stored in the record. A colliding login is
+ * passed on to the fallback store rather than resolved to someone else's
+ * record. A single refresh thread writes to the snapshot while any number
+ * of threads read it without locking: records are never modified once
+ * they're written, a changed user's new record is appended and the tables
+ * pointed at it, and the pool is compacted by a full reload once more than
+ * half of it is garbage. Readers look a login up in a table before they read
+ * the records, since a record may be appended to a larger copy of the
+ * records than the one they'd otherwise have read.
+ * <p>
+ * Refreshes ask for every user updated at or after the last update they've
+ * seen, since several users may share that timestamp, so records which are
+ * unchanged since they were loaded are skipped rather than appended again.
+ * <p>
+ * When several users share a login, the full load prefers whoever logged in
+ * most recently, as the database query does, but a refresh prefers whoever
+ * changed most recently.
+ * 
+ * @author coda
+ */
+public class SnapshotUserStore implements UserStore {
+	private static final Logger LOGGER = Logger.getLogger(SnapshotUserStore.class.getCanonicalName());
+	private static final String COLUMNS = "SELECT id, uid, salt, password_hash, username, email, status, updated_at ";
+	private static final String ALL_USERS_SQL =
+		COLUMNS +
+		"FROM users " +
+		"WHERE status IN (0, 6) " + // 0 is ACTIVE, 6 is PENDING
+		"ORDER BY last_web_login";
+	private static final String UPDATED_USERS_SQL =
+		COLUMNS +
+		"FROM users " +
+		"WHERE updated_at >= ? " +
+		"ORDER BY updated_at";
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int FIELDS = 5; // uid, salt, password hash, username, and email
+	private static final int USERNAME = 3;
+	private static final int EMAIL = 4;
+	private static final int ABSENT = -1;
+	
+	/**
+	 * An open-addressed table from non-zero {@code long} keys to record
+	 * indexes, which a single writer can add to and remove from while other
+	 * threads read it. Removed entries keep their keys until the table is
+	 * grown.
+	 */
+	private static class Table {
+		private final AtomicLongArray keys;
+		private final AtomicIntegerArray values;
+		private final int mask;
+		private int used;
+		
+		public Table(int capacity) {
+			this.keys = new AtomicLongArray(capacity);
+			this.values = new AtomicIntegerArray(capacity);
+			this.mask = capacity - 1;
+		}
+		
+		public int get(long key) {
+			int i = getStart(key);
+			while (true) {
+				final long k = keys.get(i);
+				if (k == key) {
+					return values.get(i);
+				} else if (k == 0) {
+					return ABSENT;
+				}
+				i = (i + 1) & mask;
+			}
+		}
+		
+		/**
+		 * Maps a key to a value, returning either this table or, if it was
+		 * full, a larger copy of it which holds the new entry.
+		 */
+		public Table put(long key, int value) {
+			if (((used + 1) * 2) > keys.length()) {
+				final Table table = new Table(keys.length() * 2);
+				for (int i = 0; i < keys.length(); i++) {
+					final long k = keys.get(i);
+					final int v = values.get(i);
+					if ((k != 0) && (v != ABSENT)) {
+						table.put(k, v);
+					}
+				}
+				return table.put(key, value);
+			}
+			
+			int i = getStart(key);
+			while (true) {
+				final long k = keys.get(i);
+				if (k == key) {
+					values.set(i, value);
+					return this;
+				} else if (k == 0) {
+					// readers which see the key must see its value
+					values.set(i, value);
+					keys.set(i, key);
+					used++;
+					return this;
+				}
+				i = (i + 1) & mask;
+			}
+		}
+		
+		/**
+		 * Removes a key if it still maps to a value.
+		 */
+		public void remove(long key, int value) {
+			int i = getStart(key);
+			while (true) {
+				final long k = keys.get(i);
+				if (k == key) {
+					if (values.get(i) == value) {
+						values.set(i, ABSENT);
+					}
+					return;
+				} else if (k == 0) {
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+		}
+		
+		private int getStart(long key) {
+			return ((int) (key ^ (key >>> 32)) * 0x9E3779B9) & mask;
+		}
+	}
+	
+	/**
+	 * Users' records, appended by a single writer. Only the writer reads
+	 * {@code count} and {@code size}; readers only read records whose indexes
+	 * they've found in a {@link Table}.
+	 */
+	private static class Records {
+		private final int[] userIds;
+		private final int[] bounds;
+		private final long[] usernames, emails, updatedAts;
+		private final char[] chars;
+		private int count, size;
+		
+		public Records(int capacity, int charCapacity) {
+			this.userIds = new int[capacity];
+			this.bounds = new int[(capacity * FIELDS) + 1];
+			this.usernames = new long[capacity];
+			this.emails = new long[capacity];
+			this.updatedAts = new long[capacity];
+			this.chars = new char[charCapacity];
+		}
+		
+		public boolean hasRoom(int length) {
+			return (count < userIds.length) && ((size + length) <= chars.length);
+		}
+		
+		public Records grow(int length) {
+			final Records records = new Records(
+					userIds.length * 2,
+					Math.max(chars.length * 2, size + length)
+			);
+			System.arraycopy(userIds, 0, records.userIds, 0, count);
+			System.arraycopy(bounds, 0, records.bounds, 0, (count * FIELDS) + 1);
+			System.arraycopy(usernames, 0, records.usernames, 0, count);
+			System.arraycopy(emails, 0, records.emails, 0, count);
+			System.arraycopy(updatedAts, 0, records.updatedAts, 0, count);
+			System.arraycopy(chars, 0, records.chars, 0, size);
+			records.count = count;
+			records.size = size;
+			return records;
+		}
+		
+		public int append(int userId, long updatedAt, String uid, String salt, String passwordHash,
+				String username, long usernameHash, String email, long emailHash) {
+			final int index = count;
+			int base = index * FIELDS;
+			userIds[index] = userId;
+			updatedAts[index] = updatedAt;
+			usernames[index] = usernameHash;
+			emails[index] = emailHash;
+			bounds[base++] = size;
+			size = copy(uid, size);
+			bounds[base++] = size;
+			size = copy(salt, size);
+			bounds[base++] = size;
+			size = copy(passwordHash, size);
+			bounds[base++] = size;
+			size = copy(username, size);
+			bounds[base++] = size;
+			size = copy(email, size);
+			bounds[base] = size;
+			count++;
+			return index;
+		}
+		
+		/**
+		 * Returns {@code true} if a record's username or email address is
+		 * {@code login}, ignoring case.
+		 */
+		public boolean matches(int index, int field, String login) {
+			final int base = (index * FIELDS) + field;
+			final int start = bounds[base];
+			if ((bounds[base + 1] - start) != login.length()) {
+				return false;
+			}
+			for (int i = 0; i < login.length(); i++) {
+				if (Character.toLowerCase(chars[start + i]) != Character.toLowerCase(login.charAt(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Returns {@code true} if a record was last updated at
+		 * {@code updatedAt} and holds exactly the given fields.
+		 */
+		public boolean isUnchanged(int index, long updatedAt, String uid, String salt,
+				String passwordHash, String username, String email) {
+			final int base = index * FIELDS;
+			return (updatedAts[index] == updatedAt) && isField(base, uid)
+					&& isField(base + 1, salt) && isField(base + 2, passwordHash)
+					&& isField(base + USERNAME, username) && isField(base + EMAIL, email);
+		}
+		
+		public UserRecord get(int index) {
+			final int base = index * FIELDS;
+			return new UserRecord(
+					userIds[index],
+					getField(base),
+					getField(base + 1),
+					getField(base + 2)
+			);
+		}
+		
+		private String getField(int field) {
+			return new String(chars, bounds[field], bounds[field + 1] - bounds[field]);
+		}
+		
+		private boolean isField(int field, String s) {
+			final int start = bounds[field];
+			if ((bounds[field + 1] - start) != s.length()) {
+				return false;
+			}
+			for (int i = 0; i < s.length(); i++) {
+				if (chars[start + i] != s.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private int copy(String s, int offset) {
+			s.getChars(0, s.length(), chars, offset);
+			return offset + s.length();
+		}
+	}
+	
+	/**
+	 * A snapshot of the users table. The tables and records are replaced as
+	 * they grow, so readers must find an index in a table before reading the
+	 * records it indexes.
+	 */
+	private static class Snapshot {
+		private volatile Table usernames = new Table(INITIAL_CAPACITY);
+		private volatile Table emails = new Table(INITIAL_CAPACITY);
+		private volatile Records records = new Records(INITIAL_CAPACITY, INITIAL_CAPACITY * 64);
+		private Table userIds = new Table(INITIAL_CAPACITY);
+		private int garbage;
+		private Timestamp lastUpdatedAt;
+		private long loadedAt;
+		
+		public int size() {
+			return records.count - garbage;
+		}
+	}
+	
+	private final DataSource dataSource;
+	private final UserStore fallback;
+	private final long refreshInterval;
+	private final Clock clock;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final long k0, k1;
+	private volatile Snapshot snapshot;
+	private ScheduledExecutorService refresher;
+	
+	/**
+	 * Creates a new {@link SnapshotUserStore}.
+	 * 
+	 * @param dataSource the PFC database
+	 * @param fallback the {@link UserStore} to look up users who aren't in
+	 *                 the snapshot
+	 * @param refreshInterval the number of milliseconds between refreshes
+	 * @param clock the {@link Clock} used to measure the snapshot's age
+	 * @param stats the registry to record statistics in
+	 */
+	public SnapshotUserStore(DataSource dataSource, UserStore fallback, long refreshInterval,
+			Clock clock, StatsRegistry stats) {
+		this.dataSource = dataSource;
+		this.fallback = fallback;
+		this.refreshInterval = refreshInterval;
+		this.clock = clock;
+		
+		final SecureRandom random = new SecureRandom();
+		this.k0 = random.nextLong();
+		this.k1 = random.nextLong();
+		
+		stats.gauge("auth.snapshot.users", new Gauge() {
+			@Override
+			public long getValue() {
+				return size();
+			}
+		});
+		stats.gauge("auth.snapshot.hits", new Gauge() {
+			@Override
+			public long getValue() {
+				return hitCount.get();
+			}
+		});
+		stats.gauge("auth.snapshot.misses", new Gauge() {
+			@Override
+			public long getValue() {
+				return missCount.get();
+			}
+		});
+		stats.gauge("auth.snapshot.age", new Gauge() {
+			@Override
+			public long getValue() {
+				return getAge();
+			}
+		});
+	}
+	
+	/**
+	 * Loads the snapshot and starts refreshing it in the background. If the
+	 * snapshot can't be loaded, every lookup is passed on to the fallback
+	 * store until a refresh succeeds.
+	 */
+	public synchronized void start() {
+		refresh();
+		if (refresher == null) {
+			this.refresher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("bouncer-user-snapshot"));
+			refresher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					refresh();
+				}
+			}, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Stops refreshing the snapshot.
+	 */
+	public synchronized void stop() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			this.refresher = null;
+		}
+	}
+	
+	@Override
+	public UserRecord findUser(String login) throws SQLException {
+		final UserRecord user = findLoadedUser(login);
+		if (user != null) {
+			hitCount.incrementAndGet();
+			return user;
+		}
+		
+		missCount.incrementAndGet();
+		return fallback.findUser(login);
+	}
+	
+	/**
+	 * Brings the snapshot up to date, reloading it entirely if it hasn't been
+	 * loaded yet or is mostly garbage.
+	 * 
+	 * @return {@code true} if the snapshot was refreshed
+	 */
+	public synchronized boolean refresh() {
+		final Snapshot current = snapshot;
+		try {
+			if ((current == null) || (current.lastUpdatedAt == null)
+					|| (current.garbage > current.size())) {
+				final Snapshot loaded = new Snapshot();
+				load(loaded, ALL_USERS_SQL, null);
+				this.snapshot = loaded;
+			} else {
+				load(current, UPDATED_USERS_SQL, current.lastUpdatedAt);
+			}
+			return true;
+		} catch (SQLException e) {
+			LOGGER.log(Level.WARNING, "Unable to refresh the user snapshot", e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns the number of users in the snapshot.
+	 */
+	public int size() {
+		final Snapshot current = snapshot;
+		return (current == null) ? 0 : current.size();
+	}
+	
+	/**
+	 * Returns the number of milliseconds since the snapshot was last
+	 * refreshed, or {@code -1} if it's never been loaded.
+	 */
+	public long getAge() {
+		final Snapshot current = snapshot;
+		return (current == null) ? -1 : (clock.getTime() - current.loadedAt);
+	}
+	
+	public long getHitCount() {
+		return hitCount.get();
+	}
+	
+	public long getMissCount() {
+		return missCount.get();
+	}
+	
+	private UserRecord findLoadedUser(String login) {
+		final Snapshot current = snapshot;
+		if (current == null) {
+			return null;
+		}
+		
+		// the same order as JdbcUserStore: email addresses first, then
+		// usernames
+		final long hash = fingerprint(login);
+		if (login.indexOf('@') >= 0) {
+			final UserRecord user = findLoadedUser(current, current.emails.get(hash), EMAIL, login);
+			if (user != null) {
+				return user;
+			}
+		}
+		return findLoadedUser(current, current.usernames.get(hash), USERNAME, login);
+	}
+	
+	/*
+	 * The records are read only once the index has been found, since they may
+	 * have grown to hold it in the meantime.
+	 */
+	private UserRecord findLoadedUser(Snapshot current, int index, int field, String login) {
+		if (index == ABSENT) {
+			return null;
+		}
+		
+		final Records records = current.records;
+		if (records.matches(index, field, login)) {
+			return records.get(index);
+		}
+		return null;
+	}
+	
+	private void load(Snapshot target, String sql, Timestamp since) throws SQLException {
+		final long loadedAt = clock.getTime();
+		final Connection connection = dataSource.getConnection();
+		try {
+			final PreparedStatement statement = connection.prepareStatement(
+					sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try {
+				// tells MySQL's driver to stream rows instead of buffering them
+				statement.setFetchSize(Integer.MIN_VALUE);
+				if (since != null) {
+					statement.setTimestamp(1, since);
+				}
+				final ResultSet resultSet = statement.executeQuery();
+				try {
+					while (resultSet.next()) {
+						apply(target, resultSet);
+					}
+				} finally {
+					resultSet.close();
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+		target.loadedAt = loadedAt;
+	}
+	
+	private void apply(Snapshot target, ResultSet resultSet) throws SQLException {
+		final int userId = resultSet.getInt("id");
+		final String uid = resultSet.getString("uid");
+		final String salt = resultSet.getString("salt");
+		final String passwordHash = resultSet.getString("password_hash");
+		final String username = resultSet.getString("username");
+		final String email = resultSet.getString("email");
+		final int status = resultSet.getInt("status");
+		final Timestamp updatedAt = resultSet.getTimestamp("updated_at");
+		if ((updatedAt != null)
+				&& ((target.lastUpdatedAt == null) || updatedAt.after(target.lastUpdatedAt))) {
+			target.lastUpdatedAt = updatedAt;
+		}
+		
+		// users without a password can't be checked here, so they're left to
+		// the fallback store
+		final boolean loadable = ((status == 0) || (status == 6))
+				&& (uid != null) && (salt != null) && (passwordHash != null);
+		final String storedUsername = (username == null) ? "" : username;
+		final String storedEmail = (email == null) ? "" : email;
+		final long updatedAtTime = (updatedAt == null) ? 0 : updatedAt.getTime();
+		final long idKey = (userId & 0xFFFFFFFFL) | (1L << 32);
+		final int previous = target.userIds.get(idKey);
+		if (previous != ABSENT) {
+			// the rows updated at the last refresh's timestamp come back again
+			if (loadable && target.records.isUnchanged(previous, updatedAtTime, uid, salt,
+					passwordHash, storedUsername, storedEmail)) {
+				return;
+			}
+			
+			final Records records = target.records;
+			target.usernames.remove(records.usernames[previous], previous);
+			target.emails.remove(records.emails[previous], previous);
+			target.userIds.remove(idKey, previous);
+			target.garbage++;
+		}
+		
+		if (!loadable) {
+			return;
+		}
+		
+		final long usernameHash = (username == null) ? 0 : fingerprint(username);
+		final long emailHash = (email == null) ? 0 : fingerprint(email);
+		final int length = uid.length() + salt.length() + passwordHash.length()
+				+ storedUsername.length() + storedEmail.length();
+		if (!target.records.hasRoom(length)) {
+			target.records = target.records.grow(length);
+		}
+		final int index = target.records.append(userId, updatedAtTime, uid, salt, passwordHash,
+				storedUsername, usernameHash, storedEmail, emailHash);
+		target.userIds = target.userIds.put(idKey, index);
+		if (usernameHash != 0) {
+			target.usernames = target.usernames.put(usernameHash, index);
+		}
+		if (emailHash != 0) {
+			target.emails = target.emails.put(emailHash, index);
+		}
+	}
+	
+	/**
+	 * Returns the keyed SipHash fingerprint of a login's lower-cased
+	 * characters, which is never {@code 0}.
+	 * 
+	 * @param login a username or email address
+	 * @return the login's fingerprint
+	 */
+	protected long fingerprint(String login) {
+		final byte[] bytes = new byte[login.length() * 2];
+		for (int i = 0; i < login.length(); i++) {
+			final char c = Character.toLowerCase(login.charAt(i));
+			bytes[i * 2] = (byte) c;
+			bytes[i * 2 + 1] = (byte) (c >>> 8);
+		}
+		final long hash = SipHash.hash(k0, k1, bytes, 0, bytes.length);
+		return (hash == 0) ? 1 : hash;
+	}
+}
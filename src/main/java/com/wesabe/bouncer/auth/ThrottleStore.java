@@ -0,0 +1,54 @@
+package com.wesabe.bouncer.auth;
+
+import java.util.concurrent.Future;
+
+/**
+ * Stores users' failed login counts and account locks.
+ * 
+ * @author coda
+ */
+public interface ThrottleStore {
+	/**
+	 * Adds to a user's failed login count, creating it if it doesn't exist.
+	 * 
+	 * @param userId the user's ID
+	 * @param delta the number of failed logins to add
+	 * @param ttl the number of seconds a new count is kept for
+	 * @return the user's new failed login count
+	 */
+	public abstract long increment(int userId, int delta, int ttl);
+	
+	/**
+	 * Returns a user's failed login count, or {@code 0} if they have none.
+	 */
+	public abstract long getCount(int userId);
+	
+	/**
+	 * Clears a user's failed login count.
+	 */
+	public abstract void clear(int userId);
+	
+	/**
+	 * Locks a user's account.
+	 * 
+	 * @param userId the user's ID
+	 * @param duration the number of seconds to lock the account for
+	 */
+	public abstract void lock(int userId, int duration);
+	
+	/**
+	 * Returns {@code true} if a user's account is locked.
+	 */
+	public abstract boolean isLocked(int userId);
+	
+	/**
+	 * Starts checking whether a user's account is locked, so the answer can
+	 * be waited for later.
+	 */
+	public abstract Future<Boolean> isLockedAsync(int userId);
+	
+	/**
+	 * Returns {@code true} if the store can be used.
+	 */
+	public abstract boolean isAvailable();
+}
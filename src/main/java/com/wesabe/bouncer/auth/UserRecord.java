@@ -0,0 +1,36 @@
+package com.wesabe.bouncer.auth;
+
+/**
+ * The parts of a user's record needed to check their password.
+ * 
+ * @author coda
+ */
+public class UserRecord {
+	final int userId;
+	final String uid, salt, passwordHash;
+	final byte[] passwordDigest;
+	
+	public UserRecord(int userId, String uid, String salt, String passwordHash) {
+		this.userId = userId;
+		this.uid = uid;
+		this.salt = salt;
+		this.passwordHash = passwordHash;
+		this.passwordDigest = DigestEngine.decode(passwordHash);
+	}
+	
+	public int getUserId() {
+		return userId;
+	}
+	
+	public String getUid() {
+		return uid;
+	}
+	
+	public String getSalt() {
+		return salt;
+	}
+	
+	public String getPasswordHash() {
+		return passwordHash;
+	}
+}
@@ -0,0 +1,20 @@
+package com.wesabe.bouncer.auth;
+
+import java.sql.SQLException;
+
+/**
+ * A source of active and pending users' records.
+ * 
+ * @author coda
+ */
+public interface UserStore {
+	/**
+	 * Finds the user with a given username or email address.
+	 * 
+	 * @param login a username or email address
+	 * @return the user's record, or {@code null} if no active or pending user
+	 *         has that login
+	 * @throws SQLException if the user database can't be queried
+	 */
+	public abstract UserRecord findUser(String login) throws SQLException;
+}
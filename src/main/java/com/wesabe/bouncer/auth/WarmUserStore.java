@@ -0,0 +1,263 @@
+package com.wesabe.bouncer.auth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import com.wesabe.bouncer.stats.Gauge;
+import com.wesabe.bouncer.stats.StatsRegistry;
+import com.wesabe.bouncer.util.BoundedLinkedHashMap;
+import com.wesabe.bouncer.util.Clock;
+
+/**
+ * A {@link UserStore} which is preloaded at startup with the records of the
+ * users who most recently logged in, so that a freshly-started bouncer
+ * doesn't send every one of them to the database at once.
+ * <p>
+ * Warming up reads users in batches, most recent login first, and stops
+ * once it has loaded the maximum number of users or run out of time. The
+ * preloaded records are only used until they expire, after which every
+ * lookup is passed on to another store, so a deactivated user or changed
+ * password can only go unnoticed for the first few minutes after startup.
+ *
+ * @author coda
+ */
+public class WarmUserStore implements UserStore {
+	private static final Logger LOGGER = Logger.getLogger(WarmUserStore.class.getCanonicalName());
+	private static final String COLUMNS = "SELECT id, uid, salt, password_hash, username, email, last_web_login ";
+	private static final String FIRST_BATCH_SQL =
+		COLUMNS +
+		"FROM users " +
+		"WHERE status IN (0, 6) AND last_web_login IS NOT NULL " + // 0 is ACTIVE, 6 is PENDING
+		"ORDER BY last_web_login DESC, id DESC " +
+		"LIMIT ?";
+	private static final String NEXT_BATCH_SQL =
+		COLUMNS +
+		"FROM users " +
+		"WHERE status IN (0, 6) AND last_web_login IS NOT NULL " + // 0 is ACTIVE, 6 is PENDING
+		"AND (last_web_login < ? OR (last_web_login = ? AND id < ?)) " +
+		"ORDER BY last_web_login DESC, id DESC " +
+		"LIMIT ?";
+
+	private final DataSource dataSource;
+	private final UserStore fallback;
+	private final int maxUsers;
+	private final long ttl;
+	private final Clock clock;
+	private final BoundedLinkedHashMap<String, UserRecord> usernames, emails;
+	private final AtomicLong hitCount = new AtomicLong();
+	private volatile boolean warm;
+	private volatile long expiresAt;
+	private volatile long duration = -1;
+	private volatile int loadedCount;
+
+	/**
+	 * Creates a new {@link WarmUserStore}.
+	 *
+	 * @param dataSource the PFC database
+	 * @param fallback the {@link UserStore} to look up users who weren't
+	 *                 preloaded, and everyone once the preloaded users expire
+	 * @param maxUsers the maximum number of users to preload
+	 * @param ttl the number of milliseconds preloaded users are used for
+	 * @param clock the {@link Clock} used to time warming up and expiry
+	 * @param stats the registry to record statistics in
+	 */
+	public WarmUserStore(DataSource dataSource, UserStore fallback, int maxUsers, long ttl,
+			Clock clock, StatsRegistry stats) {
+		this.dataSource = dataSource;
+		this.fallback = fallback;
+		this.maxUsers = maxUsers;
+		this.ttl = ttl;
+		this.clock = clock;
+		this.usernames = BoundedLinkedHashMap.create(maxUsers);
+		this.emails = BoundedLinkedHashMap.create(maxUsers);
+
+		stats.gauge("auth.warmup.users", new Gauge() {
+			@Override
+			public long getValue() {
+				return loadedCount;
+			}
+		});
+		stats.gauge("auth.warmup.duration", new Gauge() {
+			@Override
+			public long getValue() {
+				return duration;
+			}
+		});
+		stats.gauge("auth.warmup.hits", new Gauge() {
+			@Override
+			public long getValue() {
+				return hitCount.get();
+			}
+		});
+	}
+
+	/**
+	 * Preloads the users who most recently logged in. If the database can't
+	 * be read, whatever was loaded before the error is kept.
+	 *
+	 * @param batchSize the number of users to read per query
+	 * @param timeLimit the maximum number of milliseconds to spend
+	 * @return the number of users loaded
+	 */
+	public synchronized int warm(int batchSize, long timeLimit) {
+		final long startedAt = clock.getTime();
+		final long deadline = startedAt + timeLimit;
+		int count = 0;
+		try {
+			final Connection connection = dataSource.getConnection();
+			try {
+				Timestamp lastLogin = null;
+				int lastUserId = 0;
+				while ((count < maxUsers) && (clock.getTime() < deadline)) {
+					final int limit = Math.min(batchSize, maxUsers - count);
+					final PreparedStatement statement;
+					if (lastLogin == null) {
+						statement = connection.prepareStatement(FIRST_BATCH_SQL);
+						statement.setInt(1, limit);
+					} else {
+						statement = connection.prepareStatement(NEXT_BATCH_SQL);
+						statement.setTimestamp(1, lastLogin);
+						statement.setTimestamp(2, lastLogin);
+						statement.setInt(3, lastUserId);
+						statement.setInt(4, limit);
+					}
+
+					int read = 0;
+					try {
+						statement.setQueryTimeout((int) Math.max(1, (deadline - clock.getTime() + 999) / 1000));
+						final ResultSet resultSet = statement.executeQuery();
+						try {
+							while (resultSet.next()) {
+								read++;
+								lastUserId = resultSet.getInt("id");
+								lastLogin = resultSet.getTimestamp("last_web_login");
+								if (load(resultSet, lastUserId)) {
+									count++;
+								}
+							}
+						} finally {
+							resultSet.close();
+						}
+					} finally {
+						statement.close();
+					}
+
+					if (read < limit) {
+						break;
+					}
+				}
+			} finally {
+				connection.close();
+			}
+		} catch (SQLException e) {
+			LOGGER.log(Level.WARNING, "Unable to finish warming up the user cache", e);
+		}
+
+		final long finishedAt = clock.getTime();
+		this.duration = finishedAt - startedAt;
+		this.loadedCount = count;
+		this.expiresAt = finishedAt + ttl;
+		this.warm = count > 0;
+		LOGGER.info("Warmed up " + count + " users in " + duration + "ms");
+		return count;
+	}
+
+	@Override
+	public UserRecord findUser(String login) throws SQLException {
+		if (warm) {
+			final UserRecord user = findWarmUser(login);
+			if (user != null) {
+				hitCount.incrementAndGet();
+				return user;
+			}
+		}
+		return fallback.findUser(login);
+	}
+
+	/**
+	 * Returns the number of users loaded by the last warmup.
+	 */
+	public int getLoadedCount() {
+		return loadedCount;
+	}
+
+	/**
+	 * Returns the number of milliseconds the last warmup took, or {@code -1}
+	 * if it hasn't warmed up.
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Returns {@code true} if preloaded users are still being used.
+	 */
+	public boolean isWarm() {
+		return warm;
+	}
+
+	private UserRecord findWarmUser(String login) {
+		if (clock.getTime() >= expiresAt) {
+			this.warm = false;
+			usernames.clear();
+			emails.clear();
+			return null;
+		}
+
+		// the same order as JdbcUserStore: email addresses first, then
+		// usernames
+		final String key = login.toLowerCase(Locale.ENGLISH);
+		if (key.indexOf('@') >= 0) {
+			final UserRecord user = emails.get(key);
+			if (user != null) {
+				return user;
+			}
+		}
+		return usernames.get(key);
+	}
+
+	/*
+	 * Users are read in order of their last login, so a login shared by
+	 * several users goes to whoever logged in most recently, as it does in
+	 * the database query.
+	 */
+	private boolean load(ResultSet resultSet, int userId) throws SQLException {
+		final String uid = resultSet.getString("uid");
+		final String salt = resultSet.getString("salt");
+		final String passwordHash = resultSet.getString("password_hash");
+		if ((uid == null) || (salt == null) || (passwordHash == null)) {
+			return false;
+		}
+
+		final UserRecord user = new UserRecord(userId, uid, salt, passwordHash);
+		final String username = resultSet.getString("username");
+		if (username != null) {
+			putIfAbsent(usernames, username, user);
+		}
+		final String email = resultSet.getString("email");
+		if (email != null) {
+			putIfAbsent(emails, email, user);
+		}
+		return true;
+	}
+
+	private void putIfAbsent(BoundedLinkedHashMap<String, UserRecord> map, String login, UserRecord user) {
+		final String key = login.toLowerCase(Locale.ENGLISH);
+		if (!map.containsKey(key)) {
+			map.put(key, user);
+		}
+	}
+}
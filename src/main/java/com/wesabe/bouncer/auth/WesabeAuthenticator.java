@@ -1,21 +1,25 @@
 package com.wesabe.bouncer.auth;
 
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.sql.DataSource;
 
 import net.spy.memcached.MemcachedClientIF;
 
-import org.apache.commons.codec.binary.Base64;
 import org.eclipse.jetty.http.HttpHeaders;
 import org.eclipse.jetty.http.security.Constraint;
 import org.eclipse.jetty.security.ServerAuthException;
@@ -23,6 +27,15 @@ import org.eclipse.jetty.security.UserAuthentication;
 import org.eclipse.jetty.server.Authentication;
 import org.eclipse.jetty.server.Authentication.User;
 
+import com.wesabe.bouncer.limits.Tarpit;
+import com.wesabe.bouncer.stats.Counter;
+import com.wesabe.bouncer.stats.Gauge;
+import com.wesabe.bouncer.stats.LatencyHistogram;
+import com.wesabe.bouncer.stats.StatsRegistry;
+import com.wesabe.bouncer.util.CircuitBreaker;
+import com.wesabe.bouncer.util.SingleFlight;
+import com.wesabe.bouncer.util.TinyLfuCache;
+
 /**
  * An {@link Authenticator} which, given a {@link DataSource} for the PFC
  * database, authenticated Basic HTTP Authorization requests against the PFC
@@ -32,95 +45,290 @@ import org.eclipse.jetty.server.Authentication.User;
  *
  */
 public class WesabeAuthenticator implements org.eclipse.jetty.security.Authenticator {
-    private static class AuthHeader {
-        private static final String BASIC_AUTHENTICATION_PREFIX = "Basic ";
-        private final String username, password;
-        
-        public static AuthHeader parse(String authHeader) {
-                if ((authHeader != null) && authHeader.startsWith(BASIC_AUTHENTICATION_PREFIX)) {
-                        final String encodedCreds = authHeader.substring(BASIC_AUTHENTICATION_PREFIX.length(), authHeader.length());
-                        final String creds = new String(Base64.decodeBase64(encodedCreds.getBytes()));
-                        int separator = creds.indexOf(':');
-                        if (separator > 0) {
-                                final String username = creds.substring(0, separator);
-                                final String password = creds.substring(separator + 1);
-                                
-                                return new AuthHeader(username, password);
-                        }
-                }
-                
-                return null;
-        }
-        
-        public AuthHeader(String username, String password) {
-                this.username = username;
-                this.password = password;
-        }
-        
-        public String getUsername() {
-                return username;
-        }
-        
-        public String getPassword() {
-                return password;
-        }
-    }
-
-    private static class UserRecord {
-		private static final String USER_ID_FIELD = "id";
-		private static final String UID_FIELD = "uid";
-		private static final String SALT_FIELD = "salt";
-		private static final String PASSWORD_HASH_FIELD = "password_hash";
-		private final int userId;
-		private final String uid, salt, passwordHash;
-		
-		public UserRecord(ResultSet resultSet) throws SQLException {
-			this.salt = resultSet.getString(SALT_FIELD);
-			this.userId = resultSet.getInt(USER_ID_FIELD);
-			this.uid = resultSet.getString(UID_FIELD);
-			this.passwordHash = resultSet.getString(PASSWORD_HASH_FIELD);
-		}
+	/**
+	 * Thrown when the login in a request matches no user, so that unknown
+	 * users can be counted separately from bad passwords.
+	 */
+	private static class UnknownUserException extends BadCredentialsException {
+		private static final long serialVersionUID = -2425094380446425787L;
 	}
 	
 	private static final Logger LOGGER = Logger.getLogger(WesabeAuthenticator.class.getCanonicalName());
 	private static final String AUTHORIZATION_HEADER = "Authorization";
-	private static final String USER_SELECT_SQL =
-		"SELECT * FROM (" +
-				"SELECT id, uid, salt, password_hash, last_web_login " +
-				"FROM users " +
-				"WHERE (username = ?) AND status IN (0, 6) " + // 0 is ACTIVE, 6 is PENDING
-			"UNION " +
-				"SELECT id, uid, salt, password_hash, last_web_login " +
-				"FROM users " +
-				"WHERE (email = ?) AND status IN (0, 6)" + // 0 is ACTIVE, 6 is PENDING
-		") AS t " +
-		"ORDER BY last_web_login DESC " +
-		"LIMIT 1";
-	private static final int ONE_DAY = 60 * 60 * 24;
-	private final DataSource dataSource;
-	private final MemcachedClientIF memcached;
-	private final PasswordHasher hasher = new PasswordHasher();
+	private static final String SESSION_COOKIE = "bouncer_session";
+	private static final long THROTTLE_STORE_TIMEOUT = 1000; // milliseconds
+	private static final int MAX_KNOWN_USERS = 10000;
+	private final UserStore userStore;
+	private final ThrottleStore throttleStore;
+	private final PasswordHasher hasher;
+	private final CredentialCache credentialCache;
+	private final NegativeLookupCache negativeLookupCache;
+	private final CircuitBreaker userDatabaseBreaker;
+	private final SessionTokens sessionTokens;
+	private final Tarpit tarpit;
+	private final FailedLogins failedLogins;
+	private final LockStateCache lockStates;
+	private final TinyLfuCache<String, Integer> userIds = new TinyLfuCache<String, Integer>(MAX_KNOWN_USERS);
+	private final SingleFlight<String, WesabeCredentials> lookups = new SingleFlight<String, WesabeCredentials>();
 	private final String realm;
+	private final LatencyHistogram totalLatency, throttleLatency, hashLatency, registerLatency, sessionLatency;
+	private final Counter successes, badCredentials, lockedAccounts, unknownUsers,
+			unavailable, errors, sessions;
 	
 	public WesabeAuthenticator(String realm, DataSource dataSource, MemcachedClientIF memcached) {
-		this.dataSource = dataSource;
-		this.memcached = memcached;
+		this(realm, dataSource, new MemcachedThrottleStore(memcached));
+	}
+	
+	public WesabeAuthenticator(String realm, DataSource dataSource, ThrottleStore throttleStore) {
+		this(realm, new JdbcUserStore(dataSource, StatsRegistry.getDefault()), throttleStore, new CredentialCache(0, 0), new NegativeLookupCache(0, 0),
+				CircuitBreaker.disabled(), SessionTokens.disabled(), Tarpit.disabled(),
+				new FailedLogins(throttleStore), new LockStateCache(0, 0), StatsRegistry.getDefault());
+	}
+	
+	public WesabeAuthenticator(String realm, UserStore userStore, ThrottleStore throttleStore,
+			CredentialCache credentialCache, NegativeLookupCache negativeLookupCache,
+			CircuitBreaker userDatabaseBreaker, SessionTokens sessionTokens, Tarpit tarpit,
+			FailedLogins failedLogins, LockStateCache lockStates, StatsRegistry stats) {
+		this(realm, userStore, throttleStore, credentialCache, negativeLookupCache,
+				userDatabaseBreaker, sessionTokens, tarpit, failedLogins, lockStates,
+				new PasswordHasher(), stats);
+	}
+	
+	public WesabeAuthenticator(String realm, UserStore userStore, ThrottleStore throttleStore,
+			CredentialCache credentialCache, NegativeLookupCache negativeLookupCache,
+			CircuitBreaker userDatabaseBreaker, SessionTokens sessionTokens, Tarpit tarpit,
+			FailedLogins failedLogins, LockStateCache lockStates, PasswordHasher hasher,
+			StatsRegistry stats) {
+		this.userStore = userStore;
+		this.hasher = hasher;
+		this.throttleStore = throttleStore;
+		this.credentialCache = credentialCache;
+		this.negativeLookupCache = negativeLookupCache;
+		this.userDatabaseBreaker = userDatabaseBreaker;
+		this.sessionTokens = sessionTokens;
+		this.tarpit = tarpit;
+		this.failedLogins = failedLogins;
+		this.lockStates = lockStates;
 		this.realm = realm;
+		
+		this.totalLatency = stats.histogram("auth.latency.total");
+		this.throttleLatency = stats.histogram("auth.latency.throttle");
+		this.hashLatency = stats.histogram("auth.latency.hash");
+		this.registerLatency = stats.histogram("auth.latency.register");
+		this.sessionLatency = stats.histogram("auth.latency.session");
+		this.successes = stats.counter("auth.outcome.success");
+		this.badCredentials = stats.counter("auth.outcome.bad-credentials");
+		this.lockedAccounts = stats.counter("auth.outcome.locked");
+		this.unknownUsers = stats.counter("auth.outcome.unknown-user");
+		this.unavailable = stats.counter("auth.outcome.unavailable");
+		this.errors = stats.counter("auth.outcome.error");
+		this.sessions = stats.counter("auth.outcome.session");
+		registerGauges(stats);
+	}
+	
+	private void registerGauges(StatsRegistry stats) {
+		stats.gauge("auth.cache.hits", new Gauge() {
+			@Override
+			public long getValue() {
+				return credentialCache.getHitCount();
+			}
+		});
+		stats.gauge("auth.cache.misses", new Gauge() {
+			@Override
+			public long getValue() {
+				return credentialCache.getMissCount();
+			}
+		});
+		stats.gauge("auth.cache.evictions", new Gauge() {
+			@Override
+			public long getValue() {
+				return credentialCache.getEvictionCount();
+			}
+		});
+		stats.gauge("auth.cache.size", new Gauge() {
+			@Override
+			public long getValue() {
+				return credentialCache.size();
+			}
+		});
+		stats.gauge("auth.cache.stale-hits", new Gauge() {
+			@Override
+			public long getValue() {
+				return credentialCache.getStaleHitCount();
+			}
+		});
+		registerHashCacheGauges(stats, "auth.hash-cache.password", hasher.getPasswordHashCache());
+		registerHashCacheGauges(stats, "auth.hash-cache.account-key", hasher.getAccountKeyCache());
+		stats.gauge("auth.hash-cache.off-heap", new Gauge() {
+			@Override
+			public long getValue() {
+				return hasher.getOffHeapDigestCount();
+			}
+		});
+		stats.gauge("auth.breaker.state", new Gauge() {
+			@Override
+			public long getValue() {
+				return userDatabaseBreaker.getState().ordinal();
+			}
+		});
+		stats.gauge("auth.breaker.trips", new Gauge() {
+			@Override
+			public long getValue() {
+				return userDatabaseBreaker.getTripCount();
+			}
+		});
+		stats.gauge("auth.breaker.rejected", new Gauge() {
+			@Override
+			public long getValue() {
+				return userDatabaseBreaker.getRejectedCount();
+			}
+		});
+		stats.gauge("auth.session.issued", new Gauge() {
+			@Override
+			public long getValue() {
+				return sessionTokens.getIssuedCount();
+			}
+		});
+		stats.gauge("auth.session.reissued", new Gauge() {
+			@Override
+			public long getValue() {
+				return sessionTokens.getReissuedCount();
+			}
+		});
+		stats.gauge("auth.session.accepted", new Gauge() {
+			@Override
+			public long getValue() {
+				return sessionTokens.getAcceptedCount();
+			}
+		});
+		stats.gauge("auth.session.rejected", new Gauge() {
+			@Override
+			public long getValue() {
+				return sessionTokens.getRejectedCount();
+			}
+		});
+		stats.gauge("auth.session.epoch", new Gauge() {
+			@Override
+			public long getValue() {
+				return sessionTokens.getEpoch();
+			}
+		});
+		stats.gauge("auth.negative-cache.saved-queries", new Gauge() {
+			@Override
+			public long getValue() {
+				return negativeLookupCache.getSavedQueryCount();
+			}
+		});
+		stats.gauge("auth.negative-cache.size", new Gauge() {
+			@Override
+			public long getValue() {
+				return negativeLookupCache.size();
+			}
+		});
+		stats.gauge("auth.coalesced", new Gauge() {
+			@Override
+			public long getValue() {
+				return lookups.getCoalescedCount();
+			}
+		});
+		stats.gauge("auth.failed-logins.tracked", new Gauge() {
+			@Override
+			public long getValue() {
+				return failedLogins.size();
+			}
+		});
+		stats.gauge("auth.failed-logins.registered", new Gauge() {
+			@Override
+			public long getValue() {
+				return failedLogins.getRegisteredCount();
+			}
+		});
+		stats.gauge("auth.failed-logins.writes", new Gauge() {
+			@Override
+			public long getValue() {
+				return failedLogins.getWriteCount();
+			}
+		});
+		stats.gauge("auth.lock-cache.hits", new Gauge() {
+			@Override
+			public long getValue() {
+				return lockStates.getHitCount();
+			}
+		});
+		stats.gauge("auth.lock-cache.misses", new Gauge() {
+			@Override
+			public long getValue() {
+				return lockStates.getMissCount();
+			}
+		});
+		stats.gauge("auth.lock-cache.size", new Gauge() {
+			@Override
+			public long getValue() {
+				return lockStates.size();
+			}
+		});
+	}
+	
+	private void registerHashCacheGauges(StatsRegistry stats, String prefix, final HashCache cache) {
+		stats.gauge(prefix + ".hits", new Gauge() {
+			@Override
+			public long getValue() {
+				return cache.getHitCount();
+			}
+		});
+		stats.gauge(prefix + ".misses", new Gauge() {
+			@Override
+			public long getValue() {
+				return cache.getMissCount();
+			}
+		});
+		stats.gauge(prefix + ".hit-rate", new Gauge() {
+			@Override
+			public long getValue() {
+				return cache.getHitRate();
+			}
+		});
+		stats.gauge(prefix + ".evictions", new Gauge() {
+			@Override
+			public long getValue() {
+				return cache.getEvictionCount();
+			}
+		});
+		stats.gauge(prefix + ".expirations", new Gauge() {
+			@Override
+			public long getValue() {
+				return cache.getExpirationCount();
+			}
+		});
+		stats.gauge(prefix + ".size", new Gauge() {
+			@Override
+			public long getValue() {
+				return cache.size();
+			}
+		});
+		stats.gauge(prefix + ".weight", new Gauge() {
+			@Override
+			public long getValue() {
+				return cache.getWeight();
+			}
+		});
 	}
 	
 	private WesabeCredentials buildCredentials(AuthHeader header, UserRecord user)
 			throws LockedAccountException, BadCredentialsException {
-		if (isThrottled(user.userId)) {
-			final int penalty = registerFailedLogin(user.userId);
-			throw new LockedAccountException(penalty);
-		}
+		long startTime = System.nanoTime();
+		final boolean matches = hasher.checkPassword(header.getPassword(), user.salt, user.passwordDigest);
+		hashLatency.time(startTime);
 		
-		if (user.passwordHash.equals(hasher.getPasswordHash(header.getPassword(), user.salt))) {
+		if (matches) {
+			startTime = System.nanoTime();
 			registerSuccessfulLogin(user.userId);
-			return new WesabeCredentials(
-					user.userId,
-					hasher.getAccountKey(user.uid, header.getPassword())
-			);
+			registerLatency.time(startTime);
+			
+			startTime = System.nanoTime();
+			final String accountKey = hasher.getAccountKey(user.uid, header.getPassword());
+			hashLatency.time(startTime);
+			return new WesabeCredentials(user.userId, accountKey);
 		}
 		
 		final int penalty = registerFailedLogin(user.userId);
@@ -142,66 +350,103 @@ public class WesabeAuthenticator implements org.eclipse.jetty.security.Authentic
 	    final double penalty = Math.pow(2, unfreeAttempts) * initialPenalty;
 	    return Double.valueOf(Math.min(penalty, maxPenalty)).intValue();
 	}
-
-	
-	private String accountCounterKey(int userId) {
-		final StringBuilder builder = new StringBuilder();
-		builder.append("failed-logins:");
-		builder.append(userId);
-		return builder.toString();
-	}
 	
 	private int registerFailedLogin(int userId) {
-		final String key = accountCounterKey(userId);
-		memcached.add(key, ONE_DAY, Integer.valueOf(0));
-		final long failedLogins = memcached.incr(key, 1);
-		final int penalty = getPenalty(failedLogins);
-		if (penalty > 0) {
-			lockAccount(userId, penalty);
+		final long startTime = System.nanoTime();
+		try {
+			final int penalty = getPenalty(failedLogins.register(userId));
+			if (penalty > 0) {
+				lockAccount(userId, penalty);
+			}
+			return penalty;
+		} finally {
+			registerLatency.time(startTime);
 		}
-		return penalty;
 	}
 	
 	private void registerSuccessfulLogin(int userId) {
-		memcached.delete(accountCounterKey(userId));
+		failedLogins.reset(userId);
 	}
 
 	private void lockAccount(int userId, int penalty) {
 		LOGGER.info("Locking user " + userId + " for " + penalty + " seconds");
-		memcached.set(accountLockKey(userId), penalty, Integer.valueOf(penalty));
+		failedLogins.lock(userId, penalty);
+		lockStates.lock(userId, penalty);
+		credentialCache.invalidate(userId);
+		sessionTokens.revoke(userId);
 	}
-
-	private String accountLockKey(int userId) {
-		final StringBuilder builder = new StringBuilder();
-		builder.append("lock-account:");
-		builder.append(userId);
-		return builder.toString();
+	
+	/**
+	 * Returns whether or not a user's account is locked without asking
+	 * the throttle store, or {@code null} if that's not known.
+	 */
+	private Boolean getCachedLockState(int userId) {
+		if (failedLogins.isLocked(userId)) {
+			return Boolean.TRUE;
+		}
+		return lockStates.get(userId);
 	}
 	
-	private boolean isThrottled(int userId) {
-		return memcached.get(accountLockKey(userId)) != null;
+	private boolean isThrottled(int userId, Future<Boolean> prefetchedLock) {
+		final boolean locked;
+		if (prefetchedLock == null) {
+			locked = throttleStore.isLocked(userId);
+		} else {
+			locked = isThrottled(prefetchedLock);
+		}
+		lockStates.put(userId, locked);
+		return locked;
 	}
-
-	private UserRecord getUserRecord(Connection connection, AuthHeader header)
-			throws SQLException {
-		final PreparedStatement statement = connection.prepareStatement(USER_SELECT_SQL);
+	
+	private boolean isThrottled(Future<Boolean> lock) {
 		try {
-			statement.setString(1, header.getUsername());
-			statement.setString(2, header.getUsername());
-			final ResultSet resultSet = statement.executeQuery();
-			try {
-				if (resultSet.first()) {
-					return new UserRecord(resultSet);
-				}
-			} finally {
-				resultSet.close();
-			}
+			return lock.get(THROTTLE_STORE_TIMEOUT, TimeUnit.MILLISECONDS).booleanValue();
+		} catch (TimeoutException e) {
+			lock.cancel(true);
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private UserRecord getUserRecord(AuthHeader header) throws AuthenticationUnavailableException {
+		if (negativeLookupCache.contains(header.getUsername())) {
 			return null;
+		}
+		
+		final long permit = userDatabaseBreaker.acquirePermit();
+		if (permit == CircuitBreaker.NO_PERMIT) {
+			throw new AuthenticationUnavailableException(userDatabaseBreaker.getRetryAfter());
+		}
+		
+		// every call the breaker allows has to be recorded, or a half-open
+		// breaker would wait for its trial call forever
+		final long startTime = System.nanoTime();
+		boolean recorded = false;
+		try {
+			final UserRecord user = userStore.findUser(header.getUsername());
+			userDatabaseBreaker.recordSuccess(permit, (System.nanoTime() - startTime) / 1000000);
+			recorded = true;
+			
+			if (user == null) {
+				negativeLookupCache.add(header.getUsername());
+			}
+			return user;
+		} catch (SQLException e) {
+			userDatabaseBreaker.recordFailure(permit);
+			recorded = true;
+			LOGGER.log(Level.WARNING, "Unable to query the user database", e);
+			throw new AuthenticationUnavailableException(Math.max(1, userDatabaseBreaker.getRetryAfter()), e);
 		} finally {
-			statement.close();
+			if (!recorded) {
+				userDatabaseBreaker.recordFailure(permit);
+			}
 		}
 	}
-
+	
 	@Override
 	public String getAuthMethod() {
 		return Constraint.__BASIC_AUTH;
@@ -221,11 +466,202 @@ public class WesabeAuthenticator implements org.eclipse.jetty.security.Authentic
 	@Override
 	public Authentication validateRequest(ServletRequest request, ServletResponse response, boolean mandatory)
 			throws ServerAuthException {
+		final Authentication released = sendReleased(request, response);
+		if (released != null) {
+			return released;
+		}
+		
+		final Authentication session = authenticateSession(request);
+		if (session != null) {
+			return session;
+		}
+		
+		final FutureTask<WesabeCredentials> authentication = newAuthentication(request);
+		authentication.run();
+		return sendAuthentication(request, authentication, response);
+	}
+	
+	/**
+	 * If {@code request} is being redispatched after being held in the
+	 * tarpit, sends the failed login's error response.
+	 * 
+	 * @param request a request
+	 * @param response the response to send errors to
+	 * @return the {@link Authentication} to hand to Jetty, or {@code null} if
+	 *         the request wasn't in the tarpit
+	 * @throws ServerAuthException if an error response could not be sent
+	 */
+	@SuppressWarnings("unchecked")
+	protected Authentication sendReleased(ServletRequest request, ServletResponse response)
+			throws ServerAuthException {
+		final Future<WesabeCredentials> authentication = (Future<WesabeCredentials>) tarpit.release(request);
+		if (authentication == null) {
+			return null;
+		}
+		return sendAuthentication(authentication, response);
+	}
+	
+	/**
+	 * Authenticates a request by its session token, if it has a valid one.
+	 * 
+	 * @param request a request
+	 * @return the request's {@link Authentication}, or {@code null} if it
+	 *         doesn't have a valid session token
+	 */
+	protected Authentication authenticateSession(ServletRequest request) {
+		if (!sessionTokens.isEnabled()) {
+			return null;
+		}
+		
+		final String token = getSessionCookie((HttpServletRequest) request);
+		if (token == null) {
+			return null;
+		}
+		
+		final long startTime = System.nanoTime();
+		final WesabeCredentials credentials = sessionTokens.verify(token);
+		sessionLatency.time(startTime);
+		if (credentials == null) {
+			return null;
+		}
+		
+		sessions.increment();
+		return new UserAuthentication(this, new WesabeUserIdentity(credentials));
+	}
+	
+	private String getSessionCookie(HttpServletRequest request) {
+		final Cookie[] cookies = request.getCookies();
+		if (cookies != null) {
+			for (Cookie cookie : cookies) {
+				if (SESSION_COOKIE.equals(cookie.getName())) {
+					return cookie.getValue();
+				}
+			}
+		}
+		return null;
+	}
+	
+	/*
+	 * Tokens aren't issued while the user database is unavailable, since the
+	 * credentials may only have come from the stale cache.
+	 */
+	private void issueSession(WesabeCredentials credentials, HttpServletResponse response) {
+		if (sessionTokens.isEnabled() && (userDatabaseBreaker.getState() == CircuitBreaker.State.CLOSED)) {
+			final StringBuilder cookie = new StringBuilder();
+			cookie.append(SESSION_COOKIE).append('=').append(sessionTokens.issue(credentials));
+			cookie.append("; Max-Age=").append(sessionTokens.getTTL());
+			cookie.append("; Path=/; Secure; HttpOnly");
+			response.addHeader("Set-Cookie", cookie.toString());
+		}
+	}
+	
+	/**
+	 * Authenticates a request by its recently verified credentials, if they
+	 * are cached and its user isn't known to be locked. Neither the user
+	 * database nor the throttle store is asked.
+	 * 
+	 * @param request a request
+	 * @param response the response to add a session cookie to
+	 * @return the request's {@link Authentication}, or {@code null} if its
+	 *         credentials aren't cached
+	 */
+	protected Authentication authenticateCached(ServletRequest request, ServletResponse response) {
+		final long startTime = System.nanoTime();
+		final String authorization = ((HttpServletRequest) request).getHeader(AUTHORIZATION_HEADER);
+		final WesabeCredentials credentials = getCachedCredentials(authorization);
+		if (credentials == null) {
+			return null;
+		}
+		
+		successes.increment();
+		totalLatency.time(startTime);
+		issueSession(credentials, (HttpServletResponse) response);
+		return new UserAuthentication(this, new WesabeUserIdentity(credentials));
+	}
+	
+	/**
+	 * Returns an unstarted task which authenticates {@code request}. Only the
+	 * request's headers are read before the task is returned, so the task
+	 * may be run on any thread.
+	 * 
+	 * @param request a potentially authenticated request
+	 * @return a task which produces the request's {@link WesabeCredentials}
+	 */
+	protected FutureTask<WesabeCredentials> newAuthentication(ServletRequest request) {
+		return newAuthentication(request, true);
+	}
+	
+	/**
+	 * Returns an unstarted task which authenticates {@code request},
+	 * optionally without checking the credential cache (e.g., because
+	 * {@link #authenticateCached(ServletRequest, ServletResponse)} already
+	 * has).
+	 * 
+	 * @param request a potentially authenticated request
+	 * @param checkCache whether or not to use cached credentials
+	 * @return a task which produces the request's {@link WesabeCredentials}
+	 */
+	protected FutureTask<WesabeCredentials> newAuthentication(ServletRequest request, final boolean checkCache) {
+		final String authorization = ((HttpServletRequest) request).getHeader(AUTHORIZATION_HEADER);
+		return new FutureTask<WesabeCredentials>(new Callable<WesabeCredentials>() {
+			@Override
+			public WesabeCredentials call() throws Exception {
+				return authenticate(authorization, checkCache);
+			}
+		});
+	}
+	
+	/**
+	 * Converts the result of a completed authentication into an
+	 * {@link Authentication}, holding the request in the tarpit if it's one
+	 * too many failed logins from its client, and sending an error response
+	 * otherwise.
+	 * 
+	 * @param request the authenticated request
+	 * @param authentication a completed authentication
+	 * @param response the response to send errors to
+	 * @return the {@link Authentication} to hand to Jetty
+	 * @throws ServerAuthException if an error response could not be sent
+	 */
+	protected Authentication sendAuthentication(ServletRequest request,
+			Future<WesabeCredentials> authentication, ServletResponse response) throws ServerAuthException {
+		if (isFailedLogin(authentication) && tarpit.trap(request, authentication)) {
+			return Authentication.SEND_CONTINUE;
+		}
+		return sendAuthentication(authentication, response);
+	}
+	
+	private static boolean isFailedLogin(Future<WesabeCredentials> authentication) {
+		try {
+			getCredentials(authentication);
+			return false;
+		} catch (BadCredentialsException e) {
+			return true;
+		} catch (LockedAccountException e) {
+			return true;
+		} catch (AuthenticationUnavailableException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Converts the result of a completed authentication into an
+	 * {@link Authentication}, sending an error response if it failed.
+	 * 
+	 * @param authentication a completed authentication
+	 * @param response the response to send errors to
+	 * @return the {@link Authentication} to hand to Jetty
+	 * @throws ServerAuthException if an error response could not be sent
+	 */
+	protected Authentication sendAuthentication(Future<WesabeCredentials> authentication, ServletResponse response)
+			throws ServerAuthException {
 		final HttpServletResponse httpResponse = (HttpServletResponse) response;
 		
         try {
 			try {
-				return new UserAuthentication(this, new WesabeUserIdentity( authenticate(request) ));
+				final WesabeCredentials credentials = getCredentials(authentication);
+				issueSession(credentials, httpResponse);
+				return new UserAuthentication(this, new WesabeUserIdentity(credentials));
 			} catch (BadCredentialsException e) {
 		        httpResponse.setHeader(HttpHeaders.WWW_AUTHENTICATE, "basic realm=\"" + getRealm() + '"');
 				httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED);
@@ -234,36 +670,268 @@ public class WesabeAuthenticator implements org.eclipse.jetty.security.Authentic
 				httpResponse.setIntHeader(HttpHeaders.RETRY_AFTER, e.getPenaltyDuration());
 				httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
 				return Authentication.SEND_FAILURE;
+			} catch (AuthenticationUnavailableException e) {
+				httpResponse.setIntHeader(HttpHeaders.RETRY_AFTER, e.getRetryAfter());
+				httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				return Authentication.SEND_FAILURE;
 			}
 		} catch (IOException e1) {
 			throw new ServerAuthException(e1);
 		}
 	}
 	
-	public WesabeCredentials authenticate(ServletRequest request) throws BadCredentialsException, LockedAccountException {
+	public WesabeCredentials authenticate(ServletRequest request)
+			throws BadCredentialsException, LockedAccountException, AuthenticationUnavailableException {
 		final HttpServletRequest httpRequest = (HttpServletRequest) request;
-		AuthHeader header = AuthHeader.parse(httpRequest.getHeader(AUTHORIZATION_HEADER));
+		return authenticate(httpRequest.getHeader(AUTHORIZATION_HEADER));
+	}
+	
+	/**
+	 * Authenticates the value of an Authorization header.
+	 * 
+	 * @param authorization the value of a request's Authorization header
+	 * @return the {@link WesabeCredentials} for the header
+	 * @throws BadCredentialsException if the credentials are invalid or missing
+	 * @throws LockedAccountException if the user's account is locked
+	 * @throws AuthenticationUnavailableException if the user database is
+	 *                                            unavailable and the
+	 *                                            credentials weren't recently
+	 *                                            verified
+	 */
+	public WesabeCredentials authenticate(String authorization)
+			throws BadCredentialsException, LockedAccountException, AuthenticationUnavailableException {
+		return authenticate(authorization, true);
+	}
+	
+	private WesabeCredentials authenticate(String authorization, boolean checkCache)
+			throws BadCredentialsException, LockedAccountException, AuthenticationUnavailableException {
+		final long startTime = System.nanoTime();
+		try {
+			final WesabeCredentials credentials = authenticateHeader(authorization, checkCache);
+			successes.increment();
+			return credentials;
+		} catch (UnknownUserException e) {
+			unknownUsers.increment();
+			throw e;
+		} catch (BadCredentialsException e) {
+			badCredentials.increment();
+			throw e;
+		} catch (LockedAccountException e) {
+			lockedAccounts.increment();
+			throw e;
+		} catch (AuthenticationUnavailableException e) {
+			unavailable.increment();
+			throw e;
+		} catch (RuntimeException e) {
+			errors.increment();
+			throw e;
+		} finally {
+			totalLatency.time(startTime);
+		}
+	}
+	
+	private WesabeCredentials authenticateHeader(final String authorization, boolean checkCache)
+			throws BadCredentialsException, LockedAccountException, AuthenticationUnavailableException {
+		if (checkCache) {
+			final WesabeCredentials cachedCredentials = getCachedCredentials(authorization);
+			if (cachedCredentials != null) {
+				return cachedCredentials;
+			}
+		}
 		
-		if (header != null) {
-			try {
-				final Connection connection = dataSource.getConnection();
-				try {
-					final UserRecord user = getUserRecord(connection, header);
-					if (user != null)
-						return buildCredentials(header, user);
-				} finally {
-					connection.close();
+		final AuthHeader header = AuthHeader.parse(authorization);
+		if (header == null) {
+			throw new BadCredentialsException();
+		}
+		
+		// concurrent requests with the same credentials share a single lookup
+		try {
+			return lookups.execute(authorization, new Callable<WesabeCredentials>() {
+				@Override
+				public WesabeCredentials call() throws Exception {
+					try {
+						final WesabeCredentials credentials = lookUpCredentials(header);
+						credentialCache.put(authorization, credentials);
+						return credentials;
+					} catch (AuthenticationUnavailableException e) {
+						return getStaleCredentials(authorization, e);
+					}
 				}
-
-			} catch (SQLException e) {
-				throw new RuntimeException(e);
+			});
+		} catch (ExecutionException e) {
+			throw propagate(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/*
+	 * Cached credentials aren't used once their user is known to be locked,
+	 * so the lookup can send the lock's penalty.
+	 */
+	private WesabeCredentials getCachedCredentials(String authorization) {
+		final WesabeCredentials credentials = credentialCache.get(authorization);
+		if ((credentials != null) && Boolean.TRUE.equals(getCachedLockState(credentials.getUserId()))) {
+			return null;
+		}
+		return credentials;
+	}
+	
+	/*
+	 * If the user database is unavailable, credentials which were verified
+	 * recently enough are better than locking everyone out.
+	 */
+	private WesabeCredentials getStaleCredentials(String authorization, AuthenticationUnavailableException e)
+			throws AuthenticationUnavailableException {
+		final WesabeCredentials credentials = credentialCache.getStale(authorization);
+		if (credentials == null) {
+			throw e;
+		}
+		
+		LOGGER.fine("Using stale credentials for user " + credentials.getUserId());
+		return credentials;
+	}
+	
+	private static WesabeCredentials getCredentials(Future<WesabeCredentials> authentication)
+			throws BadCredentialsException, LockedAccountException, AuthenticationUnavailableException {
+		try {
+			return authentication.get();
+		} catch (ExecutionException e) {
+			throw propagate(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static RuntimeException propagate(ExecutionException e)
+			throws BadCredentialsException, LockedAccountException, AuthenticationUnavailableException {
+		final Throwable cause = e.getCause();
+		if (cause instanceof BadCredentialsException) {
+			throw (BadCredentialsException) cause;
+		} else if (cause instanceof LockedAccountException) {
+			throw (LockedAccountException) cause;
+		} else if (cause instanceof AuthenticationUnavailableException) {
+			throw (AuthenticationUnavailableException) cause;
+		} else if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		} else if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new RuntimeException(cause);
+	}
+	
+	private WesabeCredentials lookUpCredentials(AuthHeader header)
+			throws BadCredentialsException, LockedAccountException, AuthenticationUnavailableException {
+		final long startTime = System.nanoTime();
+		
+		// if we already know who this is, check their lock while we query
+		// the database instead of afterwards, unless we already know whether
+		// or not they're locked
+		final Integer knownUserId = userIds.get(header.getUsername());
+		final Boolean knownLockState = (knownUserId == null) ? null : getCachedLockState(knownUserId);
+		final Future<Boolean> prefetchedLock;
+		if ((knownUserId == null) || (knownLockState != null)) {
+			prefetchedLock = null;
+		} else {
+			prefetchedLock = throttleStore.isLockedAsync(knownUserId);
+		}
+		
+		UserRecord user = null;
+		try {
+			user = getUserRecord(header);
+		} finally {
+			// nobody will wait for a lock prefetched for the wrong user
+			if ((prefetchedLock != null) && ((user == null) || (user.userId != knownUserId.intValue()))) {
+				prefetchedLock.cancel(true);
 			}
 		}
 		
-		throw new BadCredentialsException();
+		if (user == null) {
+			throw new UnknownUserException();
+		}
+		userIds.put(header.getUsername(), user.userId);
+		final long lookupTime = System.nanoTime();
+		
+		final boolean throttled;
+		if ((knownUserId != null) && (knownUserId.intValue() == user.userId)) {
+			if (knownLockState != null) {
+				throttled = knownLockState.booleanValue();
+			} else {
+				throttled = isThrottled(user.userId, prefetchedLock);
+			}
+		} else {
+			final Boolean lockState = getCachedLockState(user.userId);
+			if (lockState != null) {
+				throttled = lockState.booleanValue();
+			} else {
+				throttled = isThrottled(user.userId, null);
+			}
+		}
+		final long throttleTime = System.nanoTime();
+		throttleLatency.update((throttleTime - lookupTime) / 1000);
+		
+		if (throttled) {
+			final int penalty = registerFailedLogin(user.userId);
+			throw new LockedAccountException(penalty);
+		}
+		
+		try {
+			return buildCredentials(header, user);
+		} finally {
+			logTimings(user.userId, startTime, lookupTime, throttleTime, System.nanoTime());
+		}
+	}
+	
+	private void logTimings(int userId, long startTime, long lookupTime, long throttleTime, long endTime) {
+		if (LOGGER.isLoggable(Level.FINE)) {
+			final StringBuilder builder = new StringBuilder();
+			builder.append("Authenticated user ").append(userId);
+			builder.append(": lookup=").append((lookupTime - startTime) / 1000).append("us");
+			builder.append(" throttle=").append((throttleTime - lookupTime) / 1000).append("us");
+			builder.append(" verify=").append((endTime - throttleTime) / 1000).append("us");
+			LOGGER.fine(builder.toString());
+		}
 	}
 	
 	public String getRealm() {
 		return realm;
 	}
+	
+	public CredentialCache getCredentialCache() {
+		return credentialCache;
+	}
+	
+	public Tarpit getTarpit() {
+		return tarpit;
+	}
+	
+	public ThrottleStore getThrottleStore() {
+		return throttleStore;
+	}
+	
+	public FailedLogins getFailedLogins() {
+		return failedLogins;
+	}
+	
+	public LockStateCache getLockStateCache() {
+		return lockStates;
+	}
+	
+	public SessionTokens getSessionTokens() {
+		return sessionTokens;
+	}
+	
+	public NegativeLookupCache getNegativeLookupCache() {
+		return negativeLookupCache;
+	}
+	
+	/**
+	 * Returns the number of authentications which shared the result of a
+	 * concurrent lookup for the same credentials.
+	 */
+	public long getCoalescedAuthenticationCount() {
+		return lookups.getCoalescedCount();
+	}
 }
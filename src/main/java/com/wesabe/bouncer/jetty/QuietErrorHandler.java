@@ -22,6 +22,11 @@ import org.eclipse.jetty.servlet.ServletContextHandler;
  * @author coda
  */
 public class QuietErrorHandler extends ErrorHandler {
+	/**
+	 * 429 Too Many Requests, from RFC 6585, which the Servlet API predates.
+	 */
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+	
 	@Override
 	public void handle(String target, Request baseRequest,
 			HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -105,6 +110,9 @@ public class QuietErrorHandler extends ErrorHandler {
 			return "The server is temporarily unable to service your " +
 					"request due to maintenance downtime or capacity " +
 					"problems. Please try again later.";
+		case SC_TOO_MANY_REQUESTS:
+			return "You have sent too many requests in too short a time. Please " +
+					"slow down and try again later.";
 		case SC_UNAUTHORIZED:
 			return 	"This server could not verify that you are authorized to access " +
 					"this resource.\n" +
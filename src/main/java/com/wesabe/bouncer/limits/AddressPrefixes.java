@@ -0,0 +1,130 @@
+package com.wesabe.bouncer.limits;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+
+import com.wesabe.bouncer.util.SipHash;
+
+/**
+ * Maps client addresses to {@code int} keys by network prefix, so that every
+ * address in, say, an IPv6 /64 shares a single key.
+ * <p>
+ * IPv4 addresses are masked to their prefix and used as-is. IPv6 addresses
+ * are masked to their prefix and folded into 32 bits with SipHash under a
+ * random, per-process key, so two IPv6 networks may occasionally share a key,
+ * but a client can't pick networks which do: anyone with a few /48s has
+ * billions of /64s to choose from, and with an unkeyed fold could aim them
+ * all at the same buckets. Anything which isn't an IP address literal is
+ * hashed.
+ * 
+ * @author coda
+ */
+public class AddressPrefixes {
+	private final int ipv4Mask;
+	private final int ipv6PrefixLength;
+	private final long k0, k1;
+	
+	/**
+	 * Creates a new {@link AddressPrefixes}.
+	 * 
+	 * @param ipv4PrefixLength the number of bits of an IPv4 address which
+	 *                         identify a client, from 0 to 32
+	 * @param ipv6PrefixLength the number of bits of an IPv6 address which
+	 *                         identify a client, from 0 to 128
+	 */
+	public AddressPrefixes(int ipv4PrefixLength, int ipv6PrefixLength) {
+		if ((ipv4PrefixLength < 0) || (ipv4PrefixLength > 32)) {
+			throw new IllegalArgumentException("IPv4 prefix length must be between 0 and 32");
+		}
+		
+		if ((ipv6PrefixLength < 0) || (ipv6PrefixLength > 128)) {
+			throw new IllegalArgumentException("IPv6 prefix length must be between 0 and 128");
+		}
+		
+		this.ipv4Mask = (ipv4PrefixLength == 0) ? 0 : (-1 << (32 - ipv4PrefixLength));
+		this.ipv6PrefixLength = ipv6PrefixLength;
+		
+		final SecureRandom random = new SecureRandom();
+		this.k0 = random.nextLong();
+		this.k1 = random.nextLong();
+	}
+	
+	/**
+	 * Returns the key for an address. Never returns {@code 0}.
+	 * 
+	 * @param address an IPv4 or IPv6 address literal, as returned by
+	 *                {@link javax.servlet.ServletRequest#getRemoteAddr()}
+	 */
+	public int getKey(String address) {
+		final long ipv4 = parseIPv4(address);
+		if (ipv4 >= 0) {
+			return nonZero((int) ipv4 & ipv4Mask);
+		}
+		
+		// only parse things which look like IPv6 literals, since
+		// InetAddress will happily resolve hostnames
+		if (address.indexOf(':') >= 0) {
+			try {
+				final InetAddress parsed = InetAddress.getByName(address);
+				final byte[] bytes = parsed.getAddress();
+				if (parsed instanceof Inet4Address) {
+					return nonZero(toInt(bytes, 0) & ipv4Mask);
+				}
+				return nonZero(foldIPv6(bytes));
+			} catch (UnknownHostException e) {
+				// fall through
+			}
+		}
+		
+		return nonZero(address.hashCode());
+	}
+	
+	private int foldIPv6(byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			final int bits = Math.min(8, Math.max(0, ipv6PrefixLength - (i * 8)));
+			bytes[i] &= (0xFF << (8 - bits));
+		}
+		final long hash = SipHash.hash(k0, k1, bytes, 0, bytes.length);
+		return (int) (hash ^ (hash >>> 32));
+	}
+	
+	/**
+	 * Parses a dotted-quad IPv4 address without allocating, returning
+	 * {@code -1} if it isn't one.
+	 */
+	private static long parseIPv4(String address) {
+		long result = 0;
+		int octet = -1, octets = 0;
+		for (int i = 0; i < address.length(); i++) {
+			final char c = address.charAt(i);
+			if ((c >= '0') && (c <= '9')) {
+				octet = ((octet < 0) ? 0 : (octet * 10)) + (c - '0');
+				if (octet > 255) {
+					return -1;
+				}
+			} else if ((c == '.') && (octet >= 0) && (octets < 3)) {
+				result = (result << 8) | octet;
+				octet = -1;
+				octets++;
+			} else {
+				return -1;
+			}
+		}
+		
+		if ((octet < 0) || (octets != 3)) {
+			return -1;
+		}
+		return (result << 8) | octet;
+	}
+	
+	private static int toInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+				| ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+	
+	private static int nonZero(int key) {
+		return (key == 0) ? 1 : key;
+	}
+}
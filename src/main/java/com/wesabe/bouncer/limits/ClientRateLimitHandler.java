@@ -0,0 +1,80 @@
+package com.wesabe.bouncer.limits;
+
+import static com.wesabe.bouncer.jetty.QuietErrorHandler.SC_TOO_MANY_REQUESTS;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.ErrorHandler;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import com.wesabe.bouncer.stats.Counter;
+import com.wesabe.bouncer.stats.Gauge;
+import com.wesabe.bouncer.stats.StatsRegistry;
+
+/**
+ * A {@link HandlerWrapper} which limits the rate of requests from each client
+ * network, before they're authenticated or proxied. Requests over the limit
+ * get a 429 Too Many Requests with a Retry-After header.
+ * <p>
+ * Requests resumed after being suspended have already been counted, and
+ * pass straight through.
+ * 
+ * @author coda
+ */
+public class ClientRateLimitHandler extends HandlerWrapper {
+	private final AddressPrefixes prefixes;
+	private final TokenBuckets buckets;
+	private final ErrorHandler errorHandler;
+	private final Counter rejected;
+	
+	/**
+	 * Creates a new {@link ClientRateLimitHandler}.
+	 * 
+	 * @param prefixes the client networks to limit
+	 * @param buckets the buckets to take a token from for each request
+	 * @param errorHandler the {@link ErrorHandler} used to write the 429,
+	 *                     since this runs outside of any context
+	 * @param stats the {@link StatsRegistry} to record rejections in
+	 */
+	public ClientRateLimitHandler(AddressPrefixes prefixes, final TokenBuckets buckets,
+			ErrorHandler errorHandler, StatsRegistry stats) {
+		this.prefixes = prefixes;
+		this.buckets = buckets;
+		this.errorHandler = errorHandler;
+		this.rejected = stats.counter("ratelimit.client.rejected");
+		stats.gauge("ratelimit.client.evictions", new Gauge() {
+			@Override
+			public long getValue() {
+				return buckets.getEvictionCount();
+			}
+		});
+	}
+	
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, ServletException {
+		if (baseRequest.getAsyncContinuation().isInitial()) {
+			final long delay = buckets.tryAcquire(prefixes.getKey(request.getRemoteAddr()));
+			if (delay > 0) {
+				rejected.increment();
+				response.setIntHeader(HttpHeaders.RETRY_AFTER, (int) ((delay + 999) / 1000));
+				response.setStatus(SC_TOO_MANY_REQUESTS);
+				errorHandler.handle(target, baseRequest, request, response);
+				baseRequest.setHandled(true);
+				return;
+			}
+		}
+		
+		super.handle(target, baseRequest, request, response);
+	}
+	
+	public TokenBuckets getBuckets() {
+		return buckets;
+	}
+}
@@ -0,0 +1,99 @@
+package com.wesabe.bouncer.limits;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts open connections per client key, and says which connections put a
+ * client over its limit.
+ * <p>
+ * Every call to {@link #open(int)} must be followed by a call to
+ * {@link #close(int)} with the same key, whether or not the connection was
+ * allowed. A client's count is dropped as soon as its last connection
+ * closes, so only clients with open connections take up memory.
+ * 
+ * @author coda
+ */
+public class ConnectionLimiter {
+	private final ConcurrentMap<Integer, AtomicInteger> counts = new ConcurrentHashMap<Integer, AtomicInteger>();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final int maxConnections;
+	
+	/**
+	 * Creates a new {@link ConnectionLimiter}.
+	 * 
+	 * @param maxConnections the maximum number of open connections per client
+	 */
+	public ConnectionLimiter(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+	
+	/**
+	 * Records a newly opened connection.
+	 * 
+	 * @param key the client's key
+	 * @return {@code true} if the client is within its limit, {@code false}
+	 *         if the connection should be closed
+	 */
+	public boolean open(int key) {
+		final Integer boxedKey = Integer.valueOf(key);
+		while (true) {
+			AtomicInteger count = counts.get(boxedKey);
+			if (count == null) {
+				final AtomicInteger newCount = new AtomicInteger();
+				count = counts.putIfAbsent(boxedKey, newCount);
+				if (count == null) {
+					count = newCount;
+				}
+			}
+			
+			final int current = count.get();
+			// a negative count has been removed from the map; start over
+			if ((current >= 0) && count.compareAndSet(current, current + 1)) {
+				if (current < maxConnections) {
+					return true;
+				}
+				rejectedCount.incrementAndGet();
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Records a closed connection.
+	 * 
+	 * @param key the client's key
+	 */
+	public void close(int key) {
+		final Integer boxedKey = Integer.valueOf(key);
+		final AtomicInteger count = counts.get(boxedKey);
+		if ((count != null) && (count.decrementAndGet() == 0) && count.compareAndSet(0, -1)) {
+			counts.remove(boxedKey, count);
+		}
+	}
+	
+	/**
+	 * Returns the number of open connections for a client.
+	 */
+	public int getConnectionCount(int key) {
+		final AtomicInteger count = counts.get(Integer.valueOf(key));
+		return (count == null) ? 0 : Math.max(0, count.get());
+	}
+	
+	/**
+	 * Returns the number of clients with open connections.
+	 */
+	public int getClientCount() {
+		return counts.size();
+	}
+	
+	/**
+	 * Returns the number of connections which were over their client's
+	 * limit.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+}
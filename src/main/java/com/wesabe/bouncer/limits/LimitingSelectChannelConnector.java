@@ -0,0 +1,68 @@
+package com.wesabe.bouncer.limits;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jetty.server.HttpConnection;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+
+import com.wesabe.bouncer.stats.Gauge;
+import com.wesabe.bouncer.stats.StatsRegistry;
+
+/**
+ * A {@link SelectChannelConnector} which closes connections from clients
+ * which already have too many open, before a single byte of their requests
+ * is read.
+ * 
+ * @author coda
+ */
+public class LimitingSelectChannelConnector extends SelectChannelConnector {
+	private static final Logger LOGGER = Logger.getLogger(LimitingSelectChannelConnector.class.getCanonicalName());
+	private final AddressPrefixes prefixes;
+	private final ConnectionLimiter limiter;
+	
+	public LimitingSelectChannelConnector(AddressPrefixes prefixes, final ConnectionLimiter limiter,
+			StatsRegistry stats) {
+		this.prefixes = prefixes;
+		this.limiter = limiter;
+		stats.gauge("ratelimit.client.connections.rejected", new Gauge() {
+			@Override
+			public long getValue() {
+				return limiter.getRejectedCount();
+			}
+		});
+		stats.gauge("ratelimit.client.connections.clients", new Gauge() {
+			@Override
+			public long getValue() {
+				return limiter.getClientCount();
+			}
+		});
+	}
+	
+	@Override
+	protected void connectionOpened(HttpConnection connection) {
+		super.connectionOpened(connection);
+		if (!limiter.open(getKey(connection))) {
+			try {
+				connection.getEndPoint().close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Unable to close connection", e);
+			}
+		}
+	}
+	
+	@Override
+	protected void connectionClosed(HttpConnection connection) {
+		limiter.close(getKey(connection));
+		super.connectionClosed(connection);
+	}
+	
+	public ConnectionLimiter getLimiter() {
+		return limiter;
+	}
+	
+	private int getKey(HttpConnection connection) {
+		return prefixes.getKey(connection.getEndPoint().getRemoteAddr());
+	}
+}
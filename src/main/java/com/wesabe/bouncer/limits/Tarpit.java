@@ -0,0 +1,190 @@
+package com.wesabe.bouncer.limits;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletRequest;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+
+import com.wesabe.bouncer.stats.Counter;
+import com.wesabe.bouncer.stats.Gauge;
+import com.wesabe.bouncer.stats.StatsRegistry;
+import com.wesabe.bouncer.util.HashedWheelTimer;
+
+/**
+ * Slows down clients which keep failing to log in.
+ * <p>
+ * Each client network is allowed a burst of failed logins, refilled at a
+ * steady rate. Once a client has used up its allowance, each further failed
+ * login is suspended via a Jetty {@link Continuation} and only answered
+ * after a delay. Suspended requests are resumed by a
+ * {@link HashedWheelTimer}, so a tarpitted request holds a connection and a
+ * little memory, but no threads. Once the tarpit is full, failed logins are
+ * answered immediately.
+ * 
+ * @author coda
+ */
+public class Tarpit {
+	private static final String TRAPPED_ATTRIBUTE = Tarpit.class.getCanonicalName() + ".trapped";
+	private static final long BACKSTOP_TIMEOUT = 30000; // milliseconds
+	
+	/**
+	 * A suspended request, waiting on the timer. Released exactly once,
+	 * either by the timer or by Jetty expiring the continuation.
+	 */
+	private static class TrappedRequest implements Runnable {
+		private final Object result;
+		private final Continuation continuation;
+		private final AtomicInteger population;
+		private boolean released = false;
+		
+		public TrappedRequest(Object result, Continuation continuation, AtomicInteger population) {
+			this.result = result;
+			this.continuation = continuation;
+			this.population = population;
+		}
+		
+		@Override
+		public void run() {
+			if (release()) {
+				continuation.resume();
+			}
+		}
+		
+		/**
+		 * Jetty reuses continuations for subsequent requests on the same
+		 * connection, so once the request has been redispatched this must
+		 * never touch the continuation again.
+		 */
+		public synchronized boolean release() {
+			if (released) {
+				return false;
+			}
+			this.released = true;
+			population.decrementAndGet();
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns a {@link Tarpit} which never traps anything.
+	 */
+	public static Tarpit disabled() {
+		return new Tarpit();
+	}
+	
+	private final AddressPrefixes prefixes;
+	private final TokenBuckets failures;
+	private final HashedWheelTimer timer;
+	private final long delay;
+	private final int maxPopulation;
+	private final AtomicInteger population = new AtomicInteger();
+	private final Counter trapped, overflowed;
+	
+	private Tarpit() {
+		this.prefixes = null;
+		this.failures = null;
+		this.timer = null;
+		this.delay = 0;
+		this.maxPopulation = 0;
+		this.trapped = new Counter();
+		this.overflowed = new Counter();
+	}
+	
+	/**
+	 * Creates a new {@link Tarpit}.
+	 * 
+	 * @param prefixes the client networks to track failed logins for
+	 * @param failures the buckets each failed login takes a token from; once
+	 *                 a client's bucket is empty, its failed logins are
+	 *                 tarpitted
+	 * @param timer the {@link HashedWheelTimer} which resumes requests
+	 * @param delay the number of milliseconds to hold each request for
+	 * @param maxPopulation the maximum number of requests to hold at once
+	 * @param stats the {@link StatsRegistry} to record statistics in
+	 */
+	public Tarpit(AddressPrefixes prefixes, TokenBuckets failures, HashedWheelTimer timer,
+			long delay, int maxPopulation, StatsRegistry stats) {
+		this.prefixes = prefixes;
+		this.failures = failures;
+		this.timer = timer;
+		this.delay = delay;
+		this.maxPopulation = maxPopulation;
+		this.trapped = stats.counter("tarpit.trapped");
+		this.overflowed = stats.counter("tarpit.overflowed");
+		stats.gauge("tarpit.population", new Gauge() {
+			@Override
+			public long getValue() {
+				return population.get();
+			}
+		});
+	}
+	
+	public boolean isEnabled() {
+		return timer != null;
+	}
+	
+	/**
+	 * Records a failed login and, if the request's client has failed too
+	 * often, suspends the request.
+	 * 
+	 * @param request the request which failed to log in
+	 * @param result the result to return from {@link #release(ServletRequest)}
+	 *               when the request is redispatched
+	 * @return {@code true} if the request was suspended, in which case the
+	 *         caller must not respond to it yet
+	 */
+	public boolean trap(ServletRequest request, Object result) {
+		if (!isEnabled() || (failures.tryAcquire(prefixes.getKey(request.getRemoteAddr())) == 0)) {
+			return false;
+		}
+		
+		if (population.incrementAndGet() > maxPopulation) {
+			population.decrementAndGet();
+			overflowed.increment();
+			return false;
+		}
+		
+		final Continuation continuation = ContinuationSupport.getContinuation(request);
+		final TrappedRequest trappedRequest = new TrappedRequest(result, continuation, population);
+		continuation.setAttribute(TRAPPED_ATTRIBUTE, trappedRequest);
+		// Jetty's own timeout is only a backstop in case the timer is stopped
+		continuation.setTimeout(delay + BACKSTOP_TIMEOUT);
+		continuation.suspend();
+		timer.schedule(trappedRequest, delay);
+		trapped.increment();
+		return true;
+	}
+	
+	/**
+	 * If {@code request} is being redispatched after being trapped, releases
+	 * it.
+	 * 
+	 * @param request a request
+	 * @return the result passed to {@link #trap(ServletRequest, Object)}, or
+	 *         {@code null} if the request wasn't trapped
+	 */
+	public Object release(ServletRequest request) {
+		if (!isEnabled()) {
+			return null;
+		}
+		
+		final Continuation continuation = ContinuationSupport.getContinuation(request);
+		final TrappedRequest trappedRequest = (TrappedRequest) continuation.getAttribute(TRAPPED_ATTRIBUTE);
+		if (trappedRequest == null) {
+			return null;
+		}
+		
+		continuation.removeAttribute(TRAPPED_ATTRIBUTE);
+		trappedRequest.release();
+		return trappedRequest.result;
+	}
+	
+	/**
+	 * Returns the number of requests currently being held.
+	 */
+	public int getPopulation() {
+		return population.get();
+	}
+}
@@ -0,0 +1,196 @@
+package com.wesabe.bouncer.limits;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.wesabe.bouncer.util.Clock;
+
+/**
+ * A fixed-size table of token buckets keyed by {@code int}s, such as user
+ * IDs.
+ * <p>
+ * Each bucket is a single {@code long} which packs its key with the time at
+ * which the bucket will be full again (the generic cell rate algorithm's
+ * theoretical arrival time), so taking a token is a read and a
+ * compare-and-swap, with no locks and no allocation. Buckets are striped into
+ * sets of eight adjacent slots, and a key can only live in the set its hash
+ * picks. When a key's set is full, the slot closest to being full is
+ * recycled, which at worst hands that slot's key a full bucket early. If two
+ * threads add the same key to a set at once, the bucket in the lower slot
+ * wins, and the other thread empties its slot and takes its token from the
+ * winner.
+ * <p>
+ * Times are kept to the millisecond in 32 bits, so rates above 1,000 tokens
+ * per second aren't supported. Keys idle for more than 24 days can wrap
+ * around, but a bucket which claims to be further ahead than a bucket can
+ * possibly get is treated as full.
+ * <p>
+ * Key {@code 0} marks an empty slot, and is never limited.
+ * 
+ * @author coda
+ */
+public class TokenBuckets {
+	private static final int SET_SHIFT = 3;
+	private static final int SET_SIZE = 1 << SET_SHIFT;
+	private static final int EMPTY_KEY = 0;
+	private static final long EMPTY_SLOT = 0L;
+	
+	private final AtomicLongArray slots;
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final int setShift;
+	private final int interval, tolerance;
+	private final Clock clock;
+	
+	/**
+	 * Creates a new {@link TokenBuckets}.
+	 * 
+	 * @param rate the number of tokens added to each bucket per second
+	 * @param burst the maximum number of tokens in a bucket
+	 * @param capacity the number of buckets to keep track of, rounded up to
+	 *                 the next power of two
+	 * @param clock the {@link Clock} used to refill buckets
+	 */
+	public TokenBuckets(double rate, int burst, int capacity, Clock clock) {
+		if ((rate <= 0) || (rate > 1000)) {
+			throw new IllegalArgumentException("rate must be between 0 and 1000");
+		}
+		
+		if (burst < 1) {
+			throw new IllegalArgumentException("burst must be at least 1");
+		}
+		
+		this.interval = (int) Math.round(1000 / rate);
+		final long tolerance = (long) interval * (burst - 1);
+		if ((tolerance + interval) > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("burst / rate must be less than 24 days");
+		}
+		this.tolerance = (int) tolerance;
+		
+		int sets = 1, bits = 0;
+		while ((sets * SET_SIZE) < capacity) {
+			sets <<= 1;
+			bits++;
+		}
+		this.setShift = 32 - bits;
+		this.slots = new AtomicLongArray(sets * SET_SIZE);
+		this.clock = clock;
+	}
+	
+	/**
+	 * Takes a token from a key's bucket.
+	 * 
+	 * @param key the bucket's key
+	 * @return {@code 0} if a token was taken, or the number of milliseconds
+	 *         until the bucket will have a token if it's empty
+	 */
+	public long tryAcquire(int key) {
+		if (key == EMPTY_KEY) {
+			return 0;
+		}
+		
+		final int now = (int) clock.getTime();
+		final int start = getSet(key) << SET_SHIFT;
+		while (true) {
+			int victim = -1, victimDebt = Integer.MAX_VALUE;
+			long victimSlot = EMPTY_SLOT;
+			boolean raced = false;
+			for (int i = start; i < (start + SET_SIZE); i++) {
+				final long slot = slots.get(i);
+				if (getKey(slot) == key) {
+					final int debt = getDebt(slot, now);
+					if (debt > tolerance) {
+						return debt - tolerance;
+					}
+					
+					if (slots.compareAndSet(i, slot, pack(key, now + debt + interval))) {
+						return 0;
+					}
+					raced = true;
+					break;
+				}
+				
+				final int debt = (slot == EMPTY_SLOT) ? -1 : getDebt(slot, now);
+				if (debt < victimDebt) {
+					victim = i;
+					victimDebt = debt;
+					victimSlot = slot;
+				}
+			}
+			
+			if (!raced && slots.compareAndSet(victim, victimSlot, pack(key, now + interval))) {
+				if (victimDebt > 0) {
+					evictionCount.incrementAndGet();
+				}
+				
+				if (!isDuplicate(key, start, victim)) {
+					return 0;
+				}
+				release(key, victim);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of buckets which were recycled while they still
+	 * had outstanding debt.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+	
+	/**
+	 * Returns the number of buckets kept track of.
+	 */
+	public int getCapacity() {
+		return slots.length();
+	}
+	
+	/**
+	 * Returns {@code true} if the key also has a bucket in a lower slot of its
+	 * set than {@code index}.
+	 */
+	private boolean isDuplicate(int key, int start, int index) {
+		for (int i = start; i < index; i++) {
+			if (getKey(slots.get(i)) == key) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Empties a slot, unless it's been recycled for another key.
+	 */
+	private void release(int key, int index) {
+		while (true) {
+			final long slot = slots.get(index);
+			if ((getKey(slot) != key) || slots.compareAndSet(index, slot, EMPTY_SLOT)) {
+				return;
+			}
+		}
+	}
+	
+	private int getSet(int key) {
+		return (setShift == 32) ? 0 : ((key * 0x9E3779B9) >>> setShift);
+	}
+	
+	/**
+	 * Returns how many milliseconds ahead of now the bucket's theoretical
+	 * arrival time is, or {@code 0} if the bucket is full.
+	 */
+	private int getDebt(long slot, int now) {
+		final int debt = ((int) slot) - now;
+		if ((debt < 0) || (debt > (tolerance + interval))) {
+			return 0;
+		}
+		return debt;
+	}
+	
+	private static int getKey(long slot) {
+		return (int) (slot >>> 32);
+	}
+	
+	private static long pack(int key, int arrival) {
+		return ((long) key << 32) | (arrival & 0xFFFFFFFFL);
+	}
+}
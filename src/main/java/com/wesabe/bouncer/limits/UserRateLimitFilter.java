@@ -0,0 +1,89 @@
+package com.wesabe.bouncer.limits;
+
+import static com.wesabe.bouncer.jetty.QuietErrorHandler.SC_TOO_MANY_REQUESTS;
+
+import java.io.IOException;
+import java.security.Principal;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpHeaders;
+
+import com.wesabe.bouncer.auth.WesabeCredentials;
+import com.wesabe.bouncer.stats.Counter;
+import com.wesabe.bouncer.stats.Gauge;
+import com.wesabe.bouncer.stats.StatsRegistry;
+
+/**
+ * A {@link Filter} which limits the rate of requests from each authenticated
+ * user. Requests over the limit get a 429 Too Many Requests with a
+ * Retry-After header, and never reach the backend.
+ * <p>
+ * Since Jetty authenticates requests before running a context's filters,
+ * this must be mapped after the security handler has done its job; requests
+ * which weren't authenticated (e.g., health checks) aren't limited.
+ * <p>
+ * A request is charged once, however many times it's dispatched. Requests
+ * which are suspended while they're authenticated only reach this filter on
+ * their redispatch, so the request is marked once it's charged rather than
+ * only being charged on its initial dispatch.
+ * 
+ * @author coda
+ */
+public class UserRateLimitFilter implements Filter {
+	private static final String CHARGED_ATTRIBUTE = UserRateLimitFilter.class.getCanonicalName() + ".charged";
+	
+	private final TokenBuckets buckets;
+	private final Counter rejected;
+	
+	public UserRateLimitFilter(final TokenBuckets buckets, StatsRegistry stats) {
+		this.buckets = buckets;
+		this.rejected = stats.counter("ratelimit.user.rejected");
+		stats.gauge("ratelimit.user.evictions", new Gauge() {
+			@Override
+			public long getValue() {
+				return buckets.getEvictionCount();
+			}
+		});
+	}
+	
+	@Override
+	public void init(FilterConfig config) throws ServletException {
+		// nothing to set up
+	}
+	
+	@Override
+	public void destroy() {
+		// nothing to tear down
+	}
+	
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		final Principal principal = ((HttpServletRequest) request).getUserPrincipal();
+		if ((principal instanceof WesabeCredentials) && (request.getAttribute(CHARGED_ATTRIBUTE) == null)) {
+			request.setAttribute(CHARGED_ATTRIBUTE, Boolean.TRUE);
+			final long delay = buckets.tryAcquire(((WesabeCredentials) principal).getUserId());
+			if (delay > 0) {
+				rejected.increment();
+				final HttpServletResponse httpResponse = (HttpServletResponse) response;
+				httpResponse.setIntHeader(HttpHeaders.RETRY_AFTER, (int) ((delay + 999) / 1000));
+				httpResponse.sendError(SC_TOO_MANY_REQUESTS);
+				return;
+			}
+		}
+		
+		chain.doFilter(request, response);
+	}
+	
+	public TokenBuckets getBuckets() {
+		return buckets;
+	}
+}
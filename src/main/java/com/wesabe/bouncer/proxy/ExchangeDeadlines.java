@@ -0,0 +1,154 @@
+package com.wesabe.bouncer.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * How long a {@link ProxyHttpExchange} may take before it's given up on.
+ * <p>
+ * An exchange has three deadlines, each of which is disabled if it's
+ * {@code 0}:
+ * <ul>
+ * <li>the <b>connect</b> timeout, from when the exchange is built until its
+ * request has been sent, which covers waiting for a connection;</li>
+ * <li>the <b>idle</b> timeout, the longest the backend may go without
+ * responding once the request has been sent; and</li>
+ * <li>the <b>total</b> timeout, from when the exchange is built until the
+ * backend's response is complete.</li>
+ * </ul>
+ * The total timeout can be overridden for requests whose paths start with a
+ * given prefix (e.g., for uploads), in which case the longest matching prefix
+ * wins.
+ *
+ * @author coda
+ */
+public class ExchangeDeadlines {
+	/**
+	 * A total timeout for the requests whose paths start with a prefix.
+	 */
+	public static class Route {
+		/**
+		 * Parses a route in the form {@code prefix=timeout}.
+		 *
+		 * @param spec a path prefix, an equals sign, and a number of
+		 *             milliseconds
+		 * @return the route
+		 */
+		public static Route parse(String spec) {
+			final int separator = spec.lastIndexOf('=');
+			if (separator <= 0) {
+				throw new IllegalArgumentException("Routes must be in the form prefix=timeout");
+			}
+			
+			return new Route(spec.substring(0, separator).trim(),
+					Long.parseLong(spec.substring(separator + 1).trim()));
+		}
+		
+		private final String prefix;
+		private final long timeout;
+		
+		/**
+		 * Creates a new {@link Route}.
+		 *
+		 * @param prefix the prefix of the paths the route covers
+		 * @param timeout the route's total timeout, in milliseconds, or
+		 *                {@code 0} to never time out
+		 */
+		public Route(String prefix, long timeout) {
+			if (!prefix.startsWith("/")) {
+				throw new IllegalArgumentException("Route prefixes must start with /");
+			}
+			
+			if (timeout < 0) {
+				throw new IllegalArgumentException("Route timeouts must not be negative");
+			}
+			
+			this.prefix = prefix;
+			this.timeout = timeout;
+		}
+		
+		public String getPrefix() {
+			return prefix;
+		}
+		
+		public long getTimeout() {
+			return timeout;
+		}
+	}
+	
+	/**
+	 * Returns {@link ExchangeDeadlines} which never time out.
+	 */
+	public static ExchangeDeadlines disabled() {
+		return new ExchangeDeadlines(0, 0, 0, Collections.<Route>emptyList());
+	}
+	
+	private final long connectTimeout, idleTimeout, totalTimeout;
+	private final List<Route> routes;
+	
+	/**
+	 * Creates a new {@link ExchangeDeadlines}.
+	 *
+	 * @param connectTimeout the number of milliseconds until the request must
+	 *                       have been sent
+	 * @param idleTimeout the number of milliseconds the backend may go
+	 *                    without responding
+	 * @param totalTimeout the number of milliseconds until the response must
+	 *                     be complete
+	 * @param routes the routes whose total timeouts differ
+	 */
+	public ExchangeDeadlines(long connectTimeout, long idleTimeout, long totalTimeout, List<Route> routes) {
+		this.connectTimeout = connectTimeout;
+		this.idleTimeout = idleTimeout;
+		this.totalTimeout = totalTimeout;
+		this.routes = new ArrayList<Route>(routes);
+		// check the most specific prefixes first
+		Collections.sort(this.routes, new Comparator<Route>() {
+			@Override
+			public int compare(Route a, Route b) {
+				return b.prefix.length() - a.prefix.length();
+			}
+		});
+	}
+	
+	public long getConnectTimeout() {
+		return connectTimeout;
+	}
+	
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+	
+	/**
+	 * Returns the total timeout for a request.
+	 *
+	 * @param path the request's path
+	 * @return the number of milliseconds until the response must be
+	 *         complete, or {@code 0} if it never times out
+	 */
+	public long getTotalTimeout(String path) {
+		for (Route route : routes) {
+			if (path.startsWith(route.prefix)) {
+				return route.timeout;
+			}
+		}
+		return totalTimeout;
+	}
+	
+	/**
+	 * Returns the longest total timeout of any request, or {@code 0} if some
+	 * requests never time out.
+	 */
+	public long getMaximumTotalTimeout() {
+		long max = totalTimeout;
+		for (Route route : routes) {
+			if ((max == 0) || (route.timeout == 0)) {
+				return 0;
+			}
+			max = Math.max(max, route.timeout);
+		}
+		return max;
+	}
+}
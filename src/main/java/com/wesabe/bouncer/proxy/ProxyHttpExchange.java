@@ -5,21 +5,36 @@ import java.net.URI;
 import java.util.Enumeration;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.continuation.Continuation;
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.EofException;
 import org.eclipse.jetty.client.HttpExchange;
 
+import com.wesabe.bouncer.util.Clock;
 import com.wesabe.servlet.normalizers.util.CaseInsensitiveSet;
 
 /**
  * An {@link HttpExchange} which is used to proxy an {@link HttpServletRequest}
  * to a remote server, then back to an {@link HttpServletResponse}.
+ * <p>
+ * If the request has been suspended, the exchange completes its
+ * {@link Continuation} once the backend's response has been copied (or the
+ * exchange has failed or expired), so no server thread waits on the backend.
+ * <p>
+ * An exchange can be given {@link ExchangeDeadlines}, which are checked by
+ * calling {@link #checkDeadlines()}. Once one has passed, the exchange stops
+ * copying the backend's response and its request is resumed (or its waiting
+ * thread woken up) to be answered with a 504 Gateway Timeout. The backend is
+ * told when the exchange's total deadline is via the {@code X-Request-Deadline}
+ * header, in milliseconds since the epoch, so it can stop working on
+ * requests which have already been given up on.
  * 
  * @author coda
  *
@@ -121,16 +136,53 @@ public class ProxyHttpExchange extends HttpExchange {
 		"Server"
 	);
 	
+	/**
+	 * The header which tells the backend when the exchange will be given up
+	 * on.
+	 */
+	public static final String DEADLINE_HEADER = "X-Request-Deadline";
+	
 	private final String backendUri;
 	private final HttpServletRequest request;
 	private final HttpServletResponse response;
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private final Clock clock;
+	private final long startTime, connectTimeout, idleTimeout, totalTimeout;
+	private volatile long lastActivity;
+	private volatile boolean committed = false;
 	private volatile boolean canceled = false;
+	private Continuation continuation;
+	private boolean detached = false;
+	private String timedOut = null;
 	
 	public ProxyHttpExchange(String backendUri, HttpServletRequest request, HttpServletResponse response) {
+		this(backendUri, request, response, ExchangeDeadlines.disabled(), Clock.system());
+	}
+	
+	/**
+	 * Creates a new {@link ProxyHttpExchange} with deadlines.
+	 * 
+	 * @param backendUri the backend's URI, without a trailing slash
+	 * @param request the request to proxy
+	 * @param response the response to proxy the backend's response to
+	 * @param deadlines the exchange's deadlines
+	 * @param clock the {@link Clock} the deadlines are measured by
+	 */
+	public ProxyHttpExchange(String backendUri, HttpServletRequest request, HttpServletResponse response,
+			ExchangeDeadlines deadlines, Clock clock) {
 		this.backendUri = backendUri;
 		this.request = request;
 		this.response = response;
+		this.clock = clock;
+		this.startTime = clock.getTime();
+		this.lastActivity = startTime;
+		this.connectTimeout = deadlines.getConnectTimeout();
+		this.idleTimeout = deadlines.getIdleTimeout();
+		this.totalTimeout = deadlines.getTotalTimeout(request.getRequestURI());
 		buildFromRequest(request);
+		if (totalTimeout > 0) {
+			addRequestHeader(DEADLINE_HEADER, Long.toString(startTime + totalTimeout));
+		}
 	}
 	
 	public URI getBackendUri() {
@@ -145,6 +197,132 @@ public class ProxyHttpExchange extends HttpExchange {
 		return response;
 	}
 	
+	/**
+	 * Completes {@code continuation} when the exchange is done.
+	 * 
+	 * @param continuation the suspended request's continuation
+	 */
+	public synchronized void setContinuation(Continuation continuation) {
+		this.continuation = continuation;
+	}
+	
+	/**
+	 * Stops the exchange from completing its continuation, because the
+	 * request has been redispatched (e.g., because it expired). Jetty reuses
+	 * continuations for subsequent requests on the same connection, so once
+	 * the request has been redispatched the exchange must never touch the
+	 * continuation again.
+	 * 
+	 * @return {@code true} if the exchange hadn't already completed the
+	 *         continuation
+	 */
+	public synchronized boolean detach() {
+		if (detached) {
+			return false;
+		}
+		this.detached = true;
+		return true;
+	}
+	
+	/**
+	 * Waits for the exchange to finish or time out.
+	 * 
+	 * @return {@code true} if the exchange finished, {@code false} if it timed
+	 *         out
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public boolean waitForCompletion() throws InterruptedException {
+		finished.await();
+		return !isTimedOut();
+	}
+	
+	/**
+	 * Times the exchange out if any of its deadlines have passed.
+	 * 
+	 * @return the number of milliseconds until the deadline which will pass
+	 *         next, or {@code -1} if the exchange has finished, has timed out,
+	 *         or has no deadlines left
+	 */
+	public long checkDeadlines() {
+		if (finished.getCount() == 0) {
+			return -1;
+		}
+		
+		final long now = clock.getTime();
+		long next = Long.MAX_VALUE;
+		if (totalTimeout > 0) {
+			final long remaining = (startTime + totalTimeout) - now;
+			if (remaining <= 0) {
+				timeOut("total");
+				return -1;
+			}
+			next = Math.min(next, remaining);
+		}
+		
+		if (committed) {
+			if (idleTimeout > 0) {
+				final long remaining = (lastActivity + idleTimeout) - now;
+				if (remaining <= 0) {
+					timeOut("idle");
+					return -1;
+				}
+				next = Math.min(next, remaining);
+			}
+		} else if (connectTimeout > 0) {
+			final long remaining = (startTime + connectTimeout) - now;
+			if (remaining <= 0) {
+				timeOut("connect");
+				return -1;
+			}
+			next = Math.min(next, remaining);
+		}
+		
+		return (next == Long.MAX_VALUE) ? -1 : next;
+	}
+	
+	/**
+	 * Returns the name of the deadline which the exchange missed
+	 * ({@code connect}, {@code idle}, or {@code total}), or {@code null} if it
+	 * hasn't timed out.
+	 */
+	public synchronized String getTimedOut() {
+		return timedOut;
+	}
+	
+	public synchronized boolean isTimedOut() {
+		return timedOut != null;
+	}
+	
+	/*
+	 * Stops copying the backend's response and hands the request back to be
+	 * answered with a 504. If the backend does answer, the rest of its
+	 * response is discarded and the connection is reused; if it doesn't, the
+	 * HttpClient's own timeout closes the connection.
+	 */
+	private synchronized boolean timeOut(String deadline) {
+		if ((finished.getCount() == 0) || (timedOut != null)) {
+			return false;
+		}
+		
+		LOGGER.warning("Missed " + deadline + " deadline for " + this);
+		this.timedOut = deadline;
+		this.canceled = true;
+		finished.countDown();
+		if ((continuation != null) && !detached) {
+			// the redispatch sends the 504
+			continuation.resume();
+		}
+		return true;
+	}
+	
+	private synchronized void finish() {
+		finished.countDown();
+		if ((continuation != null) && !detached && (timedOut == null)) {
+			this.detached = true;
+			continuation.complete();
+		}
+	}
+	
 	private void buildFromRequest(HttpServletRequest request) {
 		addRequestHeader("Authorization", request.getUserPrincipal().toString());
 		setVersion(request.getProtocol());
@@ -189,32 +367,72 @@ public class ProxyHttpExchange extends HttpExchange {
 	protected void onConnectionFailed(Throwable ex) {
 		LOGGER.log(Level.SEVERE, "Connection failed for " + this, ex);
 		try {
-			response.reset();
-			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			synchronized (this) {
+				if (!canceled) {
+					response.reset();
+					response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				}
+			}
 		} catch (IOException e) {
-			LOGGER.log(Level.FINE, "Unable to send 503 to client", ex);
+			LOGGER.log(Level.FINE, "Unable to send 503 to client", e);
+		} finally {
+			finish();
 		}
 	}
 	
 	@Override
 	protected void onException(Throwable ex) {
-		if (ex instanceof EofException) {
-			LOGGER.log(Level.FINE, "Dropped connection", ex);
-			return;
+		try {
+			if (ex instanceof EofException) {
+				LOGGER.log(Level.FINE, "Dropped connection", ex);
+				return;
+			}
+			
+			super.onException(ex);
+		} finally {
+			finish();
 		}
-
-		super.onException(ex);
+	}
+	
+	/*
+	 * The HttpClient's own timeout has passed and it has closed the
+	 * connection.
+	 */
+	@Override
+	protected void onExpire() {
+		timeOut("total");
+	}
+	
+	@Override
+	protected void onRequestCommitted() throws IOException {
+		this.lastActivity = clock.getTime();
+		this.committed = true;
+	}
+	
+	@Override
+	protected void onResponseComplete() throws IOException {
+		finish();
 	}
 
+	/*
+	 * Synchronized with timeOut() and cancel(), so the response is never
+	 * written to once it's been handed back to be reset.
+	 */
 	@Override
-	protected void onResponseContent(Buffer content) throws IOException {
+	protected synchronized void onResponseContent(Buffer content) throws IOException {
+		this.lastActivity = clock.getTime();
 		if (!canceled) {
 			content.writeTo(response.getOutputStream());
 		}
 	}
 
 	@Override
-	protected void onResponseStatus(Buffer version, int status, Buffer reason) throws IOException {
+	protected synchronized void onResponseStatus(Buffer version, int status, Buffer reason) throws IOException {
+		this.lastActivity = clock.getTime();
+		if (canceled) {
+			return;
+		}
+		
 		if (status == HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
 			response.reset();
 			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -226,7 +444,7 @@ public class ProxyHttpExchange extends HttpExchange {
 	}
 	
 	@Override
-	public void cancel() {
+	public synchronized void cancel() {
 		this.canceled = true;
 	}
 	
@@ -235,7 +453,8 @@ public class ProxyHttpExchange extends HttpExchange {
 	}
 
 	@Override
-	protected void onResponseHeader(Buffer nameBuffer, Buffer valueBuffer) throws IOException {
+	protected synchronized void onResponseHeader(Buffer nameBuffer, Buffer valueBuffer) throws IOException {
+		this.lastActivity = clock.getTime();
 		if (!canceled) {
 			final String name = nameBuffer.toString();
 			if (!UNPROXYABLE_HEADERS.contains(name)
@@ -5,6 +5,9 @@ import java.net.URI;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.HashedWheelTimer;
+
 /**
  * A factory class which makes {@link ProxyHttpExchange} instances.
  * 
@@ -12,22 +15,77 @@ import javax.servlet.http.HttpServletResponse;
  *
  */
 public class ProxyHttpExchangeFactory {
+	/**
+	 * Checks an exchange's deadlines whenever the next one is due.
+	 */
+	private static class DeadlineCheck implements Runnable {
+		private final ProxyHttpExchange exchange;
+		private final HashedWheelTimer timer;
+		
+		public DeadlineCheck(ProxyHttpExchange exchange, HashedWheelTimer timer) {
+			this.exchange = exchange;
+			this.timer = timer;
+		}
+		
+		@Override
+		public void run() {
+			final long next = exchange.checkDeadlines();
+			if (next > 0) {
+				timer.schedule(this, next);
+			}
+		}
+	}
+	
 	private final String backendUri;
+	private final ExchangeDeadlines deadlines;
+	private final HashedWheelTimer timer;
+	private final Clock clock;
 	
 	public ProxyHttpExchangeFactory(URI backendUri) {
+		this(backendUri, ExchangeDeadlines.disabled(), null, Clock.system());
+	}
+	
+	/**
+	 * Creates a new {@link ProxyHttpExchangeFactory} whose exchanges have
+	 * deadlines.
+	 * 
+	 * @param backendUri the backend's URI
+	 * @param deadlines the exchanges' deadlines
+	 * @param timer the timer to check the exchanges' deadlines on
+	 * @param clock the {@link Clock} the deadlines are measured by
+	 */
+	public ProxyHttpExchangeFactory(URI backendUri, ExchangeDeadlines deadlines, HashedWheelTimer timer, Clock clock) {
 		final String uri = backendUri.toASCIIString();
 		if (uri.endsWith("/")) {
 			this.backendUri = uri.substring(0, uri.length() - 1);
 		} else {
 			this.backendUri = uri;
 		}
+		this.deadlines = deadlines;
+		this.timer = timer;
+		this.clock = clock;
 	}
 	
 	public URI getBackendUri() {
 		return URI.create(backendUri);
 	}
 	
+	public ExchangeDeadlines getDeadlines() {
+		return deadlines;
+	}
+	
 	public ProxyHttpExchange build(HttpServletRequest request, HttpServletResponse response) {
-		return new ProxyHttpExchange(backendUri, request, response);
+		return new ProxyHttpExchange(backendUri, request, response, deadlines, clock);
+	}
+	
+	/**
+	 * Starts checking a sent exchange's deadlines.
+	 * 
+	 * @param exchange an exchange built by this factory
+	 */
+	public void watch(ProxyHttpExchange exchange) {
+		if (timer != null) {
+			new DeadlineCheck(exchange, timer).run();
+		}
 	}
 }
@@ -14,9 +14,13 @@ import javax.sql.DataSource;
 
 import net.spy.memcached.MemcachedClientIF;
 
+import com.wesabe.bouncer.auth.MemcachedThrottleStore;
+import com.wesabe.bouncer.auth.ThrottleStore;
+
 /**
- * Responds to GET requests with 200 OK if the database and memcache connections
- * are live; 500 Internal Service Error otherwise.
+ * Responds to GET requests with 200 OK if the database and throttle store
+ * (usually memcache) connections are live; 500 Internal Service Error
+ * otherwise.
  * 
  * @author coda
  *
@@ -24,27 +28,27 @@ import net.spy.memcached.MemcachedClientIF;
 public class HealthServlet extends HttpServlet {
 	private static final long serialVersionUID = -8313510800154929279L;
 	private final DataSource dataSource;
-	private final MemcachedClientIF memcached;
+	private final ThrottleStore throttleStore;
 	
 	public HealthServlet(DataSource dataSource, MemcachedClientIF memcached) {
+		this(dataSource, new MemcachedThrottleStore(memcached));
+	}
+	
+	public HealthServlet(DataSource dataSource, ThrottleStore throttleStore) {
 		this.dataSource = dataSource;
-		this.memcached = memcached;
+		this.throttleStore = throttleStore;
 	}
 	
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
 			IOException {
-		if (databaseWorks() && memcacheWorks()) {
+		if (databaseWorks() && throttleStore.isAvailable()) {
 			resp.sendError(HttpServletResponse.SC_OK);
 		} else {
 			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 		}
 	}
 	
-	private boolean memcacheWorks() {
-		return !memcached.getStats().isEmpty();
-	}
-
 	private boolean databaseWorks() {
 		try {
 			final Connection connection = dataSource.getConnection();
@@ -1,6 +1,8 @@
 package com.wesabe.bouncer.servlets;
 
 import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -8,24 +10,53 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 
 import com.wesabe.bouncer.proxy.ProxyHttpExchange;
 import com.wesabe.bouncer.proxy.ProxyHttpExchangeFactory;
 
 /**
  * A servlet which proxies requests to a backend via an {@link HttpClient}.
+ * <p>
+ * By default, the server thread waits for each exchange to finish, so no more
+ * requests can be proxied at once than there are server threads. If it's
+ * asynchronous, each request is instead suspended via a Jetty
+ * {@link Continuation} and completed by its exchange, and the server thread
+ * goes back to the pool as soon as the exchange has been sent.
+ * <p>
+ * Either way, if the exchange misses one of its deadlines (or is lost track
+ * of and the continuation expires, which the {@link HttpClient}'s own timeout
+ * should prevent), the request gets a 504 Gateway Timeout.
  * 
  * @author coda
  *
  */
 public class ProxyServlet extends HttpServlet {
 	private static final long serialVersionUID = -3276400775243866667L;
+	private static final Logger LOGGER = Logger.getLogger(ProxyServlet.class.getCanonicalName());
+	private static final String EXCHANGE_ATTRIBUTE = ProxyServlet.class.getCanonicalName() + ".exchange";
+	private static final long BACKSTOP_TIMEOUT = 30000; // milliseconds
 	private final HttpClient httpClient;
 	private final ProxyHttpExchangeFactory exchangeFactory;
+	private final boolean async;
 	
 	public ProxyServlet(HttpClient httpClient, ProxyHttpExchangeFactory exchangeFactory) {
+		this(httpClient, exchangeFactory, false);
+	}
+	
+	/**
+	 * Creates a new {@link ProxyServlet}.
+	 * 
+	 * @param httpClient the client to send exchanges with
+	 * @param exchangeFactory the factory to build exchanges with
+	 * @param async if {@code true}, requests are suspended rather than waited
+	 *              on while they're proxied
+	 */
+	public ProxyServlet(HttpClient httpClient, ProxyHttpExchangeFactory exchangeFactory, boolean async) {
 		this.httpClient = httpClient;
 		this.exchangeFactory = exchangeFactory;
+		this.async = async;
 	}
 	
 	@Override
@@ -49,14 +80,69 @@ public class ProxyServlet extends HttpServlet {
 	@Override
 	protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
 			IOException {
+		if (async) {
+			serviceAsync(req, resp);
+			return;
+		}
+		
 		final ProxyHttpExchange exchange = exchangeFactory.build(req, resp);
 		httpClient.send(exchange);
+		exchangeFactory.watch(exchange);
 		try {
-			exchange.waitForDone();
+			if (!exchange.waitForCompletion()) {
+				sendGatewayTimeout(resp);
+			}
 		} catch (InterruptedException e) {
 			throw new ServletException(e);
 		}
 	}
+	
+	private void serviceAsync(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		final Continuation continuation = ContinuationSupport.getContinuation(req);
+		final ProxyHttpExchange pending = (ProxyHttpExchange) continuation.getAttribute(EXCHANGE_ATTRIBUTE);
+		if (pending != null) {
+			continuation.removeAttribute(EXCHANGE_ATTRIBUTE);
+			// detach() fails only if the exchange has already completed the request
+			if (pending.detach()) {
+				if (!pending.isTimedOut()) {
+					LOGGER.warning("Proxied request did not finish within " + getTimeout() + "ms");
+					pending.cancel();
+				}
+				sendGatewayTimeout(resp);
+			}
+			return;
+		}
+		
+		final ProxyHttpExchange exchange = exchangeFactory.build(req, resp);
+		exchange.setContinuation(continuation);
+		continuation.setAttribute(EXCHANGE_ATTRIBUTE, exchange);
+		// Jetty's own timeout is only a backstop in case the exchange never finishes
+		continuation.setTimeout(getTimeout());
+		// suspend before sending, in case the exchange finishes first
+		continuation.suspend();
+		try {
+			httpClient.send(exchange);
+			exchangeFactory.watch(exchange);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Unable to send " + exchange, e);
+			if (exchange.detach()) {
+				continuation.removeAttribute(EXCHANGE_ATTRIBUTE);
+				resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				continuation.complete();
+			}
+		}
+	}
+	
+	private void sendGatewayTimeout(HttpServletResponse resp) throws IOException {
+		if (!resp.isCommitted()) {
+			resp.reset();
+			resp.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+		}
+	}
+	
+	private long getTimeout() {
+		return httpClient.getTimeout() + BACKSTOP_TIMEOUT;
+	}
 
 	public ProxyHttpExchangeFactory getExchangeFactory() {
 		return exchangeFactory;
@@ -65,4 +151,8 @@ public class ProxyServlet extends HttpServlet {
 	public HttpClient getHttpClient() {
 		return httpClient;
 	}
+	
+	public boolean isAsync() {
+		return async;
+	}
 }
@@ -0,0 +1,72 @@
+package com.wesabe.bouncer.servlets;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.wesabe.bouncer.stats.Counter;
+import com.wesabe.bouncer.stats.Gauge;
+import com.wesabe.bouncer.stats.LatencyHistogram;
+import com.wesabe.bouncer.stats.StatsRegistry;
+
+/**
+ * Responds to GET requests with the contents of a {@link StatsRegistry} as
+ * plain text, one statistic per line. Latencies are in microseconds.
+ * 
+ * @author coda
+ */
+public class StatsServlet extends HttpServlet {
+	private static final long serialVersionUID = 2386001513848765207L;
+	private final StatsRegistry registry;
+	
+	public StatsServlet(StatsRegistry registry) {
+		this.registry = registry;
+	}
+	
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
+			IOException {
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType("text/plain");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		
+		final PrintWriter writer = resp.getWriter();
+		for (Map.Entry<String, Counter> entry : registry.getCounters().entrySet()) {
+			writer.print(entry.getKey());
+			writer.print(' ');
+			writer.println(entry.getValue().getCount());
+		}
+		
+		for (Map.Entry<String, Gauge> entry : registry.getGauges().entrySet()) {
+			writer.print(entry.getKey());
+			writer.print(' ');
+			writer.println(entry.getValue().getValue());
+		}
+		
+		for (Map.Entry<String, LatencyHistogram> entry : registry.getHistograms().entrySet()) {
+			final LatencyHistogram histogram = entry.getValue();
+			writer.print(entry.getKey());
+			writer.print(" count=");
+			writer.print(histogram.getCount());
+			writer.print(" mean=");
+			writer.print(histogram.getMean());
+			writer.print(" p50=");
+			writer.print(histogram.getQuantile(0.5));
+			writer.print(" p90=");
+			writer.print(histogram.getQuantile(0.9));
+			writer.print(" p99=");
+			writer.print(histogram.getQuantile(0.99));
+			writer.print(" p999=");
+			writer.print(histogram.getQuantile(0.999));
+			writer.print(" max=");
+			writer.println(histogram.getMax());
+		}
+		writer.flush();
+	}
+}
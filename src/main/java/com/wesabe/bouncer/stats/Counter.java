@@ -0,0 +1,26 @@
+package com.wesabe.bouncer.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing count of events.
+ * 
+ * @author coda
+ */
+public class Counter {
+	private final AtomicLong count = new AtomicLong();
+	
+	/**
+	 * Records an event.
+	 */
+	public void increment() {
+		count.incrementAndGet();
+	}
+	
+	/**
+	 * Returns the number of events recorded.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+}
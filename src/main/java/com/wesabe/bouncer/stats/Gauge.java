@@ -0,0 +1,13 @@
+package com.wesabe.bouncer.stats;
+
+/**
+ * A value which is read on demand (e.g., the size of a cache).
+ * 
+ * @author coda
+ */
+public interface Gauge {
+	/**
+	 * Returns the current value.
+	 */
+	public long getValue();
+}
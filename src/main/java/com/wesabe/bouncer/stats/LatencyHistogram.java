@@ -0,0 +1,133 @@
+package com.wesabe.bouncer.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free, fixed-size histogram of latencies, in microseconds.
+ * <p>
+ * Latencies under 16us get a bucket each; above that, each power of two is
+ * split into eight linear buckets, so reported percentiles are never more
+ * than 12.5% above the true value. The whole histogram is a few hundred
+ * {@code long}s no matter how many values are recorded, and recording a value
+ * is a handful of atomic increments.
+ * 
+ * @author coda
+ */
+public class LatencyHistogram {
+	private static final int LINEAR_BUCKETS = 16;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MIN_EXPONENT = 4;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKET_COUNT = LINEAR_BUCKETS + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+	
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Records the time elapsed since {@code startTime}.
+	 * 
+	 * @param startTime a start time, from {@link System#nanoTime()}
+	 */
+	public void time(long startTime) {
+		update((System.nanoTime() - startTime) / 1000);
+	}
+	
+	/**
+	 * Records a latency.
+	 * 
+	 * @param micros the latency, in microseconds
+	 */
+	public void update(long micros) {
+		final long value = Math.max(0, micros);
+		buckets.incrementAndGet(bucketIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		
+		long currentMax = max.get();
+		while ((value > currentMax) && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+	
+	/**
+	 * Returns the number of latencies recorded.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * Returns the mean latency, in microseconds.
+	 */
+	public long getMean() {
+		final long n = count.get();
+		return (n == 0) ? 0 : sum.get() / n;
+	}
+	
+	/**
+	 * Returns the largest latency recorded, in microseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Returns an upper bound of the latency below which {@code quantile} of
+	 * the recorded latencies fall, in microseconds.
+	 * 
+	 * @param quantile a quantile between {@code 0.0} and {@code 1.0}
+	 * @return the latency at {@code quantile}, or {@code 0} if no latencies
+	 *         have been recorded
+	 */
+	public long getQuantile(double quantile) {
+		final long[] snapshot = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		
+		if (total == 0) {
+			return 0;
+		}
+		
+		final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+	
+	private static int bucketIndex(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+		
+		final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+	}
+	
+	private static long upperBound(int index) {
+		if (index < LINEAR_BUCKETS) {
+			return index;
+		}
+		
+		final int exponent = MIN_EXPONENT + (index - LINEAR_BUCKETS) / SUB_BUCKETS;
+		final int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+		final long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (SUB_BUCKETS + subBucket + 1) * width - 1;
+	}
+}
@@ -0,0 +1,88 @@
+package com.wesabe.bouncer.stats;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A named collection of {@link Counter}s, {@link LatencyHistogram}s, and
+ * {@link Gauge}s, so that the parts of Bouncer which record statistics don't
+ * need to know about the parts which report them.
+ * 
+ * @author coda
+ */
+public class StatsRegistry {
+	private static final StatsRegistry DEFAULT = new StatsRegistry();
+	
+	/**
+	 * Returns the process-wide {@link StatsRegistry}.
+	 */
+	public static StatsRegistry getDefault() {
+		return DEFAULT;
+	}
+	
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	
+	/**
+	 * Returns the {@link Counter} named {@code name}, creating it if
+	 * necessary.
+	 */
+	public Counter counter(String name) {
+		final Counter counter = counters.get(name);
+		if (counter != null) {
+			return counter;
+		}
+		
+		final Counter newCounter = new Counter();
+		final Counter existing = counters.putIfAbsent(name, newCounter);
+		return (existing == null) ? newCounter : existing;
+	}
+	
+	/**
+	 * Returns the {@link LatencyHistogram} named {@code name}, creating it if
+	 * necessary.
+	 */
+	public LatencyHistogram histogram(String name) {
+		final LatencyHistogram histogram = histograms.get(name);
+		if (histogram != null) {
+			return histogram;
+		}
+		
+		final LatencyHistogram newHistogram = new LatencyHistogram();
+		final LatencyHistogram existing = histograms.putIfAbsent(name, newHistogram);
+		return (existing == null) ? newHistogram : existing;
+	}
+	
+	/**
+	 * Registers {@code gauge} as {@code name}, replacing any gauge already
+	 * registered under that name.
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+	
+	/**
+	 * Returns all registered {@link Counter}s, sorted by name.
+	 */
+	public SortedMap<String, Counter> getCounters() {
+		return Collections.unmodifiableSortedMap(new TreeMap<String, Counter>(counters));
+	}
+	
+	/**
+	 * Returns all registered {@link LatencyHistogram}s, sorted by name.
+	 */
+	public SortedMap<String, LatencyHistogram> getHistograms() {
+		return Collections.unmodifiableSortedMap(new TreeMap<String, LatencyHistogram>(histograms));
+	}
+	
+	/**
+	 * Returns all registered {@link Gauge}s, sorted by name.
+	 */
+	public SortedMap<String, Gauge> getGauges() {
+		return Collections.unmodifiableSortedMap(new TreeMap<String, Gauge>(gauges));
+	}
+}
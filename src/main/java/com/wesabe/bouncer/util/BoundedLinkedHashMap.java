@@ -1,12 +1,16 @@
 package com.wesabe.bouncer.util;
 
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import com.google.common.base.Predicate;
+
 /**
  * A thread-safe, bounded map backed by a {@link LinkedHashMap}. Thread safety
  * is guaranteed via the use of read/write locks.
@@ -23,6 +27,7 @@ public class BoundedLinkedHashMap<K, V> extends LinkedHashMap<K, V> {
     private final Lock readLock = lock.readLock();
     private final Lock writeLock = lock.writeLock();
 	private final int maxCapacity;
+	private final AtomicLong evictionCount = new AtomicLong();
 	
 	/**
 	 * Creates a new {@link BoundedLinkedHashMap} with a given capacity.
@@ -129,15 +134,50 @@ public class BoundedLinkedHashMap<K, V> extends LinkedHashMap<K, V> {
         }
     }
     
+    /**
+     * Removes all entries whose values match {@code predicate}.
+     * 
+     * @param predicate the predicate which selects values to remove
+     * @return the number of entries removed
+     */
+    public int removeValues(Predicate<? super V> predicate) {
+        writeLock.lock();
+        try {
+        	int removed = 0;
+        	final Iterator<V> iterator = super.values().iterator();
+        	while (iterator.hasNext()) {
+        		if (predicate.apply(iterator.next())) {
+        			iterator.remove();
+        			removed++;
+        		}
+        	}
+        	return removed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
     /**
      * Returns the map's maximum capacity.
      */
     public int getMaxCapacity() {
 		return maxCapacity;
 	}
+    
+    /**
+     * Returns the number of entries which have been evicted to keep the map
+     * within its maximum capacity.
+     */
+    public long getEvictionCount() {
+		return evictionCount.get();
+	}
 	
 	@Override
 	protected boolean removeEldestEntry(Entry<K, V> eldest) {
-		return size() > maxCapacity;
+		if (size() > maxCapacity) {
+			evictionCount.incrementAndGet();
+			return true;
+		}
+		return false;
 	}
 }
@@ -0,0 +1,243 @@
+package com.wesabe.bouncer.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A circuit breaker for calls to a dependency which may become slow or
+ * unavailable.
+ * <p>
+ * While the breaker is {@link State#CLOSED}, calls are allowed and their
+ * outcomes are counted in fixed windows. If enough calls in a window fail
+ * (or take longer than the slow call threshold, which counts as a failure),
+ * the breaker trips {@link State#OPEN} and rejects calls, so callers can fail
+ * fast instead of waiting on something which is down. Once the open duration
+ * has passed, the breaker goes {@link State#HALF_OPEN} and lets a single
+ * trial call through: if it succeeds, the breaker closes; otherwise, it opens
+ * again.
+ * <p>
+ * Every call which is given a permit by {@link #acquirePermit()} must be
+ * followed by a call to either {@link #recordSuccess(long, long)} or
+ * {@link #recordFailure(long)} with that permit. A permit is only good for the
+ * state it was given out in: the outcomes of calls which were allowed while
+ * the breaker was closed are ignored once it has tripped, so only the trial
+ * call decides whether a half-open breaker closes or opens again.
+ * <p>
+ * A {@link #disabled()} breaker hands out permits and ignores outcomes
+ * without taking its lock.
+ *
+ * @author coda
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * The value {@link #acquirePermit()} returns when a call isn't allowed.
+	 */
+	public static final long NO_PERMIT = -1;
+
+	/**
+	 * Returns a {@link CircuitBreaker} which never trips.
+	 */
+	public static CircuitBreaker disabled() {
+		return new CircuitBreaker(false, Integer.MAX_VALUE, 2.0, Long.MAX_VALUE, 0, 60000, Clock.system());
+	}
+
+	private final boolean enabled;
+	private final int minimumCalls;
+	private final double failureRate;
+	private final long slowCallThreshold, openDuration, windowLength;
+	private final Clock clock;
+	private final AtomicLong tripCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private volatile State state = State.CLOSED;
+	private volatile long generation;
+	private long windowStart, openedAt;
+	private int calls, failures;
+
+	/**
+	 * Creates a new {@link CircuitBreaker}.
+	 *
+	 * @param minimumCalls the number of calls a window must have before the
+	 *                     breaker can trip
+	 * @param failureRate the fraction of failed calls, between {@code 0.0} and
+	 *                    {@code 1.0}, which trips the breaker
+	 * @param slowCallThreshold the number of milliseconds after which a
+	 *                          successful call counts as a failure
+	 * @param openDuration the number of milliseconds the breaker stays open
+	 *                     before allowing a trial call
+	 * @param windowLength the number of milliseconds calls are counted over
+	 * @param clock the {@link Clock} used to time windows and open periods
+	 */
+	public CircuitBreaker(int minimumCalls, double failureRate, long slowCallThreshold,
+			long openDuration, long windowLength, Clock clock) {
+		this(true, minimumCalls, failureRate, slowCallThreshold, openDuration, windowLength, clock);
+	}
+
+	private CircuitBreaker(boolean enabled, int minimumCalls, double failureRate, long slowCallThreshold,
+			long openDuration, long windowLength, Clock clock) {
+		this.enabled = enabled;
+		this.minimumCalls = minimumCalls;
+		this.failureRate = failureRate;
+		this.slowCallThreshold = slowCallThreshold;
+		this.openDuration = openDuration;
+		this.windowLength = windowLength;
+		this.clock = clock;
+		this.windowStart = clock.getTime();
+	}
+
+	/**
+	 * Returns a permit to make a call, or {@link #NO_PERMIT} if a call
+	 * shouldn't be made.
+	 */
+	public long acquirePermit() {
+		if (!enabled) {
+			return 0;
+		}
+
+		// the generation is bumped before every state change, so a permit
+		// read this way can be stale, and ignored, but never the trial's
+		final long closedGeneration = generation;
+		if (state == State.CLOSED) {
+			return closedGeneration;
+		}
+
+		synchronized (this) {
+			switch (state) {
+			case CLOSED:
+				return generation;
+			case OPEN:
+				if ((clock.getTime() - openedAt) >= openDuration) {
+					final long trialGeneration = generation + 1;
+					this.generation = trialGeneration;
+					this.state = State.HALF_OPEN;
+					return trialGeneration;
+				}
+				break;
+			case HALF_OPEN:
+				// the trial call is already in flight
+				break;
+			}
+		}
+
+		rejectedCount.incrementAndGet();
+		return NO_PERMIT;
+	}
+
+	/**
+	 * Records a call which succeeded.
+	 *
+	 * @param permit the permit the call was made with
+	 * @param duration the number of milliseconds the call took
+	 */
+	public void recordSuccess(long permit, long duration) {
+		if (!enabled) {
+			return;
+		}
+
+		if (duration >= slowCallThreshold) {
+			recordFailure(permit);
+			return;
+		}
+
+		synchronized (this) {
+			if (permit != generation) {
+				return;
+			}
+
+			if (state == State.HALF_OPEN) {
+				close();
+			} else if (state == State.CLOSED) {
+				rollWindow();
+				calls++;
+			}
+		}
+	}
+
+	/**
+	 * Records a call which failed.
+	 *
+	 * @param permit the permit the call was made with
+	 */
+	public void recordFailure(long permit) {
+		if (!enabled) {
+			return;
+		}
+
+		synchronized (this) {
+			if (permit != generation) {
+				return;
+			}
+
+			if (state == State.HALF_OPEN) {
+				trip();
+			} else if (state == State.CLOSED) {
+				rollWindow();
+				calls++;
+				failures++;
+				if ((calls >= minimumCalls) && (failures >= (failureRate * calls))) {
+					trip();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the breaker's current state.
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the number of seconds until the breaker will allow a trial
+	 * call, or {@code 0} if it's closed.
+	 */
+	public synchronized int getRetryAfter() {
+		if (state == State.CLOSED) {
+			return 0;
+		}
+
+		final long remaining = openDuration - (clock.getTime() - openedAt);
+		return (int) Math.max(1, (remaining + 999) / 1000);
+	}
+
+	/**
+	 * Returns the number of times the breaker has tripped.
+	 */
+	public long getTripCount() {
+		return tripCount.get();
+	}
+
+	/**
+	 * Returns the number of calls the breaker has rejected.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	private void rollWindow() {
+		final long now = clock.getTime();
+		if ((now - windowStart) >= windowLength) {
+			this.windowStart = now;
+			this.calls = 0;
+			this.failures = 0;
+		}
+	}
+
+	private void trip() {
+		this.generation = generation + 1;
+		this.state = State.OPEN;
+		this.openedAt = clock.getTime();
+		tripCount.incrementAndGet();
+	}
+
+	private void close() {
+		this.generation = generation + 1;
+		this.state = State.CLOSED;
+		this.windowStart = clock.getTime();
+		this.calls = 0;
+		this.failures = 0;
+	}
+}
@@ -0,0 +1,28 @@
+package com.wesabe.bouncer.util;
+
+/**
+ * A source of wall-clock time. Exists so that time-sensitive classes can be
+ * tested without sleeping.
+ * 
+ * @author coda
+ */
+public abstract class Clock {
+	private static final Clock SYSTEM = new Clock() {
+		@Override
+		public long getTime() {
+			return System.currentTimeMillis();
+		}
+	};
+	
+	/**
+	 * Returns a {@link Clock} backed by {@link System#currentTimeMillis()}.
+	 */
+	public static Clock system() {
+		return SYSTEM;
+	}
+	
+	/**
+	 * Returns the current time, in milliseconds since the epoch.
+	 */
+	public abstract long getTime();
+}
@@ -0,0 +1,187 @@
+package com.wesabe.bouncer.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A timer for large numbers of short tasks which can run a little late.
+ * <p>
+ * Timeouts are hashed into a wheel of buckets by the tick they're due on. A
+ * single thread advances the wheel once per tick and runs the due tasks in
+ * the current bucket, so scheduling and cancelling a timeout are constant
+ * time, no matter how many are outstanding. New timeouts are queued without
+ * locking and moved into the wheel by the timer's thread. Tasks run up to a
+ * tick late, on the timer's thread, so they must be quick.
+ * 
+ * @author coda
+ */
+public class HashedWheelTimer {
+	private static final Logger LOGGER = Logger.getLogger(HashedWheelTimer.class.getCanonicalName());
+	
+	/**
+	 * A scheduled task.
+	 */
+	public static class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicBoolean done = new AtomicBoolean();
+		private long rounds;
+		private Timeout next;
+		
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * Cancels the task, if it hasn't already run.
+		 * 
+		 * @return {@code true} if the task will now never run, {@code false}
+		 *         if it has already run or been cancelled
+		 */
+		public boolean cancel() {
+			return !done.getAndSet(true);
+		}
+		
+		private boolean isDone() {
+			return done.get();
+		}
+	}
+	
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+	private final Timeout[] wheel;
+	private final int mask;
+	private final long tickDuration;
+	private final ThreadFactory threadFactory;
+	private volatile boolean running;
+	private Thread worker;
+	private long startTime, tick;
+	
+	/**
+	 * Creates a new {@link HashedWheelTimer}.
+	 * 
+	 * @param tickDuration the number of milliseconds per tick
+	 * @param wheelSize the number of buckets in the wheel, rounded up to the
+	 *                  next power of two
+	 * @param threadFactory the {@link ThreadFactory} used to create the
+	 *                      timer's thread
+	 */
+	public HashedWheelTimer(long tickDuration, int wheelSize, ThreadFactory threadFactory) {
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		this.wheel = new Timeout[size];
+		this.mask = size - 1;
+		this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		this.threadFactory = threadFactory;
+	}
+	
+	/**
+	 * Starts the timer's thread.
+	 */
+	public synchronized void start() {
+		if (worker == null) {
+			this.running = true;
+			this.startTime = System.nanoTime();
+			this.worker = threadFactory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			});
+			worker.start();
+		}
+	}
+	
+	/**
+	 * Stops the timer's thread. Outstanding tasks never run.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (worker != null) {
+			this.running = false;
+			worker.interrupt();
+			worker.join();
+			this.worker = null;
+		}
+	}
+	
+	/**
+	 * Schedules a task.
+	 * 
+	 * @param task the task to run
+	 * @param delay the number of milliseconds to wait before running it
+	 * @return a {@link Timeout} which can be used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		final Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+		pending.add(timeout);
+		return timeout;
+	}
+	
+	private void work() {
+		while (running) {
+			final long deadline = startTime + ((tick + 1) * tickDuration);
+			final long sleep = deadline - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					continue;
+				}
+			}
+			
+			transferPending();
+			expire((int) (tick & mask));
+			tick++;
+		}
+	}
+	
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (!timeout.isDone()) {
+				final long due = Math.max(tick, (timeout.deadline - startTime) / tickDuration);
+				timeout.rounds = (due - tick) / wheel.length;
+				final int bucket = (int) (due & mask);
+				timeout.next = wheel[bucket];
+				wheel[bucket] = timeout;
+			}
+		}
+	}
+	
+	private void expire(int bucket) {
+		Timeout previous = null, timeout = wheel[bucket];
+		while (timeout != null) {
+			final Timeout next = timeout.next;
+			if (timeout.isDone() || (timeout.rounds <= 0)) {
+				if (previous == null) {
+					wheel[bucket] = next;
+				} else {
+					previous.next = next;
+				}
+				timeout.next = null;
+				
+				if (!timeout.done.getAndSet(true)) {
+					run(timeout);
+				}
+			} else {
+				timeout.rounds--;
+				previous = timeout;
+			}
+			timeout = next;
+		}
+	}
+	
+	private void run(Timeout timeout) {
+		try {
+			timeout.task.run();
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Timer task failed", e);
+		}
+	}
+}
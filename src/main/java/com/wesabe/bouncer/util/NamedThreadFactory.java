@@ -0,0 +1,32 @@
+package com.wesabe.bouncer.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ThreadFactory} which produces daemon threads with sequentially
+ * numbered names (e.g., {@code bouncer-auth-1}), so they're recognizable in
+ * thread dumps.
+ * 
+ * @author coda
+ */
+public class NamedThreadFactory implements ThreadFactory {
+	private final String prefix;
+	private final AtomicInteger count = new AtomicInteger();
+	
+	/**
+	 * Creates a new {@link NamedThreadFactory}.
+	 * 
+	 * @param prefix the prefix of each thread's name
+	 */
+	public NamedThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+	
+	@Override
+	public Thread newThread(Runnable runnable) {
+		final Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
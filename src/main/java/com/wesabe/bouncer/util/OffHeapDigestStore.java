@@ -0,0 +1,167 @@
+package com.wesabe.bouncer.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed number of fixed-length digests (e.g., SHA-256 hashes) stored
+ * outside the Java heap, so that a large cache of them is a single direct
+ * buffer rather than millions of small arrays for the garbage collector to
+ * trace.
+ * <p>
+ * Storing a digest returns a handle, which can be used to read the digest
+ * until it's freed. Slots are reused once they're freed, so each handle
+ * carries the generation of its slot, and reading a freed handle fails
+ * rather than returning whichever digest has since taken its place. Slots
+ * are guarded by striped locks, so reads only contend with reads and writes
+ * of the same stripe.
+ *
+ * @author coda
+ */
+public class OffHeapDigestStore {
+	private static final int STRIPES = 64;
+	
+	private final ByteBuffer buffer;
+	private final int capacity, digestLength;
+	private final Object[] locks;
+	private final int[] generations;
+	private final int[] freeSlots;
+	private int freeCount;
+	
+	/**
+	 * Creates a new {@link OffHeapDigestStore}.
+	 *
+	 * @param capacity the maximum number of digests to store
+	 * @param digestLength the length of each digest, in bytes
+	 */
+	public OffHeapDigestStore(int capacity, int digestLength) {
+		this.capacity = capacity;
+		this.digestLength = digestLength;
+		this.buffer = ByteBuffer.allocateDirect(capacity * digestLength);
+		this.generations = new int[capacity];
+		this.freeSlots = new int[capacity];
+		for (int i = 0; i < capacity; i++) {
+			freeSlots[i] = capacity - i - 1;
+		}
+		this.freeCount = capacity;
+		this.locks = new Object[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+	
+	/**
+	 * Stores a digest.
+	 *
+	 * @param digest a digest of exactly the store's digest length
+	 * @return a handle for the digest, or {@code -1} if the store is full
+	 */
+	public long store(byte[] digest) {
+		if (digest.length != digestLength) {
+			throw new IllegalArgumentException("Digests must be " + digestLength + " bytes long");
+		}
+		
+		final int slot;
+		synchronized (freeSlots) {
+			if (freeCount == 0) {
+				return -1;
+			}
+			slot = freeSlots[--freeCount];
+		}
+		
+		synchronized (lockFor(slot)) {
+			final int generation = nextGeneration(slot);
+			final int offset = slot * digestLength;
+			for (int i = 0; i < digestLength; i++) {
+				// absolute puts don't touch the buffer's position, so threads
+				// writing different slots don't interfere
+				buffer.put(offset + i, digest[i]);
+			}
+			return ((long) generation << 32) | slot;
+		}
+	}
+	
+	/**
+	 * Copies a stored digest.
+	 *
+	 * @param handle the digest's handle
+	 * @param digest an array of at least the store's digest length to copy the
+	 *               digest into
+	 * @return {@code true} if the digest was copied, {@code false} if it has
+	 *         been freed
+	 */
+	public boolean read(long handle, byte[] digest) {
+		final int slot = (int) handle;
+		synchronized (lockFor(slot)) {
+			if (generations[slot] != (int) (handle >>> 32)) {
+				return false;
+			}
+			
+			final int offset = slot * digestLength;
+			for (int i = 0; i < digestLength; i++) {
+				digest[i] = buffer.get(offset + i);
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Frees a stored digest, making its slot available for another.
+	 *
+	 * @param handle the digest's handle
+	 * @return {@code true} if the digest was freed, {@code false} if it
+	 *         already had been
+	 */
+	public boolean free(long handle) {
+		final int slot = (int) handle;
+		synchronized (lockFor(slot)) {
+			if (generations[slot] != (int) (handle >>> 32)) {
+				return false;
+			}
+			nextGeneration(slot);
+		}
+		
+		synchronized (freeSlots) {
+			freeSlots[freeCount++] = slot;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the number of digests stored.
+	 */
+	public int size() {
+		synchronized (freeSlots) {
+			return capacity - freeCount;
+		}
+	}
+	
+	/**
+	 * Returns the maximum number of digests which can be stored.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Returns the number of bytes of off-heap memory the store uses.
+	 */
+	public long getMemoryUsage() {
+		return (long) capacity * digestLength;
+	}
+	
+	private Object lockFor(int slot) {
+		return locks[slot & (STRIPES - 1)];
+	}
+	
+	/*
+	 * Generations are always positive, so a handle is never -1.
+	 */
+	private int nextGeneration(int slot) {
+		int generation = (generations[slot] + 1) & Integer.MAX_VALUE;
+		if (generation == 0) {
+			generation = 1;
+		}
+		generations[slot] = generation;
+		return generation;
+	}
+}
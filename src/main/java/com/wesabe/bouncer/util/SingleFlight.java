@@ -0,0 +1,66 @@
+package com.wesabe.bouncer.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key into a single execution. The
+ * first caller for a key runs its {@link Callable}; callers which arrive while
+ * it is running wait for and share its result, including any exception it
+ * throws.
+ * 
+ * @author coda
+ *
+ * @param <K> the type of keys calls are coalesced by
+ * @param <V> the type of results calls produce
+ */
+public class SingleFlight<K, V> {
+	private final ConcurrentMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	
+	/**
+	 * Returns the result of {@code callable}, or of the in-flight call for
+	 * {@code key} if there is one.
+	 * 
+	 * @param key the key to coalesce calls by
+	 * @param callable the computation to run if no call for {@code key} is in
+	 *                 flight
+	 * @return the result of the call
+	 * @throws ExecutionException if the call threw an exception
+	 * @throws InterruptedException if the calling thread was interrupted while
+	 *                              waiting for another caller's result
+	 */
+	public V execute(K key, Callable<V> callable) throws ExecutionException, InterruptedException {
+		final FutureTask<V> task = new FutureTask<V>(callable);
+		final FutureTask<V> existing = calls.putIfAbsent(key, task);
+		if (existing != null) {
+			coalescedCount.incrementAndGet();
+			return existing.get();
+		}
+		
+		try {
+			task.run();
+		} finally {
+			calls.remove(key, task);
+		}
+		return task.get();
+	}
+	
+	/**
+	 * Returns the number of calls currently in flight.
+	 */
+	public int getInFlightCount() {
+		return calls.size();
+	}
+	
+	/**
+	 * Returns the number of calls which shared another caller's result.
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+}
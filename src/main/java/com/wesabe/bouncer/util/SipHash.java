@@ -0,0 +1,74 @@
+package com.wesabe.bouncer.util;
+
+/**
+ * SipHash-2-4, a keyed hash function for short inputs.
+ * <p>
+ * Unlike FNV or {@link String#hashCode()}, its output can't be predicted (or
+ * collided on purpose) without the key, so it's safe to key a cache on when
+ * the input comes from an attacker.
+ *
+ * @author coda
+ * @see <a href="https://131002.net/siphash/">SipHash</a>
+ */
+public final class SipHash {
+	private SipHash() {
+		// use #hash(long, long, byte[], int, int)
+	}
+	
+	/**
+	 * Returns the SipHash-2-4 digest of part of an array.
+	 *
+	 * @param k0 the first 64 bits of the key, little-endian
+	 * @param k1 the last 64 bits of the key, little-endian
+	 * @param data the input
+	 * @param offset the index of the first byte to hash
+	 * @param length the number of bytes to hash
+	 * @return the 64-bit digest
+	 */
+	public static long hash(long k0, long k1, byte[] data, int offset, int length) {
+		long v0 = k0 ^ 0x736f6d6570736575L;
+		long v1 = k1 ^ 0x646f72616e646f6dL;
+		long v2 = k0 ^ 0x6c7967656e657261L;
+		long v3 = k1 ^ 0x7465646279746573L;
+		
+		final int end = offset + (length & ~7);
+		for (int i = offset; i < end; i += 8) {
+			final long m = littleEndian(data, i, 8);
+			v3 ^= m;
+			for (int round = 0; round < 2; round++) {
+				v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+				v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+				v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+				v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+			}
+			v0 ^= m;
+		}
+		
+		final long m = (((long) length) << 56) | littleEndian(data, end, length & 7);
+		v3 ^= m;
+		for (int round = 0; round < 2; round++) {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+		}
+		v0 ^= m;
+		
+		v2 ^= 0xff;
+		for (int round = 0; round < 4; round++) {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+		}
+		return v0 ^ v1 ^ v2 ^ v3;
+	}
+	
+	private static long littleEndian(byte[] data, int offset, int count) {
+		long value = 0;
+		for (int i = count - 1; i >= 0; i--) {
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,805 @@
+package com.wesabe.bouncer.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Predicate;
+
+/**
+ * A thread-safe, bounded cache which evicts the entries least likely to be
+ * used again, using the W-TinyLFU policy.
+ * <p>
+ * New entries go into a small LRU window (1% of the cache). Entries pushed
+ * out of the window must then win a place in the main cache, which is split
+ * into a probationary and a protected LRU segment: an entry is only admitted
+ * if it has been used at least as often as the probationary entry it would
+ * replace. How often keys have been used is estimated by a count-min sketch
+ * of 4-bit counters, which are halved periodically so that old popularity
+ * fades. A burst of one-off keys (e.g., a scan or credential stuffing) passes
+ * through the window without flushing the entries which are used all the
+ * time, and among entries used equally often, the oldest is evicted first.
+ * <p>
+ * Entries are kept in a {@link ConcurrentHashMap}, so reads never block.
+ * Instead of updating the policy directly, reads are recorded in striped,
+ * lossy ring buffers and writes are queued; whichever thread next gets the
+ * policy's lock replays them and evicts entries as needed. Under heavy
+ * contention the cache may briefly hold a few more entries than its maximum
+ * size. If a time to live is given, entries are treated as missing once they
+ * expire and are removed when they're next read or evicted.
+ * <p>
+ * By default each entry weighs 1, so the cache is bounded by its number of
+ * entries. Given a {@link Weigher}, it's bounded by the total weight of its
+ * entries instead (e.g., an estimate of their size in bytes), and a
+ * {@link RemovalListener} can release whatever an entry's value refers to
+ * once it's evicted, removed, or replaced.
+ *
+ * @author coda
+ *
+ * @param <K> the type of keys the cache has
+ * @param <V> the type of values the cache has
+ * @see <a href="http://arxiv.org/abs/1512.00727">TinyLFU: A Highly Efficient Cache Admission Policy</a>
+ */
+public class TinyLfuCache<K, V> {
+	/**
+	 * Calculates the weight of a cache entry.
+	 */
+	public interface Weigher<K, V> {
+		/**
+		 * Returns the weight of an entry, which must not be negative.
+		 */
+		public abstract int weigh(K key, V value);
+	}
+	
+	/**
+	 * Is told about values which have left the cache.
+	 */
+	public interface RemovalListener<K, V> {
+		/**
+		 * Called once a value has been evicted, removed, expired, or replaced.
+		 * Called from whichever thread caused the removal, sometimes while
+		 * holding the cache's policy lock, so it must be quick and must not
+		 * use the cache.
+		 */
+		public abstract void onRemoval(K key, V value);
+	}
+	
+	private static final Weigher<Object, Object> SINGLETON_WEIGHER = new Weigher<Object, Object>() {
+		@Override
+		public int weigh(Object key, Object value) {
+			return 1;
+		}
+	};
+	private static final int WINDOW = 1, PROBATION = 2, PROTECTED = 3;
+	private static final int READ_BUFFER_SIZE = 16;
+	private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+	private static final int READ_BUFFER_THRESHOLD = READ_BUFFER_SIZE / 2;
+	private static final int WRITE_BUFFER_THRESHOLD = 1024;
+	private static final int MAX_READ_BUFFERS = 64;
+	private static final int MAX_SKETCH_LENGTH = 1 << 24;
+	
+	private static class Node<K, V> {
+		private final K key;
+		private final int hash;
+		private volatile V value;
+		private volatile long writtenAt;
+		private volatile boolean alive = true;
+		
+		// guarded by the policy lock
+		private int queue, policyWeight;
+		private Node<K, V> prev, next;
+		
+		public Node(K key, V value, long writtenAt) {
+			this.key = key;
+			this.hash = spread(key.hashCode());
+			this.value = value;
+			this.writtenAt = writtenAt;
+		}
+	}
+	
+	/**
+	 * A doubly-linked list of nodes in access order, eldest first.
+	 */
+	private static class AccessOrderQueue<K, V> {
+		private final int id;
+		private Node<K, V> head, tail;
+		private int size;
+		private long weight;
+		
+		public AccessOrderQueue(int id) {
+			this.id = id;
+		}
+		
+		public void add(Node<K, V> node) {
+			node.queue = id;
+			node.prev = tail;
+			node.next = null;
+			if (tail == null) {
+				this.head = node;
+			} else {
+				tail.next = node;
+			}
+			this.tail = node;
+			size++;
+			weight += node.policyWeight;
+		}
+		
+		public void remove(Node<K, V> node) {
+			if (node.prev == null) {
+				this.head = node.next;
+			} else {
+				node.prev.next = node.next;
+			}
+			if (node.next == null) {
+				this.tail = node.prev;
+			} else {
+				node.next.prev = node.prev;
+			}
+			node.queue = 0;
+			node.prev = null;
+			node.next = null;
+			size--;
+			weight -= node.policyWeight;
+		}
+		
+		public void reweigh(Node<K, V> node, int newWeight) {
+			weight += newWeight - node.policyWeight;
+			node.policyWeight = newWeight;
+		}
+		
+		public void moveToBack(Node<K, V> node) {
+			if (node != tail) {
+				remove(node);
+				add(node);
+			}
+		}
+	}
+	
+	/**
+	 * A lossy ring buffer of reads. Any number of threads can record reads,
+	 * which are dropped if the buffer is full or contended; only the holder of
+	 * the policy lock drains it.
+	 */
+	private static class ReadBuffer<K, V> {
+		private final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+		private final AtomicLong writes = new AtomicLong();
+		private volatile long reads;
+		
+		/**
+		 * Records a read, returning {@code true} if the buffer should be
+		 * drained.
+		 */
+		public boolean offer(Node<K, V> node) {
+			final long w = writes.get();
+			final long pending = w - reads;
+			if (pending >= READ_BUFFER_SIZE) {
+				return true;
+			}
+			
+			if (writes.compareAndSet(w, w + 1)) {
+				slots.lazySet((int) (w & READ_BUFFER_MASK), node);
+			}
+			return pending >= READ_BUFFER_THRESHOLD;
+		}
+		
+		public void drain(TinyLfuCache<K, V> cache) {
+			long r = reads;
+			final long w = writes.get();
+			for (; r < w; r++) {
+				final int index = (int) (r & READ_BUFFER_MASK);
+				final Node<K, V> node = slots.get(index);
+				if (node == null) {
+					// a writer has claimed this slot but not filled it yet
+					break;
+				}
+				slots.lazySet(index, null);
+				cache.onRead(node);
+			}
+			this.reads = r;
+		}
+	}
+	
+	/**
+	 * A count-min sketch of how often keys have been used, with four 4-bit
+	 * counters per key packed sixteen to a {@code long}. Once it has counted
+	 * ten times as many uses as it has counters, every counter is halved. It
+	 * grows (forgetting what it has counted) as the cache does, so that
+	 * caches bounded by weight don't have to guess their size up front.
+	 */
+	private static class FrequencySketch {
+		private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+		};
+		private static final long RESET_MASK = 0x7777777777777777L;
+		private static final long ONE_MASK = 0x1111111111111111L;
+		private static final int MIN_SKETCH_LENGTH = 64;
+		
+		private long[] table;
+		private int mask, sampleSize, size;
+		
+		public FrequencySketch() {
+			// small caches get a bigger table, so a few keys don't collide
+			allocate(MIN_SKETCH_LENGTH);
+		}
+		
+		public void ensureCapacity(int entries) {
+			if ((entries > table.length) && (table.length < MAX_SKETCH_LENGTH)) {
+				allocate(Math.min(ceilingPowerOfTwo(entries), MAX_SKETCH_LENGTH));
+			}
+		}
+		
+		private void allocate(int length) {
+			this.table = new long[length];
+			this.mask = length - 1;
+			this.sampleSize = 10 * length;
+			this.size = 0;
+		}
+		
+		public int frequency(int hash) {
+			final int start = (hash & 3) << 2;
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				final int index = indexOf(hash, i);
+				final int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+				frequency = Math.min(frequency, count);
+			}
+			return frequency;
+		}
+		
+		public void increment(int hash) {
+			final int start = (hash & 3) << 2;
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				added |= incrementAt(indexOf(hash, i), start + i);
+			}
+			
+			if (added && (++size == sampleSize)) {
+				reset();
+			}
+		}
+		
+		private boolean incrementAt(int index, int counter) {
+			final int offset = counter << 2;
+			final long counterMask = 0xfL << offset;
+			if ((table[index] & counterMask) != counterMask) {
+				table[index] += 1L << offset;
+				return true;
+			}
+			return false;
+		}
+		
+		private void reset() {
+			int odd = 0;
+			for (int i = 0; i < table.length; i++) {
+				odd += Long.bitCount(table[i] & ONE_MASK);
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+			this.size = (size >>> 1) - (odd >>> 2);
+		}
+		
+		private int indexOf(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += h >>> 32;
+			return ((int) h) & mask;
+		}
+	}
+	
+	private final ConcurrentHashMap<K, Node<K, V>> entries;
+	private final long maxWeight, windowMaxWeight, protectedMaxWeight;
+	private final Weigher<? super K, ? super V> weigher;
+	private final RemovalListener<? super K, ? super V> listener;
+	private final long ttl;
+	private final Clock clock;
+	private final ReentrantLock policyLock = new ReentrantLock();
+	private final ReadBuffer<K, V>[] readBuffers;
+	private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger pendingWrites = new AtomicInteger();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong expirationCount = new AtomicLong();
+	
+	private volatile long weight;
+	
+	// guarded by the policy lock
+	private final FrequencySketch sketch = new FrequencySketch();
+	private final AccessOrderQueue<K, V> window = new AccessOrderQueue<K, V>(WINDOW);
+	private final AccessOrderQueue<K, V> probation = new AccessOrderQueue<K, V>(PROBATION);
+	private final AccessOrderQueue<K, V> protectedQueue = new AccessOrderQueue<K, V>(PROTECTED);
+	
+	/**
+	 * Creates a new {@link TinyLfuCache} whose entries never expire.
+	 *
+	 * @param maxSize the maximum number of entries the cache can have, or
+	 *                {@code 0} to disable it
+	 */
+	public TinyLfuCache(int maxSize) {
+		this(maxSize, 0, Clock.system());
+	}
+	
+	/**
+	 * Creates a new {@link TinyLfuCache}.
+	 *
+	 * @param maxSize the maximum number of entries the cache can have, or
+	 *                {@code 0} to disable it
+	 * @param ttl the number of milliseconds after being written that an entry
+	 *            expires, or {@code 0} if entries never expire
+	 * @param clock the {@link Clock} used to expire entries
+	 */
+	public TinyLfuCache(int maxSize, long ttl, Clock clock) {
+		this(maxSize, SINGLETON_WEIGHER, null, ttl, clock);
+	}
+	
+	/**
+	 * Creates a new {@link TinyLfuCache} bounded by the total weight of its
+	 * entries.
+	 *
+	 * @param maxWeight the maximum total weight of the cache's entries, or
+	 *                  {@code 0} to disable it
+	 * @param weigher the {@link Weigher} which weighs each entry as it's
+	 *                written
+	 * @param listener the {@link RemovalListener} to tell about values which
+	 *                 leave the cache, or {@code null}
+	 * @param ttl the number of milliseconds after being written that an entry
+	 *            expires, or {@code 0} if entries never expire
+	 * @param clock the {@link Clock} used to expire entries
+	 */
+	public TinyLfuCache(long maxWeight, Weigher<? super K, ? super V> weigher,
+			RemovalListener<? super K, ? super V> listener, long ttl, Clock clock) {
+		this.maxWeight = maxWeight;
+		this.windowMaxWeight = Math.max(1, maxWeight / 100);
+		this.protectedMaxWeight = (long) ((maxWeight - windowMaxWeight) * 0.8);
+		this.weigher = weigher;
+		this.listener = listener;
+		this.ttl = ttl;
+		this.clock = clock;
+		this.entries = new ConcurrentHashMap<K, Node<K, V>>((int) Math.min(maxWeight, 1 << 16));
+		
+		final int stripes = Math.min(ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors()), MAX_READ_BUFFERS);
+		this.readBuffers = newReadBuffers(stripes);
+	}
+	
+	/**
+	 * Returns the value for {@code key}, or {@code null} if there is none or
+	 * it has expired.
+	 */
+	public V get(K key) {
+		final Node<K, V> node = entries.get(key);
+		if (node == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		
+		if (isExpired(node)) {
+			if (remove(node) != null) {
+				expirationCount.incrementAndGet();
+			}
+			missCount.incrementAndGet();
+			return null;
+		}
+		
+		final V value = node.value;
+		hitCount.incrementAndGet();
+		if (getReadBuffer().offer(node)) {
+			tryToMaintain();
+		}
+		return value;
+	}
+	
+	/**
+	 * Maps {@code key} to {@code value}, replacing any existing value.
+	 *
+	 * @return the previous value, or {@code null} if there was none
+	 */
+	public V put(K key, V value) {
+		if (maxWeight <= 0) {
+			return null;
+		}
+		
+		final int entryWeight = weigher.weigh(key, value);
+		final long now = (ttl > 0) ? clock.getTime() : 0;
+		Node<K, V> node = null;
+		while (true) {
+			final Node<K, V> existing = entries.get(key);
+			if (existing == null) {
+				if (node == null) {
+					node = new Node<K, V>(key, value, now);
+				}
+				if (entries.putIfAbsent(key, node) == null) {
+					afterWrite(new AddTask(node, entryWeight));
+					return null;
+				}
+			} else {
+				final V previous;
+				final boolean expired;
+				synchronized (existing) {
+					if (!existing.alive) {
+						// it's being removed; wait for it to be gone and try
+						// again
+						continue;
+					}
+					previous = existing.value;
+					expired = isExpired(existing);
+					existing.value = value;
+					existing.writtenAt = now;
+				}
+				// never wait for the policy lock while holding a node's, as
+				// eviction takes them in the opposite order
+				afterWrite(new UpdateTask(existing, entryWeight));
+				if ((previous != value) && (listener != null)) {
+					listener.onRemoval(key, previous);
+				}
+				return expired ? null : previous;
+			}
+		}
+	}
+	
+	/**
+	 * Removes the value for {@code key}.
+	 *
+	 * @return the removed value, or {@code null} if there was none
+	 */
+	public V remove(K key) {
+		final Node<K, V> node = entries.get(key);
+		if (node != null) {
+			return remove(node);
+		}
+		return null;
+	}
+	
+	/**
+	 * Removes all entries whose values match {@code predicate}.
+	 *
+	 * @param predicate the predicate which selects values to remove
+	 * @return the number of entries removed
+	 */
+	public int removeValues(Predicate<? super V> predicate) {
+		int removed = 0;
+		for (Node<K, V> node : entries.values()) {
+			if (predicate.apply(node.value) && (remove(node) != null)) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+	
+	/**
+	 * Removes all entries.
+	 */
+	public void clear() {
+		for (Node<K, V> node : entries.values()) {
+			remove(node);
+		}
+	}
+	
+	/**
+	 * Replays any outstanding reads and writes and evicts entries until the
+	 * cache is within its maximum size.
+	 */
+	public void cleanUp() {
+		policyLock.lock();
+		try {
+			maintain();
+		} finally {
+			policyLock.unlock();
+		}
+		tryToMaintain();
+	}
+	
+	/**
+	 * Returns the number of entries in the cache, including any which have
+	 * expired but haven't been removed yet.
+	 */
+	public int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the cache's maximum total weight, which is its maximum number
+	 * of entries if it has no {@link Weigher}.
+	 */
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+	
+	/**
+	 * Returns the total weight of the entries in the cache.
+	 */
+	public long getWeight() {
+		return weight;
+	}
+	
+	/**
+	 * Returns the number of reads which found a value.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+	
+	/**
+	 * Returns the number of reads which found no value.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+	
+	/**
+	 * Returns the number of entries which have been evicted to keep the cache
+	 * within its maximum size.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+	
+	/**
+	 * Returns the number of entries which have been removed because they
+	 * expired.
+	 */
+	public long getExpirationCount() {
+		return expirationCount.get();
+	}
+	
+	private boolean isExpired(Node<K, V> node) {
+		return (ttl > 0) && ((clock.getTime() - node.writtenAt) >= ttl);
+	}
+	
+	/**
+	 * Unpublishes a node, returning its value if this call removed it.
+	 */
+	private V remove(Node<K, V> node) {
+		final V value;
+		synchronized (node) {
+			if (!node.alive) {
+				return null;
+			}
+			node.alive = false;
+			entries.remove(node.key, node);
+			value = node.value;
+		}
+		afterWrite(new RemoveTask(node));
+		if (listener != null) {
+			listener.onRemoval(node.key, value);
+		}
+		return value;
+	}
+	
+	private ReadBuffer<K, V> getReadBuffer() {
+		final int hash = (int) Thread.currentThread().getId() * 0x9E3779B9;
+		return readBuffers[(hash >>> 16) & (readBuffers.length - 1)];
+	}
+	
+	private void afterWrite(Runnable task) {
+		writeBuffer.add(task);
+		if (pendingWrites.incrementAndGet() > WRITE_BUFFER_THRESHOLD) {
+			// don't let writers outrun the policy
+			policyLock.lock();
+			try {
+				maintain();
+			} finally {
+				policyLock.unlock();
+			}
+		}
+		tryToMaintain();
+	}
+	
+	/*
+	 * If the lock is held, its holder will replay anything which was queued
+	 * before it unlocks, because it checks again after unlocking.
+	 */
+	private void tryToMaintain() {
+		do {
+			if (!policyLock.tryLock()) {
+				return;
+			}
+			try {
+				maintain();
+			} finally {
+				policyLock.unlock();
+			}
+		} while (!writeBuffer.isEmpty());
+	}
+	
+	private void maintain() {
+		Runnable task;
+		while ((task = writeBuffer.poll()) != null) {
+			pendingWrites.decrementAndGet();
+			task.run();
+		}
+		
+		for (ReadBuffer<K, V> buffer : readBuffers) {
+			buffer.drain(this);
+		}
+		
+		evict();
+	}
+	
+	private void onRead(Node<K, V> node) {
+		if (node.queue != 0) {
+			sketch.increment(node.hash);
+			onAccess(node);
+		}
+	}
+	
+	private void onAccess(Node<K, V> node) {
+		switch (node.queue) {
+		case WINDOW:
+			window.moveToBack(node);
+			break;
+		case PROBATION:
+			probation.remove(node);
+			protectedQueue.add(node);
+			while ((protectedQueue.weight > protectedMaxWeight) && (protectedQueue.head != null)) {
+				final Node<K, V> demoted = protectedQueue.head;
+				protectedQueue.remove(demoted);
+				probation.add(demoted);
+			}
+			break;
+		case PROTECTED:
+			protectedQueue.moveToBack(node);
+			break;
+		}
+	}
+	
+	private void evict() {
+		// entries pushed out of the window become candidates for the main
+		// cache, at the back of the probationary segment
+		Node<K, V> candidate = null;
+		while ((window.weight > windowMaxWeight) && (window.head != null)) {
+			final Node<K, V> node = window.head;
+			window.remove(node);
+			probation.add(node);
+			if (candidate == null) {
+				candidate = node;
+			}
+		}
+		
+		while ((window.weight + probation.weight + protectedQueue.weight) > maxWeight) {
+			Node<K, V> victim = probation.head;
+			if ((victim == null) || (victim == candidate)) {
+				// the candidates are all that's on probation, so they compete
+				// with the least recently used protected entry instead
+				if (protectedQueue.head != null) {
+					victim = protectedQueue.head;
+				} else if (victim == null) {
+					victim = window.head;
+				}
+			}
+			
+			if ((candidate != null) && (victim != candidate)
+					&& (sketch.frequency(candidate.hash) < sketch.frequency(victim.hash))) {
+				victim = candidate;
+			}
+			
+			if (victim == candidate) {
+				candidate = candidate.next;
+			}
+			evict(victim);
+		}
+		this.weight = window.weight + probation.weight + protectedQueue.weight;
+	}
+	
+	private void evict(Node<K, V> node) {
+		unlink(node);
+		final V value;
+		synchronized (node) {
+			if (!node.alive) {
+				return;
+			}
+			node.alive = false;
+			entries.remove(node.key, node);
+			value = node.value;
+			if (isExpired(node)) {
+				expirationCount.incrementAndGet();
+			} else {
+				evictionCount.incrementAndGet();
+			}
+		}
+		if (listener != null) {
+			listener.onRemoval(node.key, value);
+		}
+	}
+	
+	private void unlink(Node<K, V> node) {
+		if (node.queue != 0) {
+			queueOf(node).remove(node);
+		}
+	}
+	
+	private AccessOrderQueue<K, V> queueOf(Node<K, V> node) {
+		switch (node.queue) {
+		case WINDOW:
+			return window;
+		case PROBATION:
+			return probation;
+		default:
+			return protectedQueue;
+		}
+	}
+	
+	private class AddTask implements Runnable {
+		private final Node<K, V> node;
+		private final int weight;
+		
+		public AddTask(Node<K, V> node, int weight) {
+			this.node = node;
+			this.weight = weight;
+		}
+		
+		@Override
+		public void run() {
+			// if it was removed before this ran, there's nothing to add
+			if (node.alive && (node.queue == 0)) {
+				node.policyWeight = weight;
+				if (weight > maxWeight) {
+					// it couldn't fit even on its own, so it goes straight
+					// away rather than pushing out entries which could
+					evict(node);
+					return;
+				}
+				window.add(node);
+				sketch.ensureCapacity(window.size + probation.size + protectedQueue.size);
+				sketch.increment(node.hash);
+			}
+		}
+	}
+	
+	private class UpdateTask implements Runnable {
+		private final Node<K, V> node;
+		private final int weight;
+		
+		public UpdateTask(Node<K, V> node, int weight) {
+			this.node = node;
+			this.weight = weight;
+		}
+		
+		@Override
+		public void run() {
+			if (node.queue != 0) {
+				if (weight > maxWeight) {
+					evict(node);
+					return;
+				}
+				queueOf(node).reweigh(node, weight);
+				sketch.increment(node.hash);
+				onAccess(node);
+			}
+		}
+	}
+	
+	private class RemoveTask implements Runnable {
+		private final Node<K, V> node;
+		
+		public RemoveTask(Node<K, V> node) {
+			this.node = node;
+		}
+		
+		@Override
+		public void run() {
+			unlink(node);
+		}
+	}
+	
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+	
+	private static <K, V> ReadBuffer<K, V>[] newReadBuffers(int stripes) {
+		// arrays of a generic type can't be created, but every element of this
+		// one is a ReadBuffer<K, V>
+		@SuppressWarnings("unchecked")
+		final ReadBuffer<K, V>[] buffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[stripes];
+		for (int i = 0; i < stripes; i++) {
+			buffers[i] = new ReadBuffer<K, V>();
+		}
+		return buffers;
+	}
+	
+	private static int ceilingPowerOfTwo(int x) {
+		return 1 << (32 - Integer.numberOfLeadingZeros(Math.max(x, 2) - 1));
+	}
+}
@@ -0,0 +1,358 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+
+import net.spy.memcached.MemcachedClientIF;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.server.Authentication;
+import org.eclipse.jetty.server.Request;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.wesabe.bouncer.auth.AsyncWesabeAuthenticator;
+import com.wesabe.bouncer.auth.CredentialCache;
+import com.wesabe.bouncer.auth.FailedLogins;
+import com.wesabe.bouncer.auth.JdbcUserStore;
+import com.wesabe.bouncer.auth.LockStateCache;
+import com.wesabe.bouncer.auth.MemcachedThrottleStore;
+import com.wesabe.bouncer.auth.NegativeLookupCache;
+import com.wesabe.bouncer.auth.SessionTokens;
+import com.wesabe.bouncer.auth.WesabeCredentials;
+import com.wesabe.bouncer.limits.Tarpit;
+import com.wesabe.bouncer.stats.StatsRegistry;
+import com.wesabe.bouncer.util.CircuitBreaker;
+
+@RunWith(Enclosed.class)
+public class AsyncWesabeAuthenticatorTest {
+	private static abstract class Context {
+		protected DataSource dataSource;
+		protected Connection connection;
+		protected PreparedStatement statement;
+		protected ResultSet resultSet;
+		protected MemcachedClientIF memcached;
+		protected Request request;
+		protected HttpServletResponse response;
+		protected Continuation continuation;
+		protected Queue<Runnable> tasks;
+		protected Executor executor;
+		protected AsyncWesabeAuthenticator authenticator;
+		
+		public void setup() throws Exception {
+			this.resultSet = mock(ResultSet.class);
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("uid")).thenReturn("FrankyDoo!");
+			when(resultSet.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+			
+			this.statement = mock(PreparedStatement.class);
+			when(statement.executeQuery()).thenReturn(resultSet);
+			
+			this.connection = mock(Connection.class);
+			when(connection.prepareStatement(anyString())).thenReturn(statement);
+			
+			this.dataSource = mock(DataSource.class);
+			when(dataSource.getConnection()).thenReturn(connection);
+			
+			this.memcached = mock(MemcachedClientIF.class);
+			when(memcached.incr("failed-logins:200", 1)).thenReturn(1L);
+			
+			this.continuation = mock(Continuation.class);
+			final Map<String, Object> attributes = new HashMap<String, Object>();
+			doAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) throws Throwable {
+					attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+					return null;
+				}
+			}).when(continuation).setAttribute(anyString(), anyObject());
+			when(continuation.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) throws Throwable {
+					return attributes.get(invocation.getArguments()[0]);
+				}
+			});
+			doAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) throws Throwable {
+					attributes.remove(invocation.getArguments()[0]);
+					return null;
+				}
+			}).when(continuation).removeAttribute(anyString());
+			
+			this.request = mock(Request.class);
+			when(request.getAttribute(Continuation.ATTRIBUTE)).thenReturn(continuation);
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286bWF0aA==");
+			
+			this.response = mock(HttpServletResponse.class);
+			
+			this.tasks = new LinkedList<Runnable>();
+			this.executor = new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					tasks.add(command);
+				}
+			};
+			
+			this.authenticator = new AsyncWesabeAuthenticator("wesabe", new JdbcUserStore(dataSource, new StatsRegistry()), new MemcachedThrottleStore(memcached), new CredentialCache(0, 0), new NegativeLookupCache(0, 0), CircuitBreaker.disabled(), SessionTokens.disabled(), Tarpit.disabled(), new FailedLogins(new MemcachedThrottleStore(memcached)), new LockStateCache(0, 0), new StatsRegistry(), executor, 2000);
+			
+			Logger.getLogger("com.wesabe").setLevel(Level.OFF);
+		}
+		
+		protected void runTasks() {
+			while (!tasks.isEmpty()) {
+				tasks.remove().run();
+			}
+		}
+	}
+	
+	public static class Dispatching_A_Request extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itSuspendsTheRequest() throws Exception {
+			final Authentication authentication = authenticator.validateRequest(request, response, true);
+			
+			assertSame(Authentication.SEND_CONTINUE, authentication);
+			verify(continuation).setTimeout(2000);
+			verify(continuation).suspend();
+		}
+		
+		@Test
+		public void itDoesNotTouchTheDatabaseOnTheServerThread() throws Exception {
+			authenticator.validateRequest(request, response, true);
+			
+			verify(dataSource, never()).getConnection();
+			assertEquals(1, tasks.size());
+		}
+		
+		@Test
+		public void itResumesTheRequestOnceAuthenticated() throws Exception {
+			authenticator.validateRequest(request, response, true);
+			runTasks();
+			
+			verify(dataSource).getConnection();
+			verify(continuation).resume();
+		}
+	}
+	
+	public static class Dispatching_A_Request_With_Recently_Verified_Credentials extends Context {
+		private CredentialCache credentialCache;
+		private LockStateCache lockStates;
+		
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.credentialCache = new CredentialCache(100, 60);
+			this.lockStates = new LockStateCache(100, 1000);
+			this.authenticator = new AsyncWesabeAuthenticator("wesabe", new JdbcUserStore(dataSource, new StatsRegistry()), new MemcachedThrottleStore(memcached), credentialCache, new NegativeLookupCache(0, 0), CircuitBreaker.disabled(), SessionTokens.disabled(), Tarpit.disabled(), new FailedLogins(new MemcachedThrottleStore(memcached)), lockStates, new StatsRegistry(), executor, 2000);
+			credentialCache.put("Basic ZGluZ286bWF0aA==", new WesabeCredentials(200, "woo"));
+		}
+		
+		@Test
+		public void itAuthenticatesTheRequestOnTheServerThread() throws Exception {
+			final Authentication authentication = authenticator.validateRequest(request, response, true);
+			
+			assertTrue(authentication instanceof Authentication.User);
+			final WesabeCredentials credentials = (WesabeCredentials) ((Authentication.User) authentication).getUserIdentity().getUserPrincipal();
+			assertEquals(200, credentials.getUserId());
+			verify(continuation, never()).suspend();
+			assertTrue(tasks.isEmpty());
+		}
+		
+		@Test
+		public void itSuspendsTheRequestIfTheUserIsLocked() throws Exception {
+			lockStates.lock(200, 60);
+			
+			assertSame(Authentication.SEND_CONTINUE, authenticator.validateRequest(request, response, true));
+			verify(continuation).suspend();
+			assertEquals(1, tasks.size());
+		}
+		
+		@Test
+		public void itOnlyChecksTheCacheOnceForOtherCredentials() throws Exception {
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286YmFk");
+			authenticator.validateRequest(request, response, true);
+			runTasks();
+			
+			verify(continuation).suspend();
+			assertEquals(1L, credentialCache.getMissCount());
+		}
+	}
+	
+	public static class Redispatching_An_Authenticated_Request extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			authenticator.validateRequest(request, response, true);
+			runTasks();
+		}
+		
+		@Test
+		public void itReturnsTheUsersCredentials() throws Exception {
+			final Authentication authentication = authenticator.validateRequest(request, response, true);
+			
+			assertTrue(authentication instanceof Authentication.User);
+			final WesabeCredentials credentials = (WesabeCredentials) ((Authentication.User) authentication).getUserIdentity().getUserPrincipal();
+			assertEquals(200, credentials.getUserId());
+		}
+		
+		@Test
+		public void itDoesNotSuspendTheRequestAgain() throws Exception {
+			authenticator.validateRequest(request, response, true);
+			
+			verify(continuation, times(1)).suspend();
+		}
+	}
+	
+	public static class Redispatching_A_Request_With_Bad_Credentials extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(resultSet.getString("password_hash")).thenReturn("DEADBEEF");
+			authenticator.validateRequest(request, response, true);
+			runTasks();
+		}
+		
+		@Test
+		public void itSendsA401() throws Exception {
+			final Authentication authentication = authenticator.validateRequest(request, response, true);
+			
+			assertSame(Authentication.SEND_CONTINUE, authentication);
+			verify(response).setHeader("WWW-Authenticate", "basic realm=\"wesabe\"");
+			verify(response).sendError(401);
+		}
+	}
+	
+	public static class Dispatching_A_Request_When_The_Executor_Is_Saturated extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.authenticator = new AsyncWesabeAuthenticator("wesabe", new JdbcUserStore(dataSource, new StatsRegistry()), new MemcachedThrottleStore(memcached), new CredentialCache(0, 0), new NegativeLookupCache(0, 0), CircuitBreaker.disabled(), SessionTokens.disabled(), Tarpit.disabled(), new FailedLogins(new MemcachedThrottleStore(memcached)), new LockStateCache(0, 0), new StatsRegistry(), new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					throw new RejectedExecutionException();
+				}
+			}, 2000);
+		}
+		
+		@Test
+		public void itResumesTheRequestImmediately() throws Exception {
+			authenticator.validateRequest(request, response, true);
+			
+			verify(continuation).resume();
+		}
+		
+		@Test
+		public void itSendsA503WhenRedispatched() throws Exception {
+			authenticator.validateRequest(request, response, true);
+			final Authentication authentication = authenticator.validateRequest(request, response, true);
+			
+			assertSame(Authentication.SEND_FAILURE, authentication);
+			verify(response).sendError(503);
+			verify(dataSource, never()).getConnection();
+		}
+	}
+	
+	public static class Redispatching_A_Request_Which_Timed_Out extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			authenticator.validateRequest(request, response, true);
+			when(continuation.isExpired()).thenReturn(true);
+		}
+		
+		@Test
+		public void itSendsA503() throws Exception {
+			final Authentication authentication = authenticator.validateRequest(request, response, true);
+			
+			assertSame(Authentication.SEND_FAILURE, authentication);
+			verify(response).sendError(503);
+		}
+		
+		@Test
+		public void itNeverResumesTheContinuationAfterwards() throws Exception {
+			authenticator.validateRequest(request, response, true);
+			runTasks();
+			
+			verify(continuation, never()).resume();
+		}
+	}
+	
+	public static class Finishing_An_Authentication_After_The_Request_Timed_Out extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			authenticator.validateRequest(request, response, true);
+			when(continuation.isExpired()).thenReturn(true);
+			doThrow(new IllegalStateException()).when(continuation).resume();
+		}
+		
+		@Test
+		public void itDoesNotResumeTheContinuation() throws Exception {
+			runTasks();
+			
+			verify(continuation, never()).resume();
+		}
+		
+		@Test
+		public void itSendsTheResultWhenTheRequestIsRedispatched() throws Exception {
+			runTasks();
+			
+			final Authentication authentication = authenticator.validateRequest(request, response, true);
+			
+			assertTrue(authentication instanceof Authentication.User);
+		}
+	}
+	
+	public static class Finishing_An_Authentication_As_The_Request_Times_Out extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			authenticator.validateRequest(request, response, true);
+			doThrow(new IllegalStateException()).when(continuation).resume();
+		}
+		
+		@Test
+		public void itSurvivesTheContinuationExpiringBeforeItIsResumed() throws Exception {
+			runTasks();
+			
+			verify(continuation).resume();
+			final Authentication authentication = authenticator.validateRequest(request, response, true);
+			
+			assertTrue(authentication instanceof Authentication.User);
+		}
+	}
+}
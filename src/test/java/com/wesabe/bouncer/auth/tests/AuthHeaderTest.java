@@ -0,0 +1,148 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.auth.AuthHeader;
+
+@RunWith(Enclosed.class)
+public class AuthHeaderTest {
+	private static String basic(byte[] credentials) {
+		return "Basic " + new String(Base64.encodeBase64(credentials));
+	}
+	
+	public static class Parsing_A_Well_Formed_Header {
+		@Test
+		public void itHasAUsername() throws Exception {
+			assertThat(AuthHeader.parse("Basic ZGluZ286bWF0aA==").getUsername(), is("dingo"));
+		}
+		
+		@Test
+		public void itHasAPassword() throws Exception {
+			assertThat(AuthHeader.parse("Basic ZGluZ286bWF0aA==").getPassword(), is("math"));
+		}
+		
+		@Test
+		public void itSplitsOnTheFirstColon() throws Exception {
+			final AuthHeader header = AuthHeader.parse(basic("dingo:ma:th".getBytes("UTF-8")));
+			
+			assertThat(header.getUsername(), is("dingo"));
+			assertThat(header.getPassword(), is("ma:th"));
+		}
+		
+		@Test
+		public void itAllowsAnEmptyPassword() throws Exception {
+			assertThat(AuthHeader.parse(basic("dingo:".getBytes("UTF-8"))).getPassword(), is(""));
+		}
+		
+		@Test
+		public void itAllowsMissingPadding() throws Exception {
+			assertThat(AuthHeader.parse("Basic ZGluZ286bWF0aA").getPassword(), is("math"));
+		}
+		
+		@Test
+		public void itIgnoresSurroundingWhitespace() throws Exception {
+			assertThat(AuthHeader.parse("Basic  ZGluZ286bWF0aA== ").getUsername(), is("dingo"));
+		}
+		
+		@Test
+		public void itDecodesLongCredentials() throws Exception {
+			final StringBuilder password = new StringBuilder();
+			for (int i = 0; i < 500; i++) {
+				password.append("math");
+			}
+			
+			final AuthHeader header = AuthHeader.parse(basic(("dingo:" + password).getBytes("UTF-8")));
+			assertThat(header.getPassword(), is(password.toString()));
+		}
+	}
+	
+	public static class Parsing_A_Header_With_Non_ASCII_Credentials {
+		@Test
+		public void itDecodesUTF8() throws Exception {
+			final AuthHeader header = AuthHeader.parse(basic("d\u00eengo:m\u00e4th\u2603".getBytes("UTF-8")));
+			
+			assertThat(header.getUsername(), is("d\u00eengo"));
+			assertThat(header.getPassword(), is("m\u00e4th\u2603"));
+		}
+		
+		@Test
+		public void itFallsBackToISO88591ForInvalidUTF8() throws Exception {
+			final AuthHeader header = AuthHeader.parse(basic("d\u00eengo:m\u00e4th".getBytes("ISO-8859-1")));
+			
+			assertThat(header.getUsername(), is("d\u00eengo"));
+			assertThat(header.getPassword(), is("m\u00e4th"));
+		}
+	}
+	
+	public static class Parsing_Malformed_Headers {
+		@Test
+		public void itReturnsNullForAMissingHeader() throws Exception {
+			assertThat(AuthHeader.parse(null), is(nullValue()));
+		}
+		
+		@Test
+		public void itReturnsNullForANonBasicHeader() throws Exception {
+			assertThat(AuthHeader.parse("Digest ZGluZ286bWF0aA=="), is(nullValue()));
+		}
+		
+		@Test
+		public void itReturnsNullForABlankHeader() throws Exception {
+			assertThat(AuthHeader.parse("Basic "), is(nullValue()));
+			assertThat(AuthHeader.parse("Basic    "), is(nullValue()));
+		}
+		
+		@Test
+		public void itReturnsNullForNonBase64Characters() throws Exception {
+			assertThat(AuthHeader.parse("Basic ZGluZ2*6bWF0aA=="), is(nullValue()));
+			assertThat(AuthHeader.parse("Basic ZGluZ286bWF0aA\u00e9="), is(nullValue()));
+		}
+		
+		@Test
+		public void itReturnsNullForBadPadding() throws Exception {
+			assertThat(AuthHeader.parse("Basic ZGluZ286bWF0aA="), is(nullValue()));
+			assertThat(AuthHeader.parse("Basic ZGluZ286bWF0aA==="), is(nullValue()));
+			assertThat(AuthHeader.parse("Basic ZGluZ2=6bWF0aA=="), is(nullValue()));
+		}
+		
+		@Test
+		public void itReturnsNullForATruncatedQuantum() throws Exception {
+			assertThat(AuthHeader.parse("Basic ZGluZ286bWF0a"), is(nullValue()));
+		}
+		
+		@Test
+		public void itReturnsNullWithoutASeparator() throws Exception {
+			assertThat(AuthHeader.parse("Basic ZGluZ28="), is(nullValue()));
+		}
+		
+		@Test
+		public void itReturnsNullWithoutAUsername() throws Exception {
+			assertThat(AuthHeader.parse(basic(":math".getBytes("UTF-8"))), is(nullValue()));
+		}
+		
+		@Test
+		public void itReturnsNullForAnOverlongHeader() throws Exception {
+			final StringBuilder builder = new StringBuilder("Basic ZGluZ286");
+			for (int i = 0; i < 3000; i++) {
+				builder.append("bWF0");
+			}
+			assertThat(AuthHeader.parse(builder.toString()), is(nullValue()));
+		}
+	}
+	
+	public static class Parsing_A_Second_Header_On_The_Same_Thread {
+		@Test
+		public void itReplacesTheFirstHeader() throws Exception {
+			AuthHeader.parse(basic("dingo:math".getBytes("UTF-8"))).getUsername();
+			final AuthHeader header = AuthHeader.parse(basic("ringo:drums".getBytes("UTF-8")));
+			
+			assertThat(header.getUsername(), is("ringo"));
+			assertThat(header.getPassword(), is("drums"));
+		}
+	}
+}
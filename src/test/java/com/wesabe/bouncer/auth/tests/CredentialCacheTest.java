@@ -0,0 +1,180 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.auth.CredentialCache;
+import com.wesabe.bouncer.auth.WesabeCredentials;
+import com.wesabe.bouncer.util.Clock;
+
+@RunWith(Enclosed.class)
+public class CredentialCacheTest {
+	private static abstract class Context {
+		protected Clock clock;
+		protected CredentialCache cache;
+		protected WesabeCredentials credentials;
+		
+		public void setup() throws Exception {
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			
+			this.cache = new CredentialCache(2, 30, clock);
+			this.credentials = new WesabeCredentials(200, "woo");
+		}
+	}
+	
+	public static class An_Empty_Cache extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itIsEnabled() throws Exception {
+			assertThat(cache.isEnabled(), is(true));
+		}
+		
+		@Test
+		public void itReturnsNullForAnUnknownHeader() throws Exception {
+			assertThat(cache.get("Basic ZGluZ286bWF0aA=="), is(nullValue()));
+			assertThat(cache.getMissCount(), is(1L));
+		}
+		
+		@Test
+		public void itReturnsNullForAMissingHeader() throws Exception {
+			assertThat(cache.get(null), is(nullValue()));
+		}
+	}
+	
+	public static class A_Cache_With_Credentials extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			cache.put("Basic ZGluZ286bWF0aA==", credentials);
+		}
+		
+		@Test
+		public void itReturnsTheCredentialsForTheSameHeader() throws Exception {
+			assertThat(cache.get("Basic ZGluZ286bWF0aA=="), is(sameInstance(credentials)));
+			assertThat(cache.getHitCount(), is(1L));
+			assertThat(cache.getMissCount(), is(0L));
+		}
+		
+		@Test
+		public void itReturnsNullForADifferentPassword() throws Exception {
+			assertThat(cache.get("Basic ZGluZ286bWF0aQ=="), is(nullValue()));
+		}
+		
+		@Test
+		public void itExpiresCredentialsAfterTheTTL() throws Exception {
+			when(clock.getTime()).thenReturn(130000L);
+			
+			assertThat(cache.get("Basic ZGluZ286bWF0aA=="), is(nullValue()));
+			assertThat(cache.size(), is(0));
+			assertThat(cache.getEvictionCount(), is(1L));
+		}
+		
+		@Test
+		public void itEvictsTheOldestCredentialsWhenFull() throws Exception {
+			cache.put("Basic b25lOm9uZQ==", new WesabeCredentials(1, "one"));
+			cache.put("Basic dHdvOnR3bw==", new WesabeCredentials(2, "two"));
+			
+			assertThat(cache.size(), is(2));
+			assertThat(cache.get("Basic ZGluZ286bWF0aA=="), is(nullValue()));
+			assertThat(cache.getEvictionCount(), is(1L));
+		}
+		
+		@Test
+		public void itInvalidatesCredentialsByUserId() throws Exception {
+			cache.put("Basic b25lOm9uZQ==", new WesabeCredentials(1, "one"));
+			
+			assertThat(cache.invalidate(200), is(1));
+			assertThat(cache.get("Basic ZGluZ286bWF0aA=="), is(nullValue()));
+			assertThat(cache.get("Basic b25lOm9uZQ=="), is(notNullValue()));
+		}
+		
+		@Test
+		public void itInvalidatesAllCredentials() throws Exception {
+			cache.invalidateAll();
+			
+			assertThat(cache.size(), is(0));
+		}
+	}
+	
+	public static class A_Disabled_Cache extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.cache = new CredentialCache(0, 30, clock);
+			cache.put("Basic ZGluZ286bWF0aA==", credentials);
+		}
+		
+		@Test
+		public void itIsNotEnabled() throws Exception {
+			assertThat(cache.isEnabled(), is(false));
+		}
+		
+		@Test
+		public void itNeverReturnsCredentials() throws Exception {
+			assertThat(cache.get("Basic ZGluZ286bWF0aA=="), is(nullValue()));
+			assertThat(cache.size(), is(0));
+		}
+	}
+	
+	public static class A_Cache_With_A_Grace_Period extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.cache = new CredentialCache(2, 30, 60, clock);
+			cache.put("Basic ZGluZ286bWF0aA==", credentials);
+		}
+		
+		@Test
+		public void itReturnsFreshCredentialsAsStale() throws Exception {
+			assertThat(cache.getStale("Basic ZGluZ286bWF0aA=="), is(sameInstance(credentials)));
+		}
+		
+		@Test
+		public void itDoesNotReturnExpiredCredentials() throws Exception {
+			when(clock.getTime()).thenReturn(130000L);
+			
+			assertThat(cache.get("Basic ZGluZ286bWF0aA=="), is(nullValue()));
+		}
+		
+		@Test
+		public void itReturnsExpiredCredentialsAsStaleDuringTheGracePeriod() throws Exception {
+			when(clock.getTime()).thenReturn(189999L);
+			cache.get("Basic ZGluZ286bWF0aA==");
+			
+			assertThat(cache.getStale("Basic ZGluZ286bWF0aA=="), is(sameInstance(credentials)));
+			assertThat(cache.getStaleHitCount(), is(1L));
+		}
+		
+		@Test
+		public void itDropsCredentialsAfterTheGracePeriod() throws Exception {
+			when(clock.getTime()).thenReturn(190000L);
+			
+			assertThat(cache.get("Basic ZGluZ286bWF0aA=="), is(nullValue()));
+			assertThat(cache.getStale("Basic ZGluZ286bWF0aA=="), is(nullValue()));
+			assertThat(cache.size(), is(0));
+			assertThat(cache.getEvictionCount(), is(1L));
+		}
+		
+		@Test
+		public void itDoesNotReturnInvalidatedCredentialsAsStale() throws Exception {
+			cache.invalidate(200);
+			
+			assertThat(cache.getStale("Basic ZGluZ286bWF0aA=="), is(nullValue()));
+		}
+	}
+}
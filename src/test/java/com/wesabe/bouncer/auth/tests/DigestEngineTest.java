@@ -0,0 +1,98 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.auth.DigestEngine;
+
+@RunWith(Enclosed.class)
+public class DigestEngineTest {
+	private static byte[] sha256(String s) throws Exception {
+		return MessageDigest.getInstance("SHA-256").digest(s.getBytes("UTF-8"));
+	}
+	
+	public static class Hashing_Strings {
+		private final DigestEngine engine = DigestEngine.get();
+		
+		@Test
+		public void itHashesTheConcatenatedStrings() throws Exception {
+			final byte[] digest = new byte[32];
+			engine.digest("woot", "dingo", digest);
+			
+			assertThat(engine.encode(digest), is("ed5805ce459c5ce145c376a95184b5e0c7360a9c4bdac0a3fcd10c1aa9052082"));
+		}
+		
+		@Test
+		public void itEncodesNonAsciiCharactersAsUTF8() throws Exception {
+			final String s = "päss€😀";
+			final byte[] digest = new byte[32];
+			engine.digest(s, "", digest);
+			
+			assertThat(Arrays.equals(digest, sha256(s)), is(true));
+		}
+		
+		@Test
+		public void itEncodesUnpairedSurrogatesTheWayStringDoes() throws Exception {
+			final String s = "a\ud83db\ude00";
+			final byte[] digest = new byte[32];
+			engine.digest("", s, digest);
+			
+			assertThat(Arrays.equals(digest, sha256(s)), is(true));
+		}
+		
+		@Test
+		public void itHandlesLongStrings() throws Exception {
+			final String s = new String(new char[1000]).replace('\0', 'é');
+			final byte[] digest = new byte[32];
+			engine.digest(s, s, digest);
+			
+			assertThat(Arrays.equals(digest, sha256(s + s)), is(true));
+		}
+		
+		@Test
+		public void itHashesTheHexEncodingOfADigest() throws Exception {
+			final byte[] digest = sha256("one");
+			engine.digest(digest, "two", digest);
+			
+			assertThat(Arrays.equals(digest, sha256(new String(Hex.encodeHex(sha256("one"))) + "two")), is(true));
+		}
+	}
+	
+	public static class Decoding_Hashes {
+		@Test
+		public void itDecodesLowerCaseHex() throws Exception {
+			final byte[] digest = DigestEngine.decode("ed5805ce459c5ce145c376a95184b5e0c7360a9c4bdac0a3fcd10c1aa9052082");
+			
+			assertThat(DigestEngine.get().encode(digest), is("ed5805ce459c5ce145c376a95184b5e0c7360a9c4bdac0a3fcd10c1aa9052082"));
+		}
+		
+		@Test
+		public void itDoesNotDecodeAnythingElse() throws Exception {
+			assertThat(DigestEngine.decode(null), is(nullValue()));
+			assertThat(DigestEngine.decode("hash"), is(nullValue()));
+			assertThat(DigestEngine.decode("ED5805CE459C5CE145C376A95184B5E0C7360A9C4BDAC0A3FCD10C1AA9052082"), is(nullValue()));
+		}
+	}
+	
+	public static class Comparing_Digests {
+		@Test
+		public void itMatchesEqualDigests() throws Exception {
+			assertThat(DigestEngine.isEqual(new byte[] { 1, 2, 3 }, new byte[] { 1, 2, 3 }), is(true));
+		}
+		
+		@Test
+		public void itDoesNotMatchDifferentDigests() throws Exception {
+			assertThat(DigestEngine.isEqual(new byte[] { 1, 2, 3 }, new byte[] { 1, 2, 4 }), is(false));
+			assertThat(DigestEngine.isEqual(new byte[] { 1, 2, 3 }, new byte[] { 1, 2 }), is(false));
+			assertThat(DigestEngine.isEqual(new byte[] { 1, 2, 3 }, null), is(false));
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.spy.memcached.MemcachedClientIF;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.wesabe.bouncer.auth.FailedLogins;
+import com.wesabe.bouncer.auth.MemcachedThrottleStore;
+import com.wesabe.bouncer.auth.ThrottleStore;
+import com.wesabe.bouncer.util.Clock;
+
+@RunWith(Enclosed.class)
+public class FailedLoginsTest {
+	private static abstract class Context {
+		protected MemcachedClientIF memcached;
+		protected Clock clock;
+		protected FailedLogins failedLogins;
+		
+		public void setup() throws Exception {
+			this.memcached = mock(MemcachedClientIF.class);
+			when(memcached.incr(anyString(), anyInt())).thenReturn(-1L);
+			
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			
+			this.failedLogins = new FailedLogins(new MemcachedThrottleStore(memcached), 100, clock);
+		}
+	}
+	
+	public static class Writing_Through_To_Memcached extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.failedLogins = new FailedLogins(new MemcachedThrottleStore(memcached));
+			when(memcached.incr("failed-logins:200", 1)).thenReturn(4L);
+		}
+		
+		@Test
+		public void itIsNotBatched() throws Exception {
+			assertThat(failedLogins.isBatched(), is(false));
+		}
+		
+		@Test
+		public void itIncrementsTheCounterForEveryFailedLogin() throws Exception {
+			assertThat(failedLogins.register(200), is(4L));
+			
+			final InOrder inOrder = inOrder(memcached);
+			inOrder.verify(memcached).add("failed-logins:200", 86400, Integer.valueOf(0));
+			inOrder.verify(memcached).incr("failed-logins:200", 1);
+			assertThat(failedLogins.getWriteCount(), is(1L));
+		}
+		
+		@Test
+		public void itLocksAccountsInMemcached() throws Exception {
+			failedLogins.lock(200, 15);
+			
+			verify(memcached).set("lock-account:200", 15, Integer.valueOf(15));
+			assertThat(failedLogins.isLocked(200), is(false));
+		}
+		
+		@Test
+		public void itDoesNotTrackUsersLocally() throws Exception {
+			failedLogins.register(200);
+			
+			assertThat(failedLogins.size(), is(0));
+		}
+	}
+	
+	public static class Registering_Failed_Logins extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(memcached.incr("failed-logins:200", 0)).thenReturn(2L);
+		}
+		
+		@Test
+		public void itIsBatched() throws Exception {
+			assertThat(failedLogins.isBatched(), is(true));
+		}
+		
+		@Test
+		public void itReadsTheRemoteCountOnTheFirstFailure() throws Exception {
+			assertThat(failedLogins.register(200), is(3L));
+			assertThat(failedLogins.register(200), is(4L));
+			assertThat(failedLogins.register(200), is(5L));
+			
+			verify(memcached, times(1)).incr("failed-logins:200", 0);
+			verify(memcached, never()).incr("failed-logins:200", 1);
+			verify(memcached, never()).add(anyString(), anyInt(), anyObject());
+		}
+		
+		@Test
+		public void itStartsNewUsersAtZero() throws Exception {
+			assertThat(failedLogins.register(300), is(1L));
+		}
+		
+		@Test
+		public void itCountsEveryFailedLogin() throws Exception {
+			failedLogins.register(200);
+			failedLogins.register(200);
+			failedLogins.register(300);
+			
+			assertThat(failedLogins.getRegisteredCount(), is(3L));
+			assertThat(failedLogins.size(), is(2));
+		}
+		
+		@Test
+		public void itForgetsUsersWhoLogIn() throws Exception {
+			failedLogins.register(200);
+			failedLogins.reset(200);
+			
+			verify(memcached).delete("failed-logins:200");
+			assertThat(failedLogins.size(), is(0));
+		}
+	}
+	
+	public static class Flushing_Failed_Logins extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(memcached.incr("failed-logins:200", 0)).thenReturn(2L);
+			when(memcached.incr("failed-logins:200", 3)).thenReturn(9L);
+			
+			failedLogins.register(200);
+			failedLogins.register(200);
+			failedLogins.register(200);
+		}
+		
+		@Test
+		public void itCoalescesEachUsersFailuresIntoOneIncrement() throws Exception {
+			failedLogins.flush();
+			
+			verify(memcached).incr("failed-logins:200", 3);
+			assertThat(failedLogins.getWriteCount(), is(1L));
+		}
+		
+		@Test
+		public void itPicksUpFailuresFromOtherInstances() throws Exception {
+			failedLogins.flush();
+			
+			assertThat(failedLogins.register(200), is(10L));
+		}
+		
+		@Test
+		public void itDoesNotWriteUsersWithNoNewFailures() throws Exception {
+			failedLogins.flush();
+			failedLogins.flush();
+			
+			verify(memcached, times(1)).incr("failed-logins:200", 3);
+			assertThat(failedLogins.getWriteCount(), is(1L));
+		}
+		
+		@Test
+		public void itCreatesCountersWhichExpireAfterADay() throws Exception {
+			failedLogins.flush();
+			
+			final InOrder inOrder = inOrder(memcached);
+			inOrder.verify(memcached).add("failed-logins:200", 86400, Integer.valueOf(0));
+			inOrder.verify(memcached).incr("failed-logins:200", 3);
+		}
+		
+		@Test
+		public void itKeepsFailuresWhichCouldNotBeWritten() throws Exception {
+			Logger.getLogger("com.wesabe").setLevel(Level.OFF);
+			when(memcached.incr("failed-logins:200", 3)).thenThrow(new IllegalStateException("down"));
+			
+			failedLogins.flush();
+			
+			assertThat(failedLogins.register(200), is(6L));
+			assertThat(failedLogins.size(), is(1));
+		}
+		
+		@Test
+		public void itForgetsIdleUsers() throws Exception {
+			failedLogins.flush();
+			assertThat(failedLogins.size(), is(1));
+			
+			when(clock.getTime()).thenReturn(160001L);
+			failedLogins.flush();
+			
+			assertThat(failedLogins.size(), is(0));
+		}
+	}
+	
+	public static class Flushing_While_A_User_Is_Updated {
+		private final AtomicLong written = new AtomicLong();
+		private FailedLogins failedLogins;
+		private long now = 100000L;
+		private Runnable interruption;
+		private final Runnable flush = new Runnable() {
+			@Override
+			public void run() {
+				failedLogins.flush();
+			}
+		};
+		
+		@Before
+		public void setup() throws Exception {
+			final ThrottleStore store = mock(ThrottleStore.class);
+			when(store.increment(anyInt(), anyInt(), anyInt())).thenAnswer(new Answer<Long>() {
+				@Override
+				public Long answer(InvocationOnMock invocation) throws Throwable {
+					return written.addAndGet((Integer) invocation.getArguments()[1]);
+				}
+			});
+			
+			// once armed, the clock runs its interruption the next time it's
+			// asked the time, in the middle of an update
+			final Clock clock = new Clock() {
+				@Override
+				public long getTime() {
+					final Runnable runnable = interruption;
+					if (runnable != null) {
+						interruption = null;
+						runnable.run();
+					}
+					return now;
+				}
+			};
+			this.failedLogins = new FailedLogins(store, 100, clock);
+		}
+		
+		@Test
+		public void itNeverLosesTheFailure() throws Exception {
+			this.interruption = flush;
+			failedLogins.register(200);
+			failedLogins.flush();
+			
+			assertThat(written.get(), is(1L));
+		}
+		
+		@Test
+		public void itNeverLosesTheLock() throws Exception {
+			failedLogins.register(200);
+			this.now = 200000L;
+			this.interruption = flush;
+			failedLogins.lock(200, 15);
+			
+			assertThat(failedLogins.isLocked(200), is(true));
+		}
+		
+		@Test
+		public void itNeverLosesALockWhichRacesAReset() throws Exception {
+			failedLogins.register(200);
+			this.interruption = new Runnable() {
+				@Override
+				public void run() {
+					failedLogins.reset(200);
+				}
+			};
+			failedLogins.lock(200, 15);
+			
+			assertThat(failedLogins.isLocked(200), is(true));
+		}
+	}
+	
+	public static class Locking_Accounts extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			failedLogins.register(200);
+			failedLogins.lock(200, 15);
+		}
+		
+		@Test
+		public void itLocksTheAccountLocally() throws Exception {
+			assertThat(failedLogins.isLocked(200), is(true));
+			assertThat(failedLogins.isLocked(300), is(false));
+		}
+		
+		@Test
+		public void itUnlocksTheAccountWhenThePenaltyIsUp() throws Exception {
+			when(clock.getTime()).thenReturn(115000L);
+			
+			assertThat(failedLogins.isLocked(200), is(false));
+		}
+		
+		@Test
+		public void itWritesTheLockOnTheNextFlush() throws Exception {
+			verify(memcached, never()).set(anyString(), anyInt(), anyObject());
+			
+			failedLogins.flush();
+			failedLogins.flush();
+			
+			verify(memcached, times(1)).set("lock-account:200", 15, Integer.valueOf(15));
+		}
+		
+		@Test
+		public void itKeepsLockedUsersUntilTheLockIsUp() throws Exception {
+			failedLogins.lock(200, 900);
+			when(clock.getTime()).thenReturn(170000L);
+			failedLogins.flush();
+			
+			assertThat(failedLogins.size(), is(1));
+		}
+	}
+}
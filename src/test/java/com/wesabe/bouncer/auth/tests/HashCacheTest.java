@@ -0,0 +1,180 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.auth.DigestEngine;
+import com.wesabe.bouncer.auth.HashCache;
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.OffHeapDigestStore;
+
+@RunWith(Enclosed.class)
+public class HashCacheTest {
+	private static abstract class Context {
+		protected final DigestEngine engine = DigestEngine.get();
+		protected final byte[] digest = new byte[32];
+		protected Clock clock;
+		protected HashCache cache;
+		
+		public void setup() throws Exception {
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(1000L);
+			Arrays.fill(digest, (byte) 7);
+		}
+		
+		protected HashCache.Key keyFor(String first, String second) {
+			engine.load(first, second);
+			return cache.keyFor(engine);
+		}
+	}
+	
+	public static class An_Empty_Cache extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.cache = new HashCache(64 * 1024, 60, null, clock);
+		}
+		
+		@Test
+		public void itMissesAndCountsTheMiss() throws Exception {
+			assertThat(cache.get(keyFor("salt", "password"), new byte[32]), is(false));
+			assertThat(cache.getMissCount(), is(1L));
+			assertThat(cache.getHitRate(), is(0));
+		}
+		
+		@Test
+		public void itIsEnabled() throws Exception {
+			assertThat(cache.isEnabled(), is(true));
+		}
+	}
+	
+	public static class A_Cache_With_A_Hash extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.cache = new HashCache(64 * 1024, 60, null, clock);
+			cache.put(keyFor("salt", "password"), digest);
+		}
+		
+		@Test
+		public void itReturnsTheHashForTheSameInput() throws Exception {
+			final byte[] cached = new byte[32];
+			
+			assertThat(cache.get(keyFor("salt", "password"), cached), is(true));
+			assertThat(Arrays.equals(cached, digest), is(true));
+			assertThat(cache.getHitRate(), is(100));
+		}
+		
+		@Test
+		public void itDoesNotReturnTheHashForOtherInputs() throws Exception {
+			assertThat(cache.get(keyFor("salt", "Password"), new byte[32]), is(false));
+		}
+		
+		@Test
+		public void itKeepsACopyOfTheHash() throws Exception {
+			Arrays.fill(digest, (byte) 0);
+			final byte[] cached = new byte[32];
+			cache.get(keyFor("salt", "password"), cached);
+			
+			assertThat(cached[0], is((byte) 7));
+		}
+		
+		@Test
+		public void itExpiresTheHash() throws Exception {
+			when(clock.getTime()).thenReturn(61001L);
+			
+			assertThat(cache.get(keyFor("salt", "password"), new byte[32]), is(false));
+			assertThat(cache.getExpirationCount(), is(1L));
+		}
+		
+		@Test
+		public void itHasAWeight() throws Exception {
+			assertThat(cache.size(), is(1));
+			assertThat(cache.getWeight() > 0, is(true));
+			assertThat(cache.getOffHeapCount(), is(0));
+		}
+	}
+	
+	public static class A_Cache_With_A_Small_Budget extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.cache = new HashCache(1000, 0, null, clock);
+		}
+		
+		@Test
+		public void itEvictsHashesToStayWithinItsBudget() throws Exception {
+			for (int i = 0; i < 20; i++) {
+				cache.put(keyFor("salt", "password" + i), digest);
+			}
+			
+			assertThat(cache.getWeight() <= 1000, is(true));
+			assertThat(cache.getEvictionCount() > 0, is(true));
+		}
+	}
+	
+	public static class A_Cache_With_Off_Heap_Hashes extends Context {
+		private OffHeapDigestStore store;
+		
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.store = new OffHeapDigestStore(10, 32);
+			this.cache = new HashCache(64 * 1024, 60, store, clock);
+			cache.put(keyFor("salt", "password"), digest);
+		}
+		
+		@Test
+		public void itKeepsTheHashOffTheHeap() throws Exception {
+			final byte[] cached = new byte[32];
+			
+			assertThat(cache.get(keyFor("salt", "password"), cached), is(true));
+			assertThat(Arrays.equals(cached, digest), is(true));
+			assertThat(cache.getOffHeapCount(), is(1));
+			assertThat(store.size(), is(1));
+		}
+		
+		@Test
+		public void itFreesExpiredHashes() throws Exception {
+			when(clock.getTime()).thenReturn(61001L);
+			cache.get(keyFor("salt", "password"), new byte[32]);
+			
+			assertThat(store.size(), is(0));
+		}
+	}
+	
+	public static class A_Disabled_Cache extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.cache = new HashCache(0);
+		}
+		
+		@Test
+		public void itHasNoKeys() throws Exception {
+			assertThat(cache.isEnabled(), is(false));
+			assertThat(keyFor("salt", "password"), is(nullValue()));
+		}
+		
+		@Test
+		public void itCachesNothing() throws Exception {
+			cache.put(null, digest);
+			
+			assertThat(cache.get(null, new byte[32]), is(false));
+			assertThat(cache.size(), is(0));
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.auth.LocalThrottleStore;
+import com.wesabe.bouncer.util.Clock;
+
+@RunWith(Enclosed.class)
+public class LocalThrottleStoreTest {
+	private static abstract class Context {
+		protected Clock clock;
+		protected LocalThrottleStore store;
+		
+		public void setup() throws Exception {
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			
+			this.store = new LocalThrottleStore(1000, clock);
+		}
+	}
+	
+	public static class An_Empty_Store extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itIsAlwaysAvailable() throws Exception {
+			assertThat(store.isAvailable(), is(true));
+		}
+		
+		@Test
+		public void itRoundsItsCapacityUpToAPowerOfTwo() throws Exception {
+			assertThat(store.getCapacity(), is(1024));
+		}
+		
+		@Test
+		public void itHasNoCounts() throws Exception {
+			assertThat(store.getCount(200), is(0L));
+		}
+		
+		@Test
+		public void itHasNoLocks() throws Exception {
+			assertThat(store.isLocked(200), is(false));
+			assertThat(store.isLockedAsync(200).get(), is(false));
+		}
+	}
+	
+	public static class Counting_Failed_Logins extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			store.increment(200, 1, 60);
+		}
+		
+		@Test
+		public void itAddsToTheCount() throws Exception {
+			assertThat(store.increment(200, 3, 60), is(4L));
+			assertThat(store.getCount(200), is(4L));
+		}
+		
+		@Test
+		public void itKeepsCountsSeparate() throws Exception {
+			assertThat(store.increment(300, 1, 60), is(1L));
+			assertThat(store.getCount(200), is(1L));
+		}
+		
+		@Test
+		public void itExpiresCountsAfterTheirTTL() throws Exception {
+			when(clock.getTime()).thenReturn(159999L);
+			assertThat(store.increment(200, 1, 60), is(2L));
+			
+			when(clock.getTime()).thenReturn(160000L);
+			assertThat(store.getCount(200), is(0L));
+			assertThat(store.increment(200, 1, 60), is(1L));
+		}
+		
+		@Test
+		public void itClearsCounts() throws Exception {
+			store.clear(200);
+			
+			assertThat(store.getCount(200), is(0L));
+		}
+	}
+	
+	public static class Locking_Accounts extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			store.increment(200, 5, 60);
+			store.lock(200, 15);
+		}
+		
+		@Test
+		public void itLocksTheAccount() throws Exception {
+			assertThat(store.isLocked(200), is(true));
+			assertThat(store.isLockedAsync(200).get(1, TimeUnit.SECONDS), is(true));
+			assertThat(store.isLocked(300), is(false));
+		}
+		
+		@Test
+		public void itUnlocksTheAccountWhenTheLockIsUp() throws Exception {
+			when(clock.getTime()).thenReturn(115000L);
+			
+			assertThat(store.isLocked(200), is(false));
+		}
+		
+		@Test
+		public void itDoesNotUnlockTheAccountWhenTheCountIsCleared() throws Exception {
+			store.clear(200);
+			
+			assertThat(store.isLocked(200), is(true));
+		}
+	}
+	
+	public static class A_Full_Store extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.store = new LocalThrottleStore(8, clock);
+			for (int i = 1; i <= 8; i++) {
+				store.increment(i, 1, 60 + i);
+			}
+		}
+		
+		@Test
+		public void itRecyclesTheEntryWhichWillExpireSoonest() throws Exception {
+			store.increment(9, 1, 60);
+			
+			assertThat(store.getCount(1), is(0L));
+			assertThat(store.getCount(2), is(1L));
+			assertThat(store.getCount(9), is(1L));
+			assertThat(store.getEvictionCount(), is(1L));
+		}
+		
+		@Test
+		public void itReusesExpiredEntriesWithoutEvicting() throws Exception {
+			when(clock.getTime()).thenReturn(161000L);
+			store.increment(9, 1, 60);
+			
+			assertThat(store.getEvictionCount(), is(0L));
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.auth.LockStateCache;
+import com.wesabe.bouncer.util.Clock;
+
+@RunWith(Enclosed.class)
+public class LockStateCacheTest {
+	private static abstract class Context {
+		protected Clock clock;
+		protected LockStateCache cache;
+		
+		public void setup() throws Exception {
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			
+			this.cache = new LockStateCache(2, 1000, clock);
+		}
+	}
+	
+	public static class An_Empty_Cache extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itIsEnabled() throws Exception {
+			assertThat(cache.isEnabled(), is(true));
+		}
+		
+		@Test
+		public void itDoesNotKnowAnyLockStates() throws Exception {
+			assertThat(cache.get(200), is(nullValue()));
+			assertThat(cache.getMissCount(), is(1L));
+		}
+	}
+	
+	public static class A_Cache_With_Lock_States_From_Memcached extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			cache.put(200, false);
+			cache.put(300, true);
+		}
+		
+		@Test
+		public void itReturnsThem() throws Exception {
+			assertThat(cache.get(200), is(Boolean.FALSE));
+			assertThat(cache.get(300), is(Boolean.TRUE));
+			assertThat(cache.getHitCount(), is(2L));
+		}
+		
+		@Test
+		public void itExpiresThemAfterTheStalenessBound() throws Exception {
+			when(clock.getTime()).thenReturn(101000L);
+			
+			assertThat(cache.get(200), is(nullValue()));
+			assertThat(cache.get(300), is(nullValue()));
+			assertThat(cache.size(), is(0));
+		}
+		
+		@Test
+		public void itEvictsTheEldestStateWhenFull() throws Exception {
+			cache.put(400, false);
+			
+			assertThat(cache.get(200), is(nullValue()));
+			assertThat(cache.size(), is(2));
+		}
+	}
+	
+	public static class A_Cache_With_A_Lock_Issued_Locally extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			cache.put(200, false);
+			cache.lock(200, 15);
+		}
+		
+		@Test
+		public void itReplacesTheUnlockedState() throws Exception {
+			assertThat(cache.get(200), is(Boolean.TRUE));
+		}
+		
+		@Test
+		public void itHoldsTheLockUntilThePenaltyIsUp() throws Exception {
+			when(clock.getTime()).thenReturn(114999L);
+			assertThat(cache.get(200), is(Boolean.TRUE));
+			
+			when(clock.getTime()).thenReturn(115000L);
+			assertThat(cache.get(200), is(nullValue()));
+		}
+	}
+	
+	public static class A_Disabled_Cache extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.cache = new LockStateCache(0, 1000, clock);
+		}
+		
+		@Test
+		public void itIsDisabled() throws Exception {
+			assertThat(cache.isEnabled(), is(false));
+		}
+		
+		@Test
+		public void itDoesNotRememberAnything() throws Exception {
+			cache.put(200, false);
+			cache.lock(300, 15);
+			
+			assertThat(cache.get(200), is(nullValue()));
+			assertThat(cache.get(300), is(nullValue()));
+			assertThat(cache.size(), is(0));
+		}
+	}
+}
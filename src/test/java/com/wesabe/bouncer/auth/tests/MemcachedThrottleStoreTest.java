@@ -0,0 +1,108 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClientIF;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+
+import com.wesabe.bouncer.auth.MemcachedThrottleStore;
+
+@RunWith(Enclosed.class)
+public class MemcachedThrottleStoreTest {
+	private static abstract class Context {
+		protected MemcachedClientIF memcached;
+		protected MemcachedThrottleStore store;
+		
+		public void setup() throws Exception {
+			this.memcached = mock(MemcachedClientIF.class);
+			this.store = new MemcachedThrottleStore(memcached);
+		}
+	}
+	
+	public static class Counting_Failed_Logins extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(memcached.incr("failed-logins:200", 2)).thenReturn(5L);
+			when(memcached.incr("failed-logins:200", 0)).thenReturn(5L);
+			when(memcached.incr("failed-logins:300", 0)).thenReturn(-1L);
+		}
+		
+		@Test
+		public void itCreatesTheCounterAndIncrementsIt() throws Exception {
+			assertThat(store.increment(200, 2, 60), is(5L));
+			
+			final InOrder inOrder = inOrder(memcached);
+			inOrder.verify(memcached).add("failed-logins:200", 60, Integer.valueOf(0));
+			inOrder.verify(memcached).incr("failed-logins:200", 2);
+		}
+		
+		@Test
+		public void itReadsCountsWithoutChangingThem() throws Exception {
+			assertThat(store.getCount(200), is(5L));
+			assertThat(store.getCount(300), is(0L));
+		}
+		
+		@Test
+		public void itClearsCounts() throws Exception {
+			store.clear(200);
+			
+			verify(memcached).delete("failed-logins:200");
+		}
+	}
+	
+	public static class Locking_Accounts extends Context {
+		private Future<Object> lock;
+		
+		@Override
+		@Before
+		@SuppressWarnings("unchecked")
+		public void setup() throws Exception {
+			super.setup();
+			this.lock = mock(Future.class);
+			doReturn(lock).when(memcached).asyncGet("lock-account:200");
+		}
+		
+		@Test
+		public void itSetsALockWhichExpires() throws Exception {
+			store.lock(200, 15);
+			
+			verify(memcached).set("lock-account:200", 15, Integer.valueOf(15));
+		}
+		
+		@Test
+		public void itChecksForTheLock() throws Exception {
+			when(memcached.get("lock-account:200")).thenReturn(Integer.valueOf(15));
+			
+			assertThat(store.isLocked(200), is(true));
+			assertThat(store.isLocked(300), is(false));
+		}
+		
+		@Test
+		public void itChecksForTheLockAsynchronously() throws Exception {
+			when(lock.get(1000, TimeUnit.MILLISECONDS)).thenReturn(Integer.valueOf(15));
+			
+			final Future<Boolean> locked = store.isLockedAsync(200);
+			
+			assertThat(locked.get(1000, TimeUnit.MILLISECONDS), is(true));
+		}
+		
+		@Test
+		public void itCancelsAsynchronousChecks() throws Exception {
+			store.isLockedAsync(200).cancel(true);
+			
+			verify(lock).cancel(true);
+		}
+	}
+}
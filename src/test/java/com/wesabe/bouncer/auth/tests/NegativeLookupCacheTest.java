@@ -0,0 +1,116 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.auth.NegativeLookupCache;
+import com.wesabe.bouncer.util.Clock;
+
+@RunWith(Enclosed.class)
+public class NegativeLookupCacheTest {
+	private static abstract class Context {
+		protected Clock clock;
+		protected NegativeLookupCache cache;
+		
+		public void setup() throws Exception {
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			
+			this.cache = new NegativeLookupCache(2, 30, clock);
+		}
+	}
+	
+	public static class An_Empty_Cache extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itIsEnabled() throws Exception {
+			assertThat(cache.isEnabled(), is(true));
+		}
+		
+		@Test
+		public void itDoesNotContainAnyLogins() throws Exception {
+			assertThat(cache.contains("dingo"), is(false));
+			assertThat(cache.getSavedQueryCount(), is(0L));
+		}
+	}
+	
+	public static class A_Cache_With_Logins extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			cache.add("dingo");
+		}
+		
+		@Test
+		public void itContainsTheLogin() throws Exception {
+			assertThat(cache.contains("dingo"), is(true));
+			assertThat(cache.contains("dingo"), is(true));
+			assertThat(cache.getSavedQueryCount(), is(2L));
+		}
+		
+		@Test
+		public void itDoesNotContainOtherLogins() throws Exception {
+			assertThat(cache.contains("dingO"), is(false));
+			assertThat(cache.contains("dingo@example.com"), is(false));
+		}
+		
+		@Test
+		public void itExpiresLogins() throws Exception {
+			when(clock.getTime()).thenReturn(130000L);
+			
+			assertThat(cache.contains("dingo"), is(false));
+			assertThat(cache.size(), is(0));
+			assertThat(cache.getSavedQueryCount(), is(0L));
+		}
+		
+		@Test
+		public void itEvictsTheOldestLoginsWhenFull() throws Exception {
+			cache.add("ringo");
+			cache.add("bingo");
+			
+			assertThat(cache.size(), is(2));
+			assertThat(cache.contains("dingo"), is(false));
+			assertThat(cache.contains("bingo"), is(true));
+		}
+		
+		@Test
+		public void itForgetsInvalidatedLogins() throws Exception {
+			cache.invalidate("dingo");
+			
+			assertThat(cache.contains("dingo"), is(false));
+		}
+	}
+	
+	public static class A_Disabled_Cache extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.cache = new NegativeLookupCache(0, 30, clock);
+			cache.add("dingo");
+		}
+		
+		@Test
+		public void itIsNotEnabled() throws Exception {
+			assertThat(cache.isEnabled(), is(false));
+		}
+		
+		@Test
+		public void itDoesNotRememberLogins() throws Exception {
+			assertThat(cache.contains("dingo"), is(false));
+			assertThat(cache.size(), is(0));
+		}
+	}
+}
@@ -8,6 +8,7 @@ import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 
+import com.wesabe.bouncer.auth.DigestEngine;
 import com.wesabe.bouncer.auth.PasswordHasher;
 
 @RunWith(Enclosed.class)
@@ -35,6 +36,33 @@ public class PasswordHasherTest {
 		}
 	}
 	
+	public static class Checking_A_Password {
+		private final byte[] passwordDigest = DigestEngine.decode("ed5805ce459c5ce145c376a95184b5e0c7360a9c4bdac0a3fcd10c1aa9052082");
+		private PasswordHasher hasher;
+		
+		@Before
+		public void setup() throws Exception {
+			this.hasher = new PasswordHasher();
+		}
+		
+		@Test
+		public void itMatchesTheRightPassword() throws Exception {
+			assertThat(hasher.checkPassword("dingo", "woot", passwordDigest), is(true));
+			assertThat(hasher.checkPassword("dingo", "woot", passwordDigest), is(true));
+			assertThat(hasher.getPasswordHashCache().getHitCount(), is(1L));
+		}
+		
+		@Test
+		public void itDoesNotMatchTheWrongPassword() throws Exception {
+			assertThat(hasher.checkPassword("dingo!", "woot", passwordDigest), is(false));
+		}
+		
+		@Test
+		public void itDoesNotMatchAMalformedHash() throws Exception {
+			assertThat(hasher.checkPassword("dingo", "woot", DigestEngine.decode("hash")), is(false));
+		}
+	}
+	
 	public static class Hashing_An_Account_Key {
 		private PasswordHasher hasher;
 		
@@ -57,4 +85,115 @@ public class PasswordHasherTest {
 			assertThat(hasher.getCachedValuesCount(), is(1));
 		}
 	}
+	
+	public static class Hashing_Passwords_And_Account_Keys {
+		private PasswordHasher hasher;
+		
+		@Before
+		public void setup() throws Exception {
+			this.hasher = new PasswordHasher();
+		}
+		
+		@Test
+		public void itCachesThemSeparately() throws Exception {
+			hasher.getPasswordHash("dingo", "woot");
+			hasher.getAccountKey("woot", "dingo");
+			hasher.getAccountKey("woot", "dingo");
+			
+			assertThat(hasher.getPasswordHashCache().size(), is(1));
+			assertThat(hasher.getPasswordHashCache().getHitCount(), is(0L));
+			assertThat(hasher.getAccountKeyCache().size(), is(1));
+			assertThat(hasher.getAccountKeyCache().getHitCount(), is(1L));
+			assertThat(hasher.getAccountKeyCache().getHitRate(), is(50));
+		}
+		
+		@Test
+		public void itDoesNotMistakeOneForTheOther() throws Exception {
+			// the same input, hashed two different ways
+			assertThat(hasher.getPasswordHash("dingo", "woot"), is("ed5805ce459c5ce145c376a95184b5e0c7360a9c4bdac0a3fcd10c1aa9052082"));
+			assertThat(hasher.getAccountKey("woot", "dingo"), is(not("ed5805ce459c5ce145c376a95184b5e0c7360a9c4bdac0a3fcd10c1aa9052082")));
+		}
+	}
+	
+	public static class Hashing_With_Off_Heap_Digests {
+		private PasswordHasher hasher;
+		
+		@Before
+		public void setup() throws Exception {
+			this.hasher = new PasswordHasher(1024 * 1024, 2);
+		}
+		
+		@Test
+		public void itProducesTheSameHashes() throws Exception {
+			assertThat(hasher.getPasswordHash("dingo", "woot"), is("ed5805ce459c5ce145c376a95184b5e0c7360a9c4bdac0a3fcd10c1aa9052082"));
+			assertThat(hasher.getAccountKey("dingo", "woot"), is("fca01136e6e147f6773e7d901335b237dc6e77b22f550ecf9a5293dc5d93a5ba"));
+			assertThat(hasher.getOffHeapDigestCount(), is(2));
+		}
+		
+		@Test
+		public void itReturnsCachedHashes() throws Exception {
+			hasher.getPasswordHash("dingo", "woot");
+			
+			assertThat(hasher.getPasswordHash("dingo", "woot"), is("ed5805ce459c5ce145c376a95184b5e0c7360a9c4bdac0a3fcd10c1aa9052082"));
+			assertThat(hasher.getPasswordHashCache().getHitCount(), is(1L));
+			assertThat(hasher.getCachedValuesCount(), is(1));
+		}
+		
+		@Test
+		public void itStopsCachingWhenTheStoreIsFull() throws Exception {
+			hasher.getPasswordHash("one", "salt");
+			hasher.getPasswordHash("two", "salt");
+			hasher.getPasswordHash("three", "salt");
+			
+			assertThat(hasher.getOffHeapDigestCount(), is(2));
+			assertThat(hasher.getCachedValuesCount(), is(2));
+		}
+		
+		@Test
+		public void itKeepsEachCachesDigestsInItsOwnStore() throws Exception {
+			hasher.getPasswordHash("one", "salt");
+			hasher.getPasswordHash("two", "salt");
+			hasher.getAccountKey("one", "salt");
+			
+			assertThat(hasher.getOffHeapDigestCount(), is(3));
+			assertThat(hasher.getAccountKeyCache().getOffHeapCount(), is(1));
+		}
+	}
+	
+	public static class Hashing_With_A_Small_Cache_Budget {
+		private PasswordHasher hasher;
+		
+		@Before
+		public void setup() throws Exception {
+			this.hasher = new PasswordHasher(1000, 0);
+		}
+		
+		@Test
+		public void itKeepsTheCacheWithinItsBudget() throws Exception {
+			for (int i = 0; i < 20; i++) {
+				hasher.getPasswordHash("password" + i, "salt");
+			}
+			
+			assertThat(hasher.getPasswordHashCache().getWeight() <= 500, is(true));
+			assertThat(hasher.getPasswordHashCache().getWeight() > 0, is(true));
+			assertThat(hasher.getPasswordHashCache().getEvictionCount() > 0, is(true));
+		}
+	}
+	
+	public static class Hashing_With_No_Cache {
+		private PasswordHasher hasher;
+		
+		@Before
+		public void setup() throws Exception {
+			this.hasher = new PasswordHasher(0, 2);
+		}
+		
+		@Test
+		public void itCachesNothing() throws Exception {
+			assertThat(hasher.getPasswordHash("dingo", "woot"), is("ed5805ce459c5ce145c376a95184b5e0c7360a9c4bdac0a3fcd10c1aa9052082"));
+			
+			assertThat(hasher.getCachedValuesCount(), is(0));
+			assertThat(hasher.getOffHeapDigestCount(), is(0));
+		}
+	}
 }
@@ -0,0 +1,40 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.auth.SessionKey;
+
+@RunWith(Enclosed.class)
+public class SessionKeyTest {
+	public static class Parsing_A_Key {
+		@Test
+		public void itHasAnID() throws Exception {
+			assertThat(SessionKey.parse("12:c2Vjb25kIHNlc3Npb24ga2V5IQ==").getId(), is(12));
+		}
+		
+		@Test(expected=IllegalArgumentException.class)
+		public void itRequiresASeparator() throws Exception {
+			SessionKey.parse("c2Vjb25kIHNlc3Npb24ga2V5IQ==");
+		}
+		
+		@Test(expected=IllegalArgumentException.class)
+		public void itRequiresANumericID() throws Exception {
+			SessionKey.parse("one:c2Vjb25kIHNlc3Npb24ga2V5IQ==");
+		}
+		
+		@Test(expected=IllegalArgumentException.class)
+		public void itRequiresALongEnoughSecret() throws Exception {
+			SessionKey.parse("1:c2hvcnQ=");
+		}
+		
+		@Test(expected=IllegalArgumentException.class)
+		public void itRequiresAnIDWhichFitsInAByte() throws Exception {
+			SessionKey.parse("256:c2Vjb25kIHNlc3Npb24ga2V5IQ==");
+		}
+	}
+}
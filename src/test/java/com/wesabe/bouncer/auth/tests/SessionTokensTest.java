@@ -0,0 +1,299 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.google.common.collect.ImmutableList;
+import com.wesabe.bouncer.auth.SessionKey;
+import com.wesabe.bouncer.auth.SessionTokens;
+import com.wesabe.bouncer.auth.WesabeCredentials;
+import com.wesabe.bouncer.util.Clock;
+
+@RunWith(Enclosed.class)
+public class SessionTokensTest {
+	private static final SessionKey OLD_KEY = new SessionKey(1, "first session key!!".getBytes());
+	private static final SessionKey NEW_KEY = new SessionKey(2, "second session key!".getBytes());
+	
+	private static abstract class Context {
+		protected Clock clock;
+		protected SessionTokens tokens;
+		protected WesabeCredentials credentials;
+		protected String token;
+		
+		public void setup() throws Exception {
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(1000000L);
+			
+			this.tokens = new SessionTokens(ImmutableList.of(NEW_KEY, OLD_KEY), 7, 600, clock);
+			this.credentials = new WesabeCredentials(200, "33aef8191baba4c7b836fa3f79a11a9c50a90b73e7bf381d5487aab3946b39ed");
+			this.token = tokens.issue(credentials);
+		}
+	}
+	
+	public static class Verifying_A_Valid_Token extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itReturnsTheCredentials() throws Exception {
+			final WesabeCredentials verified = tokens.verify(token);
+			
+			assertThat(verified.getUserId(), is(200));
+			assertThat(verified.getAccountKey(), is(credentials.getAccountKey()));
+			assertThat(tokens.getIssuedCount(), is(1L));
+			assertThat(tokens.getAcceptedCount(), is(1L));
+		}
+		
+		@Test
+		public void itIsCookieSafe() throws Exception {
+			assertTrue(token.matches("[A-Za-z0-9_-]+"));
+		}
+		
+		@Test
+		public void itDoesNotContainTheAccountKey() throws Exception {
+			assertFalse(token.contains(credentials.getAccountKey()));
+		}
+		
+		@Test
+		public void itIssuesDifferentTokensForTheSameCredentialsOnceTheyAreHalfExpired() throws Exception {
+			when(clock.getTime()).thenReturn(1300000L);
+			
+			assertThat(tokens.issue(credentials), is(not(token)));
+		}
+	}
+	
+	public static class Reissuing_A_Recent_Token extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itHandsOutTheSameTokenUntilItIsHalfExpired() throws Exception {
+			when(clock.getTime()).thenReturn(1299999L);
+			
+			assertThat(tokens.issue(credentials), is(token));
+			assertThat(tokens.getIssuedCount(), is(1L));
+			assertThat(tokens.getReissuedCount(), is(1L));
+		}
+		
+		@Test
+		public void itDoesNotHandOutAnotherUsersToken() throws Exception {
+			assertThat(tokens.verify(tokens.issue(new WesabeCredentials(201, "woo"))).getUserId(), is(201));
+		}
+		
+		@Test
+		public void itDoesNotHandOutATokenForAnotherAccountKey() throws Exception {
+			final WesabeCredentials changed = new WesabeCredentials(200, "woo");
+			
+			assertThat(tokens.verify(tokens.issue(changed)).getAccountKey(), is("woo"));
+		}
+		
+		@Test
+		public void itDoesNotHandOutATokenFromAnOlderEpoch() throws Exception {
+			tokens.revokeAll();
+			
+			assertThat(tokens.verify(tokens.issue(credentials)).getUserId(), is(200));
+		}
+		
+		@Test
+		public void itDoesNotHandOutATokenIssuedBeforeTheUserWasRevoked() throws Exception {
+			when(clock.getTime()).thenReturn(1001000L);
+			tokens.revoke(200);
+			
+			when(clock.getTime()).thenReturn(1002000L);
+			assertThat(tokens.verify(tokens.issue(credentials)).getUserId(), is(200));
+		}
+	}
+	
+	public static class Verifying_An_Invalid_Token extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itRejectsATamperedToken() throws Exception {
+			final char[] chars = token.toCharArray();
+			chars[10] = (chars[10] == 'A') ? 'B' : 'A';
+			
+			assertThat(tokens.verify(new String(chars)), is(nullValue()));
+			assertThat(tokens.getRejectedCount(), is(1L));
+		}
+		
+		@Test
+		public void itRejectsATruncatedToken() throws Exception {
+			assertThat(tokens.verify(token.substring(0, token.length() - 4)), is(nullValue()));
+		}
+		
+		@Test
+		public void itRejectsGarbage() throws Exception {
+			assertThat(tokens.verify(""), is(nullValue()));
+			assertThat(tokens.verify("not a token"), is(nullValue()));
+			assertThat(tokens.verify("AAAA"), is(nullValue()));
+		}
+		
+		@Test
+		public void itRejectsAnExpiredToken() throws Exception {
+			when(clock.getTime()).thenReturn(1600000L);
+			
+			assertThat(tokens.verify(token), is(nullValue()));
+		}
+		
+		@Test
+		public void itRejectsATokenFromTheFuture() throws Exception {
+			when(clock.getTime()).thenReturn(900000L);
+			
+			assertThat(tokens.verify(token), is(nullValue()));
+		}
+	}
+	
+	public static class Rotating_Keys extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itAcceptsTokensIssuedWithOlderKeys() throws Exception {
+			final SessionTokens old = new SessionTokens(ImmutableList.of(OLD_KEY), 7, 600, clock);
+			
+			assertThat(tokens.verify(old.issue(credentials)).getUserId(), is(200));
+		}
+		
+		@Test
+		public void itRejectsTokensIssuedWithRetiredKeys() throws Exception {
+			final SessionTokens rotated = new SessionTokens(ImmutableList.of(new SessionKey(3, "third session key!!".getBytes()), NEW_KEY), 7, 600, clock);
+			final SessionTokens retired = new SessionTokens(ImmutableList.of(OLD_KEY), 7, 600, clock);
+			
+			assertThat(rotated.verify(token).getUserId(), is(200));
+			assertThat(rotated.verify(retired.issue(credentials)), is(nullValue()));
+		}
+		
+		@Test
+		public void itRejectsTokensSignedWithADifferentSecretUnderTheSameID() throws Exception {
+			final SessionTokens forged = new SessionTokens(ImmutableList.of(new SessionKey(2, "not the real key!!!".getBytes())), 7, 600, clock);
+			
+			assertThat(tokens.verify(forged.issue(credentials)), is(nullValue()));
+		}
+	}
+	
+	public static class Revoking_Tokens extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itRejectsTokensFromAnOlderEpoch() throws Exception {
+			assertThat(tokens.revokeAll(), is(8));
+			
+			assertThat(tokens.verify(token), is(nullValue()));
+			assertThat(tokens.verify(tokens.issue(credentials)).getUserId(), is(200));
+		}
+		
+		@Test
+		public void itRejectsTokensFromAnotherEpoch() throws Exception {
+			final SessionTokens other = new SessionTokens(ImmutableList.of(NEW_KEY), 8, 600, clock);
+			
+			assertThat(other.verify(token), is(nullValue()));
+		}
+		
+		@Test
+		public void itRejectsTokensIssuedToARevokedUserBeforeTheRevocation() throws Exception {
+			when(clock.getTime()).thenReturn(1001000L);
+			tokens.revoke(200);
+			
+			assertThat(tokens.verify(token), is(nullValue()));
+			
+			when(clock.getTime()).thenReturn(1002000L);
+			assertThat(tokens.verify(tokens.issue(credentials)).getUserId(), is(200));
+		}
+		
+		@Test
+		public void itDoesNotRevokeOtherUsersTokens() throws Exception {
+			tokens.revoke(201);
+			
+			assertThat(tokens.verify(token).getUserId(), is(200));
+		}
+		
+		@Test
+		public void itRemembersRevocationsThroughABurstOfOtherRevocations() throws Exception {
+			when(clock.getTime()).thenReturn(1001000L);
+			tokens.revoke(200);
+			for (int i = 0; i < 20000; i++) {
+				tokens.revoke(1000 + i);
+			}
+			
+			assertThat(tokens.verify(token), is(nullValue()));
+		}
+		
+		@Test
+		public void itForgetsRevocationsOnceTheirTokensHaveExpired() throws Exception {
+			tokens.revoke(200);
+			tokens.revoke(201);
+			when(clock.getTime()).thenReturn(1300000L);
+			tokens.revoke(202);
+			
+			assertThat(tokens.getRevocationCount(), is(3));
+			
+			when(clock.getTime()).thenReturn(1600000L);
+			tokens.revoke(203);
+			
+			assertThat(tokens.getRevocationCount(), is(2));
+		}
+		
+		@Test
+		public void itKeepsTheNewestRevocationOfARevokedUser() throws Exception {
+			tokens.revoke(200);
+			when(clock.getTime()).thenReturn(1300000L);
+			final String reissued = tokens.issue(credentials);
+			when(clock.getTime()).thenReturn(1301000L);
+			tokens.revoke(200);
+			when(clock.getTime()).thenReturn(1600000L);
+			tokens.revoke(201);
+			
+			assertThat(tokens.verify(reissued), is(nullValue()));
+		}
+	}
+	
+	public static class Disabled_Tokens {
+		@Test
+		public void itIsNotEnabled() throws Exception {
+			assertThat(SessionTokens.disabled().isEnabled(), is(false));
+			assertThat(new SessionTokens(Collections.<SessionKey>emptyList(), 0, 600, Clock.system()).isEnabled(), is(false));
+			assertThat(new SessionTokens(ImmutableList.of(NEW_KEY), 0, 0, Clock.system()).isEnabled(), is(false));
+		}
+		
+		@Test
+		public void itAcceptsNoTokens() throws Exception {
+			final Clock clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(1000000L);
+			final String token = new SessionTokens(ImmutableList.of(NEW_KEY), 0, 600, clock).issue(new WesabeCredentials(200, "woo"));
+			
+			assertThat(SessionTokens.disabled().verify(token), is(nullValue()));
+		}
+	}
+	
+	public static class Duplicate_Key_IDs {
+		@Test(expected=IllegalArgumentException.class)
+		public void itThrowsAnException() throws Exception {
+			new SessionTokens(ImmutableList.of(NEW_KEY, new SessionKey(2, "another secret key!".getBytes())), 0, 600, Clock.system());
+		}
+	}
+}
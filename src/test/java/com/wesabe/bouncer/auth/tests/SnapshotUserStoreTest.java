@@ -0,0 +1,472 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.wesabe.bouncer.auth.SnapshotUserStore;
+import com.wesabe.bouncer.auth.UserRecord;
+import com.wesabe.bouncer.auth.UserStore;
+import com.wesabe.bouncer.stats.StatsRegistry;
+import com.wesabe.bouncer.util.Clock;
+
+@RunWith(Enclosed.class)
+public class SnapshotUserStoreTest {
+	private static abstract class Context {
+		protected DataSource dataSource;
+		protected Connection connection;
+		protected PreparedStatement allUsers, updatedUsers;
+		protected ResultSet allRows, updatedRows;
+		protected UserStore fallback;
+		protected Clock clock;
+		protected StatsRegistry stats;
+		protected SnapshotUserStore store;
+		
+		public void setup() throws Exception {
+			this.allRows = mock(ResultSet.class);
+			when(allRows.next()).thenReturn(true, true, false);
+			when(allRows.getInt("id")).thenReturn(200, 300);
+			when(allRows.getString("uid")).thenReturn("FrankyDoo!", "Bobby");
+			when(allRows.getString("salt")).thenReturn("cVApCcmpECrgRwCo", "salty");
+			when(allRows.getString("password_hash")).thenReturn("DEADBEEF", "CAFEBABE");
+			when(allRows.getString("username")).thenReturn("dingo", "bob");
+			when(allRows.getString("email")).thenReturn("dingo@example.com", (String) null);
+			when(allRows.getInt("status")).thenReturn(0, 6);
+			when(allRows.getTimestamp("updated_at")).thenReturn(new Timestamp(5000), new Timestamp(6000));
+			
+			this.updatedRows = mock(ResultSet.class);
+			
+			this.allUsers = mock(PreparedStatement.class);
+			when(allUsers.executeQuery()).thenReturn(allRows);
+			
+			this.updatedUsers = mock(PreparedStatement.class);
+			when(updatedUsers.executeQuery()).thenReturn(updatedRows);
+			
+			this.connection = mock(Connection.class);
+			when(connection.prepareStatement(contains("status IN"), anyInt(), anyInt())).thenReturn(allUsers);
+			when(connection.prepareStatement(contains("updated_at >="), anyInt(), anyInt())).thenReturn(updatedUsers);
+			
+			this.dataSource = mock(DataSource.class);
+			when(dataSource.getConnection()).thenReturn(connection);
+			
+			this.fallback = mock(UserStore.class);
+			
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			
+			this.stats = new StatsRegistry();
+			this.store = new SnapshotUserStore(dataSource, fallback, 30000, clock, stats);
+		}
+		
+		protected void assertUser(UserRecord user, int userId, String uid, String salt, String passwordHash) {
+			assertThat(user, is(notNullValue()));
+			assertThat(user.getUserId(), is(userId));
+			assertThat(user.getUid(), is(uid));
+			assertThat(user.getSalt(), is(salt));
+			assertThat(user.getPasswordHash(), is(passwordHash));
+		}
+	}
+	
+	public static class An_Unloaded_Snapshot extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itPassesEveryLookupOnToTheFallback() throws Exception {
+			final UserRecord user = new UserRecord(200, "FrankyDoo!", "salt", "hash");
+			when(fallback.findUser("dingo")).thenReturn(user);
+			
+			assertThat(store.findUser("dingo"), is(sameInstance(user)));
+			assertThat(store.getMissCount(), is(1L));
+		}
+		
+		@Test
+		public void itHasNoAge() throws Exception {
+			assertThat(store.getAge(), is(-1L));
+			assertThat(stats.getGauges().get("auth.snapshot.age").getValue(), is(-1L));
+		}
+	}
+	
+	public static class A_Loaded_Snapshot extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			assertThat(store.refresh(), is(true));
+		}
+		
+		@Test
+		public void itLoadsEveryActiveAndPendingUser() throws Exception {
+			assertThat(store.size(), is(2));
+			assertThat(stats.getGauges().get("auth.snapshot.users").getValue(), is(2L));
+		}
+		
+		@Test
+		public void itStreamsTheUsersTable() throws Exception {
+			verify(connection).prepareStatement(contains("status IN"), eq(ResultSet.TYPE_FORWARD_ONLY), eq(ResultSet.CONCUR_READ_ONLY));
+			verify(allUsers).setFetchSize(Integer.MIN_VALUE);
+			verify(allRows).close();
+			verify(allUsers).close();
+			verify(connection).close();
+		}
+		
+		@Test
+		public void itFindsUsersByUsername() throws Exception {
+			assertUser(store.findUser("dingo"), 200, "FrankyDoo!", "cVApCcmpECrgRwCo", "DEADBEEF");
+			assertUser(store.findUser("bob"), 300, "Bobby", "salty", "CAFEBABE");
+			assertThat(store.getHitCount(), is(2L));
+			verify(fallback, never()).findUser(anyString());
+		}
+		
+		@Test
+		public void itFindsUsersByEmailAddress() throws Exception {
+			assertUser(store.findUser("dingo@example.com"), 200, "FrankyDoo!", "cVApCcmpECrgRwCo", "DEADBEEF");
+		}
+		
+		@Test
+		public void itIgnoresCase() throws Exception {
+			assertUser(store.findUser("DINGO@Example.com"), 200, "FrankyDoo!", "cVApCcmpECrgRwCo", "DEADBEEF");
+		}
+		
+		@Test
+		public void itPassesUnknownLoginsOnToTheFallback() throws Exception {
+			assertThat(store.findUser("nobody"), is(nullValue()));
+			
+			verify(fallback).findUser("nobody");
+			assertThat(store.getMissCount(), is(1L));
+		}
+		
+		@Test
+		public void itDoesNotFindUsernamesByEmailAddress() throws Exception {
+			store.findUser("bob@example.com");
+			
+			verify(fallback).findUser("bob@example.com");
+		}
+		
+		@Test
+		public void itKnowsItsAge() throws Exception {
+			when(clock.getTime()).thenReturn(112000L);
+			
+			assertThat(store.getAge(), is(12000L));
+		}
+	}
+	
+	public static class Refreshing_A_Snapshot extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			store.refresh();
+			
+			when(updatedRows.next()).thenReturn(true, true, true, false);
+			when(updatedRows.getInt("id")).thenReturn(200, 300, 400);
+			when(updatedRows.getString("uid")).thenReturn("FrankyDoo!", "Bobby", "Newbie");
+			when(updatedRows.getString("salt")).thenReturn("cVApCcmpECrgRwCo", "salty", "fresh");
+			when(updatedRows.getString("password_hash")).thenReturn("NEWHASH", "CAFEBABE", "F00D");
+			when(updatedRows.getString("username")).thenReturn("dingo2", "bob", "newbie");
+			when(updatedRows.getString("email")).thenReturn("dingo@example.com", null, null);
+			when(updatedRows.getInt("status")).thenReturn(0, 1, 0);
+			when(updatedRows.getTimestamp("updated_at")).thenReturn(new Timestamp(7000), new Timestamp(8000), new Timestamp(9000));
+			
+			when(clock.getTime()).thenReturn(130000L);
+			assertThat(store.refresh(), is(true));
+		}
+		
+		@Test
+		public void itOnlyLoadsUsersUpdatedSinceTheLastRefresh() throws Exception {
+			verify(updatedUsers).setTimestamp(1, new Timestamp(6000));
+			verify(allUsers, times(1)).executeQuery();
+			assertThat(store.getAge(), is(0L));
+		}
+		
+		@Test
+		public void itUpdatesChangedUsers() throws Exception {
+			assertUser(store.findUser("dingo@example.com"), 200, "FrankyDoo!", "cVApCcmpECrgRwCo", "NEWHASH");
+			assertUser(store.findUser("dingo2"), 200, "FrankyDoo!", "cVApCcmpECrgRwCo", "NEWHASH");
+		}
+		
+		@Test
+		public void itForgetsOldLogins() throws Exception {
+			store.findUser("dingo");
+			
+			verify(fallback).findUser("dingo");
+		}
+		
+		@Test
+		public void itRemovesDeactivatedUsers() throws Exception {
+			store.findUser("bob");
+			
+			verify(fallback).findUser("bob");
+		}
+		
+		@Test
+		public void itAddsNewUsers() throws Exception {
+			assertUser(store.findUser("newbie"), 400, "Newbie", "fresh", "F00D");
+			assertThat(store.size(), is(2));
+		}
+		
+		@Test
+		public void itReloadsEverythingOnceMostOfTheSnapshotIsGarbage() throws Exception {
+			when(updatedRows.next()).thenReturn(true, true, false);
+			when(updatedRows.getInt("id")).thenReturn(200, 400);
+			when(updatedRows.getString("uid")).thenReturn("FrankyDoo!", "Newbie");
+			when(updatedRows.getString("salt")).thenReturn("cVApCcmpECrgRwCo", "fresh");
+			when(updatedRows.getString("password_hash")).thenReturn("NEWERHASH", "F00D");
+			when(updatedRows.getString("username")).thenReturn("dingo2", "newbie");
+			when(updatedRows.getString("email")).thenReturn("dingo@example.com", (String) null);
+			when(updatedRows.getInt("status")).thenReturn(0, 0);
+			when(updatedRows.getTimestamp("updated_at")).thenReturn(new Timestamp(9000), new Timestamp(9000));
+			store.refresh();
+			
+			when(allRows.next()).thenReturn(true, false);
+			store.refresh();
+			
+			verify(allUsers, times(2)).executeQuery();
+		}
+	}
+	
+	public static class Refreshing_A_Snapshot_Which_Has_Not_Changed extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			store.refresh();
+			
+			when(updatedRows.next()).thenReturn(true, false, true, false, true, false);
+			when(updatedRows.getInt("id")).thenReturn(300);
+			when(updatedRows.getString("uid")).thenReturn("Bobby");
+			when(updatedRows.getString("salt")).thenReturn("salty");
+			when(updatedRows.getString("password_hash")).thenReturn("CAFEBABE");
+			when(updatedRows.getString("username")).thenReturn("bob");
+			when(updatedRows.getString("email")).thenReturn(null);
+			when(updatedRows.getInt("status")).thenReturn(6);
+			when(updatedRows.getTimestamp("updated_at")).thenReturn(new Timestamp(6000));
+		}
+		
+		@Test
+		public void itDoesNotReappendUsersUpdatedAtTheLastRefresh() throws Exception {
+			for (int i = 0; i < 3; i++) {
+				store.refresh();
+			}
+			
+			verify(allUsers, times(1)).executeQuery();
+			assertThat(store.size(), is(2));
+		}
+		
+		@Test
+		public void itStillAppliesChangesMadeWithinTheSameTimestamp() throws Exception {
+			when(updatedRows.getString("password_hash")).thenReturn("NEWHASH");
+			store.refresh();
+			
+			assertUser(store.findUser("bob"), 300, "Bobby", "salty", "NEWHASH");
+		}
+	}
+	
+	public static class A_Snapshot_Which_Is_Read_While_It_Grows extends Context {
+		private static final int USERS = 4096;
+		private static final int READERS = 2;
+		
+		private final AtomicInteger row = new AtomicInteger();
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		private volatile boolean refreshing = true;
+		
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.store = new SnapshotUserStore(dataSource, new UserStore() {
+				@Override
+				public UserRecord findUser(String login) throws SQLException {
+					return null;
+				}
+			}, 30000, clock, stats);
+			store.refresh();
+			
+			when(updatedRows.next()).thenAnswer(new Answer<Boolean>() {
+				@Override
+				public Boolean answer(InvocationOnMock invocation) throws Throwable {
+					return row.incrementAndGet() <= USERS;
+				}
+			});
+			when(updatedRows.getInt("id")).thenAnswer(new Answer<Integer>() {
+				@Override
+				public Integer answer(InvocationOnMock invocation) throws Throwable {
+					return 1000 + row.get();
+				}
+			});
+			final Answer<String> name = new Answer<String>() {
+				@Override
+				public String answer(InvocationOnMock invocation) throws Throwable {
+					return "user" + row.get();
+				}
+			};
+			when(updatedRows.getString("uid")).thenAnswer(name);
+			when(updatedRows.getString("username")).thenAnswer(name);
+			when(updatedRows.getString("salt")).thenReturn("salt");
+			when(updatedRows.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+			when(updatedRows.getString("email")).thenReturn(null);
+			when(updatedRows.getInt("status")).thenReturn(0);
+			when(updatedRows.getTimestamp("updated_at")).thenReturn(new Timestamp(7000));
+		}
+		
+		@Test
+		public void itNeverReadsRecordsWhichDoNotHoldTheIndexItFound() throws Exception {
+			final Thread[] readers = new Thread[READERS];
+			for (int i = 0; i < READERS; i++) {
+				readers[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							while (refreshing) {
+								// the first user appended after the records next grow
+								final int next = Math.max(1023, (Integer.highestOneBit(row.get()) * 2) - 1);
+								final UserRecord user = store.findUser("user" + next);
+								if ((user != null) && (user.getUserId() != (1000 + next))) {
+									throw new AssertionError("user" + next + " resolved to " + user.getUserId());
+								}
+								Thread.yield();
+							}
+						} catch (Throwable e) {
+							failure.compareAndSet(null, e);
+						}
+					}
+				};
+				readers[i].start();
+			}
+			
+			try {
+				store.refresh();
+			} finally {
+				this.refreshing = false;
+				for (Thread reader : readers) {
+					reader.join();
+				}
+			}
+			
+			assertThat(failure.get(), is(nullValue()));
+			assertThat(store.size(), is(USERS + 2));
+		}
+	}
+	
+	public static class A_Snapshot_With_Colliding_Logins extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.store = new SnapshotUserStore(dataSource, fallback, 30000, clock, stats) {
+				@Override
+				protected long fingerprint(String login) {
+					return 42;
+				}
+			};
+			store.refresh();
+		}
+		
+		@Test
+		public void itNeverResolvesALoginToSomeoneElsesRecord() throws Exception {
+			final UserRecord mallory = new UserRecord(500, "Mallory", "salt", "hash");
+			when(fallback.findUser("mallory")).thenReturn(mallory);
+			
+			assertThat(store.findUser("mallory"), is(sameInstance(mallory)));
+			assertThat(store.getMissCount(), is(1L));
+		}
+		
+		@Test
+		public void itStillFindsTheUserWhoseLoginMatches() throws Exception {
+			assertUser(store.findUser("bob"), 300, "Bobby", "salty", "CAFEBABE");
+			assertUser(store.findUser("Dingo@Example.com"), 200, "FrankyDoo!", "cVApCcmpECrgRwCo", "DEADBEEF");
+		}
+		
+		@Test
+		public void itPassesLoginsWhichLostTheirSlotOnToTheFallback() throws Exception {
+			store.findUser("dingo");
+			
+			verify(fallback).findUser("dingo");
+		}
+	}
+	
+	public static class A_Snapshot_Which_Cannot_Be_Refreshed extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			Logger.getLogger("com.wesabe").setLevel(Level.OFF);
+			store.refresh();
+			
+			when(updatedUsers.executeQuery()).thenThrow(new SQLException("oh no"));
+		}
+		
+		@Test
+		public void itKeepsTheOldSnapshot() throws Exception {
+			assertThat(store.refresh(), is(false));
+			
+			assertUser(store.findUser("dingo"), 200, "FrankyDoo!", "cVApCcmpECrgRwCo", "DEADBEEF");
+			verify(connection, times(2)).close();
+		}
+	}
+	
+	public static class A_Large_Snapshot extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			final int users = 5000;
+			final Boolean[] more = new Boolean[users];
+			final Integer[] ids = new Integer[users - 1];
+			final String[] names = new String[users - 1];
+			for (int i = 0; i < (users - 1); i++) {
+				more[i] = Boolean.TRUE;
+				ids[i] = Integer.valueOf(i + 2);
+				names[i] = "user" + (i + 2);
+			}
+			more[users - 1] = Boolean.FALSE;
+			
+			when(allRows.next()).thenReturn(Boolean.TRUE, more);
+			when(allRows.getInt("id")).thenReturn(Integer.valueOf(1), ids);
+			when(allRows.getString("uid")).thenReturn("user1", names);
+			when(allRows.getString("salt")).thenReturn("salt");
+			when(allRows.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+			when(allRows.getString("username")).thenReturn("user1", names);
+			when(allRows.getString("email")).thenReturn(null);
+			when(allRows.getInt("status")).thenReturn(0);
+			when(allRows.getTimestamp("updated_at")).thenReturn(new Timestamp(5000));
+			
+			store.refresh();
+		}
+		
+		@Test
+		public void itGrowsToHoldEveryUser() throws Exception {
+			assertThat(store.size(), is(5000));
+			for (int i = 1; i <= 5000; i++) {
+				final UserRecord user = store.findUser("user" + i);
+				assertThat(user.getUserId(), is(i));
+				assertThat(user.getUid(), is("user" + i));
+			}
+			verify(fallback, never()).findUser(anyString());
+		}
+	}
+}
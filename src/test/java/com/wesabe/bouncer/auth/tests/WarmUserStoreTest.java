@@ -0,0 +1,259 @@
+package com.wesabe.bouncer.auth.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.auth.UserRecord;
+import com.wesabe.bouncer.auth.UserStore;
+import com.wesabe.bouncer.auth.WarmUserStore;
+import com.wesabe.bouncer.stats.StatsRegistry;
+import com.wesabe.bouncer.util.Clock;
+
+@RunWith(Enclosed.class)
+public class WarmUserStoreTest {
+	private static abstract class Context {
+		protected DataSource dataSource;
+		protected Connection connection;
+		protected PreparedStatement firstBatch, nextBatch;
+		protected ResultSet firstRows, nextRows;
+		protected UserStore fallback;
+		protected Clock clock;
+		protected StatsRegistry stats;
+		protected WarmUserStore store;
+		
+		public void setup() throws Exception {
+			Logger.getLogger("com.wesabe").setLevel(Level.OFF);
+			
+			this.firstRows = mock(ResultSet.class);
+			when(firstRows.next()).thenReturn(true, true, false);
+			when(firstRows.getInt("id")).thenReturn(200, 300);
+			when(firstRows.getString("uid")).thenReturn("FrankyDoo!", "Bobby");
+			when(firstRows.getString("salt")).thenReturn("cVApCcmpECrgRwCo", "salty");
+			when(firstRows.getString("password_hash")).thenReturn("DEADBEEF", "CAFEBABE");
+			when(firstRows.getString("username")).thenReturn("dingo", "bob");
+			when(firstRows.getString("email")).thenReturn("dingo@example.com", (String) null);
+			when(firstRows.getTimestamp("last_web_login")).thenReturn(new Timestamp(9000), new Timestamp(8000));
+			
+			this.nextRows = mock(ResultSet.class);
+			when(nextRows.next()).thenReturn(true, false);
+			when(nextRows.getInt("id")).thenReturn(100);
+			when(nextRows.getString("uid")).thenReturn("Oldie");
+			when(nextRows.getString("salt")).thenReturn("old");
+			when(nextRows.getString("password_hash")).thenReturn("0123");
+			when(nextRows.getString("username")).thenReturn("dingo");
+			when(nextRows.getString("email")).thenReturn("oldie@example.com");
+			when(nextRows.getTimestamp("last_web_login")).thenReturn(new Timestamp(7000));
+			
+			this.firstBatch = mock(PreparedStatement.class);
+			when(firstBatch.executeQuery()).thenReturn(firstRows);
+			
+			this.nextBatch = mock(PreparedStatement.class);
+			when(nextBatch.executeQuery()).thenReturn(nextRows);
+			
+			this.connection = mock(Connection.class);
+			when(connection.prepareStatement(contains("LIMIT ?"))).thenReturn(firstBatch);
+			when(connection.prepareStatement(contains("id < ?"))).thenReturn(nextBatch);
+			
+			this.dataSource = mock(DataSource.class);
+			when(dataSource.getConnection()).thenReturn(connection);
+			
+			this.fallback = mock(UserStore.class);
+			
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			
+			this.stats = new StatsRegistry();
+			this.store = new WarmUserStore(dataSource, fallback, 10, 60000, clock, stats);
+		}
+		
+		protected void assertUser(UserRecord user, int userId, String uid) {
+			assertThat(user, is(notNullValue()));
+			assertThat(user.getUserId(), is(userId));
+			assertThat(user.getUid(), is(uid));
+		}
+	}
+	
+	public static class A_Cold_Store extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itPassesEveryLookupOnToTheFallback() throws Exception {
+			final UserRecord user = new UserRecord(200, "FrankyDoo!", "salt", "hash");
+			when(fallback.findUser("dingo")).thenReturn(user);
+			
+			assertThat(store.findUser("dingo"), is(sameInstance(user)));
+			assertThat(store.isWarm(), is(false));
+			verify(dataSource, never()).getConnection();
+		}
+		
+		@Test
+		public void itHasNoDuration() throws Exception {
+			assertThat(stats.getGauges().get("auth.warmup.duration").getValue(), is(-1L));
+		}
+	}
+	
+	public static class Warming_Up extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(clock.getTime()).thenReturn(100000L, 100000L, 100000L, 100250L, 100250L, 100400L);
+			assertThat(store.warm(2, 10000), is(3));
+		}
+		
+		@Test
+		public void itReadsTheMostRecentLoginsInBatches() throws Exception {
+			verify(firstBatch).setInt(1, 2);
+			
+			verify(nextBatch).setTimestamp(1, new Timestamp(8000));
+			verify(nextBatch).setTimestamp(2, new Timestamp(8000));
+			verify(nextBatch).setInt(3, 300);
+			verify(nextBatch).setInt(4, 2);
+		}
+		
+		@Test
+		public void itStopsWhenABatchComesUpShort() throws Exception {
+			verify(firstBatch, times(1)).executeQuery();
+			verify(nextBatch, times(1)).executeQuery();
+		}
+		
+		@Test
+		public void itBoundsEachQueryByTheTimeLeft() throws Exception {
+			verify(firstBatch).setQueryTimeout(10);
+			verify(nextBatch).setQueryTimeout(10);
+		}
+		
+		@Test
+		public void itClosesEverything() throws Exception {
+			verify(firstRows).close();
+			verify(firstBatch).close();
+			verify(nextRows).close();
+			verify(nextBatch).close();
+			verify(connection).close();
+		}
+		
+		@Test
+		public void itFindsUsersByUsernameAndEmail() throws Exception {
+			assertUser(store.findUser("bob"), 300, "Bobby");
+			assertUser(store.findUser("dingo@example.com"), 200, "FrankyDoo!");
+			assertUser(store.findUser("oldie@example.com"), 100, "Oldie");
+			verify(fallback, never()).findUser(anyString());
+		}
+		
+		@Test
+		public void itIgnoresCase() throws Exception {
+			assertUser(store.findUser("DINGO@Example.COM"), 200, "FrankyDoo!");
+		}
+		
+		@Test
+		public void itPrefersTheMostRecentLogin() throws Exception {
+			assertUser(store.findUser("dingo"), 200, "FrankyDoo!");
+		}
+		
+		@Test
+		public void itPassesUnknownLoginsOnToTheFallback() throws Exception {
+			assertThat(store.findUser("nobody"), is(nullValue()));
+			
+			verify(fallback).findUser("nobody");
+		}
+		
+		@Test
+		public void itReportsWhatItLoaded() throws Exception {
+			assertThat(store.getLoadedCount(), is(3));
+			assertThat(store.getDuration(), is(400L));
+			assertThat(stats.getGauges().get("auth.warmup.users").getValue(), is(3L));
+			assertThat(stats.getGauges().get("auth.warmup.duration").getValue(), is(400L));
+		}
+		
+		@Test
+		public void itCountsHits() throws Exception {
+			store.findUser("bob");
+			store.findUser("nobody");
+			
+			assertThat(stats.getGauges().get("auth.warmup.hits").getValue(), is(1L));
+		}
+		
+		@Test
+		public void itForgetsEveryoneOnceThePreloadedUsersExpire() throws Exception {
+			when(clock.getTime()).thenReturn(160400L);
+			
+			store.findUser("bob");
+			
+			verify(fallback).findUser("bob");
+			assertThat(store.isWarm(), is(false));
+		}
+	}
+	
+	public static class Warming_Up_More_Users_Than_Allowed extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.store = new WarmUserStore(dataSource, fallback, 2, 60000, clock, stats);
+			store.warm(1000, 10000);
+		}
+		
+		@Test
+		public void itOnlyAsksForAsManyAsItCanHold() throws Exception {
+			verify(firstBatch).setInt(1, 2);
+			verify(connection, never()).prepareStatement(contains("id < ?"));
+			assertThat(store.getLoadedCount(), is(2));
+		}
+	}
+	
+	public static class Warming_Up_Slowly extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(clock.getTime()).thenReturn(100000L, 100000L, 100000L, 111000L);
+			store.warm(2, 10000);
+		}
+		
+		@Test
+		public void itStopsWhenTimeIsUp() throws Exception {
+			verify(firstBatch).executeQuery();
+			verify(connection, never()).prepareStatement(contains("id < ?"));
+			assertThat(store.getLoadedCount(), is(2));
+			assertUser(store.findUser("bob"), 300, "Bobby");
+		}
+	}
+	
+	public static class Warming_Up_From_A_Broken_Database extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(nextBatch.executeQuery()).thenThrow(new SQLException("oh no"));
+			store.warm(2, 10000);
+		}
+		
+		@Test
+		public void itKeepsWhatItLoaded() throws Exception {
+			assertThat(store.getLoadedCount(), is(2));
+			assertUser(store.findUser("bob"), 300, "Bobby");
+			verify(connection).close();
+		}
+	}
+}
@@ -6,27 +6,73 @@ import static org.mockito.Mockito.*;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
 import javax.sql.DataSource;
 
 import net.spy.memcached.MemcachedClientIF;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.eclipse.jetty.security.UserAuthentication;
+import org.eclipse.jetty.server.Authentication;
 import org.eclipse.jetty.server.Request;
 
+import com.google.common.collect.ImmutableList;
+import com.wesabe.bouncer.auth.AuthenticationUnavailableException;
 import com.wesabe.bouncer.auth.BadCredentialsException;
+import com.wesabe.bouncer.auth.CredentialCache;
+import com.wesabe.bouncer.auth.FailedLogins;
+import com.wesabe.bouncer.auth.JdbcUserStore;
+import com.wesabe.bouncer.auth.LocalThrottleStore;
+import com.wesabe.bouncer.auth.LockStateCache;
+import com.wesabe.bouncer.auth.MemcachedThrottleStore;
+import com.wesabe.bouncer.auth.NegativeLookupCache;
+import com.wesabe.bouncer.auth.SessionKey;
+import com.wesabe.bouncer.auth.SessionTokens;
 import com.wesabe.bouncer.auth.LockedAccountException;
 import com.wesabe.bouncer.auth.WesabeAuthenticator;
 import com.wesabe.bouncer.auth.WesabeCredentials;
+import com.wesabe.bouncer.limits.Tarpit;
+import com.wesabe.bouncer.stats.StatsRegistry;
+import com.wesabe.bouncer.util.CircuitBreaker;
+import com.wesabe.bouncer.util.Clock;
 
 @RunWith(Enclosed.class)
 public class WesabeAuthenticatorTest {
+	private static final String USERNAME_SELECT_SQL =
+		"SELECT id, uid, salt, password_hash " +
+		"FROM users " +
+		"WHERE (username = ?) AND status IN (0, 6) " +
+		"ORDER BY last_web_login DESC " +
+		"LIMIT 1";
+	private static final String EMAIL_SELECT_SQL =
+		"SELECT id, uid, salt, password_hash " +
+		"FROM users " +
+		"WHERE (email = ?) AND status IN (0, 6) " +
+		"ORDER BY last_web_login DESC " +
+		"LIMIT 1";
+	
 	private static abstract class Context {
 		protected DataSource dataSource;
 		protected Connection connection;
@@ -36,6 +82,7 @@ public class WesabeAuthenticatorTest {
 		protected Request request;
 		protected MemcachedClientIF memcached;
 		
+		@SuppressWarnings("unchecked")
 		public void setup() throws Exception {
 			this.resultSet = mock(ResultSet.class);
 			
@@ -51,6 +98,7 @@ public class WesabeAuthenticatorTest {
 			this.request = mock(Request.class);
 			
 			this.memcached = mock(MemcachedClientIF.class);
+			doReturn(mock(Future.class)).when(memcached).asyncGet(anyString());
 			
 			this.authenticator = new WesabeAuthenticator("wesabe", dataSource, memcached);
 			
@@ -189,27 +237,97 @@ public class WesabeAuthenticatorTest {
 			
 			InOrder inOrder = inOrder(dataSource, connection, statement, resultSet);
 			inOrder.verify(dataSource).getConnection();
-			inOrder.verify(connection).prepareStatement(
-				"SELECT * FROM (" +
-						"SELECT id, uid, salt, password_hash, last_web_login " +
-						"FROM users " +
-						"WHERE (username = ?) AND status IN (0, 6) " +
-					"UNION " +
-						"SELECT id, uid, salt, password_hash, last_web_login " +
-						"FROM users " +
-						"WHERE (email = ?) AND status IN (0, 6)" +
-				") AS t " +
-				"ORDER BY last_web_login DESC " +
-				"LIMIT 1"
-			);
+			inOrder.verify(connection).prepareStatement(USERNAME_SELECT_SQL);
 			inOrder.verify(statement).setString(1, "dingo");
-			inOrder.verify(statement).setString(2, "dingo");
 			inOrder.verify(statement).executeQuery();
 			inOrder.verify(resultSet).first();
 			inOrder.verify(resultSet).close();
 			inOrder.verify(statement).close();
 			inOrder.verify(connection).close();
 		}
+		
+		@Test
+		public void itDoesNotLookUpTheUsernameAsAnEmailAddress() throws Exception {
+			try {
+				authenticator.authenticate(request);
+			} catch (BadCredentialsException e) {
+				
+			}
+			
+			verify(connection, never()).prepareStatement(EMAIL_SELECT_SQL);
+			verify(statement, times(1)).executeQuery();
+		}
+	}
+	
+	public static class Authenticating_A_Request_With_An_Unknown_Email_Address extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			// dingo@example.com:math
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ29AZXhhbXBsZS5jb206bWF0aA==");
+			
+			when(resultSet.first()).thenReturn(false);
+		};
+		
+		@Test
+		public void itThrowsABadCredentialsException() throws Exception {
+			try {
+				authenticator.authenticate(request);
+				fail("should have thrown a BadCredentialsException but didn't");
+			} catch (BadCredentialsException e) {
+				assertTrue(true);
+			}
+		}
+		
+		@Test
+		public void itLooksUpTheEmailAddressAndThenTheUsername() throws Exception {
+			try {
+				authenticator.authenticate(request);
+			} catch (BadCredentialsException e) {
+				
+			}
+			
+			InOrder inOrder = inOrder(connection, statement);
+			inOrder.verify(connection).prepareStatement(EMAIL_SELECT_SQL);
+			inOrder.verify(statement).setString(1, "dingo@example.com");
+			inOrder.verify(statement).executeQuery();
+			inOrder.verify(connection).prepareStatement(USERNAME_SELECT_SQL);
+			inOrder.verify(statement).setString(1, "dingo@example.com");
+			inOrder.verify(statement).executeQuery();
+			inOrder.verify(connection).close();
+		}
+	}
+	
+	public static class Authenticating_A_Request_With_A_Known_Email_Address extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			// dingo@example.com:math
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ29AZXhhbXBsZS5jb206bWF0aA==");
+			
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("uid")).thenReturn("FrankyDoo!");
+			when(resultSet.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+		};
+		
+		@Test
+		public void itReturnsASetOfCredentials() throws Exception {
+			assertEquals(200, authenticator.authenticate(request).getUserId());
+		}
+		
+		@Test
+		public void itDoesNotLookUpTheEmailAddressAsAUsername() throws Exception {
+			authenticator.authenticate(request);
+			
+			verify(connection).prepareStatement(EMAIL_SELECT_SQL);
+			verify(connection, never()).prepareStatement(USERNAME_SELECT_SQL);
+		}
 	}
 	
 	public static class Authenticating_A_Request_With_A_Bad_Password_And_No_Failed_Logins extends Context {
@@ -608,4 +726,910 @@ public class WesabeAuthenticatorTest {
 			verify(memcached).delete("failed-logins:200");
 		}
 	}
+	
+	public static class Authenticating_A_Repeated_Request_With_A_Good_Password extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			this.authenticator = new WesabeAuthenticator("wesabe", new JdbcUserStore(dataSource, new StatsRegistry()), new MemcachedThrottleStore(memcached), new CredentialCache(100, 60), new NegativeLookupCache(0, 0), CircuitBreaker.disabled(), SessionTokens.disabled(), Tarpit.disabled(), new FailedLogins(new MemcachedThrottleStore(memcached)), new LockStateCache(0, 0), new StatsRegistry());
+			
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286bWF0aA==");
+			
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("uid")).thenReturn("FrankyDoo!");
+			when(resultSet.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+		};
+		
+		@Test
+		public void itReturnsTheSameCredentials() throws Exception {
+			final WesabeCredentials first = authenticator.authenticate(request);
+			final WesabeCredentials second = authenticator.authenticate(request);
+			
+			assertEquals(200, second.getUserId());
+			assertEquals(first.getAccountKey(), second.getAccountKey());
+		}
+		
+		@Test
+		public void itOnlyConnectsToTheDatabaseOnce() throws Exception {
+			authenticator.authenticate(request);
+			authenticator.authenticate(request);
+			
+			verify(dataSource, times(1)).getConnection();
+			assertEquals(1L, authenticator.getCredentialCache().getHitCount());
+		}
+		
+		@Test
+		public void itConnectsToTheDatabaseAgainAfterTheUserIsInvalidated() throws Exception {
+			authenticator.authenticate(request);
+			authenticator.getCredentialCache().invalidate(200);
+			authenticator.authenticate(request);
+			
+			verify(dataSource, times(2)).getConnection();
+		}
+	}
+	
+	public static class Authenticating_A_Repeated_Request_With_An_Unknown_Username extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			this.authenticator = new WesabeAuthenticator("wesabe", new JdbcUserStore(dataSource, new StatsRegistry()), new MemcachedThrottleStore(memcached), new CredentialCache(100, 60), new NegativeLookupCache(100, 60), CircuitBreaker.disabled(), SessionTokens.disabled(), Tarpit.disabled(), new FailedLogins(new MemcachedThrottleStore(memcached)), new LockStateCache(0, 0), new StatsRegistry());
+			
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286bWF0aA==");
+			
+			when(resultSet.first()).thenReturn(false);
+		};
+		
+		@Test
+		public void itThrowsABadCredentialsExceptionEachTime() throws Exception {
+			for (int i = 0; i < 2; i++) {
+				try {
+					authenticator.authenticate(request);
+					fail("should have thrown a BadCredentialsException but didn't");
+				} catch (BadCredentialsException e) {
+					assertTrue(true);
+				}
+			}
+		}
+		
+		@Test
+		public void itOnlyConnectsToTheDatabaseOnce() throws Exception {
+			for (int i = 0; i < 3; i++) {
+				try {
+					authenticator.authenticate(request);
+				} catch (BadCredentialsException e) {
+					
+				}
+			}
+			
+			verify(dataSource, times(1)).getConnection();
+			assertEquals(2L, authenticator.getNegativeLookupCache().getSavedQueryCount());
+		}
+	}
+	
+	public static class Authenticating_A_Known_User extends Context {
+		private Future<Object> lock;
+		
+		@Override
+		@Before
+		@SuppressWarnings("unchecked")
+		public void setup() throws Exception {
+			super.setup();
+			
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286bWF0aA==");
+			
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("uid")).thenReturn("FrankyDoo!");
+			when(resultSet.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+			when(memcached.incr("failed-logins:200", 1)).thenReturn(5L);
+			
+			this.lock = mock(Future.class);
+			doReturn(lock).when(memcached).asyncGet("lock-account:200");
+			
+			authenticator.authenticate(request);
+		};
+		
+		@Test
+		public void itChecksTheAccountLockBeforeQueryingTheDatabase() throws Exception {
+			authenticator.authenticate(request);
+			
+			final InOrder inOrder = inOrder(memcached, statement, lock);
+			inOrder.verify(memcached).asyncGet("lock-account:200");
+			inOrder.verify(statement).executeQuery();
+			inOrder.verify(lock).get(anyLong(), any(TimeUnit.class));
+		}
+		
+		@Test
+		public void itOnlyChecksTheAccountLockSynchronouslyTheFirstTime() throws Exception {
+			authenticator.authenticate(request);
+			
+			verify(memcached, times(1)).get("lock-account:200");
+		}
+		
+		@Test
+		public void itThrowsALockedAccountExceptionIfTheAccountIsLocked() throws Exception {
+			when(lock.get(anyLong(), any(TimeUnit.class))).thenReturn(Integer.valueOf(15));
+			
+			try {
+				authenticator.authenticate(request);
+				fail("should have thrown a LockedAccountException but didn't");
+			} catch (LockedAccountException e) {
+				assertEquals(30, e.getPenaltyDuration());
+			}
+		}
+		
+		@Test
+		public void itUsesThePrefetchedLockIfTheUserHasNotChanged() throws Exception {
+			authenticator.authenticate(request);
+			
+			verify(lock, never()).cancel(anyBoolean());
+		}
+		
+		@Test
+		public void itCancelsThePrefetchedLockIfTheLoginNowBelongsToAnotherUser() throws Exception {
+			when(resultSet.getInt("id")).thenReturn(201);
+			
+			authenticator.authenticate(request);
+			
+			verify(lock).cancel(true);
+			verify(memcached).get("lock-account:201");
+		}
+		
+		@Test
+		public void itCancelsThePrefetchedLockIfTheUserNoLongerExists() throws Exception {
+			when(resultSet.first()).thenReturn(false);
+			
+			try {
+				authenticator.authenticate(request);
+				fail("should have thrown a BadCredentialsException but didn't");
+			} catch (BadCredentialsException e) {
+				verify(lock).cancel(true);
+			}
+		}
+		
+		@Test
+		public void itCancelsThePrefetchedLockIfTheDatabaseIsUnavailable() throws Exception {
+			when(statement.executeQuery()).thenThrow(new SQLException("oh no"));
+			
+			try {
+				authenticator.authenticate(request);
+				fail("should have thrown an AuthenticationUnavailableException but didn't");
+			} catch (AuthenticationUnavailableException e) {
+				verify(lock).cancel(true);
+			}
+		}
+	}
+	
+	public static class Authenticating_With_A_Local_Throttle_Store extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			this.authenticator = new WesabeAuthenticator("wesabe", dataSource, new LocalThrottleStore(1024, Clock.system()));
+			
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286bWF0aA==");
+			
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("password_hash")).thenReturn("DEADBEEF");
+		}
+		
+		@Test
+		public void itLocksTheAccountAfterThreeFailedLogins() throws Exception {
+			for (int i = 0; i < 3; i++) {
+				try {
+					authenticator.authenticate(request);
+					fail("should have thrown a BadCredentialsException but didn't");
+				} catch (BadCredentialsException e) {
+					assertTrue(true);
+				}
+			}
+			
+			try {
+				authenticator.authenticate(request);
+				fail("should have thrown a LockedAccountException but didn't");
+			} catch (LockedAccountException e) {
+				assertEquals(15, e.getPenaltyDuration());
+			}
+			
+			assertTrue(authenticator.getThrottleStore().isLocked(200));
+			verifyZeroInteractions(memcached);
+		}
+	}
+	
+	public static class Authenticating_With_A_Lock_State_Cache extends Context {
+		private Clock clock;
+		
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			
+			this.authenticator = new WesabeAuthenticator("wesabe", new JdbcUserStore(dataSource, new StatsRegistry()), new MemcachedThrottleStore(memcached), new CredentialCache(0, 0), new NegativeLookupCache(0, 0), CircuitBreaker.disabled(), SessionTokens.disabled(), Tarpit.disabled(), new FailedLogins(new MemcachedThrottleStore(memcached)), new LockStateCache(100, 1000, clock), new StatsRegistry());
+			
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286bWF0aA==");
+			
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("uid")).thenReturn("FrankyDoo!");
+			when(resultSet.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+			
+			authenticator.authenticate(request);
+		}
+		
+		@Test
+		public void itDoesNotAskMemcachedAgainWithinTheStalenessBound() throws Exception {
+			authenticator.authenticate(request);
+			authenticator.authenticate(request);
+			
+			verify(memcached, times(1)).get("lock-account:200");
+			verify(memcached, never()).asyncGet("lock-account:200");
+			assertEquals(2L, authenticator.getLockStateCache().getHitCount());
+		}
+		
+		@Test
+		public void itAsksMemcachedAgainAfterTheStalenessBound() throws Exception {
+			when(clock.getTime()).thenReturn(101000L);
+			
+			authenticator.authenticate(request);
+			
+			verify(memcached).asyncGet("lock-account:200");
+		}
+		
+		@Test
+		public void itHoldsLocksIssuedLocally() throws Exception {
+			when(resultSet.getString("password_hash")).thenReturn("DEADBEEF");
+			when(memcached.incr("failed-logins:200", 1)).thenReturn(4L);
+			try {
+				authenticator.authenticate(request);
+				fail("should have thrown a LockedAccountException but didn't");
+			} catch (LockedAccountException e) {
+				assertEquals(15, e.getPenaltyDuration());
+			}
+			
+			when(clock.getTime()).thenReturn(110000L);
+			when(memcached.incr("failed-logins:200", 1)).thenReturn(5L);
+			try {
+				authenticator.authenticate(request);
+				fail("should have thrown a LockedAccountException but didn't");
+			} catch (LockedAccountException e) {
+				assertEquals(30, e.getPenaltyDuration());
+			}
+			
+			verify(memcached, times(1)).get("lock-account:200");
+			verify(memcached, never()).asyncGet("lock-account:200");
+		}
+	}
+	
+	public static class Authenticating_A_Cached_Request_For_A_Locked_Account extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			this.authenticator = new WesabeAuthenticator("wesabe", new JdbcUserStore(dataSource, new StatsRegistry()), new MemcachedThrottleStore(memcached), new CredentialCache(100, 60), new NegativeLookupCache(0, 0), CircuitBreaker.disabled(), SessionTokens.disabled(), Tarpit.disabled(), new FailedLogins(new MemcachedThrottleStore(memcached)), new LockStateCache(100, 1000), new StatsRegistry());
+			
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("uid")).thenReturn("FrankyDoo!");
+			when(resultSet.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+			
+			authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+			authenticator.getLockStateCache().lock(200, 60);
+		}
+		
+		@Test
+		public void itDoesNotUseTheCachedCredentials() throws Exception {
+			try {
+				authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+				fail("should have thrown a LockedAccountException but didn't");
+			} catch (LockedAccountException e) {
+				assertTrue(true);
+			}
+		}
+	}
+	
+	public static class Authenticating_With_Batched_Failed_Logins extends Context {
+		private FailedLogins failedLogins;
+		
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			final Clock clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			
+			this.failedLogins = new FailedLogins(new MemcachedThrottleStore(memcached), 100, clock);
+			this.authenticator = new WesabeAuthenticator("wesabe", new JdbcUserStore(dataSource, new StatsRegistry()), new MemcachedThrottleStore(memcached), new CredentialCache(0, 0), new NegativeLookupCache(0, 0), CircuitBreaker.disabled(), SessionTokens.disabled(), Tarpit.disabled(), failedLogins, new LockStateCache(0, 0), new StatsRegistry());
+			
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286bWF0aA==");
+			
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("password_hash")).thenReturn("DEADBEEF");
+			when(memcached.incr("failed-logins:200", 0)).thenReturn(3L);
+			when(memcached.incr("failed-logins:200", 2)).thenReturn(5L);
+			
+			try {
+				authenticator.authenticate(request);
+				fail("should have thrown a LockedAccountException but didn't");
+			} catch (LockedAccountException e) {
+				assertEquals(15, e.getPenaltyDuration());
+			}
+		}
+		
+		@Test
+		public void itDoesNotWriteToMemcachedUntilTheNextFlush() throws Exception {
+			verify(memcached, never()).incr("failed-logins:200", 1);
+			verify(memcached, never()).set(anyString(), anyInt(), anyObject());
+			
+			failedLogins.flush();
+			
+			verify(memcached).incr("failed-logins:200", 1);
+			verify(memcached).set("lock-account:200", 15, Integer.valueOf(15));
+		}
+		
+		@Test
+		public void itRejectsLockedUsersWithoutCheckingMemcached() throws Exception {
+			try {
+				authenticator.authenticate(request);
+				fail("should have thrown a LockedAccountException but didn't");
+			} catch (LockedAccountException e) {
+				assertEquals(30, e.getPenaltyDuration());
+			}
+			
+			verify(memcached, times(1)).get("lock-account:200");
+			verify(memcached, never()).asyncGet("lock-account:200");
+		}
+		
+		@Test
+		public void itCoalescesTheFailuresIntoOneWrite() throws Exception {
+			try {
+				authenticator.authenticate(request);
+			} catch (LockedAccountException e) {
+			}
+			
+			failedLogins.flush();
+			
+			verify(memcached).incr("failed-logins:200", 2);
+			verify(memcached).set("lock-account:200", 30, Integer.valueOf(30));
+		}
+	}
+	
+	public static class Recording_Statistics extends Context {
+		private StatsRegistry stats;
+		
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			this.stats = new StatsRegistry();
+			this.authenticator = new WesabeAuthenticator("wesabe", new JdbcUserStore(dataSource, stats), new MemcachedThrottleStore(memcached), new CredentialCache(100, 60), new NegativeLookupCache(0, 0), CircuitBreaker.disabled(), SessionTokens.disabled(), Tarpit.disabled(), new FailedLogins(new MemcachedThrottleStore(memcached)), new LockStateCache(0, 0), stats);
+			
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("uid")).thenReturn("FrankyDoo!");
+			when(resultSet.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+		};
+		
+		@Test
+		public void itTimesEachStageOfASuccessfulLookup() throws Exception {
+			authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+			authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+			
+			assertEquals(2L, stats.counter("auth.outcome.success").getCount());
+			assertEquals(1L, stats.getGauges().get("auth.cache.hits").getValue());
+			assertEquals(2L, stats.histogram("auth.latency.total").getCount());
+			assertEquals(1L, stats.histogram("auth.latency.checkout").getCount());
+			assertEquals(1L, stats.histogram("auth.latency.query").getCount());
+			assertEquals(1L, stats.histogram("auth.latency.throttle").getCount());
+			assertEquals(2L, stats.histogram("auth.latency.hash").getCount());
+			assertEquals(1L, stats.histogram("auth.latency.register").getCount());
+		}
+		
+		@Test
+		public void itCountsBadPasswords() throws Exception {
+			try {
+				authenticator.authenticate("Basic ZGluZ286YmFk");
+				fail("should have thrown a BadCredentialsException but didn't");
+			} catch (BadCredentialsException e) {
+				assertEquals(1L, stats.counter("auth.outcome.bad-credentials").getCount());
+				assertEquals(0L, stats.counter("auth.outcome.unknown-user").getCount());
+			}
+		}
+		
+		@Test
+		public void itCountsMalformedHeadersAsBadCredentials() throws Exception {
+			try {
+				authenticator.authenticate("Basic ZGluZ28=");
+				fail("should have thrown a BadCredentialsException but didn't");
+			} catch (BadCredentialsException e) {
+				assertEquals(1L, stats.counter("auth.outcome.bad-credentials").getCount());
+			}
+		}
+		
+		@Test
+		public void itCountsUnknownUsers() throws Exception {
+			when(resultSet.first()).thenReturn(false);
+			
+			try {
+				authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+				fail("should have thrown a BadCredentialsException but didn't");
+			} catch (BadCredentialsException e) {
+				assertEquals(1L, stats.counter("auth.outcome.unknown-user").getCount());
+				assertEquals(0L, stats.counter("auth.outcome.bad-credentials").getCount());
+			}
+		}
+		
+		@Test
+		public void itCountsLockedAccounts() throws Exception {
+			when(memcached.get("lock-account:200")).thenReturn(Integer.valueOf(60));
+			
+			try {
+				authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+				fail("should have thrown a LockedAccountException but didn't");
+			} catch (LockedAccountException e) {
+				assertEquals(1L, stats.counter("auth.outcome.locked").getCount());
+			}
+		}
+		
+		@Test
+		public void itCountsDatabaseFailuresAsUnavailable() throws Exception {
+			when(dataSource.getConnection()).thenThrow(new SQLException("nope"));
+			
+			try {
+				authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+				fail("should have thrown an AuthenticationUnavailableException but didn't");
+			} catch (AuthenticationUnavailableException e) {
+				assertEquals(1L, stats.counter("auth.outcome.unavailable").getCount());
+			}
+		}
+		
+		@Test
+		public void itCountsErrors() throws Exception {
+			when(dataSource.getConnection()).thenThrow(new IllegalStateException("nope"));
+			
+			try {
+				authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+				fail("should have thrown a RuntimeException but didn't");
+			} catch (RuntimeException e) {
+				assertEquals(1L, stats.counter("auth.outcome.error").getCount());
+			}
+		}
+	}
+	
+	public static class Authenticating_While_The_User_Database_Is_Down extends Context {
+		private Clock clock;
+		private CircuitBreaker breaker;
+		
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(1000000L);
+			
+			this.breaker = new CircuitBreaker(2, 0.5, 1000, 10000, 10000, clock);
+			this.authenticator = new WesabeAuthenticator("wesabe", new JdbcUserStore(dataSource, 2, new StatsRegistry()), new MemcachedThrottleStore(memcached), new CredentialCache(100, 60, 300, clock), new NegativeLookupCache(0, 0), breaker, SessionTokens.disabled(), Tarpit.disabled(), new FailedLogins(new MemcachedThrottleStore(memcached)), new LockStateCache(0, 0), new StatsRegistry());
+			
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("uid")).thenReturn("FrankyDoo!");
+			when(resultSet.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+		};
+		
+		private void breakDatabase() throws Exception {
+			when(dataSource.getConnection()).thenThrow(new SQLException("Connection refused"));
+		}
+		
+		private void tripBreaker() throws Exception {
+			breakDatabase();
+			for (int i = 0; i < 2; i++) {
+				try {
+					authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+				} catch (AuthenticationUnavailableException e) {
+					
+				}
+			}
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		}
+		
+		@Test
+		public void itTimesOutUserQueries() throws Exception {
+			authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+			
+			verify(statement).setQueryTimeout(2);
+		}
+		
+		@Test
+		public void itCountsTimedOutQueriesAsFailures() throws Exception {
+			when(statement.executeQuery()).thenThrow(new SQLTimeoutException("Query execution was interrupted"));
+			
+			for (int i = 0; i < 2; i++) {
+				try {
+					authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+					fail("should have thrown an AuthenticationUnavailableException but didn't");
+				} catch (AuthenticationUnavailableException e) {
+					assertTrue(true);
+				}
+			}
+			
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		}
+		
+		@Test
+		public void itServesRecentlyVerifiedCredentials() throws Exception {
+			final WesabeCredentials verified = authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+			when(clock.getTime()).thenReturn(1120000L);
+			breakDatabase();
+			
+			final WesabeCredentials stale = authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+			
+			assertEquals(verified.getUserId(), stale.getUserId());
+			assertEquals(verified.getAccountKey(), stale.getAccountKey());
+			assertEquals(1L, authenticator.getCredentialCache().getStaleHitCount());
+		}
+		
+		@Test
+		public void itDoesNotServeCredentialsPastTheGracePeriod() throws Exception {
+			authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+			when(clock.getTime()).thenReturn(1360000L);
+			breakDatabase();
+			
+			try {
+				authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+				fail("should have thrown an AuthenticationUnavailableException but didn't");
+			} catch (AuthenticationUnavailableException e) {
+				assertTrue(true);
+			}
+		}
+		
+		@Test
+		public void itDoesNotServeStaleCredentialsForOtherPasswords() throws Exception {
+			authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+			when(clock.getTime()).thenReturn(1120000L);
+			breakDatabase();
+			
+			try {
+				authenticator.authenticate("Basic ZGluZ286YmFk");
+				fail("should have thrown an AuthenticationUnavailableException but didn't");
+			} catch (AuthenticationUnavailableException e) {
+				assertTrue(true);
+			}
+		}
+		
+		@Test
+		public void itFailsFastOnceTheBreakerTrips() throws Exception {
+			tripBreaker();
+			
+			try {
+				authenticator.authenticate("Basic ZGluZ286bWF0aA==");
+				fail("should have thrown an AuthenticationUnavailableException but didn't");
+			} catch (AuthenticationUnavailableException e) {
+				assertEquals(10, e.getRetryAfter());
+			}
+			
+			verify(dataSource, times(2)).getConnection();
+			assertEquals(1L, breaker.getRejectedCount());
+		}
+		
+		@Test
+		public void itRespondsWithA503AndARetryAfter() throws Exception {
+			tripBreaker();
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286bWF0aA==");
+			final HttpServletResponse response = mock(HttpServletResponse.class);
+			
+			assertEquals(Authentication.SEND_FAILURE, authenticator.validateRequest(request, response, true));
+			
+			verify(response).setIntHeader("Retry-After", 10);
+			verify(response).sendError(503);
+		}
+		
+		@Test
+		public void itClosesTheBreakerWhenTheDatabaseRecovers() throws Exception {
+			tripBreaker();
+			when(clock.getTime()).thenReturn(1010000L);
+			doReturn(connection).when(dataSource).getConnection();
+			
+			assertEquals(200, authenticator.authenticate("Basic ZGluZ286bWF0aA==").getUserId());
+			assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		}
+	}
+	
+	public static class Authenticating_With_Session_Tokens extends Context {
+		private SessionTokens sessionTokens;
+		private HttpServletResponse response;
+		
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			this.sessionTokens = new SessionTokens(ImmutableList.of(new SessionKey(1, "a session key secret".getBytes())), 0, 900, Clock.system());
+			this.authenticator = new WesabeAuthenticator("wesabe", new JdbcUserStore(dataSource, new StatsRegistry()), new MemcachedThrottleStore(memcached), new CredentialCache(0, 0), new NegativeLookupCache(0, 0), CircuitBreaker.disabled(), sessionTokens, Tarpit.disabled(), new FailedLogins(new MemcachedThrottleStore(memcached)), new LockStateCache(0, 0), new StatsRegistry());
+			this.response = mock(HttpServletResponse.class);
+			
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("uid")).thenReturn("FrankyDoo!");
+			when(resultSet.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+		};
+		
+		@Test
+		public void itIssuesATokenAfterASuccessfulLogin() throws Exception {
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286bWF0aA==");
+			
+			authenticator.validateRequest(request, response, true);
+			
+			verify(response).addHeader(eq("Set-Cookie"), matches("bouncer_session=[A-Za-z0-9_-]+; Max-Age=900; Path=/; Secure; HttpOnly"));
+		}
+		
+		@Test
+		public void itDoesNotIssueATokenAfterAFailedLogin() throws Exception {
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286YmFk");
+			
+			authenticator.validateRequest(request, response, true);
+			
+			verify(response, never()).addHeader(eq("Set-Cookie"), anyString());
+		}
+		
+		@Test
+		public void itAuthenticatesAValidTokenWithoutTheDatabaseOrMemcached() throws Exception {
+			final String token = sessionTokens.issue(new WesabeCredentials(200, "33aef8191baba4c7b836fa3f79a11a9c50a90b73e7bf381d5487aab3946b39ed"));
+			when(request.getCookies()).thenReturn(new Cookie[] { new Cookie("other", "value"), new Cookie("bouncer_session", token) });
+			
+			final Authentication authentication = authenticator.validateRequest(request, response, true);
+			
+			final WesabeCredentials credentials = (WesabeCredentials) ((UserAuthentication) authentication).getUserIdentity().getUserPrincipal();
+			assertEquals(200, credentials.getUserId());
+			assertEquals("33aef8191baba4c7b836fa3f79a11a9c50a90b73e7bf381d5487aab3946b39ed", credentials.getAccountKey());
+			verify(dataSource, never()).getConnection();
+			verifyZeroInteractions(memcached);
+		}
+		
+		@Test
+		public void itFallsBackToBasicAuthenticationForAnInvalidToken() throws Exception {
+			when(request.getCookies()).thenReturn(new Cookie[] { new Cookie("bouncer_session", "garbage") });
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286bWF0aA==");
+			
+			final Authentication authentication = authenticator.validateRequest(request, response, true);
+			
+			assertTrue(authentication instanceof UserAuthentication);
+			verify(dataSource).getConnection();
+		}
+		
+		@Test
+		public void itRevokesTokensWhenTheAccountIsLocked() throws Exception {
+			final String token = sessionTokens.issue(new WesabeCredentials(200, "33aef8191baba4c7b836fa3f79a11a9c50a90b73e7bf381d5487aab3946b39ed"));
+			Thread.sleep(2);
+			when(memcached.incr("failed-logins:200", 1)).thenReturn(4L);
+			try {
+				authenticator.authenticate("Basic ZGluZ286YmFk");
+				fail("should have thrown a LockedAccountException but didn't");
+			} catch (LockedAccountException e) {
+				assertTrue(true);
+			}
+			
+			assertNull(sessionTokens.verify(token));
+		}
+	}
+	
+	public static class Authenticating_A_Client_Which_Keeps_Failing extends Context {
+		private Tarpit tarpit;
+		private HttpServletResponse response;
+		
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			this.tarpit = mock(Tarpit.class);
+			this.authenticator = new WesabeAuthenticator("wesabe", new JdbcUserStore(dataSource, new StatsRegistry()), new MemcachedThrottleStore(memcached), new CredentialCache(0, 0), new NegativeLookupCache(0, 0), CircuitBreaker.disabled(), SessionTokens.disabled(), tarpit, new FailedLogins(new MemcachedThrottleStore(memcached)), new LockStateCache(0, 0), new StatsRegistry());
+			this.response = mock(HttpServletResponse.class);
+			
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("uid")).thenReturn("FrankyDoo!");
+			when(resultSet.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+			when(tarpit.trap(eq(request), anyObject())).thenReturn(true);
+		};
+		
+		@Test
+		public void itHoldsFailedLoginsInTheTarpit() throws Exception {
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286YmFk");
+			
+			assertEquals(Authentication.SEND_CONTINUE, authenticator.validateRequest(request, response, true));
+			
+			verify(tarpit).trap(eq(request), anyObject());
+			verify(response, never()).sendError(anyInt());
+		}
+		
+		@Test
+		public void itDoesNotHoldSuccessfulLogins() throws Exception {
+			when(request.getHeader("Authorization")).thenReturn("Basic ZGluZ286bWF0aA==");
+			
+			assertTrue(authenticator.validateRequest(request, response, true) instanceof UserAuthentication);
+			
+			verify(tarpit, never()).trap(eq(request), anyObject());
+		}
+		
+		@Test
+		public void itSendsTheErrorWhenTheRequestIsReleased() throws Exception {
+			final FutureTask<WesabeCredentials> failure = new FutureTask<WesabeCredentials>(new Callable<WesabeCredentials>() {
+				@Override
+				public WesabeCredentials call() throws Exception {
+					throw new BadCredentialsException();
+				}
+			});
+			failure.run();
+			when(tarpit.release(request)).thenReturn(failure);
+			
+			assertEquals(Authentication.SEND_CONTINUE, authenticator.validateRequest(request, response, true));
+			
+			verify(response).sendError(401);
+			verify(tarpit, never()).trap(eq(request), anyObject());
+			verifyZeroInteractions(dataSource);
+		}
+	}
+	
+	private static abstract class BurstContext extends Context {
+		protected static final int REQUESTS = 50;
+		protected ExecutorService executor;
+		
+		@Override
+		public void setup() throws Exception {
+			super.setup();
+			
+			this.executor = Executors.newFixedThreadPool(REQUESTS);
+			
+			// hold the first lookup open until every other request is waiting on it
+			when(dataSource.getConnection()).thenAnswer(new Answer<Connection>() {
+				@Override
+				public Connection answer(InvocationOnMock invocation) throws Throwable {
+					final long deadline = System.currentTimeMillis() + 5000;
+					while ((authenticator.getCoalescedAuthenticationCount() < REQUESTS - 1)
+							&& (System.currentTimeMillis() < deadline)) {
+						Thread.sleep(1);
+					}
+					return connection;
+				}
+			});
+			
+			when(resultSet.first()).thenReturn(true);
+			when(resultSet.getString("salt")).thenReturn("cVApCcmpECrgRwCo");
+			when(resultSet.getInt("id")).thenReturn(200);
+			when(resultSet.getString("uid")).thenReturn("FrankyDoo!");
+		}
+		
+		@After
+		public void teardown() throws Exception {
+			executor.shutdownNow();
+		}
+		
+		protected List<Future<WesabeCredentials>> authenticateConcurrently(String authorization) {
+			final List<Future<WesabeCredentials>> results = new ArrayList<Future<WesabeCredentials>>();
+			for (int i = 0; i < REQUESTS; i++) {
+				final Request burstRequest = mock(Request.class);
+				when(burstRequest.getHeader("Authorization")).thenReturn(authorization);
+				results.add(executor.submit(new Callable<WesabeCredentials>() {
+					@Override
+					public WesabeCredentials call() throws Exception {
+						return authenticator.authenticate(burstRequest);
+					}
+				}));
+			}
+			return results;
+		}
+	}
+	
+	public static class Authenticating_A_Burst_Of_Requests_With_A_Good_Password extends BurstContext {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			when(resultSet.getString("password_hash")).thenReturn("6b56e2021b411940d70b0208693e51bab97cf93c03dc92d7a810f21e1b6faf7f");
+		};
+		
+		@Test
+		public void itReturnsCredentialsToEveryRequest() throws Exception {
+			for (Future<WesabeCredentials> result : authenticateConcurrently("Basic ZGluZ286bWF0aA==")) {
+				assertEquals(200, result.get().getUserId());
+			}
+		}
+		
+		@Test
+		public void itOnlyLooksUpTheUserOnce() throws Exception {
+			for (Future<WesabeCredentials> result : authenticateConcurrently("Basic ZGluZ286bWF0aA==")) {
+				result.get();
+			}
+			
+			verify(dataSource, times(1)).getConnection();
+			verify(statement, times(1)).executeQuery();
+			verify(memcached, times(1)).delete("failed-logins:200");
+		}
+	}
+	
+	public static class Authenticating_A_Burst_Of_Requests_With_A_Bad_Password extends BurstContext {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			when(resultSet.getString("password_hash")).thenReturn("DEADBEEF");
+			when(memcached.incr("failed-logins:200", 1)).thenReturn(1L);
+		};
+		
+		@Test
+		public void itThrowsABadCredentialsExceptionForEveryRequest() throws Exception {
+			for (Future<WesabeCredentials> result : authenticateConcurrently("Basic ZGluZ286bWF0aA==")) {
+				try {
+					result.get();
+					fail("should have thrown a BadCredentialsException but didn't");
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof BadCredentialsException);
+				}
+			}
+		}
+		
+		@Test
+		public void itOnlyLooksUpTheUserAndCountsTheFailureOnce() throws Exception {
+			for (Future<WesabeCredentials> result : authenticateConcurrently("Basic ZGluZ286bWF0aA==")) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+				}
+			}
+			
+			verify(dataSource, times(1)).getConnection();
+			verify(memcached, times(1)).incr("failed-logins:200", 1);
+		}
+	}
+	
+	public static class Authenticating_A_Burst_Of_Requests_For_A_Locked_Account extends BurstContext {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			
+			when(resultSet.getString("password_hash")).thenReturn("DEADBEEF");
+			when(memcached.incr("failed-logins:200", 1)).thenReturn(5L);
+			when(memcached.get("lock-account:200")).thenReturn(Integer.valueOf(15));
+		};
+		
+		@Test
+		public void itThrowsALockedAccountExceptionForEveryRequest() throws Exception {
+			for (Future<WesabeCredentials> result : authenticateConcurrently("Basic ZGluZ286bWF0aA==")) {
+				try {
+					result.get();
+					fail("should have thrown a LockedAccountException but didn't");
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof LockedAccountException);
+					assertEquals(30, ((LockedAccountException) e.getCause()).getPenaltyDuration());
+				}
+			}
+		}
+	}
 }
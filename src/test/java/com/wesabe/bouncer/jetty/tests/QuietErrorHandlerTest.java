@@ -172,6 +172,14 @@ public class QuietErrorHandlerTest {
 			assertHandles("The server could not meet the expectation given in the Expect request header.\n");
 		}
 		
+		@Test
+		public void itHandles429s() throws Exception {
+			when(response.getStatus()).thenReturn(QuietErrorHandler.SC_TOO_MANY_REQUESTS);
+			
+			assertHandles("You have sent too many requests in too short a time. Please " +
+					"slow down and try again later.\n");
+		}
+		
 		@Test
 		public void itHandles500s() throws Exception {
 			when(response.getStatus()).thenReturn(SC_INTERNAL_SERVER_ERROR);
@@ -0,0 +1,103 @@
+package com.wesabe.bouncer.limits.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.limits.AddressPrefixes;
+
+@RunWith(Enclosed.class)
+public class AddressPrefixesTest {
+	public static class Full_Length_Prefixes {
+		private AddressPrefixes prefixes;
+		
+		@Before
+		public void setup() throws Exception {
+			this.prefixes = new AddressPrefixes(32, 128);
+		}
+		
+		@Test
+		public void itUsesIPv4AddressesAsKeys() throws Exception {
+			assertThat(prefixes.getKey("10.1.2.3"), is(0x0A010203));
+			assertThat(prefixes.getKey("255.255.255.255"), is(0xFFFFFFFF));
+		}
+		
+		@Test
+		public void itNeverReturnsZero() throws Exception {
+			assertThat(prefixes.getKey("0.0.0.0"), is(1));
+		}
+		
+		@Test
+		public void itTreatsIPv4MappedIPv6AddressesAsIPv4() throws Exception {
+			assertThat(prefixes.getKey("::ffff:10.1.2.3"), is(0x0A010203));
+		}
+		
+		@Test
+		public void itKeepsIPv6AddressesSeparate() throws Exception {
+			assertThat(prefixes.getKey("2001:db8::1"), is(not(prefixes.getKey("2001:db8::2"))));
+			assertThat(prefixes.getKey("2001:db8::1"), is(prefixes.getKey("2001:0db8:0:0:0:0:0:1")));
+		}
+		
+		@Test
+		public void itKeysItsIPv6Fold() throws Exception {
+			final AddressPrefixes other = new AddressPrefixes(32, 128);
+			
+			assertThat(prefixes.getKey("2001:db8::1"), is(not(other.getKey("2001:db8::1"))));
+		}
+		
+		@Test
+		public void itHashesThingsWhichAreNotAddresses() throws Exception {
+			assertThat(prefixes.getKey("example.com"), is("example.com".hashCode()));
+			assertThat(prefixes.getKey("1.2.3"), is("1.2.3".hashCode()));
+			assertThat(prefixes.getKey("1.2.3.256"), is("1.2.3.256".hashCode()));
+			assertThat(prefixes.getKey("1..2.3"), is("1..2.3".hashCode()));
+			assertThat(prefixes.getKey("not:an:address"), is("not:an:address".hashCode()));
+		}
+	}
+	
+	public static class Shorter_Prefixes {
+		private AddressPrefixes prefixes;
+		
+		@Before
+		public void setup() throws Exception {
+			this.prefixes = new AddressPrefixes(24, 64);
+		}
+		
+		@Test
+		public void itGroupsIPv4AddressesByPrefix() throws Exception {
+			assertThat(prefixes.getKey("10.1.2.3"), is(0x0A010200));
+			assertThat(prefixes.getKey("10.1.2.200"), is(0x0A010200));
+			assertThat(prefixes.getKey("10.1.3.3"), is(0x0A010300));
+		}
+		
+		@Test
+		public void itGroupsIPv6AddressesByPrefix() throws Exception {
+			assertThat(prefixes.getKey("2001:db8:0:1::1"), is(prefixes.getKey("2001:db8:0:1:ffff::9")));
+			assertThat(prefixes.getKey("2001:db8:0:1::1"), is(not(prefixes.getKey("2001:db8:0:2::1"))));
+		}
+		
+		@Test
+		public void itGroupsEverythingWithAZeroLengthPrefix() throws Exception {
+			final AddressPrefixes everything = new AddressPrefixes(0, 0);
+			
+			assertThat(everything.getKey("10.1.2.3"), is(everything.getKey("192.168.1.1")));
+			assertThat(everything.getKey("2001:db8::1"), is(everything.getKey("fe80::1")));
+		}
+	}
+	
+	public static class Invalid_Prefixes {
+		@Test(expected=IllegalArgumentException.class)
+		public void itRejectsLongIPv4Prefixes() throws Exception {
+			new AddressPrefixes(33, 64);
+		}
+		
+		@Test(expected=IllegalArgumentException.class)
+		public void itRejectsLongIPv6Prefixes() throws Exception {
+			new AddressPrefixes(32, 129);
+		}
+	}
+}
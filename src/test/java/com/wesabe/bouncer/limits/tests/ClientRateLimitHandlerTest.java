@@ -0,0 +1,114 @@
+package com.wesabe.bouncer.limits.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.handler.ErrorHandler;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.limits.AddressPrefixes;
+import com.wesabe.bouncer.limits.ClientRateLimitHandler;
+import com.wesabe.bouncer.limits.TokenBuckets;
+import com.wesabe.bouncer.stats.StatsRegistry;
+
+@RunWith(Enclosed.class)
+public class ClientRateLimitHandlerTest {
+	private static abstract class Context {
+		protected TokenBuckets buckets;
+		protected ErrorHandler errorHandler;
+		protected StatsRegistry stats;
+		protected Handler wrapped;
+		protected ClientRateLimitHandler handler;
+		protected Request request;
+		protected Response response;
+		protected AsyncContinuation continuation;
+		
+		public void setup() throws Exception {
+			this.buckets = mock(TokenBuckets.class);
+			this.errorHandler = mock(ErrorHandler.class);
+			this.stats = new StatsRegistry();
+			this.wrapped = mock(Handler.class);
+			this.handler = new ClientRateLimitHandler(new AddressPrefixes(24, 64), buckets, errorHandler, stats);
+			handler.setHandler(wrapped);
+			handler.start();
+			
+			this.continuation = mock(AsyncContinuation.class);
+			when(continuation.isInitial()).thenReturn(true);
+			
+			this.request = mock(Request.class);
+			when(request.getAsyncContinuation()).thenReturn(continuation);
+			when(request.getRemoteAddr()).thenReturn("10.1.2.3");
+			
+			this.response = mock(Response.class);
+		}
+	}
+	
+	public static class Handling_A_Request_Under_The_Limit extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(buckets.tryAcquire(0x0A010200)).thenReturn(0L);
+		}
+		
+		@Test
+		public void itPassesTheRequestThrough() throws Exception {
+			handler.handle("/woo", request, request, response);
+			
+			verify(wrapped).handle("/woo", request, request, response);
+			verifyZeroInteractions(response, errorHandler);
+		}
+	}
+	
+	public static class Handling_A_Request_Over_The_Limit extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(buckets.tryAcquire(0x0A010200)).thenReturn(2500L);
+		}
+		
+		@Test
+		public void itReturnsATooManyRequestsError() throws Exception {
+			handler.handle("/woo", request, request, response);
+			
+			verify(response).setIntHeader("Retry-After", 3);
+			verify(response).setStatus(429);
+			verify(errorHandler).handle("/woo", request, request, response);
+			verify(request).setHandled(true);
+			verify(wrapped, never()).handle("/woo", request, request, response);
+		}
+		
+		@Test
+		public void itCountsTheRejection() throws Exception {
+			handler.handle("/woo", request, request, response);
+			
+			assertThat(stats.counter("ratelimit.client.rejected").getCount(), is(1L));
+		}
+	}
+	
+	public static class Handling_A_Resumed_Request extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(continuation.isInitial()).thenReturn(false);
+		}
+		
+		@Test
+		public void itDoesNotCountTheRequestAgain() throws Exception {
+			handler.handle("/woo", request, request, response);
+			
+			verify(wrapped).handle("/woo", request, request, response);
+			verifyZeroInteractions(buckets);
+		}
+	}
+}
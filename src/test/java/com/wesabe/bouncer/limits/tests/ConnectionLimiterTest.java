@@ -0,0 +1,97 @@
+package com.wesabe.bouncer.limits.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.limits.ConnectionLimiter;
+
+@RunWith(Enclosed.class)
+public class ConnectionLimiterTest {
+	public static class Opening_Connections {
+		private ConnectionLimiter limiter;
+		
+		@Before
+		public void setup() throws Exception {
+			this.limiter = new ConnectionLimiter(2);
+		}
+		
+		@Test
+		public void itAllowsConnectionsUpToTheLimit() throws Exception {
+			assertThat(limiter.open(200), is(true));
+			assertThat(limiter.open(200), is(true));
+			assertThat(limiter.getConnectionCount(200), is(2));
+		}
+		
+		@Test
+		public void itRejectsConnectionsOverTheLimit() throws Exception {
+			limiter.open(200);
+			limiter.open(200);
+			
+			assertThat(limiter.open(200), is(false));
+			assertThat(limiter.getRejectedCount(), is(1L));
+		}
+		
+		@Test
+		public void itKeepsEachClientSeparate() throws Exception {
+			limiter.open(200);
+			limiter.open(200);
+			
+			assertThat(limiter.open(201), is(true));
+		}
+		
+		@Test
+		public void itAllowsConnectionsAgainAfterOthersClose() throws Exception {
+			limiter.open(200);
+			limiter.open(200);
+			limiter.open(200);
+			limiter.close(200);
+			
+			assertThat(limiter.open(200), is(false));
+			
+			limiter.close(200);
+			limiter.close(200);
+			assertThat(limiter.open(200), is(true));
+		}
+	}
+	
+	public static class Closing_Connections {
+		private ConnectionLimiter limiter;
+		
+		@Before
+		public void setup() throws Exception {
+			this.limiter = new ConnectionLimiter(2);
+		}
+		
+		@Test
+		public void itForgetsClientsWithNoOpenConnections() throws Exception {
+			limiter.open(200);
+			limiter.open(201);
+			limiter.close(200);
+			
+			assertThat(limiter.getClientCount(), is(1));
+			assertThat(limiter.getConnectionCount(200), is(0));
+		}
+		
+		@Test
+		public void itTracksClientsWhichReconnect() throws Exception {
+			limiter.open(200);
+			limiter.close(200);
+			limiter.open(200);
+			
+			assertThat(limiter.getConnectionCount(200), is(1));
+			assertThat(limiter.getClientCount(), is(1));
+		}
+		
+		@Test
+		public void itIgnoresUnknownClients() throws Exception {
+			limiter.close(200);
+			
+			assertThat(limiter.getClientCount(), is(0));
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.wesabe.bouncer.limits.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.wesabe.bouncer.limits.AddressPrefixes;
+import com.wesabe.bouncer.limits.Tarpit;
+import com.wesabe.bouncer.limits.TokenBuckets;
+import com.wesabe.bouncer.stats.StatsRegistry;
+import com.wesabe.bouncer.util.HashedWheelTimer;
+import com.wesabe.bouncer.util.NamedThreadFactory;
+
+@RunWith(Enclosed.class)
+public class TarpitTest {
+	private static class FakeTimer extends HashedWheelTimer {
+		private Runnable task;
+		private long delay;
+		
+		public FakeTimer() {
+			super(100, 8, new NamedThreadFactory("fake-timer"));
+		}
+		
+		@Override
+		public Timeout schedule(Runnable task, long delay) {
+			this.task = task;
+			this.delay = delay;
+			return null;
+		}
+	}
+	
+	private static abstract class Context {
+		protected TokenBuckets failures;
+		protected FakeTimer timer;
+		protected StatsRegistry stats;
+		protected Tarpit tarpit;
+		protected HttpServletRequest request;
+		protected Continuation continuation;
+		protected Object result;
+		
+		public void setup() throws Exception {
+			this.failures = mock(TokenBuckets.class);
+			this.timer = new FakeTimer();
+			this.stats = new StatsRegistry();
+			this.tarpit = new Tarpit(new AddressPrefixes(32, 64), failures, timer, 5000, 2, stats);
+			this.result = new Object();
+			
+			final Map<String, Object> attributes = new HashMap<String, Object>();
+			this.continuation = mock(Continuation.class);
+			doAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) throws Throwable {
+					attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+					return null;
+				}
+			}).when(continuation).setAttribute(anyString(), anyObject());
+			doAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) throws Throwable {
+					return attributes.get(invocation.getArguments()[0]);
+				}
+			}).when(continuation).getAttribute(anyString());
+			doAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) throws Throwable {
+					return attributes.remove(invocation.getArguments()[0]);
+				}
+			}).when(continuation).removeAttribute(anyString());
+			
+			this.request = mock(HttpServletRequest.class);
+			when(request.getRemoteAddr()).thenReturn("10.1.2.3");
+			when(request.getAttribute(Continuation.ATTRIBUTE)).thenReturn(continuation);
+		}
+	}
+	
+	public static class A_Client_Within_Its_Allowance extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(failures.tryAcquire(0x0A010203)).thenReturn(0L);
+		}
+		
+		@Test
+		public void itIsNotTrapped() throws Exception {
+			assertThat(tarpit.trap(request, result), is(false));
+			
+			verify(continuation, never()).suspend();
+			assertThat(tarpit.getPopulation(), is(0));
+		}
+		
+		@Test
+		public void itIsNotReleased() throws Exception {
+			assertThat(tarpit.release(request), is(nullValue()));
+		}
+	}
+	
+	public static class A_Client_Over_Its_Allowance extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(failures.tryAcquire(0x0A010203)).thenReturn(1000L);
+		}
+		
+		@Test
+		public void itSuspendsTheRequest() throws Exception {
+			assertThat(tarpit.trap(request, result), is(true));
+			
+			verify(continuation).suspend();
+			assertThat(timer.delay, is(5000L));
+			assertThat(tarpit.getPopulation(), is(1));
+			assertThat(stats.counter("tarpit.trapped").getCount(), is(1L));
+			assertThat(stats.getGauges().get("tarpit.population").getValue(), is(1L));
+		}
+		
+		@Test
+		public void itResumesTheRequestAfterTheDelay() throws Exception {
+			tarpit.trap(request, result);
+			timer.task.run();
+			
+			verify(continuation).resume();
+			assertThat(tarpit.getPopulation(), is(0));
+		}
+		
+		@Test
+		public void itReleasesTheRequestWithItsResult() throws Exception {
+			tarpit.trap(request, result);
+			timer.task.run();
+			
+			assertThat(tarpit.release(request), is(sameInstance(result)));
+			assertThat(tarpit.release(request), is(nullValue()));
+		}
+		
+		@Test
+		public void itNeverResumesARequestWhichHasAlreadyBeenRedispatched() throws Exception {
+			tarpit.trap(request, result);
+			tarpit.release(request);
+			timer.task.run();
+			
+			verify(continuation, never()).resume();
+			assertThat(tarpit.getPopulation(), is(0));
+		}
+		
+		@Test
+		public void itAnswersImmediatelyOnceTheTarpitIsFull() throws Exception {
+			assertThat(tarpit.trap(request, result), is(true));
+			assertThat(tarpit.trap(request, result), is(true));
+			assertThat(tarpit.trap(request, result), is(false));
+			
+			assertThat(tarpit.getPopulation(), is(2));
+			assertThat(stats.counter("tarpit.overflowed").getCount(), is(1L));
+		}
+	}
+	
+	public static class A_Disabled_Tarpit extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.tarpit = Tarpit.disabled();
+		}
+		
+		@Test
+		public void itNeverTrapsAnything() throws Exception {
+			assertThat(tarpit.isEnabled(), is(false));
+			assertThat(tarpit.trap(request, result), is(false));
+			assertThat(tarpit.release(request), is(nullValue()));
+			verifyZeroInteractions(continuation);
+		}
+	}
+}
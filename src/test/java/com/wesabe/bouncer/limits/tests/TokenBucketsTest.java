@@ -0,0 +1,271 @@
+package com.wesabe.bouncer.limits.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.limits.TokenBuckets;
+import com.wesabe.bouncer.util.Clock;
+
+@RunWith(Enclosed.class)
+public class TokenBucketsTest {
+	private static abstract class Context {
+		protected Clock clock;
+		protected TokenBuckets buckets;
+		
+		public void setup() throws Exception {
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			
+			this.buckets = new TokenBuckets(2, 3, 1024, clock);
+		}
+		
+		protected void drain(int key, int tokens) {
+			for (int i = 0; i < tokens; i++) {
+				assertThat(buckets.tryAcquire(key), is(0L));
+			}
+		}
+	}
+	
+	public static class A_Full_Bucket extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itAllowsABurst() throws Exception {
+			drain(200, 3);
+		}
+		
+		@Test
+		public void itRejectsRequestsOverTheBurst() throws Exception {
+			drain(200, 3);
+			
+			assertThat(buckets.tryAcquire(200), is(500L));
+		}
+		
+		@Test
+		public void itDoesNotChargeForRejectedRequests() throws Exception {
+			drain(200, 3);
+			buckets.tryAcquire(200);
+			buckets.tryAcquire(200);
+			
+			when(clock.getTime()).thenReturn(100500L);
+			assertThat(buckets.tryAcquire(200), is(0L));
+		}
+		
+		@Test
+		public void itKeepsEachKeySeparate() throws Exception {
+			drain(200, 3);
+			
+			drain(201, 3);
+			assertThat(buckets.tryAcquire(201), is(500L));
+		}
+		
+		@Test
+		public void itNeverLimitsKeyZero() throws Exception {
+			drain(0, 100);
+		}
+	}
+	
+	public static class Refilling_A_Bucket extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			drain(200, 3);
+		}
+		
+		@Test
+		public void itAddsTokensAtTheRate() throws Exception {
+			when(clock.getTime()).thenReturn(100250L);
+			assertThat(buckets.tryAcquire(200), is(250L));
+			
+			when(clock.getTime()).thenReturn(100500L);
+			drain(200, 1);
+			assertThat(buckets.tryAcquire(200), is(500L));
+		}
+		
+		@Test
+		public void itNeverHoldsMoreThanTheBurst() throws Exception {
+			when(clock.getTime()).thenReturn(200000L);
+			
+			drain(200, 3);
+			assertThat(buckets.tryAcquire(200), is(500L));
+		}
+		
+		@Test
+		public void itTreatsBucketsWhichHaveWrappedAroundAsFull() throws Exception {
+			when(clock.getTime()).thenReturn(100000L + (1L << 32) - 1000);
+			
+			drain(200, 3);
+		}
+	}
+	
+	public static class A_Full_Set_Of_Buckets {
+		private Clock clock;
+		private TokenBuckets buckets;
+		
+		@Before
+		public void setup() throws Exception {
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			
+			this.buckets = new TokenBuckets(1, 2, 8, clock);
+		}
+		
+		@Test
+		public void itHasOneSet() throws Exception {
+			assertThat(buckets.getCapacity(), is(8));
+		}
+		
+		@Test
+		public void itRecyclesFullBucketsFirst() throws Exception {
+			for (int key = 1; key <= 8; key++) {
+				buckets.tryAcquire(key);
+			}
+			buckets.tryAcquire(1);
+			
+			when(clock.getTime()).thenReturn(101000L);
+			buckets.tryAcquire(1);
+			assertThat(buckets.tryAcquire(9), is(0L));
+			
+			assertThat(buckets.getEvictionCount(), is(0L));
+			assertThat(buckets.tryAcquire(1), is(1000L));
+		}
+		
+		@Test
+		public void itRecyclesTheBucketClosestToFullWhenNoneAreFull() throws Exception {
+			for (int key = 1; key <= 8; key++) {
+				buckets.tryAcquire(key);
+				buckets.tryAcquire(key);
+			}
+			
+			assertThat(buckets.tryAcquire(9), is(0L));
+			assertThat(buckets.getEvictionCount(), is(1L));
+		}
+	}
+	
+	public static class Configuring_Buckets {
+		@Test(expected=IllegalArgumentException.class)
+		public void itRequiresAPositiveRate() throws Exception {
+			new TokenBuckets(0, 10, 1024, Clock.system());
+		}
+		
+		@Test(expected=IllegalArgumentException.class)
+		public void itRequiresARateOfAtMostOneThousand() throws Exception {
+			new TokenBuckets(1001, 10, 1024, Clock.system());
+		}
+		
+		@Test(expected=IllegalArgumentException.class)
+		public void itRequiresAPositiveBurst() throws Exception {
+			new TokenBuckets(10, 0, 1024, Clock.system());
+		}
+		
+		@Test(expected=IllegalArgumentException.class)
+		public void itRequiresBurstsWhichRefillInUnderTwentyFourDays() throws Exception {
+			new TokenBuckets(0.001, 3000, 1024, Clock.system());
+		}
+		
+		@Test
+		public void itRoundsTheCapacityUpToAPowerOfTwo() throws Exception {
+			assertThat(new TokenBuckets(10, 10, 1000, Clock.system()).getCapacity(), is(1024));
+		}
+	}
+	
+	public static class Contending_For_A_Bucket {
+		@Test
+		public void itNeverHandsOutMoreThanTheBurst() throws Exception {
+			final Clock clock = new Clock() {
+				@Override
+				public long getTime() {
+					return 100000L;
+				}
+			};
+			final TokenBuckets buckets = new TokenBuckets(1, 1000, 1024, clock);
+			final CountDownLatch latch = new CountDownLatch(1);
+			final ExecutorService executor = Executors.newFixedThreadPool(64);
+			try {
+				final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+				for (int i = 0; i < 64; i++) {
+					futures.add(executor.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() throws Exception {
+							latch.await();
+							int acquired = 0;
+							for (int j = 0; j < 100; j++) {
+								if (buckets.tryAcquire(200) == 0) {
+									acquired++;
+								}
+							}
+							return acquired;
+						}
+					}));
+				}
+				latch.countDown();
+				
+				int acquired = 0;
+				for (Future<Integer> future : futures) {
+					acquired += future.get();
+				}
+				assertThat(acquired, is(1000));
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		
+		@Test
+		public void itNeverGivesANewKeyTwoBuckets() throws Exception {
+			final Clock clock = new Clock() {
+				@Override
+				public long getTime() {
+					return 100000L;
+				}
+			};
+			final TokenBuckets buckets = new TokenBuckets(1, 1, 8, clock);
+			final ExecutorService executor = Executors.newFixedThreadPool(8);
+			try {
+				for (int key = 1; key <= 200; key++) {
+					final int contended = key;
+					final CountDownLatch latch = new CountDownLatch(1);
+					final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+					for (int i = 0; i < 8; i++) {
+						futures.add(executor.submit(new Callable<Boolean>() {
+							@Override
+							public Boolean call() throws Exception {
+								latch.await();
+								return buckets.tryAcquire(contended) == 0;
+							}
+						}));
+					}
+					latch.countDown();
+					
+					int acquired = 0;
+					for (Future<Boolean> future : futures) {
+						if (future.get()) {
+							acquired++;
+						}
+					}
+					assertThat(acquired, is(1));
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+}
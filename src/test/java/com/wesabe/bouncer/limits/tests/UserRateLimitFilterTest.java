@@ -0,0 +1,127 @@
+package com.wesabe.bouncer.limits.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.auth.WesabeCredentials;
+import com.wesabe.bouncer.limits.TokenBuckets;
+import com.wesabe.bouncer.limits.UserRateLimitFilter;
+import com.wesabe.bouncer.stats.StatsRegistry;
+
+@RunWith(Enclosed.class)
+public class UserRateLimitFilterTest {
+	private static final String CHARGED_ATTRIBUTE = "com.wesabe.bouncer.limits.UserRateLimitFilter.charged";
+	
+	private static abstract class Context {
+		protected TokenBuckets buckets;
+		protected StatsRegistry stats;
+		protected UserRateLimitFilter filter;
+		protected HttpServletRequest request;
+		protected HttpServletResponse response;
+		protected FilterChain chain;
+		
+		public void setup() throws Exception {
+			this.buckets = mock(TokenBuckets.class);
+			this.stats = new StatsRegistry();
+			this.filter = new UserRateLimitFilter(buckets, stats);
+			this.request = mock(HttpServletRequest.class);
+			this.response = mock(HttpServletResponse.class);
+			this.chain = mock(FilterChain.class);
+		}
+	}
+	
+	public static class Filtering_An_Unauthenticated_Request extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itPassesTheRequestThrough() throws Exception {
+			filter.doFilter(request, response, chain);
+			
+			verify(chain).doFilter(request, response);
+			verifyZeroInteractions(buckets);
+		}
+	}
+	
+	public static class Filtering_A_Request_Under_The_Limit extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(request.getUserPrincipal()).thenReturn(new WesabeCredentials(200, "woo"));
+			when(buckets.tryAcquire(200)).thenReturn(0L);
+		}
+		
+		@Test
+		public void itPassesTheRequestThrough() throws Exception {
+			filter.doFilter(request, response, chain);
+			
+			verify(chain).doFilter(request, response);
+			verifyZeroInteractions(response);
+		}
+		
+		@Test
+		public void itMarksTheRequestAsCharged() throws Exception {
+			filter.doFilter(request, response, chain);
+			
+			verify(request).setAttribute(CHARGED_ATTRIBUTE, Boolean.TRUE);
+		}
+	}
+	
+	public static class Filtering_A_Redispatched_Request extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(request.getUserPrincipal()).thenReturn(new WesabeCredentials(200, "woo"));
+			when(request.getAttribute(CHARGED_ATTRIBUTE)).thenReturn(Boolean.TRUE);
+		}
+		
+		@Test
+		public void itPassesTheRequestThroughWithoutChargingItAgain() throws Exception {
+			filter.doFilter(request, response, chain);
+			
+			verify(chain).doFilter(request, response);
+			verifyZeroInteractions(buckets);
+		}
+	}
+	
+	public static class Filtering_A_Request_Over_The_Limit extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			when(request.getUserPrincipal()).thenReturn(new WesabeCredentials(200, "woo"));
+			when(buckets.tryAcquire(200)).thenReturn(1500L);
+		}
+		
+		@Test
+		public void itReturnsATooManyRequestsError() throws Exception {
+			filter.doFilter(request, response, chain);
+			
+			verify(response).setIntHeader("Retry-After", 2);
+			verify(response).sendError(429);
+			verify(chain, never()).doFilter(request, response);
+		}
+		
+		@Test
+		public void itCountsTheRejection() throws Exception {
+			filter.doFilter(request, response, chain);
+			
+			assertThat(stats.counter("ratelimit.user.rejected").getCount(), is(1L));
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.wesabe.bouncer.proxy.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.google.common.collect.ImmutableList;
+import com.wesabe.bouncer.proxy.ExchangeDeadlines;
+import com.wesabe.bouncer.proxy.ExchangeDeadlines.Route;
+
+@RunWith(Enclosed.class)
+public class ExchangeDeadlinesTest {
+	public static class Disabled_Deadlines {
+		private ExchangeDeadlines deadlines;
+		
+		@Before
+		public void setup() throws Exception {
+			this.deadlines = ExchangeDeadlines.disabled();
+		}
+		
+		@Test
+		public void itNeverTimesOut() throws Exception {
+			assertThat(deadlines.getConnectTimeout(), is(0L));
+			assertThat(deadlines.getIdleTimeout(), is(0L));
+			assertThat(deadlines.getTotalTimeout("/accounts"), is(0L));
+			assertThat(deadlines.getMaximumTotalTimeout(), is(0L));
+		}
+	}
+	
+	public static class Deadlines_With_Routes {
+		private ExchangeDeadlines deadlines;
+		
+		@Before
+		public void setup() throws Exception {
+			this.deadlines = new ExchangeDeadlines(1000, 5000, 30000, ImmutableList.of(
+				new Route("/uploads/", 300000),
+				new Route("/accounts/", 5000),
+				new Route("/accounts/export/", 60000)
+			));
+		}
+		
+		@Test
+		public void itHasAConnectTimeout() throws Exception {
+			assertThat(deadlines.getConnectTimeout(), is(1000L));
+		}
+		
+		@Test
+		public void itHasAnIdleTimeout() throws Exception {
+			assertThat(deadlines.getIdleTimeout(), is(5000L));
+		}
+		
+		@Test
+		public void itUsesTheDefaultTotalTimeoutForUnroutedPaths() throws Exception {
+			assertThat(deadlines.getTotalTimeout("/transactions"), is(30000L));
+		}
+		
+		@Test
+		public void itUsesTheRoutesTotalTimeoutForRoutedPaths() throws Exception {
+			assertThat(deadlines.getTotalTimeout("/uploads/statement.ofx"), is(300000L));
+		}
+		
+		@Test
+		public void itUsesTheLongestMatchingPrefix() throws Exception {
+			assertThat(deadlines.getTotalTimeout("/accounts/1"), is(5000L));
+			assertThat(deadlines.getTotalTimeout("/accounts/export/1.csv"), is(60000L));
+		}
+		
+		@Test
+		public void itHasAMaximumTotalTimeout() throws Exception {
+			assertThat(deadlines.getMaximumTotalTimeout(), is(300000L));
+		}
+		
+		@Test
+		public void itHasNoMaximumTotalTimeoutIfARouteNeverTimesOut() throws Exception {
+			final ExchangeDeadlines unbounded = new ExchangeDeadlines(0, 0, 30000, ImmutableList.of(new Route("/uploads/", 0)));
+			
+			assertThat(unbounded.getMaximumTotalTimeout(), is(0L));
+		}
+		
+		@Test
+		public void itHasNoMaximumTotalTimeoutIfTheDefaultNeverTimesOut() throws Exception {
+			final ExchangeDeadlines unbounded = new ExchangeDeadlines(0, 0, 0, Collections.<Route>emptyList());
+			
+			assertThat(unbounded.getMaximumTotalTimeout(), is(0L));
+		}
+	}
+	
+	public static class Parsing_A_Route {
+		@Test
+		public void itParsesAPrefixAndATimeout() throws Exception {
+			final Route route = Route.parse(" /uploads/ = 300000 ");
+			
+			assertThat(route.getPrefix(), is("/uploads/"));
+			assertThat(route.getTimeout(), is(300000L));
+		}
+		
+		@Test(expected=IllegalArgumentException.class)
+		public void itRejectsRoutesWithoutATimeout() throws Exception {
+			Route.parse("/uploads/");
+		}
+		
+		@Test(expected=IllegalArgumentException.class)
+		public void itRejectsRelativePrefixes() throws Exception {
+			Route.parse("uploads/=300000");
+		}
+		
+		@Test(expected=IllegalArgumentException.class)
+		public void itRejectsNegativeTimeouts() throws Exception {
+			Route.parse("/uploads/=-1");
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.wesabe.bouncer.proxy.tests;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
 import java.net.URI;
@@ -17,8 +18,11 @@ import org.junit.runner.RunWith;
 
 import com.google.common.collect.ImmutableList;
 import com.wesabe.bouncer.auth.WesabeCredentials;
+import com.wesabe.bouncer.proxy.ExchangeDeadlines;
 import com.wesabe.bouncer.proxy.ProxyHttpExchange;
 import com.wesabe.bouncer.proxy.ProxyHttpExchangeFactory;
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.HashedWheelTimer;
 
 @RunWith(Enclosed.class)
 public class ProxyHttpExchangeFactoryTest {
@@ -29,6 +33,61 @@ public class ProxyHttpExchangeFactoryTest {
 			final ProxyHttpExchangeFactory factory = new ProxyHttpExchangeFactory(backendUri);
 			assertThat(factory.getBackendUri(), is(backendUri));
 		}
+		
+		@Test
+		public void itHasNoDeadlinesByDefault() throws Exception {
+			final ProxyHttpExchangeFactory factory = new ProxyHttpExchangeFactory(new URI("http://example.com"));
+			assertThat(factory.getDeadlines().getMaximumTotalTimeout(), is(0L));
+		}
+		
+		@Test
+		public void itDoesNotWatchExchangesWithoutATimer() throws Exception {
+			final ProxyHttpExchangeFactory factory = new ProxyHttpExchangeFactory(new URI("http://example.com"));
+			final ProxyHttpExchange exchange = mock(ProxyHttpExchange.class);
+			
+			factory.watch(exchange);
+			
+			verify(exchange, never()).checkDeadlines();
+		}
+	}
+	
+	public static class Watching_An_Exchange {
+		private HashedWheelTimer timer;
+		private ProxyHttpExchange exchange;
+		private ProxyHttpExchangeFactory factory;
+		
+		@Before
+		public void setup() throws Exception {
+			this.timer = mock(HashedWheelTimer.class);
+			this.exchange = mock(ProxyHttpExchange.class);
+			this.factory = new ProxyHttpExchangeFactory(new URI("http://example.com"),
+					ExchangeDeadlines.disabled(), timer, mock(Clock.class));
+		}
+		
+		@Test
+		public void itChecksTheExchangeRightAway() throws Exception {
+			factory.watch(exchange);
+			
+			verify(exchange).checkDeadlines();
+		}
+		
+		@Test
+		public void itChecksTheExchangeAgainWhenTheNextDeadlineIsDue() throws Exception {
+			when(exchange.checkDeadlines()).thenReturn(250L);
+			
+			factory.watch(exchange);
+			
+			verify(timer).schedule(isA(Runnable.class), eq(250L));
+		}
+		
+		@Test
+		public void itStopsCheckingTheExchangeOnceItHasNoDeadlines() throws Exception {
+			when(exchange.checkDeadlines()).thenReturn(-1L);
+			
+			factory.watch(exchange);
+			
+			verifyZeroInteractions(timer);
+		}
 	}
 	
 	public static class Building_An_Exchange {
@@ -56,5 +115,16 @@ public class ProxyHttpExchangeFactoryTest {
 			assertThat(exchange.getRequest(), is(request));
 			assertThat(exchange.getResponse(), is(response));
 		}
+		
+		@Test
+		public void itBuildsAnExchangeWithTheFactorysDeadlines() throws Exception {
+			final Clock clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			final ExchangeDeadlines deadlines = new ExchangeDeadlines(1000, 5000, 30000, ImmutableList.<ExchangeDeadlines.Route>of());
+			final ProxyHttpExchangeFactory factory = new ProxyHttpExchangeFactory(backendUri, deadlines, null, clock);
+			
+			final ProxyHttpExchange exchange = factory.build(request, response);
+			assertThat(exchange.getRequestFields().getStringField("X-Request-Deadline"), is("130000"));
+		}
 	}
 }
@@ -6,9 +6,15 @@ import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,6 +23,7 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.continuation.Continuation;
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.io.EofException;
@@ -30,7 +37,9 @@ import org.mockito.stubbing.Answer;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.wesabe.bouncer.auth.WesabeCredentials;
+import com.wesabe.bouncer.proxy.ExchangeDeadlines;
 import com.wesabe.bouncer.proxy.ProxyHttpExchange;
+import com.wesabe.bouncer.util.Clock;
 
 @RunWith(Enclosed.class)
 public class ProxyHttpExchangeTest {
@@ -151,6 +160,11 @@ public class ProxyHttpExchangeTest {
 			assertThat(exchange().getRequestFields().getStringField("X-Boggle"), is(nullValue()));
 		}
 		
+		@Test
+		public void itDoesNotSendADeadlineIfThereIsntOne() throws Exception {
+			assertThat(exchange().getRequestFields().getStringField("X-Request-Deadline"), is(nullValue()));
+		}
+		
 		@Test
 		public void itCopiesTheInputStreamIfThereIsAContentType() throws Exception {
 			when(request.getContentType()).thenReturn("application/json");
@@ -348,4 +362,294 @@ public class ProxyHttpExchangeTest {
 			verify(response, never()).addHeader("Age", "viejo");
 		}
 	}
+	
+	public static class Proxying_A_Suspended_Request {
+		private HttpServletRequest request;
+		private HttpServletResponse response;
+		private Continuation continuation;
+		private ProxyHttpExchange exchange;
+		
+		@Before
+		public void setup() throws Exception {
+			Logger.getLogger("com.wesabe").setLevel(Level.OFF);
+			Logger.getLogger("org.eclipse.jetty").setLevel(Level.OFF);
+			
+			this.request = mock(HttpServletRequest.class);
+			when(request.getProtocol()).thenReturn("HTTP/1.0");
+			when(request.getMethod()).thenReturn("GET");
+			when(request.getRequestURI()).thenReturn("/dingofroop");
+			when(request.getHeaderNames()).thenReturn(Collections.enumeration(ImmutableList.of()));
+			when(request.getUserPrincipal()).thenReturn(new WesabeCredentials(200, "WOO"));
+			this.response = mock(HttpServletResponse.class);
+			this.continuation = mock(Continuation.class);
+			this.exchange = new ProxyHttpExchange("http://example.com:8081", request, response);
+			exchange.setContinuation(continuation);
+		}
+		
+		@Test
+		public void itCompletesTheRequestWhenTheResponseIsComplete() throws Exception {
+			exchange.getEventListener().onResponseComplete();
+			
+			verify(continuation).complete();
+		}
+		
+		@Test
+		public void itCompletesTheRequestIfTheConnectionFails() throws Exception {
+			exchange.getEventListener().onConnectionFailed(new Throwable());
+			
+			verify(response).sendError(503);
+			verify(continuation).complete();
+		}
+		
+		@Test
+		public void itCompletesTheRequestIfTheExchangeFails() throws Exception {
+			exchange.getEventListener().onException(new NullPointerException());
+			
+			verify(continuation).complete();
+		}
+		
+		@Test
+		public void itCompletesTheRequestIfTheConnectionIsDropped() throws Exception {
+			exchange.getEventListener().onException(new EofException());
+			
+			verify(continuation).complete();
+		}
+		
+		@Test
+		public void itOnlyCompletesTheRequestOnce() throws Exception {
+			exchange.getEventListener().onResponseComplete();
+			exchange.getEventListener().onException(new EofException());
+			
+			verify(continuation, times(1)).complete();
+		}
+		
+		@Test
+		public void itCannotBeDetachedOnceItHasCompletedTheRequest() throws Exception {
+			exchange.getEventListener().onResponseComplete();
+			
+			assertThat(exchange.detach(), is(false));
+		}
+		
+		@Test
+		public void itNeverTouchesTheContinuationOnceDetached() throws Exception {
+			assertThat(exchange.detach(), is(true));
+			
+			exchange.getEventListener().onResponseComplete();
+			
+			verify(continuation, never()).complete();
+		}
+	}
+	
+	public static class Enforcing_Deadlines {
+		private HttpServletRequest request;
+		private HttpServletResponse response;
+		private Continuation continuation;
+		private Clock clock;
+		private ProxyHttpExchange exchange;
+		
+		@Before
+		public void setup() throws Exception {
+			Logger.getLogger("com.wesabe").setLevel(Level.OFF);
+			Logger.getLogger("org.eclipse.jetty").setLevel(Level.OFF);
+			
+			this.request = mock(HttpServletRequest.class);
+			when(request.getProtocol()).thenReturn("HTTP/1.0");
+			when(request.getMethod()).thenReturn("GET");
+			when(request.getRequestURI()).thenReturn("/dingofroop");
+			when(request.getHeaderNames()).thenReturn(Collections.enumeration(ImmutableList.of()));
+			when(request.getUserPrincipal()).thenReturn(new WesabeCredentials(200, "WOO"));
+			this.response = mock(HttpServletResponse.class);
+			this.continuation = mock(Continuation.class);
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			final ExchangeDeadlines deadlines = new ExchangeDeadlines(1000, 5000, 30000, ImmutableList.of(new ExchangeDeadlines.Route("/uploads/", 300000)));
+			this.exchange = new ProxyHttpExchange("http://example.com:8081", request, response, deadlines, clock);
+}
+
+		@Test
+		public void itTellsTheBackendWhenItWillGiveUp() throws Exception {
+			assertThat(exchange.getRequestFields().getStringField("X-Request-Deadline"), is("130000"));
+		}
+		
+		@Test
+		public void itWaitsForTheConnectDeadlineBeforeTheRequestIsSent() throws Exception {
+			assertThat(exchange.checkDeadlines(), is(1000L));
+			assertThat(exchange.isTimedOut(), is(false));
+		}
+		
+		@Test
+		public void itTimesOutIfTheRequestIsntSentByTheConnectDeadline() throws Exception {
+			when(clock.getTime()).thenReturn(101000L);
+			
+			assertThat(exchange.checkDeadlines(), is(-1L));
+			assertThat(exchange.getTimedOut(), is("connect"));
+			assertThat(exchange.isCanceled(), is(true));
+		}
+		
+		@Test
+		public void itWaitsForTheIdleDeadlineOnceTheRequestIsSent() throws Exception {
+			when(clock.getTime()).thenReturn(100500L);
+			exchange.getEventListener().onRequestCommitted();
+			
+			assertThat(exchange.checkDeadlines(), is(5000L));
+		}
+		
+		@Test
+		public void itPostponesTheIdleDeadlineWheneverTheBackendResponds() throws Exception {
+			exchange.getEventListener().onRequestCommitted();
+			when(clock.getTime()).thenReturn(104000L);
+			exchange.getEventListener().onResponseContent(mock(Buffer.class));
+			when(clock.getTime()).thenReturn(108000L);
+			
+			assertThat(exchange.checkDeadlines(), is(1000L));
+			assertThat(exchange.isTimedOut(), is(false));
+		}
+		
+		@Test
+		public void itTimesOutIfTheBackendIsIdleForTooLong() throws Exception {
+			exchange.getEventListener().onRequestCommitted();
+			when(clock.getTime()).thenReturn(105000L);
+			
+			assertThat(exchange.checkDeadlines(), is(-1L));
+			assertThat(exchange.getTimedOut(), is("idle"));
+		}
+		
+		@Test
+		public void itTimesOutIfTheResponseIsntCompleteByTheTotalDeadline() throws Exception {
+			exchange.getEventListener().onRequestCommitted();
+			when(clock.getTime()).thenReturn(128000L);
+			exchange.getEventListener().onResponseContent(mock(Buffer.class));
+			when(clock.getTime()).thenReturn(130000L);
+			
+			assertThat(exchange.checkDeadlines(), is(-1L));
+			assertThat(exchange.getTimedOut(), is("total"));
+		}
+		
+		@Test
+		public void itUsesTheRoutesTotalDeadline() throws Exception {
+			when(request.getRequestURI()).thenReturn("/uploads/statement.ofx");
+			final ExchangeDeadlines deadlines = new ExchangeDeadlines(0, 0, 30000, ImmutableList.of(new ExchangeDeadlines.Route("/uploads/", 300000)));
+			final ProxyHttpExchange upload = new ProxyHttpExchange("http://example.com:8081", request, response, deadlines, clock);
+			
+			assertThat(upload.getRequestFields().getStringField("X-Request-Deadline"), is("400000"));
+			assertThat(upload.checkDeadlines(), is(300000L));
+		}
+		
+		@Test
+		public void itHasNoDeadlinesOnceFinished() throws Exception {
+			exchange.getEventListener().onResponseComplete();
+			when(clock.getTime()).thenReturn(200000L);
+			
+			assertThat(exchange.checkDeadlines(), is(-1L));
+			assertThat(exchange.isTimedOut(), is(false));
+		}
+		
+		@Test
+		public void itWakesUpTheWaitingThreadWhenItTimesOut() throws Exception {
+			when(clock.getTime()).thenReturn(101000L);
+			exchange.checkDeadlines();
+			
+			assertThat(exchange.waitForCompletion(), is(false));
+		}
+		
+		@Test
+		public void itWakesUpTheWaitingThreadWhenItFinishes() throws Exception {
+			exchange.getEventListener().onResponseComplete();
+			
+			assertThat(exchange.waitForCompletion(), is(true));
+		}
+		
+		@Test
+		public void itResumesASuspendedRequestWhenItTimesOut() throws Exception {
+			exchange.setContinuation(continuation);
+			when(clock.getTime()).thenReturn(101000L);
+			exchange.checkDeadlines();
+			
+			verify(continuation).resume();
+			verify(continuation, never()).complete();
+		}
+		
+		@Test
+		public void itNeverCompletesASuspendedRequestAfterItTimesOut() throws Exception {
+			exchange.setContinuation(continuation);
+			when(clock.getTime()).thenReturn(101000L);
+			exchange.checkDeadlines();
+			exchange.getEventListener().onResponseComplete();
+			
+			verify(continuation, never()).complete();
+		}
+		
+		@Test
+		public void itStopsCopyingTheResponseWhenItTimesOut() throws Exception {
+			when(clock.getTime()).thenReturn(101000L);
+			exchange.checkDeadlines();
+			
+			final Buffer content = mock(Buffer.class);
+			exchange.getEventListener().onResponseStatus(null, 500, null);
+			exchange.getEventListener().onResponseHeader(new ByteArrayBuffer("Age"), new ByteArrayBuffer("viejo"));
+			exchange.getEventListener().onResponseContent(content);
+			exchange.getEventListener().onConnectionFailed(new Throwable());
+			
+			verify(response, never()).reset();
+			verify(response, never()).sendError(anyInt());
+			verify(response, never()).addHeader("Age", "viejo");
+			verify(content, never()).writeTo(isA(OutputStream.class));
+		}
+		
+		@Test
+		public void itWaitsForContentBeingCopiedBeforeItTimesOut() throws Exception {
+			final ServletOutputStream output = mock(ServletOutputStream.class);
+			when(response.getOutputStream()).thenReturn(output);
+			exchange.getEventListener().onRequestCommitted();
+			
+			final CountDownLatch writing = new CountDownLatch(1);
+			final CountDownLatch written = new CountDownLatch(1);
+			final Buffer content = mock(Buffer.class);
+			doAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) throws Throwable {
+					writing.countDown();
+					written.await();
+					return null;
+				}
+			}).when(content).writeTo(isA(OutputStream.class));
+			
+			final ExecutorService executor = Executors.newFixedThreadPool(2);
+			try {
+				final Future<?> copy = executor.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						exchange.getEventListener().onResponseContent(content);
+						return null;
+					}
+				});
+				writing.await();
+				
+				when(clock.getTime()).thenReturn(200000L);
+				final Future<Long> check = executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						return exchange.checkDeadlines();
+					}
+				});
+				Thread.sleep(100);
+				
+				assertThat(check.isDone(), is(false));
+				assertThat(exchange.isCanceled(), is(false));
+				
+				written.countDown();
+				copy.get();
+				
+				assertThat(check.get(), is(-1L));
+				assertThat(exchange.isCanceled(), is(true));
+			} finally {
+				executor.shutdownNow();
+			}
+			
+			final Buffer late = mock(Buffer.class);
+			exchange.getEventListener().onResponseContent(late);
+			
+			verify(late, never()).writeTo(isA(OutputStream.class));
+		}
+	}
 }
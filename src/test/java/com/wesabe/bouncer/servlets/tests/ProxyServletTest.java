@@ -15,6 +15,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.continuation.Continuation;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
@@ -30,6 +31,7 @@ public class ProxyServletTest {
 	private static class FakeHttpClient extends HttpClient {
 		private final List<HttpExchange> exchanges = Lists.newLinkedList();
 		private boolean explode = false;
+		private boolean refuse = false;
 		
 		@Override
 		protected void doStart() throws Exception {
@@ -47,6 +49,9 @@ public class ProxyServletTest {
 		
 		@Override
 		public void send(HttpExchange exchange) throws IOException {
+			if (refuse) {
+				throw new IOException("NOPE");
+			}
 			exchanges.add(exchange);
 		}
 		
@@ -57,6 +62,10 @@ public class ProxyServletTest {
 		public void setExplode(boolean explode) {
 			this.explode = explode;
 		}
+		
+		public void setRefuse(boolean refuse) {
+			this.refuse = refuse;
+		}
 	}
 	
 	private static abstract class Context {
@@ -88,6 +97,11 @@ public class ProxyServletTest {
 		public void itHasAnHttpClient() throws Exception {
 			assertThat(servlet.getHttpClient(), is((HttpClient) httpClient));
 		}
+		
+		@Test
+		public void itIsSynchronousByDefault() throws Exception {
+			assertThat(servlet.isAsync(), is(false));
+		}
 	}
 	
 	public static class Initializing extends Context {
@@ -155,6 +169,7 @@ public class ProxyServletTest {
 			this.exchange = mock(ProxyHttpExchange.class);
 			this.request = mock(HttpServletRequest.class);
 			this.response = mock(HttpServletResponse.class);
+			when(exchange.waitForCompletion()).thenReturn(true);
 			when(factory.build(request, response)).thenReturn(exchange);
 			servlet.init();
 		}
@@ -166,12 +181,35 @@ public class ProxyServletTest {
 			assertThat(httpClient.getExchanges().size(), is(1));
 			assertThat((ProxyHttpExchange) httpClient.getExchanges().get(0), is(this.exchange));
 			
-			verify(exchange).waitForDone();
+			verify(factory).watch(exchange);
+			verify(exchange).waitForCompletion();
+			verify(response, never()).sendError(anyInt());
+		}
+		
+		@Test
+		public void itReturnsA504IfTheExchangeTimesOut() throws Exception {
+			when(exchange.waitForCompletion()).thenReturn(false);
+			
+			servlet.service(request, response);
+			
+			verify(response).reset();
+			verify(response).sendError(504);
+		}
+		
+		@Test
+		public void itDoesNotResetACommittedResponseIfTheExchangeTimesOut() throws Exception {
+			when(exchange.waitForCompletion()).thenReturn(false);
+			when(response.isCommitted()).thenReturn(true);
+			
+			servlet.service(request, response);
+			
+			verify(response, never()).reset();
+			verify(response, never()).sendError(anyInt());
 		}
 		
 		@Test
 		public void itWrapsAnyThrownExceptionsInServletExceptions() throws Exception {
-			when(exchange.waitForDone()).thenThrow(new InterruptedException("AUGH"));
+			when(exchange.waitForCompletion()).thenThrow(new InterruptedException("AUGH"));
 			
 			try {
 				servlet.service(request, response);
@@ -181,4 +219,109 @@ public class ProxyServletTest {
 			}
 		}
 	}
+	
+	public static class Servicing_A_Request_Asynchronously extends Context {
+		private static final String EXCHANGE_ATTRIBUTE = ProxyServlet.class.getCanonicalName() + ".exchange";
+		private HttpServletRequest request;
+		private HttpServletResponse response;
+		private Continuation continuation;
+		private ProxyHttpExchange exchange;
+		
+		@Before
+		@Override
+		public void setup() throws Exception {
+			super.setup();
+			Logger.getLogger("com.wesabe").setLevel(Level.OFF);
+			this.servlet = new ProxyServlet(httpClient, factory, true);
+			this.exchange = mock(ProxyHttpExchange.class);
+			this.continuation = mock(Continuation.class);
+			this.request = mock(HttpServletRequest.class);
+			when(request.getAttribute(Continuation.ATTRIBUTE)).thenReturn(continuation);
+			this.response = mock(HttpServletResponse.class);
+			when(factory.build(request, response)).thenReturn(exchange);
+			servlet.init();
+		}
+		
+		@Test
+		public void itIsAsynchronous() throws Exception {
+			assertThat(servlet.isAsync(), is(true));
+		}
+		
+		@Test
+		public void itSuspendsTheRequestAndProxiesItWithoutWaiting() throws Exception {
+			servlet.service(request, response);
+			
+			assertThat(httpClient.getExchanges().size(), is(1));
+			assertThat((ProxyHttpExchange) httpClient.getExchanges().get(0), is(this.exchange));
+			
+			verify(continuation).suspend();
+			verify(continuation).setAttribute(EXCHANGE_ATTRIBUTE, exchange);
+			verify(exchange).setContinuation(continuation);
+			verify(factory).watch(exchange);
+			verify(exchange, never()).waitForCompletion();
+		}
+		
+		@Test
+		public void itLetsTheHttpClientTimeOutFirst() throws Exception {
+			httpClient.setTimeout(5000);
+			
+			servlet.service(request, response);
+			
+			verify(continuation).setTimeout(35000);
+		}
+		
+		@Test
+		public void itReturnsA503IfTheExchangeCannotBeSent() throws Exception {
+			httpClient.setRefuse(true);
+			when(exchange.detach()).thenReturn(true);
+			
+			servlet.service(request, response);
+			
+			verify(continuation).removeAttribute(EXCHANGE_ATTRIBUTE);
+			verify(response).sendError(503);
+			verify(continuation).complete();
+		}
+		
+		@Test
+		public void itReturnsA504IfTheContinuationExpires() throws Exception {
+			when(continuation.getAttribute(EXCHANGE_ATTRIBUTE)).thenReturn(exchange);
+			when(exchange.detach()).thenReturn(true);
+			
+			servlet.service(request, response);
+			
+			assertThat(httpClient.getExchanges().isEmpty(), is(true));
+			
+			verify(continuation).removeAttribute(EXCHANGE_ATTRIBUTE);
+			verify(exchange).cancel();
+			verify(response).reset();
+			verify(response).sendError(504);
+			verify(continuation, never()).suspend();
+		}
+		
+		@Test
+		public void itReturnsA504IfTheExchangeTimesOut() throws Exception {
+			when(continuation.getAttribute(EXCHANGE_ATTRIBUTE)).thenReturn(exchange);
+			when(exchange.detach()).thenReturn(true);
+			when(exchange.isTimedOut()).thenReturn(true);
+			
+			servlet.service(request, response);
+			
+			verify(exchange, never()).cancel();
+			verify(response).reset();
+			verify(response).sendError(504);
+		}
+		
+		@Test
+		public void itDoesNotTouchTheResponseIfTheExchangeHasAlreadyFinished() throws Exception {
+			when(continuation.getAttribute(EXCHANGE_ATTRIBUTE)).thenReturn(exchange);
+			when(exchange.detach()).thenReturn(false);
+			
+			servlet.service(request, response);
+			
+			assertThat(httpClient.getExchanges().isEmpty(), is(true));
+			
+			verify(exchange, never()).cancel();
+			verify(response, never()).sendError(anyInt());
+		}
+	}
 }
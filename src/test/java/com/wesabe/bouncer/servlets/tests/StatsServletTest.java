@@ -0,0 +1,73 @@
+package com.wesabe.bouncer.servlets.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.servlets.StatsServlet;
+import com.wesabe.bouncer.stats.Gauge;
+import com.wesabe.bouncer.stats.StatsRegistry;
+
+@RunWith(Enclosed.class)
+public class StatsServletTest {
+	public static class Handling_A_Stats_Request {
+		private StatsRegistry registry;
+		private StatsServlet servlet;
+		private HttpServletRequest request;
+		private HttpServletResponse response;
+		private StringWriter output;
+		
+		@Before
+		public void setup() throws Exception {
+			this.registry = new StatsRegistry();
+			registry.counter("auth.outcome.success").increment();
+			registry.counter("auth.outcome.success").increment();
+			registry.gauge("auth.cache.size", new Gauge() {
+				@Override
+				public long getValue() {
+					return 40;
+				}
+			});
+			registry.histogram("auth.latency.total").update(10);
+			
+			this.servlet = new StatsServlet(registry);
+			
+			this.request = mock(HttpServletRequest.class);
+			when(request.getMethod()).thenReturn("GET");
+			
+			this.output = new StringWriter();
+			this.response = mock(HttpServletResponse.class);
+			when(response.getWriter()).thenReturn(new PrintWriter(output));
+		}
+		
+		@Test
+		public void itReturnsOK() throws Exception {
+			servlet.service(request, response);
+			
+			verify(response).setStatus(200);
+			verify(response).setContentType("text/plain");
+		}
+		
+		@Test
+		public void itListsTheStatistics() throws Exception {
+			servlet.service(request, response);
+			
+			final String[] lines = output.toString().split("\r?\n");
+			assertThat(lines.length, is(3));
+			assertThat(lines[0], is("auth.outcome.success 2"));
+			assertThat(lines[1], is("auth.cache.size 40"));
+			assertThat(lines[2], is("auth.latency.total count=1 mean=10 p50=10 p90=10 p99=10 p999=10 max=10"));
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.wesabe.bouncer.stats.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.stats.LatencyHistogram;
+
+@RunWith(Enclosed.class)
+public class LatencyHistogramTest {
+	public static class An_Empty_Histogram {
+		private LatencyHistogram histogram;
+		
+		@Before
+		public void setup() throws Exception {
+			this.histogram = new LatencyHistogram();
+		}
+		
+		@Test
+		public void itHasNoValues() throws Exception {
+			assertThat(histogram.getCount(), is(0L));
+			assertThat(histogram.getMean(), is(0L));
+			assertThat(histogram.getMax(), is(0L));
+			assertThat(histogram.getQuantile(0.99), is(0L));
+		}
+	}
+	
+	public static class A_Histogram_Of_Small_Values {
+		private LatencyHistogram histogram;
+		
+		@Before
+		public void setup() throws Exception {
+			this.histogram = new LatencyHistogram();
+			for (int i = 1; i <= 10; i++) {
+				histogram.update(i);
+			}
+		}
+		
+		@Test
+		public void itHasACount() throws Exception {
+			assertThat(histogram.getCount(), is(10L));
+		}
+		
+		@Test
+		public void itHasAMean() throws Exception {
+			assertThat(histogram.getMean(), is(5L));
+		}
+		
+		@Test
+		public void itHasAMax() throws Exception {
+			assertThat(histogram.getMax(), is(10L));
+		}
+		
+		@Test
+		public void itHasExactQuantiles() throws Exception {
+			assertThat(histogram.getQuantile(0.5), is(5L));
+			assertThat(histogram.getQuantile(0.9), is(9L));
+			assertThat(histogram.getQuantile(1.0), is(10L));
+		}
+	}
+	
+	public static class A_Histogram_Of_Large_Values {
+		private LatencyHistogram histogram;
+		
+		@Before
+		public void setup() throws Exception {
+			this.histogram = new LatencyHistogram();
+			for (int i = 1; i <= 100000; i++) {
+				histogram.update(i);
+			}
+		}
+		
+		@Test
+		public void itHasQuantilesWithin12AndAHalfPercent() throws Exception {
+			final double[] quantiles = { 0.5, 0.9, 0.99, 0.999 };
+			for (double quantile : quantiles) {
+				final long actual = (long) (quantile * 100000);
+				final long reported = histogram.getQuantile(quantile);
+				assertTrue(reported >= actual);
+				assertTrue(reported <= actual * 1.125);
+			}
+		}
+		
+		@Test
+		public void itNeverReportsMoreThanTheMax() throws Exception {
+			assertThat(histogram.getQuantile(1.0), is(100000L));
+		}
+	}
+	
+	public static class A_Histogram_Of_Huge_Values {
+		private LatencyHistogram histogram;
+		
+		@Before
+		public void setup() throws Exception {
+			this.histogram = new LatencyHistogram();
+			histogram.update(Long.MAX_VALUE);
+			histogram.update(-20);
+		}
+		
+		@Test
+		public void itClampsThem() throws Exception {
+			assertThat(histogram.getCount(), is(2L));
+			assertThat(histogram.getMax(), is(Long.MAX_VALUE));
+			assertThat(histogram.getQuantile(0.5), is(0L));
+			assertTrue(histogram.getQuantile(1.0) > 0);
+		}
+	}
+	
+	public static class A_Histogram_Updated_Concurrently {
+		private LatencyHistogram histogram;
+		
+		@Before
+		public void setup() throws Exception {
+			this.histogram = new LatencyHistogram();
+			final Thread[] threads = new Thread[8];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						for (int j = 0; j < 10000; j++) {
+							histogram.update(j);
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+		
+		@Test
+		public void itLosesNoValues() throws Exception {
+			assertThat(histogram.getCount(), is(80000L));
+			assertThat(histogram.getMax(), is(9999L));
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.wesabe.bouncer.stats.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.google.common.collect.ImmutableList;
+import com.wesabe.bouncer.stats.Gauge;
+import com.wesabe.bouncer.stats.StatsRegistry;
+
+@RunWith(Enclosed.class)
+public class StatsRegistryTest {
+	public static class A_Registry {
+		private StatsRegistry registry;
+		
+		@Before
+		public void setup() throws Exception {
+			this.registry = new StatsRegistry();
+		}
+		
+		@Test
+		public void itReturnsTheSameCounterForAName() throws Exception {
+			assertThat(registry.counter("a"), is(sameInstance(registry.counter("a"))));
+			assertThat(registry.counter("a"), is(not(sameInstance(registry.counter("b")))));
+		}
+		
+		@Test
+		public void itReturnsTheSameHistogramForAName() throws Exception {
+			assertThat(registry.histogram("a"), is(sameInstance(registry.histogram("a"))));
+			assertThat(registry.histogram("a"), is(not(sameInstance(registry.histogram("b")))));
+		}
+		
+		@Test
+		public void itListsCountersByName() throws Exception {
+			registry.counter("b").increment();
+			registry.counter("a");
+			
+			assertThat(new ArrayList<String>(registry.getCounters().keySet()), is((Object) ImmutableList.of("a", "b")));
+			assertThat(registry.getCounters().get("b").getCount(), is(1L));
+		}
+		
+		@Test
+		public void itListsHistogramsByName() throws Exception {
+			registry.histogram("z");
+			registry.histogram("y");
+			
+			assertThat(new ArrayList<String>(registry.getHistograms().keySet()), is((Object) ImmutableList.of("y", "z")));
+		}
+		
+		@Test
+		public void itReplacesGauges() throws Exception {
+			registry.gauge("size", new Gauge() {
+				@Override
+				public long getValue() {
+					return 1;
+				}
+			});
+			registry.gauge("size", new Gauge() {
+				@Override
+				public long getValue() {
+					return 2;
+				}
+			});
+			
+			assertThat(registry.getGauges().size(), is(1));
+			assertThat(registry.getGauges().get("size").getValue(), is(2L));
+		}
+	}
+	
+	public static class The_Default_Registry {
+		@Test
+		public void itIsASingleton() throws Exception {
+			assertThat(StatsRegistry.getDefault(), is(sameInstance(StatsRegistry.getDefault())));
+		}
+	}
+}
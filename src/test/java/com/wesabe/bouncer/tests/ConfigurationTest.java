@@ -14,6 +14,8 @@ import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 
 import com.wesabe.bouncer.Configuration;
+import com.wesabe.bouncer.auth.SessionKey;
+import com.wesabe.bouncer.proxy.ExchangeDeadlines;
 
 @RunWith(Enclosed.class)
 public class ConfigurationTest {
@@ -75,10 +77,20 @@ public class ConfigurationTest {
 		@Test
 		public void itHasC3P0Properties() throws Exception {
 			final Properties c3p0Properties = configuration.getC3P0Properties();
-			assertEquals(1, c3p0Properties.size());
+			assertEquals(3, c3p0Properties.size());
 			assertEquals("1800", c3p0Properties.getProperty("maxIdleTime"));
 		}
 		
+		@Test
+		public void itCachesPreparedStatementsByDefault() throws Exception {
+			assertEquals("4", configuration.getC3P0Properties().getProperty("maxStatementsPerConnection"));
+		}
+		
+		@Test
+		public void itTimesOutCheckoutsByDefault() throws Exception {
+			assertEquals("2000", configuration.getC3P0Properties().getProperty("checkoutTimeout"));
+		}
+		
 		@Test
 		public void itHasMemcachedServers() throws Exception {
 			final List<InetSocketAddress> servers = configuration.getMemcachedServers();
@@ -107,9 +119,296 @@ public class ConfigurationTest {
 			assertThat(configuration.getHttpClientMaxConnections(), is(1000));
 		}
 		
+		@Test
+		public void itHasOptionalAsyncProxying() throws Exception {
+			assertThat(configuration.isAsyncProxyEnabled(), is(true));
+		}
+		
+		@Test
+		public void itHasClientTimeouts() throws Exception {
+			assertThat(configuration.getHttpClientConnectTimeout(), is(2000));
+			assertThat(configuration.getHttpClientIdleTimeout(), is(15000));
+			assertThat(configuration.getHttpClientTotalTimeout(), is(30000));
+		}
+		
+		@Test
+		public void itHasPerRouteClientTimeouts() throws Exception {
+			final List<ExchangeDeadlines.Route> routes = configuration.getHttpClientRouteTimeouts();
+			assertThat(routes.size(), is(2));
+			assertThat(routes.get(0).getPrefix(), is("/uploads/"));
+			assertThat(routes.get(0).getTimeout(), is(300000L));
+			assertThat(routes.get(1).getPrefix(), is("/accounts/"));
+			assertThat(routes.get(1).getTimeout(), is(5000L));
+		}
+		
 		@Test
 		public void itHasAGracefulShutdownPeriod() throws Exception {
 			assertThat(configuration.getHttpGracefulShutdownPeriod(), is(5000));
 		}
+		
+		@Test
+		public void itHasAnAuthenticationCacheSize() throws Exception {
+			assertThat(configuration.getAuthenticationCacheSize(), is(5000));
+		}
+		
+		@Test
+		public void itHasAnAuthenticationCacheTTL() throws Exception {
+			assertThat(configuration.getAuthenticationCacheTTL(), is(30));
+		}
+		
+		@Test
+		public void itHasAnAuthenticationCacheGracePeriod() throws Exception {
+			assertThat(configuration.getAuthenticationCacheGracePeriod(), is(120));
+		}
+		
+		@Test
+		public void itHasABreakerMinimumCalls() throws Exception {
+			assertThat(configuration.getBreakerMinimumCalls(), is(10));
+		}
+		
+		@Test
+		public void itHasABreakerFailureRate() throws Exception {
+			assertThat(configuration.getBreakerFailureRate(), is(0.25));
+		}
+		
+		@Test
+		public void itHasABreakerSlowCallThreshold() throws Exception {
+			assertThat(configuration.getBreakerSlowCallThreshold(), is(500));
+		}
+		
+		@Test
+		public void itHasABreakerOpenDuration() throws Exception {
+			assertThat(configuration.getBreakerOpenDuration(), is(5000));
+		}
+		
+		@Test
+		public void itHasABreakerWindow() throws Exception {
+			assertThat(configuration.getBreakerWindow(), is(20000));
+		}
+		
+		@Test
+		public void itHasADefaultUserQueryTimeout() throws Exception {
+			assertThat(configuration.getUserQueryTimeout(), is(2));
+		}
+		
+		@Test
+		public void itHasSessionKeys() throws Exception {
+			final List<SessionKey> keys = configuration.getSessionKeys();
+			assertThat(keys.size(), is(2));
+			assertThat(keys.get(0).getId(), is(2));
+			assertThat(keys.get(1).getId(), is(1));
+		}
+		
+		@Test
+		public void itHasASessionTTL() throws Exception {
+			assertThat(configuration.getSessionTTL(), is(600));
+		}
+		
+		@Test
+		public void itHasASessionEpoch() throws Exception {
+			assertThat(configuration.getSessionEpoch(), is(3));
+		}
+		
+		@Test
+		public void itHasANegativeLookupCacheSize() throws Exception {
+			assertThat(configuration.getNegativeLookupCacheSize(), is(20000));
+		}
+		
+		@Test
+		public void itHasANegativeLookupCacheTTL() throws Exception {
+			assertThat(configuration.getNegativeLookupCacheTTL(), is(10));
+		}
+		
+		@Test
+		public void itHasAFailedLoginFlushInterval() throws Exception {
+			assertThat(configuration.getFailedLoginFlushInterval(), is(250));
+		}
+		
+		@Test
+		public void itHasALockCacheSize() throws Exception {
+			assertThat(configuration.getLockCacheSize(), is(5000));
+		}
+		
+		@Test
+		public void itHasALockCacheStaleness() throws Exception {
+			assertThat(configuration.getLockCacheStaleness(), is(500));
+		}
+		
+		@Test
+		public void itHasALocalThrottleStore() throws Exception {
+			assertThat(configuration.isLocalThrottleStoreEnabled(), is(true));
+			assertThat(configuration.getLocalThrottleStoreCapacity(), is(1024));
+		}
+		
+		@Test
+		public void itHasTheUserSnapshotEnabled() throws Exception {
+			assertThat(configuration.isUserSnapshotEnabled(), is(true));
+		}
+		
+		@Test
+		public void itHasAUserSnapshotRefreshInterval() throws Exception {
+			assertThat(configuration.getUserSnapshotRefreshInterval(), is(30000));
+		}
+		
+		@Test
+		public void itHasAPasswordHashCacheBudget() throws Exception {
+			assertThat(configuration.getPasswordHashCacheBudget(), is(1048576));
+		}
+		
+		@Test
+		public void itHasAPasswordHashCacheTTL() throws Exception {
+			assertThat(configuration.getPasswordHashCacheTTL(), is(3600));
+		}
+		
+		@Test
+		public void itHasAnAccountKeyCacheBudget() throws Exception {
+			assertThat(configuration.getAccountKeyCacheBudget(), is(524288));
+		}
+		
+		@Test
+		public void itHasAnAccountKeyCacheTTL() throws Exception {
+			assertThat(configuration.getAccountKeyCacheTTL(), is(600));
+		}
+		
+		@Test
+		public void itHasANumberOfOffHeapPasswordHashes() throws Exception {
+			assertThat(configuration.getPasswordHashCacheOffHeapDigests(), is(20000));
+		}
+		
+		@Test
+		public void itHasANumberOfOffHeapAccountKeys() throws Exception {
+			assertThat(configuration.getAccountKeyCacheOffHeapDigests(), is(10000));
+		}
+		
+		@Test
+		public void itHasWarmupEnabled() throws Exception {
+			assertThat(configuration.isWarmupEnabled(), is(true));
+		}
+		
+		@Test
+		public void itHasANumberOfUsersToWarmUp() throws Exception {
+			assertThat(configuration.getWarmupUsers(), is(50000));
+		}
+		
+		@Test
+		public void itHasAWarmupBatchSize() throws Exception {
+			assertThat(configuration.getWarmupBatchSize(), is(5000));
+		}
+		
+		@Test
+		public void itHasAWarmupTimeLimit() throws Exception {
+			assertThat(configuration.getWarmupTimeLimit(), is(15000));
+		}
+		
+		@Test
+		public void itHasAWarmupTTL() throws Exception {
+			assertThat(configuration.getWarmupTTL(), is(600000));
+		}
+		
+		@Test
+		public void itHasUserRateLimitingEnabled() throws Exception {
+			assertThat(configuration.isUserRateLimitEnabled(), is(true));
+		}
+		
+		@Test
+		public void itHasAUserRateLimitRate() throws Exception {
+			assertThat(configuration.getUserRateLimitRate(), is(2.5));
+		}
+		
+		@Test
+		public void itHasAUserRateLimitBurst() throws Exception {
+			assertThat(configuration.getUserRateLimitBurst(), is(10));
+		}
+		
+		@Test
+		public void itHasAUserRateLimitCapacity() throws Exception {
+			assertThat(configuration.getUserRateLimitCapacity(), is(4096));
+		}
+		
+		@Test
+		public void itHasClientRateLimitingEnabled() throws Exception {
+			assertThat(configuration.isClientRateLimitEnabled(), is(true));
+		}
+		
+		@Test
+		public void itHasAClientRateLimitRate() throws Exception {
+			assertThat(configuration.getClientRateLimitRate(), is(20.0));
+		}
+		
+		@Test
+		public void itHasAClientRateLimitBurst() throws Exception {
+			assertThat(configuration.getClientRateLimitBurst(), is(100));
+		}
+		
+		@Test
+		public void itHasAClientRateLimitCapacity() throws Exception {
+			assertThat(configuration.getClientRateLimitCapacity(), is(8192));
+		}
+		
+		@Test
+		public void itHasClientConnectionLimitingEnabled() throws Exception {
+			assertThat(configuration.isClientConnectionLimitEnabled(), is(true));
+		}
+		
+		@Test
+		public void itHasAMaximumNumberOfConnectionsPerClient() throws Exception {
+			assertThat(configuration.getClientMaxConnections(), is(16));
+		}
+		
+		@Test
+		public void itHasClientPrefixLengths() throws Exception {
+			assertThat(configuration.getClientIPv4PrefixLength(), is(24));
+			assertThat(configuration.getClientIPv6PrefixLength(), is(48));
+		}
+		
+		@Test
+		public void itHasTheTarpitEnabled() throws Exception {
+			assertThat(configuration.isTarpitEnabled(), is(true));
+		}
+		
+		@Test
+		public void itHasATarpitDelay() throws Exception {
+			assertThat(configuration.getTarpitDelay(), is(15000));
+		}
+		
+		@Test
+		public void itHasAMaximumNumberOfTarpittedConnections() throws Exception {
+			assertThat(configuration.getTarpitMaxConnections(), is(500));
+		}
+		
+		@Test
+		public void itHasATarpitFailureRate() throws Exception {
+			assertThat(configuration.getTarpitFailureRate(), is(0.5));
+		}
+		
+		@Test
+		public void itHasATarpitFailureBurst() throws Exception {
+			assertThat(configuration.getTarpitFailureBurst(), is(5));
+		}
+		
+		@Test
+		public void itHasATarpitCapacity() throws Exception {
+			assertThat(configuration.getTarpitCapacity(), is(2048));
+		}
+		
+		@Test
+		public void itHasAsyncAuthenticationEnabled() throws Exception {
+			assertThat(configuration.isAsyncAuthenticationEnabled(), is(true));
+		}
+		
+		@Test
+		public void itHasAnAuthenticationThreadPoolSize() throws Exception {
+			assertThat(configuration.getAuthenticationThreadPoolSize(), is(8));
+		}
+		
+		@Test
+		public void itHasAnAuthenticationQueueSize() throws Exception {
+			assertThat(configuration.getAuthenticationQueueSize(), is(200));
+		}
+		
+		@Test
+		public void itHasAnAuthenticationTimeout() throws Exception {
+			assertThat(configuration.getAuthenticationTimeout(), is(2000));
+		}
 	}
 }
\ No newline at end of file
@@ -8,6 +8,7 @@ import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.wesabe.bouncer.util.BoundedLinkedHashMap;
@@ -130,6 +131,28 @@ public class BoundedLinkedHashMapTest {
 			assertThat(map.containsKey("one"), is(false));
 			assertThat(map.containsKey("two"), is(false));
 			assertThat(map.containsKey("three"), is(true));
+			assertThat(map.getEvictionCount(), is(2L));
+		}
+		
+		@Test
+		public void itHasNoEvictionsWhileUnderCapacity() throws Exception {
+			assertThat(map.getEvictionCount(), is(0L));
+		}
+		
+		@Test
+		public void itRemovesValuesMatchingAPredicate() throws Exception {
+			final int removed = map.removeValues(new Predicate<String>() {
+				@Override
+				public boolean apply(String input) {
+					return input.endsWith("s");
+				}
+			});
+			
+			assertThat(removed, is(2));
+			assertThat(map.size(), is(3));
+			assertThat(map.containsKey("four"), is(true));
+			assertThat(map.containsKey("two"), is(false));
+			assertThat(map.containsKey("three"), is(false));
 		}
 	}
 }
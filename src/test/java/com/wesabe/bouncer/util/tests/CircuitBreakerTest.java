@@ -0,0 +1,232 @@
+package com.wesabe.bouncer.util.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.util.CircuitBreaker;
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.CircuitBreaker.State;
+
+@RunWith(Enclosed.class)
+public class CircuitBreakerTest {
+	private static abstract class Context {
+		protected Clock clock;
+		protected CircuitBreaker breaker;
+		
+		public void setup() throws Exception {
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(100000L);
+			
+			this.breaker = new CircuitBreaker(4, 0.5, 1000, 5000, 10000, clock);
+		}
+	}
+	
+	public static class A_Closed_Breaker extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itAllowsRequests() throws Exception {
+			assertThat(breaker.acquirePermit(), is(not(CircuitBreaker.NO_PERMIT)));
+			assertThat(breaker.getState(), is(State.CLOSED));
+			assertThat(breaker.getRetryAfter(), is(0));
+		}
+		
+		@Test
+		public void itDoesNotTripBeforeTheMinimumNumberOfCalls() throws Exception {
+			breaker.recordFailure(breaker.acquirePermit());
+			breaker.recordFailure(breaker.acquirePermit());
+			breaker.recordFailure(breaker.acquirePermit());
+			
+			assertThat(breaker.getState(), is(State.CLOSED));
+		}
+		
+		@Test
+		public void itTripsWhenTheFailureRateIsReached() throws Exception {
+			breaker.recordSuccess(breaker.acquirePermit(), 10);
+			breaker.recordSuccess(breaker.acquirePermit(), 10);
+			breaker.recordFailure(breaker.acquirePermit());
+			breaker.recordFailure(breaker.acquirePermit());
+			
+			assertThat(breaker.getState(), is(State.OPEN));
+			assertThat(breaker.getTripCount(), is(1L));
+		}
+		
+		@Test
+		public void itDoesNotTripBelowTheFailureRate() throws Exception {
+			breaker.recordSuccess(breaker.acquirePermit(), 10);
+			breaker.recordSuccess(breaker.acquirePermit(), 10);
+			breaker.recordSuccess(breaker.acquirePermit(), 10);
+			breaker.recordFailure(breaker.acquirePermit());
+			
+			assertThat(breaker.getState(), is(State.CLOSED));
+		}
+		
+		@Test
+		public void itCountsSlowCallsAsFailures() throws Exception {
+			for (int i = 0; i < 4; i++) {
+				breaker.recordSuccess(breaker.acquirePermit(), 1000);
+			}
+			
+			assertThat(breaker.getState(), is(State.OPEN));
+		}
+		
+		@Test
+		public void itForgetsCallsFromOldWindows() throws Exception {
+			breaker.recordFailure(breaker.acquirePermit());
+			breaker.recordFailure(breaker.acquirePermit());
+			breaker.recordFailure(breaker.acquirePermit());
+			when(clock.getTime()).thenReturn(110000L);
+			breaker.recordFailure(breaker.acquirePermit());
+			
+			assertThat(breaker.getState(), is(State.CLOSED));
+		}
+	}
+	
+	public static class An_Open_Breaker extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			for (int i = 0; i < 4; i++) {
+				breaker.recordFailure(breaker.acquirePermit());
+			}
+		}
+		
+		@Test
+		public void itRejectsRequests() throws Exception {
+			assertThat(breaker.acquirePermit(), is(CircuitBreaker.NO_PERMIT));
+			assertThat(breaker.getRejectedCount(), is(1L));
+		}
+		
+		@Test
+		public void itHasARetryAfter() throws Exception {
+			when(clock.getTime()).thenReturn(102500L);
+			
+			assertThat(breaker.getRetryAfter(), is(3));
+		}
+		
+		@Test
+		public void itAllowsASingleTrialRequestAfterTheOpenDuration() throws Exception {
+			when(clock.getTime()).thenReturn(105000L);
+			
+			assertThat(breaker.acquirePermit(), is(not(CircuitBreaker.NO_PERMIT)));
+			assertThat(breaker.getState(), is(State.HALF_OPEN));
+			assertThat(breaker.acquirePermit(), is(CircuitBreaker.NO_PERMIT));
+		}
+	}
+	
+	public static class A_Half_Open_Breaker extends Context {
+		private long closedPermit, trialPermit;
+		
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+			this.closedPermit = breaker.acquirePermit();
+			for (int i = 0; i < 4; i++) {
+				breaker.recordFailure(breaker.acquirePermit());
+			}
+			when(clock.getTime()).thenReturn(105000L);
+			this.trialPermit = breaker.acquirePermit();
+		}
+		
+		@Test
+		public void itClosesIfTheTrialSucceeds() throws Exception {
+			breaker.recordSuccess(trialPermit, 10);
+			
+			assertThat(breaker.getState(), is(State.CLOSED));
+			assertThat(breaker.acquirePermit(), is(not(CircuitBreaker.NO_PERMIT)));
+		}
+		
+		@Test
+		public void itOpensAgainIfTheTrialFails() throws Exception {
+			breaker.recordFailure(trialPermit);
+			
+			assertThat(breaker.getState(), is(State.OPEN));
+			assertThat(breaker.getTripCount(), is(2L));
+			assertThat(breaker.acquirePermit(), is(CircuitBreaker.NO_PERMIT));
+		}
+		
+		@Test
+		public void itOpensAgainIfTheTrialIsSlow() throws Exception {
+			breaker.recordSuccess(trialPermit, 5000);
+			
+			assertThat(breaker.getState(), is(State.OPEN));
+		}
+		
+		@Test
+		public void itIgnoresSuccessesOfCallsAllowedWhileItWasClosed() throws Exception {
+			breaker.recordSuccess(closedPermit, 10);
+			
+			assertThat(breaker.getState(), is(State.HALF_OPEN));
+			assertThat(breaker.acquirePermit(), is(CircuitBreaker.NO_PERMIT));
+		}
+		
+		@Test
+		public void itIgnoresFailuresOfCallsAllowedWhileItWasClosed() throws Exception {
+			breaker.recordFailure(closedPermit);
+			
+			assertThat(breaker.getState(), is(State.HALF_OPEN));
+			assertThat(breaker.getTripCount(), is(1L));
+		}
+		
+		@Test
+		public void itIgnoresCallsAllowedBeforeItLastClosed() throws Exception {
+			breaker.recordSuccess(trialPermit, 10);
+			breaker.recordFailure(closedPermit);
+			breaker.recordFailure(closedPermit);
+			breaker.recordFailure(closedPermit);
+			breaker.recordFailure(closedPermit);
+			
+			assertThat(breaker.getState(), is(State.CLOSED));
+		}
+	}
+	
+	public static class A_Disabled_Breaker {
+		@Test
+		public void itNeverTrips() throws Exception {
+			final CircuitBreaker breaker = CircuitBreaker.disabled();
+			for (int i = 0; i < 1000; i++) {
+				breaker.recordFailure(breaker.acquirePermit());
+			}
+			
+			assertThat(breaker.getState(), is(State.CLOSED));
+			assertThat(breaker.acquirePermit(), is(not(CircuitBreaker.NO_PERMIT)));
+		}
+		
+		@Test
+		public void itNeverTakesItsLock() throws Exception {
+			final CircuitBreaker breaker = CircuitBreaker.disabled();
+			final ExecutorService executor = Executors.newSingleThreadExecutor();
+			try {
+				synchronized (breaker) {
+					final Future<?> calls = executor.submit(new Runnable() {
+						@Override
+						public void run() {
+							breaker.recordSuccess(breaker.acquirePermit(), 10);
+							breaker.recordFailure(breaker.acquirePermit());
+						}
+					});
+					calls.get(5, TimeUnit.SECONDS);
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.wesabe.bouncer.util.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.util.HashedWheelTimer;
+import com.wesabe.bouncer.util.NamedThreadFactory;
+import com.wesabe.bouncer.util.HashedWheelTimer.Timeout;
+
+@RunWith(Enclosed.class)
+public class HashedWheelTimerTest {
+	private static abstract class Context {
+		protected HashedWheelTimer timer;
+		
+		public void setup() throws Exception {
+			this.timer = new HashedWheelTimer(10, 4, new NamedThreadFactory("test-timer"));
+			timer.start();
+			
+			Logger.getLogger("com.wesabe").setLevel(Level.OFF);
+		}
+		
+		public void teardown() throws Exception {
+			timer.stop();
+		}
+		
+		protected Runnable countDown(final CountDownLatch latch) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					latch.countDown();
+				}
+			};
+		}
+	}
+	
+	public static class Scheduling_A_Task extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Override
+		@After
+		public void teardown() throws Exception {
+			super.teardown();
+		}
+		
+		@Test
+		public void itRunsTheTaskAfterTheDelay() throws Exception {
+			final CountDownLatch latch = new CountDownLatch(1);
+			final long start = System.nanoTime();
+			timer.schedule(countDown(latch), 50);
+			
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 40);
+		}
+		
+		@Test
+		public void itRunsTasksDueAfterSeveralTurnsOfTheWheel() throws Exception {
+			final CountDownLatch latch = new CountDownLatch(3);
+			timer.schedule(countDown(latch), 5);
+			timer.schedule(countDown(latch), 95);
+			timer.schedule(countDown(latch), 205);
+			
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+		}
+		
+		@Test
+		public void itRunsTasksWithNoDelay() throws Exception {
+			final CountDownLatch latch = new CountDownLatch(1);
+			timer.schedule(countDown(latch), 0);
+			
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+		}
+		
+		@Test
+		public void itKeepsRunningAfterATaskFails() throws Exception {
+			final CountDownLatch latch = new CountDownLatch(1);
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					throw new IllegalStateException("oops");
+				}
+			}, 5);
+			timer.schedule(countDown(latch), 30);
+			
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+		}
+	}
+	
+	public static class Cancelling_A_Task extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Override
+		@After
+		public void teardown() throws Exception {
+			super.teardown();
+		}
+		
+		@Test
+		public void itNeverRunsTheTask() throws Exception {
+			final AtomicInteger runs = new AtomicInteger();
+			final Timeout timeout = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					runs.incrementAndGet();
+				}
+			}, 30);
+			final CountDownLatch latch = new CountDownLatch(1);
+			timer.schedule(countDown(latch), 60);
+			
+			assertThat(timeout.cancel(), is(true));
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertThat(runs.get(), is(0));
+		}
+		
+		@Test
+		public void itCannotCancelATaskWhichHasRun() throws Exception {
+			final CountDownLatch latch = new CountDownLatch(1);
+			final Timeout timeout = timer.schedule(countDown(latch), 5);
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			
+			assertThat(timeout.cancel(), is(false));
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.wesabe.bouncer.util.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.util.OffHeapDigestStore;
+
+@RunWith(Enclosed.class)
+public class OffHeapDigestStoreTest {
+	private static byte[] digest(int seed) {
+		final byte[] digest = new byte[4];
+		Arrays.fill(digest, (byte) seed);
+		return digest;
+	}
+	
+	public static class An_Empty_Store {
+		private final OffHeapDigestStore store = new OffHeapDigestStore(2, 4);
+		
+		@Test
+		public void itIsEmpty() throws Exception {
+			assertThat(store.size(), is(0));
+		}
+		
+		@Test
+		public void itHasACapacity() throws Exception {
+			assertThat(store.getCapacity(), is(2));
+			assertThat(store.getMemoryUsage(), is(8L));
+		}
+		
+		@Test(expected=IllegalArgumentException.class)
+		public void itRejectsDigestsOfTheWrongLength() throws Exception {
+			store.store(new byte[5]);
+		}
+	}
+	
+	public static class A_Store_With_Digests {
+		private final OffHeapDigestStore store = new OffHeapDigestStore(2, 4);
+		private long first, second;
+		
+		@Before
+		public void setup() throws Exception {
+			this.first = store.store(digest(1));
+			this.second = store.store(digest(2));
+		}
+		
+		@Test
+		public void itReadsDigests() throws Exception {
+			final byte[] digest = new byte[4];
+			
+			assertThat(store.read(first, digest), is(true));
+			assertThat(Arrays.equals(digest, digest(1)), is(true));
+			
+			assertThat(store.read(second, digest), is(true));
+			assertThat(Arrays.equals(digest, digest(2)), is(true));
+			
+			assertThat(store.size(), is(2));
+		}
+		
+		@Test
+		public void itRefusesDigestsWhenFull() throws Exception {
+			assertThat(store.store(digest(3)), is(-1L));
+		}
+		
+		@Test
+		public void itFreesDigests() throws Exception {
+			assertThat(store.free(first), is(true));
+			assertThat(store.free(first), is(false));
+			
+			assertThat(store.read(first, new byte[4]), is(false));
+			assertThat(store.size(), is(1));
+		}
+		
+		@Test
+		public void itDoesNotLetStaleHandlesReadReusedSlots() throws Exception {
+			store.free(first);
+			final long third = store.store(digest(3));
+			
+			assertThat(third, is(not(first)));
+			assertThat(store.read(first, new byte[4]), is(false));
+			assertThat(store.free(first), is(false));
+			
+			final byte[] digest = new byte[4];
+			assertThat(store.read(third, digest), is(true));
+			assertThat(Arrays.equals(digest, digest(3)), is(true));
+		}
+	}
+}
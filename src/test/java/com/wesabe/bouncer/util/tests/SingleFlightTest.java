@@ -0,0 +1,186 @@
+package com.wesabe.bouncer.util.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.util.SingleFlight;
+
+@RunWith(Enclosed.class)
+public class SingleFlightTest {
+	private static abstract class Context {
+		protected static final int CALLERS = 20;
+		protected SingleFlight<String, String> flight;
+		protected ExecutorService executor;
+		protected AtomicInteger executions;
+		protected CountDownLatch release;
+		
+		public void setup() throws Exception {
+			this.flight = new SingleFlight<String, String>();
+			this.executor = Executors.newFixedThreadPool(CALLERS);
+			this.executions = new AtomicInteger();
+			this.release = new CountDownLatch(1);
+		}
+		
+		@After
+		public void teardown() throws Exception {
+			executor.shutdownNow();
+		}
+		
+		protected List<Future<String>> callConcurrently(final String key, final Callable<String> callable) {
+			final List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < CALLERS; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return flight.execute(key, callable);
+					}
+				}));
+			}
+			return results;
+		}
+		
+		protected void awaitCoalescedCallers(long count) throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + 5000;
+			while ((flight.getCoalescedCount() < count) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(1);
+			}
+		}
+	}
+	
+	public static class Concurrent_Calls_For_The_Same_Key extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itRunsTheCallableOnceAndSharesTheResult() throws Exception {
+			final List<Future<String>> results = callConcurrently("key", new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					executions.incrementAndGet();
+					release.await(5, TimeUnit.SECONDS);
+					return "result";
+				}
+			});
+			
+			awaitCoalescedCallers(CALLERS - 1);
+			release.countDown();
+			
+			for (Future<String> result : results) {
+				assertThat(result.get(), is("result"));
+			}
+			
+			assertThat(executions.get(), is(1));
+			assertThat(flight.getCoalescedCount(), is((long) CALLERS - 1));
+			assertThat(flight.getInFlightCount(), is(0));
+		}
+		
+		@Test
+		public void itSharesExceptionsWithEveryCaller() throws Exception {
+			final List<Future<String>> results = callConcurrently("key", new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					executions.incrementAndGet();
+					release.await(5, TimeUnit.SECONDS);
+					throw new IOException("augh");
+				}
+			});
+			
+			awaitCoalescedCallers(CALLERS - 1);
+			release.countDown();
+			
+			for (Future<String> result : results) {
+				try {
+					result.get();
+					fail("should have thrown an ExecutionException but didn't");
+				} catch (ExecutionException e) {
+					// the caller's ExecutionException wraps the call's ExecutionException
+					assertThat(e.getCause().getCause(), is(instanceOf(IOException.class)));
+				}
+			}
+			
+			assertThat(executions.get(), is(1));
+		}
+	}
+	
+	public static class Sequential_Calls_For_The_Same_Key extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itRunsTheCallableEachTime() throws Exception {
+			final Callable<String> callable = new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return "result" + executions.incrementAndGet();
+				}
+			};
+			
+			assertThat(flight.execute("key", callable), is("result1"));
+			assertThat(flight.execute("key", callable), is("result2"));
+			assertThat(flight.getCoalescedCount(), is(0L));
+		}
+	}
+	
+	public static class Concurrent_Calls_For_Different_Keys extends Context {
+		@Override
+		@Before
+		public void setup() throws Exception {
+			super.setup();
+		}
+		
+		@Test
+		public void itRunsTheCallableOncePerKey() throws Exception {
+			final Callable<String> callable = new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					executions.incrementAndGet();
+					release.await(5, TimeUnit.SECONDS);
+					return "result";
+				}
+			};
+			final List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < CALLERS; i++) {
+				final String key = "key" + (i % 2);
+				results.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return flight.execute(key, callable);
+					}
+				}));
+			}
+			
+			awaitCoalescedCallers(CALLERS - 2);
+			release.countDown();
+			
+			for (Future<String> result : results) {
+				assertThat(result.get(), is("result"));
+			}
+			
+			assertThat(executions.get(), is(2));
+		}
+	}
+}
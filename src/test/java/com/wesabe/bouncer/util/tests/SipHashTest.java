@@ -0,0 +1,46 @@
+package com.wesabe.bouncer.util.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.wesabe.bouncer.util.SipHash;
+
+@RunWith(Enclosed.class)
+public class SipHashTest {
+	private static final long K0 = 0x0706050403020100L;
+	private static final long K1 = 0x0f0e0d0c0b0a0908L;
+	
+	private static byte[] bytes(int length) {
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) i;
+		}
+		return bytes;
+	}
+	
+	public static class Hashing_Bytes {
+		@Test
+		public void itMatchesTheReferenceImplementation() throws Exception {
+			assertThat(SipHash.hash(K0, K1, bytes(0), 0, 0), is(0x726fdb47dd0e0e31L));
+			assertThat(SipHash.hash(K0, K1, bytes(8), 0, 8), is(0x93f5f5799a932462L));
+			assertThat(SipHash.hash(K0, K1, bytes(15), 0, 15), is(0xa129ca6149be45e5L));
+		}
+		
+		@Test
+		public void itHashesPartOfAnArray() throws Exception {
+			final byte[] bytes = new byte[20];
+			System.arraycopy(bytes(15), 0, bytes, 3, 15);
+			
+			assertThat(SipHash.hash(K0, K1, bytes, 3, 15), is(0xa129ca6149be45e5L));
+		}
+		
+		@Test
+		public void itDependsOnTheKey() throws Exception {
+			assertThat(SipHash.hash(K0, K1 + 1, bytes(15), 0, 15), is(not(0xa129ca6149be45e5L)));
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package com.wesabe.bouncer.util.tests;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+import com.wesabe.bouncer.util.Clock;
+import com.wesabe.bouncer.util.TinyLfuCache;
+
+@RunWith(Enclosed.class)
+public class TinyLfuCacheTest {
+	public static class An_Empty_Cache {
+		private final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(10);
+		
+		@Test
+		public void itHasAMaxWeightOfOnePerEntry() throws Exception {
+			assertThat(cache.getMaxWeight(), is(10L));
+		}
+		
+		@Test
+		public void itIsEmpty() throws Exception {
+			assertThat(cache.size(), is(0));
+		}
+		
+		@Test
+		public void itCountsMisses() throws Exception {
+			assertThat(cache.get("one"), is(nullValue()));
+			
+			assertThat(cache.getMissCount(), is(1L));
+			assertThat(cache.getHitCount(), is(0L));
+		}
+	}
+	
+	public static class A_Cache_With_Entries {
+		private final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(10);
+		
+		@Before
+		public void setup() throws Exception {
+			cache.put("one", "1");
+			cache.put("two", "2");
+		}
+		
+		@Test
+		public void itReturnsValues() throws Exception {
+			assertThat(cache.get("one"), is("1"));
+			assertThat(cache.get("two"), is("2"));
+			assertThat(cache.getHitCount(), is(2L));
+			assertThat(cache.size(), is(2));
+		}
+		
+		@Test
+		public void itReplacesValues() throws Exception {
+			assertThat(cache.put("one", "uno"), is("1"));
+			
+			assertThat(cache.get("one"), is("uno"));
+			assertThat(cache.size(), is(2));
+		}
+		
+		@Test
+		public void itRemovesValues() throws Exception {
+			assertThat(cache.remove("one"), is("1"));
+			assertThat(cache.remove("one"), is(nullValue()));
+			
+			assertThat(cache.get("one"), is(nullValue()));
+			assertThat(cache.size(), is(1));
+		}
+		
+		@Test
+		public void itCanBeRefilledAfterARemoval() throws Exception {
+			cache.remove("one");
+			cache.put("one", "uno");
+			
+			assertThat(cache.get("one"), is("uno"));
+		}
+		
+		@Test
+		public void itRemovesMatchingValues() throws Exception {
+			final int removed = cache.removeValues(new Predicate<String>() {
+				@Override
+				public boolean apply(String value) {
+					return value.equals("2");
+				}
+			});
+			
+			assertThat(removed, is(1));
+			assertThat(cache.get("one"), is("1"));
+			assertThat(cache.get("two"), is(nullValue()));
+		}
+		
+		@Test
+		public void itCanBeCleared() throws Exception {
+			cache.clear();
+			
+			assertThat(cache.size(), is(0));
+			assertThat(cache.get("one"), is(nullValue()));
+		}
+	}
+	
+	public static class A_Full_Cache {
+		private final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(100);
+		
+		@Before
+		public void setup() throws Exception {
+			for (int i = 0; i < 100; i++) {
+				cache.put("key" + i, "value" + i);
+			}
+		}
+		
+		@Test
+		public void itStaysWithinItsMaxSize() throws Exception {
+			cache.put("one more", "value");
+			cache.cleanUp();
+			
+			assertThat(cache.size(), is(100));
+			assertThat(cache.getEvictionCount(), is(1L));
+		}
+		
+		@Test
+		public void itEvictsTheOldestOfEquallyUsedEntries() throws Exception {
+			cache.put("one more", "value");
+			
+			assertThat(cache.get("key0"), is(nullValue()));
+			assertThat(cache.get("key1"), is("value1"));
+			assertThat(cache.get("one more"), is("value"));
+		}
+		
+		@Test
+		public void itKeepsFrequentlyUsedEntriesThroughAScan() throws Exception {
+			for (int n = 0; n < 5; n++) {
+				for (int i = 0; i < 10; i++) {
+					cache.get("key" + i);
+				}
+			}
+			cache.cleanUp();
+			
+			for (int i = 0; i < 1000; i++) {
+				cache.put("scan" + i, "value");
+			}
+			cache.cleanUp();
+			
+			for (int i = 0; i < 10; i++) {
+				assertThat(cache.get("key" + i), is("value" + i));
+			}
+			assertThat(cache.size(), is(100));
+		}
+	}
+	
+	public static class A_Weighted_Cache {
+		private final List<String> removed = Lists.newArrayList();
+		private final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(100, new TinyLfuCache.Weigher<String, String>() {
+			@Override
+			public int weigh(String key, String value) {
+				return value.length();
+			}
+		}, new TinyLfuCache.RemovalListener<String, String>() {
+			@Override
+			public void onRemoval(String key, String value) {
+				removed.add(key + "=" + value);
+			}
+		}, 0, Clock.system());
+		
+		@Test
+		public void itTracksTheWeightOfItsEntries() throws Exception {
+			cache.put("one", "1234567890");
+			cache.put("two", "12345");
+			cache.cleanUp();
+			
+			assertThat(cache.getWeight(), is(15L));
+		}
+		
+		@Test
+		public void itReweighsReplacedEntries() throws Exception {
+			cache.put("one", "1234567890");
+			cache.put("one", "12");
+			cache.cleanUp();
+			
+			assertThat(cache.getWeight(), is(2L));
+			assertThat(removed, is((List<String>) Lists.newArrayList("one=1234567890")));
+		}
+		
+		@Test
+		public void itEvictsEntriesToStayWithinItsMaxWeight() throws Exception {
+			for (int i = 0; i < 10; i++) {
+				cache.put("key" + i, "1234567890123456789012345");
+			}
+			cache.cleanUp();
+			
+			assertThat(cache.size(), is(4));
+			assertThat(cache.getWeight(), is(100L));
+			assertThat(cache.getEvictionCount(), is(6L));
+			assertThat(removed.size(), is(6));
+		}
+		
+		@Test
+		public void itNeverHoldsAnEntryHeavierThanItsMaxWeight() throws Exception {
+			cache.put("small", "1");
+			cache.put("huge", new String(new char[101]));
+			cache.cleanUp();
+			
+			assertThat(cache.get("huge"), is(nullValue()));
+			assertThat(cache.get("small"), is("1"));
+			assertThat(cache.getWeight(), is(1L));
+		}
+		
+		@Test
+		public void itTellsTheListenerAboutRemovedEntries() throws Exception {
+			cache.put("one", "1");
+			cache.remove("one");
+			
+			assertThat(removed, is((List<String>) Lists.newArrayList("one=1")));
+		}
+	}
+	
+	public static class A_Disabled_Cache {
+		private final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(0);
+		
+		@Test
+		public void itHoldsNothing() throws Exception {
+			cache.put("one", "1");
+			
+			assertThat(cache.get("one"), is(nullValue()));
+			assertThat(cache.size(), is(0));
+		}
+	}
+	
+	public static class An_Expiring_Cache {
+		private Clock clock;
+		private TinyLfuCache<String, String> cache;
+		
+		@Before
+		public void setup() throws Exception {
+			this.clock = mock(Clock.class);
+			when(clock.getTime()).thenReturn(10000L);
+			
+			this.cache = new TinyLfuCache<String, String>(10, 1000, clock);
+			cache.put("one", "1");
+		}
+		
+		@Test
+		public void itReturnsEntriesBeforeTheyExpire() throws Exception {
+			when(clock.getTime()).thenReturn(10999L);
+			
+			assertThat(cache.get("one"), is("1"));
+		}
+		
+		@Test
+		public void itDropsEntriesOnceTheyExpire() throws Exception {
+			when(clock.getTime()).thenReturn(11000L);
+			
+			assertThat(cache.get("one"), is(nullValue()));
+			assertThat(cache.size(), is(0));
+			assertThat(cache.getExpirationCount(), is(1L));
+			assertThat(cache.getMissCount(), is(1L));
+		}
+		
+		@Test
+		public void itRestartsTheClockWhenAnEntryIsReplaced() throws Exception {
+			when(clock.getTime()).thenReturn(10500L);
+			cache.put("one", "uno");
+			when(clock.getTime()).thenReturn(11200L);
+			
+			assertThat(cache.get("one"), is("uno"));
+		}
+		
+		@Test
+		public void itDoesNotReturnExpiredValuesWhenReplacingThem() throws Exception {
+			when(clock.getTime()).thenReturn(11000L);
+			
+			assertThat(cache.put("one", "uno"), is(nullValue()));
+		}
+	}
+	
+	public static class A_Cache_Used_By_Many_Threads {
+		private final TinyLfuCache<Integer, Integer> cache = new TinyLfuCache<Integer, Integer>(500);
+		
+		@Test
+		public void itStaysConsistent() throws Exception {
+			final int threadCount = 8;
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(threadCount);
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			for (int t = 0; t < threadCount; t++) {
+				final int seed = t;
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							for (int i = 0; i < 20000; i++) {
+								final Integer key = Integer.valueOf(((i * 31) + seed) % 2000);
+								final Integer value = cache.get(key);
+								if ((value != null) && !value.equals(key)) {
+									throw new AssertionError("wrong value for " + key);
+								}
+								if ((i % 3) == 0) {
+									cache.put(key, key);
+								} else if ((i % 101) == 0) {
+									cache.remove(key);
+								}
+							}
+						} catch (Throwable e) {
+							failure.set(e);
+						} finally {
+							done.countDown();
+						}
+					}
+				}).start();
+			}
+			
+			start.countDown();
+			done.await();
+			cache.cleanUp();
+			
+			assertThat(failure.get(), is(nullValue()));
+			assertThat(cache.size() <= 500, is(true));
+		}
+	}
+}